@@ -0,0 +1,66 @@
+package com.liyc.mqs.common;
+
+import com.liyc.mqs.mqserver.core.BasicProperties;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 批量发布消息的请求(type=0x10), 一个帧里带同一个交换机的多条消息
+ * 每条消息: routingKey + basicProperties + 消息体
+ *
+ * @author Liyc
+ * @date 2026/10/17 18:00
+ **/
+
+public class BatchPublishArguments extends BasicArguments implements Serializable {
+    private String exchangeName;
+    private List<Entry> entries;
+
+    //批量里的一条消息
+    static public class Entry implements Serializable {
+        private String routingKey;
+        private BasicProperties basicProperties;
+        private byte[] bytes;
+
+        public String getRoutingKey() {
+            return routingKey;
+        }
+
+        public void setRoutingKey(String routingKey) {
+            this.routingKey = routingKey;
+        }
+
+        public BasicProperties getBasicProperties() {
+            return basicProperties;
+        }
+
+        public void setBasicProperties(BasicProperties basicProperties) {
+            this.basicProperties = basicProperties;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public void setBytes(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    public String getExchangeName() {
+        return exchangeName;
+    }
+
+    public void setExchangeName(String exchangeName) {
+        this.exchangeName = exchangeName;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
+    }
+}
@@ -0,0 +1,34 @@
+package com.liyc.mqs.common;
+
+import java.io.Serializable;
+
+/**
+ * 批量发布消息的响应(type=0xd), 按请求里的顺序给出每条消息的结果
+ * 1.results: 每条消息是否发布成功(至少投递到一个队列)
+ * 2.messageIds: 发布成功的消息的 id, 失败的是 null
+ * ok 表示整个批量都成功了
+ *
+ * @author Liyc
+ * @date 2026/10/17 18:00
+ **/
+
+public class BatchPublishReturns extends BasicReturns implements Serializable {
+    private boolean[] results;
+    private String[] messageIds;
+
+    public boolean[] getResults() {
+        return results;
+    }
+
+    public void setResults(boolean[] results) {
+        this.results = results;
+    }
+
+    public String[] getMessageIds() {
+        return messageIds;
+    }
+
+    public void setMessageIds(String[] messageIds) {
+        this.messageIds = messageIds;
+    }
+}
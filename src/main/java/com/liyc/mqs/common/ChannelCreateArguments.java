@@ -0,0 +1,33 @@
+package com.liyc.mqs.common;
+
+import java.io.Serializable;
+
+/**
+ * 创建 channel 的请求(type=0x1), 顺便协商这个连接上的帧压缩
+ * 1.compression: 客户端支持的压缩算法, 0 表示不压缩, 1 表示 deflate
+ * 2.compressThreshold: payload 达到这个字节数才压缩, 0 表示用服务器的默认值
+ *
+ * @author Liyc
+ * @date 2026/10/17 17:05
+ **/
+
+public class ChannelCreateArguments extends BasicArguments implements Serializable {
+    private int compression;
+    private int compressThreshold;
+
+    public int getCompression() {
+        return compression;
+    }
+
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+}
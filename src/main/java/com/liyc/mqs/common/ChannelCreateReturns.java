@@ -0,0 +1,33 @@
+package com.liyc.mqs.common;
+
+import java.io.Serializable;
+
+/**
+ * 创建 channel 的响应(type=0xd), 带上协商好的帧压缩
+ * 1.compression: 服务器同意使用的压缩算法, 0 表示不压缩
+ * 2.compressThreshold: 实际使用的压缩阈值
+ *
+ * @author Liyc
+ * @date 2026/10/17 17:05
+ **/
+
+public class ChannelCreateReturns extends BasicReturns implements Serializable {
+    private int compression;
+    private int compressThreshold;
+
+    public int getCompression() {
+        return compression;
+    }
+
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+}
@@ -1,6 +1,8 @@
 package com.liyc.mqs.common;
 
 import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
 
 import java.io.IOException;
 
@@ -11,4 +13,10 @@ import java.io.IOException;
 public interface Consumer {
     // 这里的方法名和参数, 也都是参考 RabbitMQ 展开的
     void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] bytes) throws IOException;
+
+    // 投递队列里的一个消息. 默认和上面一样只用到属性和消息体;
+    // 服务器可以覆盖这个方法, 对已经持久化的消息直接从消息文件发送.
+    default void handleDelivery(String consumerTag, Queue queue, Message message) throws IOException {
+        handleDelivery(consumerTag, message.getBasicProperties(), message.getBody());
+    }
 }
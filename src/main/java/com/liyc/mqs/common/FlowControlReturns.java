@@ -0,0 +1,33 @@
+package com.liyc.mqs.common;
+
+import java.io.Serializable;
+
+/**
+ * 流量控制通知, 服务器主动推送给客户端(type=0xf), 不对应某个请求
+ * 1.credit: 这个 channel 最多可以有多少个还没收到响应的发布请求
+ * 2.blocked: 服务器内存超过水位, 为 true 时客户端应该暂停发布, 等到 false 再继续
+ *
+ * @author Liyc
+ * @date 2026/10/17 14:30
+ **/
+
+public class FlowControlReturns extends BasicReturns implements Serializable {
+    private int credit;
+    private boolean blocked;
+
+    public int getCredit() {
+        return credit;
+    }
+
+    public void setCredit(int credit) {
+        this.credit = credit;
+    }
+
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    public void setBlocked(boolean blocked) {
+        this.blocked = blocked;
+    }
+}
@@ -2,7 +2,7 @@ package com.liyc.mqs.common;
 
 /**
  * 表示一个网络通信中的请求对象. 按照自定义协议的格式来展开的
- * 属性：1、类型 2、长度 3、正文
+ * 属性：1、类型 2、长度 3、正文 4、正文是否压缩过(帧 type 里的压缩标记, 由连接解析时拆出来)
  *
  * @author Liyc
  * @date 2024/12/25 17:51
@@ -12,6 +12,7 @@ public class Request {
     private int type;
     private int length;
     private byte[] payload;
+    private boolean compressed;
 
     public int getType() {
         return type;
@@ -36,4 +37,12 @@ public class Request {
     public void setPayload(byte[] payload) {
         this.payload = payload;
     }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
 }
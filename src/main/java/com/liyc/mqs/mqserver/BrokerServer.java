@@ -2,69 +2,124 @@ package com.liyc.mqs.mqserver;
 
 import com.liyc.mqs.common.*;
 import com.liyc.mqs.mqserver.core.BasicProperties;
-import com.liyc.mqs.mqserver.tool.BinaryTool;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.datacenter.MessageFileManager;
+import com.liyc.mqs.mqserver.network.FileRegion;
+import com.liyc.mqs.mqserver.network.FlushStats;
+import com.liyc.mqs.mqserver.network.FrameCompressor;
+import com.liyc.mqs.mqserver.network.NioConnection;
+import com.liyc.mqs.mqserver.network.NioEventLoop;
+import com.liyc.mqs.mqserver.network.OutboundFrame;
+import com.liyc.mqs.mqserver.network.RequestHandler;
+import com.liyc.mqs.mqserver.tool.WireCodec;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * 这个 BrokerServer 就是咱们 消息队列 本体服务器.
  * 本质上就是一个 TCP 的服务器.
  * 属性
- * 1.ServerSocker-当前服务
- * 2.sessions-存储客户端连接服务器的socket
+ * 1.ServerSocketChannel-当前服务
+ * 2.sessions-存储客户端连接服务器的连接
  * 3.virtualhost的对象，用来实现核心API
  * 4.设置一个进程启停标志
- * 5.线程池处理客户端连接
+ * 5.固定数量的 I/O 事件循环处理客户端连接, 连接数不再决定线程数
+ * 6.请求按 type 分发到控制/发布/确认各自的线程池执行, 同一个连接上的请求可以流水线发送, 响应按 rid 对应
+ *   同一个 channel 的请求按到达的顺序执行, 不同 channel 的请求并行
+ * 7.流量控制, 过载时让生产者的 channel 等待, 不让请求和消息在内存里无限堆积
+ * 8.帧压缩, 创建 channel 时协商, 之后超过阈值的 payload 压缩后发送
  * 方法
  * 1.启动服务
  * 2.停止服务
- * 3.线程池处理连接
- * 4.处理连接发来的请求
- * 5.读请求，readRequest
- * 6.写响应，writeResponse
+ * 3.事件循环解析出完整请求后回调 handleRequest, 提交到请求 type 对应的线程池处理
+ * 4.处理连接发来的请求, 每种 type 的处理方法在 registerHandlers 里注册
+ * 5.写响应，writeResponse
+ * 6.零拷贝投递持久化消息，writeDelivery
  * 7.清除连接
  *
  * @author Liyc
  * @date 2024/12/26 11:24
  **/
 
-public class BrokerServer {
-    //ServerSocker-当前服务
-    private ServerSocket serverSocket = null;
-    //sessions-存储客户端连接服务器的socket
-    private ConcurrentHashMap<String, Socket> sessions = new ConcurrentHashMap<>();
+public class BrokerServer implements RequestHandler {
+    //持久化消息的记录达到这个大小才走零拷贝投递, 小消息打开文件的开销比拷贝还大
+    private static final int ZERO_COPY_THRESHOLD = 16 * 1024;
+    //帧压缩的默认阈值, 客户端可以在创建 channel 时指定, 但不能小于最小阈值
+    private static final int DEFAULT_COMPRESS_THRESHOLD = 8 * 1024;
+    private static final int MIN_COMPRESS_THRESHOLD = 1024;
+    //压缩过的请求只解压开头这么多字节来读 channelId
+    private static final int CHANNEL_ID_PEEK_BYTES = 512;
+    //ServerSocketChannel-当前服务
+    private ServerSocketChannel serverChannel = null;
+    //sessions-存储客户端连接服务器的连接, key 是 channelId
+    private ConcurrentHashMap<String, NioConnection> sessions = new ConcurrentHashMap<>();
     //virtualhost的对象，用来实现核心API
     private VirtualHost virtualHost = new VirtualHost("default");
     //设置一个进程启停标志
     private volatile boolean runable = true;
-    //线程池处理客户端连接
-    private ExecutorService executorService = null;
+    //I/O 事件循环, 每个事件循环一个线程, 新连接轮流分配
+    private NioEventLoop[] eventLoops;
+    private int nextLoop = 0;
+    //请求分发, 控制/发布/确认各用一个有界线程池, 同一个 channel 的请求排队执行. 一个 channel 上慢的请求不会挡住其他 channel
+    private CommandDispatcher dispatcher = new CommandDispatcher();
+    //流量控制: 连接的在途请求数, channel 的发布额度, 内存水位
+    private FlowController flowController = null;
+    //帧压缩和压缩统计
+    private FrameCompressor frameCompressor = new FrameCompressor();
 
     public BrokerServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public BrokerServer(int port, int ioThreads, int workerThreads) throws IOException {
+        // 控制命令都要抢 VirtualHost 的锁, 线程多了也只是在锁上排队
+        dispatcher.configure(CommandDispatcher.CommandClass.CONTROL, 2, 1024);
+        dispatcher.configure(CommandDispatcher.CommandClass.PUBLISH, workerThreads, 4096);
+        dispatcher.configure(CommandDispatcher.CommandClass.ACK, Math.max(1, workerThreads / 2), 4096);
+        registerHandlers();
+        flowController = new FlowController(virtualHost.getMemoryDataCenter());
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        eventLoops = new NioEventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop("mqs-io-" + i, this);
+        }
     }
     /**
      * 启动服务
+     * 当前线程只负责 accept, 连接的读写都交给事件循环
      */
     public void start() throws IOException {
         System.out.println("[BrokerServer] BrokerServer启动监听");
-        executorService = Executors.newCachedThreadPool();
+        flowController.start();
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
         while (runable) {
-            //监听端口
-            Socket socket = serverSocket.accept();
-            //通过线程池处理连接
-            executorService.submit(() -> {
-                connectionProcess(socket);
-            });
+            SocketChannel socketChannel;
+            try {
+                //监听端口
+                socketChannel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                // stop() 关闭了 serverChannel
+                break;
+            }
+            //轮流分配给事件循环
+            NioEventLoop eventLoop = eventLoops[nextLoop];
+            nextLoop = (nextLoop + 1) % eventLoops.length;
+            eventLoop.register(socketChannel);
         }
     }
 
@@ -75,179 +130,416 @@ public class BrokerServer {
         System.out.println("[BrokerServer] BrokerServer停止服务");
         runable = false;
         sessions.clear();
-        serverSocket.close();
-
+        serverChannel.close();
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        dispatcher.shutdown();
+        flowController.stop();
+        System.out.println("[BrokerServer] 写 socket 统计: " + getFlushStats());
+        System.out.println("[BrokerServer] 请求分发统计: " + dispatcher.getStats());
+        System.out.println("[BrokerServer] 帧压缩统计: " + frameCompressor);
+        System.out.println("[BrokerServer] 刷盘统计: " + virtualHost.getDiskDataCenter().getSyncStats());
+        System.out.println("[BrokerServer] 整理统计: " + virtualHost.getDiskDataCenter().getCompactStats());
+        System.out.println("[BrokerServer] 预读统计: " + virtualHost.getDiskDataCenter().getReadAheadStats());
+        System.out.println("[BrokerServer] 归档统计: " + virtualHost.getDiskDataCenter().getArchiveStats());
+        // 存储刷盘并记下检查点, 下次启动不用重放
+        virtualHost.getDiskDataCenter().close();
     }
 
     /**
-     * 线程池处理连接
-     * @param clientSocket
+     * 汇总所有事件循环写 socket 的统计, 可以看平均每次 flush 合并了多少帧
      */
-    public void connectionProcess(Socket clientSocket) {
-        try {
-            InputStream inputStream = clientSocket.getInputStream();
-            OutputStream outputStream = clientSocket.getOutputStream();
-            DataInputStream dataInputStream = new DataInputStream(inputStream);
-            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-
-            //1.解析请求报文
-            Request request = readRequest(dataInputStream);
-            //2.请求处理
-            Response response = process(request, clientSocket);
-            //3.返回响应
-            writeResponse(dataOutputStream, response);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (MqException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+    public FlushStats getFlushStats() {
+        FlushStats total = new FlushStats();
+        for (NioEventLoop eventLoop : eventLoops) {
+            total.add(eventLoop.getFlushStats());
         }
+        return total;
     }
 
     /**
-     * 处理连接发来的请求
-     * @param request
-     * @param clientSocket
+     * 注册每种请求 type 的处理方法
+     * 控制命令: 0x1-0x8 创建/删除 channel、交换机、队列、绑定, 0xa 订阅
+     * 发布: 0x9 单条, 0x10 批量, 确认: 0xb
      */
-    public Response process(Request request, Socket clientSocket) throws MqException, IOException, ClassNotFoundException {
-
-        BasicArguments basicArguments = (BasicArguments) BinaryTool.parseByte(request.getPayload());
-        boolean ok = true;
-        //1.不同消息类型的处理
-        if (request.getType() == 0x1) {
+    private void registerHandlers() {
+        CommandDispatcher.CommandClass control = CommandDispatcher.CommandClass.CONTROL;
+        dispatcher.register(0x1, control, (connection, arguments) -> {
             //创建连接请求
-            sessions.put(basicArguments.getChannelId(), clientSocket);
-        } else if (request.getType() == 0x2) {
+            sessions.put(arguments.getChannelId(), connection);
+            //协商帧压缩, 整个连接生效
+            ChannelCreateArguments channelCreate = (ChannelCreateArguments) arguments;
+            if (channelCreate.getCompression() == FrameCompressor.COMPRESSION_DEFLATE) {
+                int threshold = channelCreate.getCompressThreshold() > 0 ? channelCreate.getCompressThreshold() : DEFAULT_COMPRESS_THRESHOLD;
+                connection.enableCompression(Math.max(threshold, MIN_COMPRESS_THRESHOLD));
+            }
+            //下发发布额度, 这个通知可能比创建的响应先到, 客户端按 channelId 对应
+            flowController.channelCreated(connection, arguments.getChannelId());
+            //创建 channel 的响应带上这个连接协商好的帧压缩
+            ChannelCreateReturns channelReturns = new ChannelCreateReturns();
+            int compressThreshold = connection.getCompressThreshold();
+            channelReturns.setOk(true);
+            channelReturns.setCompression(compressThreshold > 0 ? FrameCompressor.COMPRESSION_DEFLATE : FrameCompressor.COMPRESSION_NONE);
+            channelReturns.setCompressThreshold(compressThreshold);
+            return CompletableFuture.completedFuture(channelReturns);
+        });
+        dispatcher.register(0x2, control, (connection, arguments) -> {
             //销毁连接请求
-            clearSessions(clientSocket);
-        } else if (request.getType() == 0x3) {
+            clearSessions(connection);
+            return returns(true);
+        });
+        dispatcher.register(0x3, control, (connection, arguments) -> {
             //交换机创建请求
-            ExchangeDeclareArguments exchange = (ExchangeDeclareArguments) basicArguments;
-            ok = virtualHost.exchangeDeclare(exchange.getExchangeName(), exchange.getType(), exchange.isDurable(), exchange.isAutoDelete(), exchange.getArguments());
-        } else if (request.getType() == 0x4) {
+            ExchangeDeclareArguments exchange = (ExchangeDeclareArguments) arguments;
+            return returns(virtualHost.exchangeDeclare(exchange.getExchangeName(), exchange.getType(), exchange.isDurable(), exchange.isAutoDelete(), exchange.getArguments()));
+        });
+        dispatcher.register(0x4, control, (connection, arguments) -> {
             //交换机删除请求
-            ExchangeDeleteArguments exchange = (ExchangeDeleteArguments) basicArguments;
-            ok = virtualHost.exchangeDelete(exchange.getExchangeName());
-        } else if (request.getType() == 0x5) {
+            return returns(virtualHost.exchangeDelete(((ExchangeDeleteArguments) arguments).getExchangeName()));
+        });
+        dispatcher.register(0x5, control, (connection, arguments) -> {
             //队列创建请求
-            QueueDeclareArguments queue = (QueueDeclareArguments) basicArguments;
-            ok = virtualHost.queueDeclare(queue.getQueueName(), queue.isExclusive(), queue.isDurable(), queue.isAutoDelete(), queue.getArguments());
-        } else if (request.getType() == 0x6) {
+            QueueDeclareArguments queue = (QueueDeclareArguments) arguments;
+            return returns(virtualHost.queueDeclare(queue.getQueueName(), queue.isExclusive(), queue.isDurable(), queue.isAutoDelete(), queue.getArguments()));
+        });
+        dispatcher.register(0x6, control, (connection, arguments) -> {
             //队列删除请求
-            QueueDeleteArguments queue = (QueueDeleteArguments) basicArguments;
-            ok = virtualHost.queueDelete(queue.getQueueName());
-        } else if (request.getType() == 0x7) {
+            return returns(virtualHost.queueDelete(((QueueDeleteArguments) arguments).getQueueName()));
+        });
+        dispatcher.register(0x7, control, (connection, arguments) -> {
             //绑定创建请求
-            QueueBindArguments binding = (QueueBindArguments) basicArguments;
-            ok = virtualHost.bindingDeclare(binding.getExchangeName(), binding.getQueueName(), binding.getBindingKey());
-        } else if (request.getType() == 0x8) {
+            QueueBindArguments binding = (QueueBindArguments) arguments;
+            return returns(virtualHost.bindingDeclare(binding.getExchangeName(), binding.getQueueName(), binding.getBindingKey()));
+        });
+        dispatcher.register(0x8, control, (connection, arguments) -> {
             //绑定删除请求
-            QueueUnbindArguments binding = (QueueUnbindArguments) basicArguments;
-            ok = virtualHost.bindingDelete(binding.getExchangeName(), binding.getQueueName());
-        } else if (request.getType() == 0x9) {
-            //消息发布
-            BasicPublishArguments basicPublish = (BasicPublishArguments) basicArguments;
-            ok = virtualHost.basicPublic(basicPublish.getExchangeName(), basicPublish.getRoutingKey(), basicPublish.getBasicProperties(), basicPublish.getBytes());
-        } else if (request.getType() == 0xa) {
+            QueueUnbindArguments binding = (QueueUnbindArguments) arguments;
+            return returns(virtualHost.bindingDelete(binding.getExchangeName(), binding.getQueueName()));
+        });
+        dispatcher.register(0x9, CommandDispatcher.CommandClass.PUBLISH, (connection, arguments) -> {
+            //消息发布, 持久化的消息刷盘之后才回响应, 在这之前一直占着发布额度
+            BasicPublishArguments basicPublish = (BasicPublishArguments) arguments;
+            CompletableFuture<Boolean> published = virtualHost.basicPublicAsync(basicPublish.getExchangeName(), basicPublish.getRoutingKey(), basicPublish.getBasicProperties(), basicPublish.getBytes());
+            return published.thenApply(ok -> {
+                BasicReturns result = new BasicReturns();
+                result.setOk(ok);
+                return result;
+            });
+        });
+        dispatcher.register(0xa, control, (connection, arguments) -> {
             //消息消费
-            BasicConsumeArguments basicConsume = (BasicConsumeArguments) basicArguments;
-            ok = virtualHost.basicConsume(basicConsume.getConsumerTag(), basicConsume.getQueueName(), basicConsume.isAutoAck(), new Consumer() {
-                @Override
-                public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] bytes) throws IOException {
-                    //添加消费者的消费方法
-                    //1.根据consumerTag获取客户端
-                    Socket socket = sessions.get(consumerTag);
-                    if (socket == null || socket.isClosed()) {
-                        System.out.println("[BrokerServer] ClientSocket停止服务，无法消费消息！");
-                    }
+            BasicConsumeArguments basicConsume = (BasicConsumeArguments) arguments;
+            return returns(virtualHost.basicConsume(basicConsume.getConsumerTag(), basicConsume.getQueueName(), basicConsume.isAutoAck(), createConsumer()));
+        });
+        dispatcher.register(0xb, CommandDispatcher.CommandClass.ACK, (connection, arguments) -> {
+            //消息确认
+            BasicAckArguments basicAck = (BasicAckArguments) arguments;
+            return returns(virtualHost.basicAck(basicAck.getQueueName(), basicAck.getMessageId()));
+        });
+        dispatcher.register(0x10, CommandDispatcher.CommandClass.PUBLISH, (connection, arguments) -> {
+            //批量发布消息, 整个批量占一个发布额度
+            BatchPublishArguments batchPublish = (BatchPublishArguments) arguments;
+            List<BatchPublishArguments.Entry> entries = batchPublish.getEntries() == null ? new ArrayList<>() : batchPublish.getEntries();
+            CompletableFuture<String[]> published = virtualHost.basicBatchPublish(batchPublish.getExchangeName(), entries);
+            return published.thenApply(messageIds -> {
+                BatchPublishReturns batchReturns = new BatchPublishReturns();
+                boolean[] results = new boolean[messageIds.length];
+                boolean ok = true;
+                for (int i = 0; i < messageIds.length; i++) {
+                    results[i] = messageIds[i] != null;
+                    ok &= results[i];
+                }
+                batchReturns.setOk(ok);
+                batchReturns.setResults(results);
+                batchReturns.setMessageIds(messageIds);
+                return batchReturns;
+            });
+        });
+    }
 
-                    //2.格式要发送的消息
-                    SubScribeReturns subReturns = new SubScribeReturns();
-                    subReturns.setChannelId(consumerTag);
-                    subReturns.setRid("");// 由于这里只有响应, 没有请求, 不需要去对应. rid 暂时不需要.
-                    subReturns.setOk(true);
-                    subReturns.setConsumerTag(consumerTag);
-                    subReturns.setBasicProperties(basicProperties);
-                    subReturns.setBody(bytes);
+    // 只有 ok 的响应, 处理完马上就能返回
+    private static CompletableFuture<BasicReturns> returns(boolean ok) {
+        BasicReturns result = new BasicReturns();
+        result.setOk(ok);
+        return CompletableFuture.completedFuture(result);
+    }
 
-                    byte[] mbytes = BinaryTool.formatByte(subReturns);
-                    Response responseClient = new Response();
-                    responseClient.setType(0xc);
-                    responseClient.setLength(mbytes.length);
-                    responseClient.setPayload(mbytes);
+    /**
+     * 事件循环解析出一个完整的请求
+     * 连接是长连接, 事件循环会继续解析后面的请求, 这里不等待当前请求处理完.
+     * 请求交给 type 对应的线程池执行, 同一个 channel 的请求按到达的顺序一个一个执行, 不同 channel 的请求并行.
+     * 哪个先处理完就先返回哪个的响应, 客户端按 rid 对应请求和响应.
+     * channel 的发布额度用完或者内存超过高水位时, 请求先在 channel 的等待队列里排着, 放行之后才交给线程池, 见 FlowController.
+     * 在途的请求太多时暂停读这个连接, 处理掉一半之后再恢复.
+     * @param connection
+     * @param request
+     */
+    @Override
+    public void handleRequest(NioConnection connection, Request request) {
+        if (!dispatcher.isRegistered(request.getType())) {
+            // type 非法, 后面的数据也没法信任了, 关闭当前连接
+            System.out.println("[BrokerServer] 未知的 type! type=" + request.getType());
+            connection.close();
+            return;
+        }
+        if (connection.getEncoding() < 0) {
+            // 按第一个请求的编码回响应, 老客户端发的是 Java 序列化. 压缩是创建 channel 之后才协商的, 第一个请求不会压缩
+            connection.setEncoding(request.isCompressed() ? WireCodec.ENCODING_WIRE : WireCodec.encodingOf(request.getPayload()));
+        }
+        Object key = orderKey(connection, request);
+        CommandDispatcher.CommandClass commandClass = dispatcher.getCommandClass(request.getType());
+        flowController.admit(connection, key, commandClass, () -> dispatch(connection, request, key, commandClass));
+    }
 
-                    //3.发送消息
-                    OutputStream outputStream = socket.getOutputStream();
-                    DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-                    writeResponse(dataOutputStream, responseClient);
+    // 流量控制放行之后, 在事件循环上把请求交给 type 对应的线程池
+    private void dispatch(NioConnection connection, Request request, Object key, CommandDispatcher.CommandClass commandClass) {
+        flowController.requestReceived(connection);
+        boolean accepted = dispatcher.execute(request.getType(), key, () -> {
+            if (connection.isClosed()) {
+                flowController.requestCompleted(connection, key, commandClass);
+                return;
+            }
+            CompletableFuture<Response> response;
+            try {
+                //1.请求处理, 持久化的发布要等刷盘之后才有响应
+                response = process(request, connection);
+            } catch (IOException | MqException | ClassNotFoundException | RuntimeException e) {
+                // 报文解析不出来, 后面的数据也没法信任了, 关闭当前连接
+                e.printStackTrace();
+                connection.close();
+                flowController.requestCompleted(connection, key, commandClass);
+                return;
+            }
+            //2.返回响应, 刷盘的请求在存储完成刷盘 future 的线程上返回, 不占刷盘线程
+            response.whenComplete((result, e) -> {
+                try {
+                    if (e != null) {
+                        throw e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    }
+                    writeResponse(connection, result);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                    connection.close();
+                } finally {
+                    flowController.requestCompleted(connection, key, commandClass);
                 }
             });
-        } else if (request.getType() == 0xb) {
-            //消息确认
-            BasicAckArguments basicAck = (BasicAckArguments) basicArguments;
-            ok = virtualHost.basicAck(basicAck.getQueueName(), basicAck.getMessageId());
-        } else {
+        });
+        if (!accepted) {
+            // 这一类请求排队太多了, 直接回失败响应, 不在事件循环上等待
+            flowController.requestCompleted(connection, key, commandClass);
+            rejectRequest(connection, request);
+        }
+    }
+
+    // 请求排队执行的 key: 能读出 channelId 就按 channel 排队, 读不出来(Java 序列化的老客户端等)就整个连接排队
+    private Object orderKey(NioConnection connection, Request request) {
+        String channelId = null;
+        try {
+            if (!request.isCompressed()) {
+                channelId = WireCodec.peekChannelId(request.getPayload());
+            } else {
+                try {
+                    channelId = WireCodec.peekChannelId(FrameCompressor.decompressPrefix(request.getPayload(), CHANNEL_ID_PEEK_BYTES));
+                } catch (IOException e) {
+                    // 开头一段没读全 channelId, 整个解压
+                    channelId = WireCodec.peekChannelId(FrameCompressor.decompress(request.getPayload()));
+                }
+            }
+        } catch (IOException e) {
+            // 解析不了的请求在线程池里处理时会关闭连接
+        }
+        return channelId == null ? connection : channelId;
+    }
+
+    // 线程池队列满了, 回一个 ok=false 的响应
+    private void rejectRequest(NioConnection connection, Request request) {
+        try {
+            BasicArguments basicArguments = (BasicArguments) WireCodec.decode(request.getType(), requestPayload(request));
+            System.out.println("[BrokerServer] 请求排队太多, 拒绝处理! type=" + request.getType() + ", rid=" + basicArguments.getRid());
+            writeResponse(connection, buildResponse(connection, basicArguments, returns(false).join()));
+        } catch (IOException | MqException | ClassNotFoundException | RuntimeException e) {
+            e.printStackTrace();
+            connection.close();
+        }
+    }
+
+    /**
+     * 连接被关闭了, 清理掉它上面的 channel
+     * @param connection
+     */
+    @Override
+    public void connectionClosed(NioConnection connection) {
+        clearSessions(connection);
+        flowController.connectionClosed(connection);
+    }
+
+    /**
+     * 处理连接发来的请求
+     * @param request
+     * @param connection
+     * @return 响应, 处理方法返回的 future 完成之后才有
+     */
+    public CompletableFuture<Response> process(Request request, NioConnection connection) throws MqException, IOException, ClassNotFoundException {
+        //1.找到这个 type 的处理方法
+        CommandHandler handler = dispatcher.getHandler(request.getType());
+        if (handler == null) {
             // 当前的 type 是非法的.
             throw new MqException("[BrokerServer] 未知的 type! type=" + request.getType());
         }
-        //设置返回信息
-        BasicReturns result = new BasicReturns();
+        //2.解析参数并处理
+        BasicArguments basicArguments = (BasicArguments) WireCodec.decode(request.getType(), requestPayload(request));
+        CompletableFuture<BasicReturns> result = handler.handle(connection, basicArguments);
+        //3.设置返回信息
+        return result.thenApply(returns -> {
+            try {
+                Response response = buildResponse(connection, basicArguments, returns);
+                System.out.println("[Response] rid=" + basicArguments.getRid() + ", channelId=" + basicArguments.getChannelId()
+                        + ", type=" + response.getType() + ", length=" + response.getLength());
+                return response;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    // 压缩过的请求先解压
+    private byte[] requestPayload(Request request) throws IOException {
+        return request.isCompressed() ? FrameCompressor.decompress(request.getPayload()) : request.getPayload();
+    }
+
+    // 设置返回信息, 带上请求的 rid, 客户端靠它把乱序返回的响应和请求对应起来; 按连接的编码编码
+    private Response buildResponse(NioConnection connection, BasicArguments basicArguments, BasicReturns result) throws IOException {
         result.setChannelId(basicArguments.getChannelId());
         result.setRid(basicArguments.getRid());
-        result.setOk(ok);
 
-        byte[] rbyte = BinaryTool.formatByte(request);
+        byte[] rbyte = WireCodec.encode(0xd, result, connection.getEncoding());
         Response response = new Response();
         response.setType(0xd);
         response.setLength(rbyte.length);
         response.setPayload(rbyte);
-        System.out.println("[Response] rid=" + result.getRid() + ", channelId=" + result.getChannelId()
-                + ", type=" + response.getType() + ", length=" + response.getLength());
         return response;
     }
 
     /**
-     * 读请求，readRequest
-     * @param dataInputStream
-     * @return
+     * 订阅者的消费方法, 把消息推送给订阅者所在的连接
      */
-    public Request readRequest(DataInputStream dataInputStream) throws IOException {
-        Request request = new Request();
-        request.setType(dataInputStream.readInt());
-        request.setLength(dataInputStream.readInt());
-        byte[] bytes = new byte[request.getLength()];
-        int n = dataInputStream.read(bytes);
-        if (n != request.getLength()) {
-            System.out.println("[BrokerServer] request请求报文错误");
-            throw new IOException("request请求报文读取错误");
-        }
-        request.setPayload(bytes);
-        return request;
+    private Consumer createConsumer() {
+        return new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] bytes) throws IOException {
+                //添加消费者的消费方法
+                //1.根据consumerTag获取客户端
+                NioConnection clientConnection = sessions.get(consumerTag);
+                if (clientConnection == null || clientConnection.isClosed()) {
+                    System.out.println("[BrokerServer] ClientSocket停止服务，无法消费消息！");
+                    throw new IOException("[BrokerServer] 订阅者的连接已经关闭! consumerTag=" + consumerTag);
+                }
+
+                //2.格式要发送的消息
+                SubScribeReturns subReturns = new SubScribeReturns();
+                subReturns.setChannelId(consumerTag);
+                subReturns.setRid("");// 由于这里只有响应, 没有请求, 不需要去对应. rid 暂时不需要.
+                subReturns.setOk(true);
+                subReturns.setConsumerTag(consumerTag);
+                subReturns.setBasicProperties(basicProperties);
+                subReturns.setBody(bytes);
+
+                byte[] mbytes = WireCodec.encode(0xc, subReturns, clientConnection.getEncoding());
+                Response responseClient = new Response();
+                responseClient.setType(0xc);
+                responseClient.setLength(mbytes.length);
+                responseClient.setPayload(mbytes);
+
+                //3.发送消息
+                writeResponse(clientConnection, responseClient);
+            }
+
+            @Override
+            public void handleDelivery(String consumerTag, Queue queue, Message message) throws IOException {
+                // 持久化的大消息, 直接把消息文件里存的记录发给客户端, 不再在堆上序列化一遍
+                // 用 Java 序列化的老客户端不认识 0xe, 还是走普通的推送
+                long recordLength = message.getOffsetEnd() - message.getOffsetBeg();
+                NioConnection clientConnection = sessions.get(consumerTag);
+                if (!queue.isDurable() || message.getDurable() != 2 || recordLength < ZERO_COPY_THRESHOLD
+                        || (clientConnection != null && clientConnection.getEncoding() == WireCodec.ENCODING_JAVA)) {
+                    handleDelivery(consumerTag, message.getBasicProperties(), message.getBody());
+                    return;
+                }
+                if (clientConnection == null || clientConnection.isClosed()) {
+                    System.out.println("[BrokerServer] ClientSocket停止服务，无法消费消息！");
+                    throw new IOException("[BrokerServer] 订阅者的连接已经关闭! consumerTag=" + consumerTag);
+                }
+                MessageFileManager.MsgRegion region = virtualHost.getDiskDataCenter().openMessageRegion(queue, message);
+                writeDelivery(clientConnection, consumerTag, region);
+            }
+        };
     }
 
     /**
      * 写响应，writeResponse
-     * @param dataOutputStream
+     * 按 type(4) + length(4) + payload 的格式组装成一个帧, 放进连接的发送队列.
+     * 请求的响应和推送给订阅者的消息都走这里, 由连接所在的事件循环统一写出, 帧之间不会交错.
+     * 帧头单独一块 buffer, payload 直接包装不拷贝, 发送时和其他帧一起聚集写.
+     * 连接协商了压缩并且 payload 超过阈值, 在调用线程上压缩, type 带上压缩标记, 压不下去的按原样发送.
+     * @param connection
      * @param response
      */
-    public void writeResponse(DataOutputStream dataOutputStream, Response response) throws IOException {
-        dataOutputStream.writeInt(response.getType());
-        dataOutputStream.writeInt(response.getLength());
-        dataOutputStream.write(response.getPayload());
-        //这个刷新缓冲区也是重要的操作!!
-        dataOutputStream.flush();
+    public void writeResponse(NioConnection connection, Response response) throws IOException {
+        int type = response.getType();
+        byte[] payload = response.getPayload();
+        int threshold = connection.getCompressThreshold();
+        if (threshold > 0 && payload.length >= threshold) {
+            byte[] compressed = frameCompressor.compress(payload);
+            if (compressed != null) {
+                type |= FrameCompressor.FLAG_COMPRESSED;
+                payload = compressed;
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(type);
+        header.putInt(payload.length);
+        header.flip();
+        connection.send(new OutboundFrame(header, ByteBuffer.wrap(payload)));
+    }
+
+    /**
+     * 零拷贝投递持久化消息，writeDelivery
+     * 帧格式: type(4)=0xe + length(4) + consumerTag长度(4) + consumerTag + 消息文件里存储的 Message 记录.
+     * 堆上只组装前面很小的帧头, Message 记录在发送时从文件直接 transferTo 到 socket,
+     * 客户端用 WireCodec.decodeDelivery 解析成和 0xc 推送一样的 SubScribeReturns.
+     * 用 Java 序列化的老客户端不走这里, 见 createConsumer.
+     * 消息在归档段里的话文件是压缩过的, 发送队列日志解压出来的记录, 帧格式一样.
+     * @param connection
+     * @param consumerTag
+     * @param region
+     */
+    public void writeDelivery(NioConnection connection, String consumerTag, MessageFileManager.MsgRegion region) throws IOException {
+        byte[] tag = consumerTag.getBytes("UTF-8");
+        ByteBuffer header = ByteBuffer.allocate(12 + tag.length);
+        header.putInt(0xe);
+        header.putInt((int) (4 + tag.length + region.count));
+        header.putInt(tag.length);
+        header.put(tag);
+        header.flip();
+        if (region.channel == null) {
+            // 归档段里的消息已经解压出来了, 直接发送
+            connection.send(new OutboundFrame(header, ByteBuffer.wrap(region.bytes)));
+            return;
+        }
+        connection.send(new OutboundFrame(header, new FileRegion(region.channel, region.position, region.count)));
     }
 
     /**
      * 清除连接
-     * @param socket
+     * @param connection
      */
-    public void clearSessions(Socket socket) {
+    public void clearSessions(NioConnection connection) {
         List<String> so = new ArrayList<>();
         //不能一边遍历一边删除，会有问题，分开操作
-        for (Map.Entry<String, Socket> map : sessions.entrySet()) {
-            if (socket == map.getValue()) {
+        for (Map.Entry<String, NioConnection> map : sessions.entrySet()) {
+            if (connection == map.getValue()) {
                 // 不能在这里直接删除!!!
                 // 这属于使用集合类的一个大忌!!! 一边遍历, 一边删除!!!
                 // sessions.remove(entry.getKey());
@@ -256,6 +548,7 @@ public class BrokerServer {
         }
         for (String s : so) {
             sessions.remove(s);
+            flowController.channelClosed(connection, s);
         }
         System.out.println("[BrokerServer] 清理 session 完成! 被清理的 channelId=" + so);
     }
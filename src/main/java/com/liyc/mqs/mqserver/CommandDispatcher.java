@@ -0,0 +1,305 @@
+package com.liyc.mqs.mqserver;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求分发类, 按请求 type 找到处理方法和执行它的线程池
+ * 请求分成几个类别, 每个类别一个有界线程池, 互相不排队:
+ * 创建/删除交换机、队列、绑定这些控制命令要抢 VirtualHost 的锁, 一下子来一批也不会拖慢发布和确认
+ * 同一个 channel 的请求按到达的顺序一个一个执行(不管属于哪个类别), 前一个执行完才把下一个交给它类别的线程池,
+ * 声明之后的发布、同一个 channel 上连续的发布、订阅之后的确认都不会乱序; 只有不同 channel 的请求才并行
+ * 1.注册处理方法-register
+ * 2.查找处理方法-getHandler
+ * 3.提交到类别对应的线程池-execute, 带 key 的请求按 key 排队, 排队的请求数超过上限返回 false
+ * 4.每个类别的队列深度、排队时间、拒绝次数统计-getStats
+ * 5.停止-shutdown
+ *
+ * @author Liyc
+ * @date 2026/10/17 16:15
+ **/
+
+public class CommandDispatcher {
+    //命令类别
+    public enum CommandClass {
+        //创建/删除 channel、交换机、队列、绑定, 订阅
+        CONTROL,
+        //消息发布
+        PUBLISH,
+        //消息确认
+        ACK
+    }
+
+    //key 是请求 type
+    private final Map<Integer, Registration> registrations = new ConcurrentHashMap<>();
+    private final EnumMap<CommandClass, CommandExecutor> executors = new EnumMap<>(CommandClass.class);
+    //按 key(一般是 channelId)排队的请求. map 里有这个 key 说明它有一个请求在执行, 队列里是排在后面的请求
+    private final ConcurrentHashMap<Object, ArrayDeque<OrderedTask>> serialQueues = new ConcurrentHashMap<>();
+
+    /**
+     * 配置一个命令类别的线程池
+     * @param commandClass
+     * @param threads 线程数
+     * @param queueCapacity 排队的请求数上限
+     */
+    public void configure(CommandClass commandClass, int threads, int queueCapacity) {
+        CommandExecutor old = executors.put(commandClass, new CommandExecutor(commandClass, Math.max(1, threads), Math.max(1, queueCapacity)));
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * 注册一个请求 type 的处理方法
+     * @param type
+     * @param commandClass
+     * @param handler
+     */
+    public void register(int type, CommandClass commandClass, CommandHandler handler) {
+        if (!executors.containsKey(commandClass)) {
+            throw new IllegalStateException("[CommandDispatcher] 命令类别还没有配置线程池! commandClass=" + commandClass);
+        }
+        registrations.put(type, new Registration(commandClass, handler));
+    }
+
+    public CommandHandler getHandler(int type) {
+        Registration registration = registrations.get(type);
+        return registration == null ? null : registration.handler;
+    }
+
+    public CommandClass getCommandClass(int type) {
+        Registration registration = registrations.get(type);
+        return registration == null ? null : registration.commandClass;
+    }
+
+    public boolean isRegistered(int type) {
+        return registrations.containsKey(type);
+    }
+
+    /**
+     * 提交请求到 type 所属类别的线程池, 不用和其他请求保持顺序
+     * @param type
+     * @param task
+     * @return
+     */
+    public boolean execute(int type, Runnable task) {
+        return execute(type, null, task);
+    }
+
+    /**
+     * 提交请求到 type 所属类别的线程池
+     * 在事件循环线程上调用, 不能阻塞, 排队的请求太多直接返回 false, 由调用方回失败响应
+     * @param type
+     * @param key 相同 key 的请求按提交的顺序依次执行, null 表示不排队
+     * @param task
+     * @return
+     */
+    public boolean execute(int type, Object key, Runnable task) {
+        Registration registration = registrations.get(type);
+        if (registration == null) {
+            return false;
+        }
+        CommandExecutor executor = executors.get(registration.commandClass);
+        if (!executor.admit()) {
+            return false;
+        }
+        if (key == null) {
+            return executor.submit(task);
+        }
+        OrderedTask ordered = new OrderedTask(executor, task);
+        boolean[] idle = new boolean[1];
+        serialQueues.compute(key, (k, queue) -> {
+            if (queue == null) {
+                idle[0] = true;
+                return new ArrayDeque<>();
+            }
+            queue.add(ordered);
+            ordered.executor.waiting.incrementAndGet();
+            return queue;
+        });
+        if (idle[0]) {
+            return submitOrdered(key, ordered);
+        }
+        ordered.executor.updateMaxQueueDepth();
+        return true;
+    }
+
+    // 执行完一个排队的请求之后, 把同一个 key 的下一个请求交给它类别的线程池
+    private boolean submitOrdered(Object key, OrderedTask ordered) {
+        boolean submitted = ordered.executor.submit(() -> {
+            try {
+                ordered.task.run();
+            } finally {
+                submitNext(key);
+            }
+        });
+        if (!submitted) {
+            // 线程池已经停了, 后面排队的请求也不执行了
+            serialQueues.remove(key);
+        }
+        return submitted;
+    }
+
+    private void submitNext(Object key) {
+        OrderedTask[] next = new OrderedTask[1];
+        serialQueues.computeIfPresent(key, (k, queue) -> {
+            next[0] = queue.poll();
+            return next[0] == null ? null : queue;
+        });
+        if (next[0] != null) {
+            next[0].executor.waiting.decrementAndGet();
+            submitOrdered(key, next[0]);
+        }
+    }
+
+    /**
+     * 所有类别的统计
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (CommandExecutor executor : executors.values()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(executor);
+        }
+        return sb.toString();
+    }
+
+    public int getQueueDepth(CommandClass commandClass) {
+        return executors.get(commandClass).queueDepth();
+    }
+
+    public int getMaxQueueDepth(CommandClass commandClass) {
+        return executors.get(commandClass).maxQueueDepth.get();
+    }
+
+    public long getRejected(CommandClass commandClass) {
+        return executors.get(commandClass).rejected.get();
+    }
+
+    public void shutdown() {
+        for (CommandExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
+    }
+
+    private static class Registration {
+        private final CommandClass commandClass;
+        private final CommandHandler handler;
+
+        Registration(CommandClass commandClass, CommandHandler handler) {
+            this.commandClass = commandClass;
+            this.handler = handler;
+        }
+    }
+
+    private static class OrderedTask {
+        private final CommandExecutor executor;
+        private final Runnable task;
+
+        OrderedTask(CommandExecutor executor, Runnable task) {
+            this.executor = executor;
+            this.task = task;
+        }
+    }
+
+    /**
+     * 一个命令类别的有界线程池和统计
+     * 在线程池队列里和在 channel 队列里排队的请求都算这个类别的, 一起受 queueCapacity 限制
+     */
+    private static class CommandExecutor {
+        private final CommandClass commandClass;
+        private final ThreadPoolExecutor pool;
+        //执行中和排队的请求数上限
+        private final int capacity;
+        //提交了还没执行完的请求数, 包括在 channel 队列里等前一个请求的
+        private final AtomicInteger outstanding = new AtomicInteger();
+        //在 channel 队列里等前一个请求的请求数
+        private final AtomicInteger waiting = new AtomicInteger();
+        //出现过的最大排队数
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+        //队列满被拒绝的请求数
+        private final AtomicLong rejected = new AtomicLong();
+        //执行完的请求数和它们的总排队时间
+        private final AtomicLong executed = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+
+        CommandExecutor(CommandClass commandClass, int threads, int queueCapacity) {
+            this.commandClass = commandClass;
+            this.capacity = threads + queueCapacity;
+            AtomicInteger index = new AtomicInteger();
+            String prefix = "mqs-" + commandClass.name().toLowerCase() + "-";
+            // 排队的请求数由 admit 限制, 线程池的队列本身不设上限, channel 队列里的请求轮到时一定放得进去
+            this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, prefix + index.getAndIncrement()),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        // 占一个排队的位置, 满了就拒绝
+        boolean admit() {
+            if (outstanding.incrementAndGet() > capacity) {
+                outstanding.decrementAndGet();
+                rejected.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        boolean submit(Runnable task) {
+            long submitTime = System.nanoTime();
+            try {
+                pool.execute(() -> {
+                    waitNanos.addAndGet(System.nanoTime() - submitTime);
+                    executed.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        outstanding.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                outstanding.decrementAndGet();
+                rejected.incrementAndGet();
+                return false;
+            }
+            updateMaxQueueDepth();
+            return true;
+        }
+
+        int queueDepth() {
+            return pool.getQueue().size() + waiting.get();
+        }
+
+        void updateMaxQueueDepth() {
+            int depth = queueDepth();
+            int max;
+            while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+                // 别的线程刚更新过, 重新比较
+            }
+        }
+
+        void shutdown() {
+            pool.shutdown();
+        }
+
+        @Override
+        public String toString() {
+            long count = executed.get();
+            return commandClass + "{queueDepth=" + queueDepth()
+                    + ", maxQueueDepth=" + maxQueueDepth.get()
+                    + ", executed=" + count
+                    + ", avgWaitMicros=" + (count == 0 ? 0 : waitNanos.get() / count / 1000)
+                    + ", rejected=" + rejected.get() + "}";
+        }
+    }
+}
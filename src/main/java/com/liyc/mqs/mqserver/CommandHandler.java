@@ -0,0 +1,22 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.common.BasicArguments;
+import com.liyc.mqs.common.BasicReturns;
+import com.liyc.mqs.common.MqException;
+import com.liyc.mqs.mqserver.network.NioConnection;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 一种请求 type 的处理方法, 注册到 CommandDispatcher 上
+ * 在这个 type 所属命令类别的线程池上执行, 返回响应的内容(ok 以及各命令自己的字段), rid 和 channelId 由调用方填写
+ * 响应用 future 返回, 持久化的发布要等刷盘之后才完成, 处理线程不用等在那里
+ *
+ * @author Liyc
+ * @date 2026/10/17 16:10
+ **/
+
+public interface CommandHandler {
+    CompletableFuture<BasicReturns> handle(NioConnection connection, BasicArguments arguments) throws MqException, IOException;
+}
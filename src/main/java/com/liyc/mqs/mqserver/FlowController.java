@@ -0,0 +1,292 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.common.FlowControlReturns;
+import com.liyc.mqs.mqserver.datacenter.MemoryDataCenter;
+import com.liyc.mqs.mqserver.network.NioConnection;
+import com.liyc.mqs.mqserver.network.OutboundFrame;
+import com.liyc.mqs.mqserver.tool.WireCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 流量控制类, 服务器过载时让生产者慢下来, 而不是把内存撑爆
+ * 1.连接级别: 一个连接上同时处理的请求数有上限, 超过就暂停读这个连接
+ * 2.channel 级别: 创建 channel 时下发发布额度(credit), 没收到响应的发布请求达到额度之后, 这个 channel 后面的请求先放进它自己的等待队列, 有发布处理完再放行
+ * 3.服务器级别: 内存中的消息体超过高水位, 通知正在发布的 channel 阻塞(0xf), 它们的发布请求放进等待队列, 降到低水位再通知恢复并放行
+ * channel 等待的时候连接照样读, 确认不进等待队列, 消费者确认之后内存才降得下来; 客户端不管额度一直发(等待队列超过额度)才暂停读这个连接
+ * 等待队列的放行和流量控制通知都在连接所在的事件循环上执行, 不会阻塞检查线程和处理请求的线程
+ * 订阅者那边由连接的发送队列字节额度控制, 见 NioConnection
+ *
+ * @author Liyc
+ * @date 2026/10/17 14:40
+ **/
+
+public class FlowController {
+    //暂停读连接的原因
+    public static final int PAUSE_INFLIGHT = 1;
+    public static final int PAUSE_CREDIT = 1 << 1;
+    //单个连接同时处理的请求数上限, 超过之后暂停读, 降到一半再恢复
+    public static final int MAX_INFLIGHT_REQUESTS = 256;
+    //每个 channel 的发布额度
+    public static final int CHANNEL_PUBLISH_CREDIT = 128;
+
+    private MemoryDataCenter memoryDataCenter;
+    //内存水位: 消息体占用超过最大堆的 40% 阻塞发布者, 降到 30% 恢复
+    private long highWatermark = (long) (Runtime.getRuntime().maxMemory() * 0.4);
+    private long lowWatermark = (long) (Runtime.getRuntime().maxMemory() * 0.3);
+    private volatile boolean memoryBlocked = false;
+    //每个连接上各个 channel 的流量控制状态
+    private ConcurrentHashMap<NioConnection, ConnectionFlow> connections = new ConcurrentHashMap<>();
+    //定时检查内存水位, 用来解除阻塞
+    private ScheduledExecutorService checker = null;
+
+    public FlowController(MemoryDataCenter memoryDataCenter) {
+        this.memoryDataCenter = memoryDataCenter;
+    }
+
+    public void start() {
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mqs-flow-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::checkMemory, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+    }
+
+    // 测试用, 调整内存水位
+    void setWatermarks(long highWatermark, long lowWatermark) {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * 事件循环解析出一个请求之后调用, 决定马上交给线程池还是先放进 channel 的等待队列
+     * 1.确认直接放行, 它只引用已经投递过的消息, 不用排在等待的发布后面
+     * 2.channel 的等待队列里已经有请求, 后面的请求也排进去, 保证同一个 channel 的顺序
+     * 3.发布请求超过 channel 的额度, 或者内存超过高水位, 放进等待队列
+     * @param connection
+     * @param key 请求排队执行的 key, 一般是 channelId, 读不出 channelId 的老客户端是连接本身
+     * @param commandClass
+     * @param dispatch 放行时在事件循环上执行
+     */
+    public void admit(NioConnection connection, Object key, CommandDispatcher.CommandClass commandClass, Runnable dispatch) {
+        if (commandClass == CommandDispatcher.CommandClass.ACK) {
+            dispatch.run();
+            return;
+        }
+        ConnectionFlow connectionFlow = connections.computeIfAbsent(connection, k -> new ConnectionFlow());
+        ChannelFlow channel = connectionFlow.channels.computeIfAbsent(key, k -> new ChannelFlow());
+        boolean publish = commandClass == CommandDispatcher.CommandClass.PUBLISH;
+        if (publish && !memoryBlocked && memoryDataCenter.getMessageBytes() > highWatermark) {
+            memoryBlocked = true;
+            System.out.println("[FlowController] 内存超过高水位, 阻塞发布者! messageBytes="
+                    + memoryDataCenter.getMessageBytes() + ", highWatermark=" + highWatermark);
+        }
+        if (channel.parked.isEmpty() && (!publish || canPublish(channel))) {
+            if (publish) {
+                channel.publishes.incrementAndGet();
+            }
+            dispatch.run();
+            return;
+        }
+        channel.parked.add(new Parked(publish, dispatch));
+        channel.hasParked = true;
+        if (publish && memoryBlocked && !channel.blockedNotified && key instanceof String) {
+            channel.blockedNotified = true;
+            notifyFlow(connection, (String) key, true);
+        }
+        if (channel.parked.size() > CHANNEL_PUBLISH_CREDIT && connectionFlow.overflowing.add(channel)) {
+            System.out.println("[FlowController] 客户端没有按额度发送, 暂停读连接! remote=" + connection.getRemoteAddress() + ", key=" + key);
+            connection.pauseReading(PAUSE_CREDIT);
+        }
+        // 放进队列之前可能刚好有发布处理完, 再检查一次
+        release(connection, connectionFlow, key, channel);
+    }
+
+    /**
+     * 请求交给线程池之前调用一次
+     * @param connection
+     */
+    public void requestReceived(NioConnection connection) {
+        if (connection.incrementInflight() >= MAX_INFLIGHT_REQUESTS) {
+            connection.pauseReading(PAUSE_INFLIGHT);
+        }
+    }
+
+    /**
+     * 请求处理完(响应已经放进发送队列)调用一次, 发布请求还要归还 channel 的额度, 放行等待的请求
+     * @param connection
+     * @param key 和 admit 时的 key 一样
+     * @param commandClass
+     */
+    public void requestCompleted(NioConnection connection, Object key, CommandDispatcher.CommandClass commandClass) {
+        if (connection.decrementInflight() <= MAX_INFLIGHT_REQUESTS / 2 && connection.isReadPaused(PAUSE_INFLIGHT)) {
+            connection.resumeReading(PAUSE_INFLIGHT);
+        }
+        if (commandClass != CommandDispatcher.CommandClass.PUBLISH) {
+            return;
+        }
+        ConnectionFlow connectionFlow = connections.get(connection);
+        ChannelFlow channel = connectionFlow == null ? null : connectionFlow.channels.get(key);
+        if (channel == null) {
+            return;
+        }
+        channel.publishes.decrementAndGet();
+        // 先减额度再看等待队列, admit 是先放进队列再检查额度, 两边总有一边能看到对方
+        if (channel.hasParked) {
+            connection.execute(() -> release(connection, connectionFlow, key, channel));
+        }
+    }
+
+    /**
+     * 创建 channel 之后, 下发初始的发布额度
+     * @param connection
+     * @param channelId
+     */
+    public void channelCreated(NioConnection connection, String channelId) {
+        notifyFlow(connection, channelId, memoryBlocked);
+    }
+
+    // channel 销毁了, 丢掉它的状态
+    public void channelClosed(NioConnection connection, String channelId) {
+        connection.execute(() -> {
+            ConnectionFlow connectionFlow = connections.get(connection);
+            if (connectionFlow == null) {
+                return;
+            }
+            ChannelFlow channel = connectionFlow.channels.remove(channelId);
+            if (channel != null && connectionFlow.overflowing.remove(channel) && connectionFlow.overflowing.isEmpty()) {
+                connection.resumeReading(PAUSE_CREDIT);
+            }
+        });
+    }
+
+    public void connectionClosed(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    private boolean canPublish(ChannelFlow channel) {
+        return !memoryBlocked && channel.publishes.get() < CHANNEL_PUBLISH_CREDIT;
+    }
+
+    // 按顺序放行 channel 等待队列里的请求, 遇到放行不了的发布就停下. 只在事件循环线程上调用
+    private void release(NioConnection connection, ConnectionFlow connectionFlow, Object key, ChannelFlow channel) {
+        if (connection.isClosed() || connectionFlow.channels.get(key) != channel) {
+            // 连接关了或者 channel 已经销毁, 等待的请求不用处理了
+            return;
+        }
+        while (!channel.parked.isEmpty()) {
+            Parked next = channel.parked.peek();
+            if (next.publish) {
+                if (!canPublish(channel)) {
+                    break;
+                }
+                channel.publishes.incrementAndGet();
+            }
+            channel.parked.poll();
+            next.dispatch.run();
+        }
+        channel.hasParked = !channel.parked.isEmpty();
+        if (channel.parked.size() <= CHANNEL_PUBLISH_CREDIT / 2 && connectionFlow.overflowing.remove(channel)
+                && connectionFlow.overflowing.isEmpty()) {
+            connection.resumeReading(PAUSE_CREDIT);
+        }
+    }
+
+    // 内存降到低水位以下, 通知被阻塞的 channel 恢复, 放行它们等待的请求
+    private void checkMemory() {
+        if (!memoryBlocked || memoryDataCenter.getMessageBytes() >= lowWatermark) {
+            return;
+        }
+        memoryBlocked = false;
+        System.out.println("[FlowController] 内存降到低水位, 恢复发布者! messageBytes="
+                + memoryDataCenter.getMessageBytes() + ", lowWatermark=" + lowWatermark);
+        for (Map.Entry<NioConnection, ConnectionFlow> entry : connections.entrySet()) {
+            NioConnection connection = entry.getKey();
+            ConnectionFlow connectionFlow = entry.getValue();
+            connection.execute(() -> {
+                for (Map.Entry<Object, ChannelFlow> channel : connectionFlow.channels.entrySet()) {
+                    if (channel.getValue().blockedNotified) {
+                        channel.getValue().blockedNotified = false;
+                        notifyFlow(connection, (String) channel.getKey(), false);
+                    }
+                    release(connection, connectionFlow, channel.getKey(), channel.getValue());
+                }
+            });
+        }
+    }
+
+    // 在连接的事件循环上给 channel 推送流量控制通知. 通知很小, 不用压缩, 直接放进发送队列
+    private void notifyFlow(NioConnection connection, String channelId, boolean blocked) {
+        connection.execute(() -> {
+            try {
+                FlowControlReturns flowReturns = new FlowControlReturns();
+                flowReturns.setChannelId(channelId);
+                flowReturns.setRid("");// 服务器主动推送, 不对应请求
+                flowReturns.setOk(true);
+                flowReturns.setCredit(CHANNEL_PUBLISH_CREDIT);
+                flowReturns.setBlocked(blocked);
+
+                byte[] payload = WireCodec.encode(0xf, flowReturns, connection.getEncoding());
+                ByteBuffer header = ByteBuffer.allocate(8);
+                header.putInt(0xf);
+                header.putInt(payload.length);
+                header.flip();
+                connection.send(new OutboundFrame(header, ByteBuffer.wrap(payload)));
+            } catch (IOException e) {
+                System.out.println("[FlowController] 发送流量控制通知失败! channelId=" + channelId);
+            }
+        });
+    }
+
+    public boolean isMemoryBlocked() {
+        return memoryBlocked;
+    }
+
+    // 一个连接的流量控制状态
+    private static class ConnectionFlow {
+        //key 和请求排队执行的 key 一样
+        private final ConcurrentHashMap<Object, ChannelFlow> channels = new ConcurrentHashMap<>();
+        //等待队列超过额度的 channel, 不为空就暂停读连接. 只在事件循环线程上访问
+        private final Set<ChannelFlow> overflowing = new HashSet<>();
+    }
+
+    // 一个 channel 的流量控制状态
+    private static class ChannelFlow {
+        //已经放行还没处理完的发布请求数
+        private final AtomicInteger publishes = new AtomicInteger();
+        //等待放行的请求, 只在事件循环线程上访问
+        private final ArrayDeque<Parked> parked = new ArrayDeque<>();
+        //等待队列不为空, 处理完发布的线程靠它判断要不要放行
+        private volatile boolean hasParked = false;
+        //收到过阻塞通知, 恢复时要通知它
+        private boolean blockedNotified = false;
+    }
+
+    // 等待放行的请求
+    private static class Parked {
+        private final boolean publish;
+        private final Runnable dispatch;
+
+        Parked(boolean publish, Runnable dispatch) {
+            this.publish = publish;
+            this.dispatch = dispatch;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.liyc.mqs.mqserver;
 
+import com.liyc.mqs.common.BatchPublishArguments;
 import com.liyc.mqs.common.Consumer;
 import com.liyc.mqs.common.MqException;
 import com.liyc.mqs.mqserver.core.*;
@@ -7,9 +8,16 @@ import com.liyc.mqs.mqserver.datacenter.DiskDataCenter;
 import com.liyc.mqs.mqserver.datacenter.MemoryDataCenter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -21,10 +29,14 @@ import java.util.concurrent.ConcurrentHashMap;
  * 创建绑定-bindingDeclare
  * 删除绑定-bindingDelete
  *
- * 发布消息-basicPublic
+ * 发布消息-basicPublic/basicPublicAsync, 持久化的消息刷到磁盘才算发布成功
+ * 批量发布消息-basicBatchPublish
  * 订阅消息-basicCosume
  * 确认消息-basicAck
  *
+ * 启动时先恢复交换机、队列、绑定, 消息在后台按队列并行恢复, 不用等消息恢复完就可以开始监听
+ * 懒队列(x-queue-mode=lazy): 持久化的消息在内存里不带消息体, 投递时再从数据文件读
+ * 还在恢复消息的队列: 发布、确认、删除队列直接拒绝, 订阅推迟到恢复完再生效
  * @author Liyc
  * @date 2024/12/23 14:53
  **/
@@ -42,6 +54,8 @@ public class VirtualHost {
     private Object queueLock = new Object();
     //消费者处理类
     private ConsumerManager consumerManager = new ConsumerManager(this);
+    //所有队列的消息恢复完时完成
+    private CompletableFuture<Void> recovery;
 
     public String getVirtualHostName() {
         return virtualHostName;
@@ -52,18 +66,22 @@ public class VirtualHost {
     public MemoryDataCenter getMemoryDataCenter() {
         return memoryDataCenter;
     }
+    public CompletableFuture<Void> getRecovery() {
+        return recovery;
+    }
     public VirtualHost(String virtualHostName) {
         this.virtualHostName = virtualHostName;
 
         //1.初始化数据库，需要创建文件和数据库表，不用初始化内存消息
         diskDataCenter.init();
 
-        //2.需要把本地消息恢复到内存中
-        try {
-            memoryDataCenter.recovery(diskDataCenter);
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-        }
+        //2.需要把本地数据恢复到内存中, 交换机、队列、绑定马上恢复, 消息在后台按队列并行恢复
+        memoryDataCenter.recoverMetadata(diskDataCenter);
+        recovery = memoryDataCenter.recoverMessages(diskDataCenter, MemoryDataCenter.defaultRecoveryParallelism());
+
+        //3.后台整理段文件后按队列和 messageId 找到内存里这个队列的消息, 改成新的 offset
+        //  消息恢复完之前内存里还找不到, 等恢复完再设置, 没有设置时不整理
+        recovery.whenComplete((v, e) -> diskDataCenter.setMessageResolver(memoryDataCenter::selectQueueMessage));
     }
 
     //创建交换机-exchangeDeclare
@@ -148,6 +166,10 @@ public class VirtualHost {
                     System.out.println("[VirtualHost] 队列不存在! queueName=" + queueName);
                     return true;
                 }
+                if (memoryDataCenter.isRecovering(queueName)) {
+                    System.out.println("[VirtualHost] 队列还在恢复中, 不能删除! queueName=" + queueName);
+                    return false;
+                }
                 if (existQueue.isDurable()) {
                     diskDataCenter.deleteQueue(queueName);
                 }
@@ -226,23 +248,32 @@ public class VirtualHost {
         }
     }
     /**发布消息-basicPublic
+     * 等持久化的消息刷到磁盘之后再返回
+     */
+    public boolean basicPublic(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] bytes) {
+        return basicPublicAsync(exchangeName, routingKey, basicProperties, bytes).join();
+    }
+
+    /**发布消息-basicPublicAsync
      * 1、校验routingKey的规则
      * 2、建立消息对象
      * 3、根据ExhcangeType来走不同的转发规则
      * 4、发送消息
+     * 5、返回的 future 在持久化的消息按队列的刷盘策略刷到磁盘之后完成, 刷盘失败结果是 false
      */
-    public boolean basicPublic(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] bytes) {
+    public CompletableFuture<Boolean> basicPublicAsync(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] bytes) {
+        List<CompletableFuture<Void>> syncs = new ArrayList<>();
         try {
             exchangeName = virtualHostName + exchangeName;
             //1.判断交换机是否存在
             Exchange exchange = memoryDataCenter.selectExchange(exchangeName);
             if (Objects.isNull(exchange)) {
                 System.out.println("[VirtualHost] 交换机不存在! exchangeName=" + exchangeName);
-                return false;
+                return CompletableFuture.completedFuture(false);
             }
             //2.校验routingKey的规则
             if (!router.checkRoutingKey(routingKey)) {
-                return false;
+                return CompletableFuture.completedFuture(false);
             }
             //3.创建消息对象
             Message message = Message.createMessageWithID(routingKey, basicProperties, bytes);
@@ -252,51 +283,321 @@ public class VirtualHost {
                 Queue queue = memoryDataCenter.selectQueue(queuqName);
                 if (queue == null) {
                     //没有匹配的队列
-                    return false;
+                    return CompletableFuture.completedFuture(false);
+                }
+                if (memoryDataCenter.isRecovering(queuqName)) {
+                    System.out.println("[VirtualHost] 队列还在恢复中! queueName=" + queuqName);
+                    return CompletableFuture.completedFuture(false);
                 }
                 //5.发送消息
-                sendMessage(queue, message);
+                syncs.add(sendMessage(queue, message));
             } else {
                 ConcurrentHashMap<String, Binding> bindingHashMap = memoryDataCenter.selectBindingEx(exchangeName);
                 if (bindingHashMap == null) {
-                    return false;
+                    return CompletableFuture.completedFuture(false);
                 }
+                //先找出所有要投递的队列, 存储引擎只写一份时一次写入
+                List<Queue> queues = new ArrayList<>();
+                boolean matched = true;
                 for (Map.Entry<String, Binding> bindingMap : bindingHashMap.entrySet()) {
                     Binding binding = bindingMap.getValue();
                     boolean route = router.route(exchange.getType(), binding, message);
                     if (!route) {
                         //没有匹配的队列
-                        return false;
+                        matched = false;
+                        break;
                     } else {
-                        //5.发送消息
                         Queue queue = memoryDataCenter.selectQueue(bindingMap.getKey());
                         if (queue == null) {
                             //没有匹配的队列
-                            return false;
+                            matched = false;
+                            break;
+                        }
+                        if (memoryDataCenter.isRecovering(queue.getName())) {
+                            System.out.println("[VirtualHost] 队列还在恢复中! queueName=" + queue.getName());
+                            matched = false;
+                            break;
                         }
-                        sendMessage(queue,message);
+                        queues.add(queue);
                     }
                 }
+                //5.发送消息, 前面已经匹配上的队列照样投递
+                if (queues.size() > 1 && diskDataCenter.isStoreOnce()) {
+                    syncs.add(sendSharedMessage(queues, message));
+                } else {
+                    for (Queue queue : queues) {
+                        syncs.add(sendMessage(queue, message));
+                    }
+                }
+                if (!matched) {
+                    return CompletableFuture.completedFuture(false);
+                }
             }
         } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+            // 消息没有写进去, 不能当作发布成功, 前面已经写入的队列也一样算失败
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("[VirtualHost] 消息发布失败! exchangeName=" + exchangeName + ", routingKey=" + routingKey + ", error=" + e);
+            return CompletableFuture.completedFuture(false);
         }
-        return true;
+        return CompletableFuture.allOf(syncs.toArray(new CompletableFuture<?>[0])).handle((v, e) -> {
+            if (e != null) {
+                System.out.println("[VirtualHost] 消息刷盘失败! routingKey=" + routingKey + ", error=" + e);
+                return false;
+            }
+            return true;
+        });
     }
     //订阅消息-basicCosume
     //确认消息-basicAck
 
+    /**
+     * 批量发布消息
+     * 1.交换机和绑定只查一次, 同一个 routingKey 的校验和路由结果也只算一次
+     * 2.按目标队列分组, 每个队列的持久化消息一次写入文件
+     *   存储引擎只写一份时(commitlog), 整批持久化的消息按顺序一次写入, 转发给多个队列的消息只写一份
+     * 3.消息都放进队列之后再通知消费者
+     * 4.所有队列都刷盘之后 future 才完成
+     * @param exchangeName
+     * @param entries
+     * @return 按顺序每条消息的 id, 没有发布成功或者刷盘失败的是 null
+     */
+    public CompletableFuture<String[]> basicBatchPublish(String exchangeName, List<BatchPublishArguments.Entry> entries) {
+        String[] messageIds = new String[entries.size()];
+        exchangeName = virtualHostName + exchangeName;
+        //1.判断交换机是否存在
+        Exchange exchange = memoryDataCenter.selectExchange(exchangeName);
+        if (Objects.isNull(exchange)) {
+            System.out.println("[VirtualHost] 交换机不存在! exchangeName=" + exchangeName);
+            return CompletableFuture.completedFuture(messageIds);
+        }
+        ConcurrentHashMap<String, Binding> bindingHashMap = null;
+        if (!ExchangeType.DIRECT.equals(exchange.getType())) {
+            bindingHashMap = memoryDataCenter.selectBindingEx(exchangeName);
+        }
+        //2.逐条路由, key 是 routingKey, value 是匹配到的队列
+        HashMap<String, List<Queue>> routes = new HashMap<>();
+        LinkedHashMap<Queue, List<Message>> queueMessages = new LinkedHashMap<>();
+        Message[] messages = new Message[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            BatchPublishArguments.Entry entry = entries.get(i);
+            BasicProperties basicProperties = entry.getBasicProperties() == null ? new BasicProperties() : entry.getBasicProperties();
+            Message message = Message.createMessageWithID(entry.getRoutingKey(), basicProperties, entry.getBytes());
+            List<Queue> queues = routes.get(entry.getRoutingKey());
+            if (queues == null) {
+                queues = routeQueues(exchange, bindingHashMap, message);
+                routes.put(entry.getRoutingKey(), queues);
+            }
+            if (queues.isEmpty()) {
+                //没有匹配的队列
+                continue;
+            }
+            messages[i] = message;
+            for (Queue queue : queues) {
+                queueMessages.computeIfAbsent(queue, k -> new ArrayList<>()).add(message);
+            }
+        }
+        //3.每个队列一次写入
+        Set<Message> failed = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Void>> syncs = new ArrayList<>();
+        if (diskDataCenter.isStoreOnce()) {
+            syncs.add(sendSharedMessages(messages, queueMessages, failed));
+            return CompletableFuture.allOf(syncs.toArray(new CompletableFuture<?>[0])).thenApply(v -> messageIds(messages, failed, messageIds));
+        }
+        for (Map.Entry<Queue, List<Message>> queueEntry : queueMessages.entrySet()) {
+            if (memoryDataCenter.isRecovering(queueEntry.getKey().getName())) {
+                System.out.println("[VirtualHost] 队列还在恢复中! queueName=" + queueEntry.getKey().getName());
+                failed.addAll(queueEntry.getValue());
+                continue;
+            }
+            try {
+                syncs.add(sendMessages(queueEntry.getKey(), queueEntry.getValue()).exceptionally(e -> {
+                    System.out.println("[VirtualHost] 消息刷盘失败! queueName=" + queueEntry.getKey().getName() + ", error=" + e);
+                    failed.addAll(queueEntry.getValue());
+                    return null;
+                }));
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+                failed.addAll(queueEntry.getValue());
+            }
+        }
+        return CompletableFuture.allOf(syncs.toArray(new CompletableFuture<?>[0])).thenApply(v -> messageIds(messages, failed, messageIds));
+    }
+
+    // 按顺序填上发布成功的消息 id
+    private static String[] messageIds(Message[] messages, Set<Message> failed, String[] messageIds) {
+        for (int i = 0; i < messages.length; i++) {
+            if (messages[i] != null && !failed.contains(messages[i])) {
+                messageIds[i] = messages[i].getMessageId();
+            }
+        }
+        return messageIds;
+    }
+
+    /**
+     * 批量发布时存储引擎只写一份的情况
+     * 1.还在恢复的队列不投递, 投递给它的消息都算失败
+     * 2.其余队列的持久化消息按发布顺序一次写入, 每条只写一份, 写入失败这些消息都算失败
+     * 3.再按队列放进内存, 通知消费者
+     */
+    private CompletableFuture<Void> sendSharedMessages(Message[] messages, LinkedHashMap<Queue, List<Message>> queueMessages, Set<Message> failed) {
+        Map<Message, List<Queue>> messageQueues = new HashMap<>();
+        for (Map.Entry<Queue, List<Message>> queueEntry : queueMessages.entrySet()) {
+            if (memoryDataCenter.isRecovering(queueEntry.getKey().getName())) {
+                System.out.println("[VirtualHost] 队列还在恢复中! queueName=" + queueEntry.getKey().getName());
+                failed.addAll(queueEntry.getValue());
+                continue;
+            }
+            for (Message message : queueEntry.getValue()) {
+                messageQueues.computeIfAbsent(message, k -> new ArrayList<>()).add(queueEntry.getKey());
+            }
+        }
+        List<Message> durableMessages = new ArrayList<>();
+        List<List<Queue>> durableQueues = new ArrayList<>();
+        for (Message message : messages) {
+            if (message != null && message.getDurable() == 2 && messageQueues.containsKey(message)) {
+                durableMessages.add(message);
+                durableQueues.add(messageQueues.get(message));
+            }
+        }
+        CompletableFuture<Void> sync;
+        try {
+            sync = diskDataCenter.sendSharedMessages(durableMessages, durableQueues).exceptionally(e -> {
+                System.out.println("[VirtualHost] 消息刷盘失败! error=" + e);
+                failed.addAll(durableMessages);
+                return null;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed.addAll(durableMessages);
+            return CompletableFuture.completedFuture(null);
+        }
+        for (Map.Entry<Queue, List<Message>> queueEntry : queueMessages.entrySet()) {
+            Queue queue = queueEntry.getKey();
+            int count = 0;
+            for (Message message : queueEntry.getValue()) {
+                List<Queue> queues = messageQueues.get(message);
+                if (queues != null && queues.contains(queue)) {
+                    memoryDataCenter.sendQueueMsg(queue, lazyMessage(queue, message));
+                    count++;
+                }
+            }
+            //一个令牌投递一条消息
+            for (int i = 0; i < count; i++) {
+                try {
+                    consumerManager.notifyConsume(queue.getName());
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return sync;
+    }
+
+    // 找到消息要投递的队列, 批量发布时同一个 routingKey 只算一次
+    private List<Queue> routeQueues(Exchange exchange, ConcurrentHashMap<String, Binding> bindingHashMap, Message message) {
+        List<Queue> queues = new ArrayList<>();
+        //校验routingKey的规则
+        if (message.getRoutingKey() == null || !router.checkRoutingKey(message.getRoutingKey())) {
+            return queues;
+        }
+        if (ExchangeType.DIRECT.equals(exchange.getType())) {
+            Queue queue = memoryDataCenter.selectQueue(virtualHostName + message.getRoutingKey());
+            if (queue != null) {
+                queues.add(queue);
+            }
+            return queues;
+        }
+        if (bindingHashMap == null) {
+            return queues;
+        }
+        for (Map.Entry<String, Binding> bindingMap : bindingHashMap.entrySet()) {
+            if (!router.route(exchange.getType(), bindingMap.getValue(), message)) {
+                continue;
+            }
+            Queue queue = memoryDataCenter.selectQueue(bindingMap.getKey());
+            if (queue != null) {
+                queues.add(queue);
+            }
+        }
+        return queues;
+    }
+
+    //批量发送消息到一个队列, 持久化的消息一次写入文件
+    //返回的 future 在持久化的消息刷到磁盘之后完成, 投递给消费者不用等刷盘
+    public CompletableFuture<Void> sendMessages(Queue queue, List<Message> messages) throws IOException, InterruptedException {
+        List<Message> queueMessages = new ArrayList<>();
+        List<Message> durableMessages = new ArrayList<>();
+        for (Message message : messages) {
+            Message queued = queueMessage(message);
+            queueMessages.add(queued);
+            if (queued.getDurable() == 2) {
+                durableMessages.add(queued);
+            }
+        }
+        CompletableFuture<Void> sync = diskDataCenter.sendMessages(queue, durableMessages);
+        for (Message message : queueMessages) {
+            memoryDataCenter.sendQueueMsg(queue, lazyMessage(queue, message));
+        }
+        //一个令牌投递一条消息
+        for (int i = 0; i < messages.size(); i++) {
+            consumerManager.notifyConsume(queue.getName());
+        }
+        return sync;
+    }
+
+    //发送消息到多个队列, 存储引擎只写一份, 所有队列共用这条记录
+    //返回的 future 在所有队列都刷盘之后完成
+    public CompletableFuture<Void> sendSharedMessage(List<Queue> queues, Message message) throws IOException, InterruptedException {
+        CompletableFuture<Void> sync = CompletableFuture.completedFuture(null);
+        if (message.getDurable() == 2) {
+            sync = diskDataCenter.sendSharedMessages(Collections.singletonList(message), Collections.singletonList(queues));
+        }
+        for (Queue queue : queues) {
+            memoryDataCenter.sendQueueMsg(queue, lazyMessage(queue, message));
+            consumerManager.notifyConsume(queue.getName());
+        }
+        return sync;
+    }
+
     //发送消息
-    public void sendMessage(Queue queue, Message message) throws IOException, InterruptedException {
-        // 1.如果需要持久化，就先持久化
+    //返回的 future 在持久化的消息刷到磁盘之后完成, 投递给消费者不用等刷盘
+    public CompletableFuture<Void> sendMessage(Queue queue, Message message) throws IOException, InterruptedException {
+        // 1.如果需要持久化，就先持久化, 写的是这个队列自己的对象, offset 记在它上面
         // Durable 为 1 , 不持久化. Durable 为 2 表示持久化.
-        if (message.getDurable() == 2) {
-            diskDataCenter.sendMessage(queue, message);
+        Message queued = queueMessage(message);
+        CompletableFuture<Void> sync = CompletableFuture.completedFuture(null);
+        if (queued.getDurable() == 2) {
+            sync = diskDataCenter.sendMessage(queue, queued);
         }
-        //2.存入内存
-        memoryDataCenter.sendQueueMsg(queue,message);
+        //2.存入内存, 懒队列里持久化的消息不带消息体
+        memoryDataCenter.sendQueueMsg(queue, lazyMessage(queue, queued));
         //3.通知消费者消费消息
         consumerManager.notifyConsume(queue.getName());
+        return sync;
+    }
+
+    // 每个队列的数据文件各写一份的消息, 放进队列的是另外建的对象, 属性和消息体共用.
+    // 同一个消息转发给几个队列时 offset 各不相同, 确认、投递和后台整理都要用这个队列自己的 offset.
+    private static Message queueMessage(Message message) {
+        Message queued = new Message();
+        queued.setBasicProperties(message.getBasicProperties());
+        queued.setBody(message.getBody());
+        return queued;
+    }
+
+    // 懒队列里持久化的消息, 内存里只留属性和在数据文件里的位置, 消息体投递时再从文件读.
+    // 同一个消息可能还转发给了别的队列, 所以另外建一个对象, 不改原来的消息.
+    private Message lazyMessage(Queue queue, Message message) {
+        if (message.getDurable() != 2 || QueueMode.of(queue) != QueueMode.LAZY) {
+            return message;
+        }
+        Message lazy = new Message();
+        lazy.setBasicProperties(message.getBasicProperties());
+        lazy.setOffsetBeg(message.getOffsetBeg());
+        lazy.setOffsetEnd(message.getOffsetEnd());
+        return lazy;
     }
 
     // 订阅消息.
@@ -307,6 +608,20 @@ public class VirtualHost {
     public boolean basicConsume(String consumerTag, String queueName, boolean autoAck, Consumer consumer) {
         // 构造一个 ConsumerEnv 对象, 把这个对应的队列找到, 再把这个 Consumer 对象添加到该队列中.
         queueName = virtualHostName + queueName;
+        CompletableFuture<Void> recovered = memoryDataCenter.queueRecovered(queueName);
+        if (!recovered.isDone()) {
+            // 队列还在恢复消息, 恢复完再订阅, 订阅时会把恢复出来的消息推给订阅者
+            String recoveringQueue = queueName;
+            recovered.whenComplete((v, e) -> {
+                if (e != null) {
+                    System.out.println("[VirtualHost] 队列恢复失败, basicConsume 没有生效! queueName=" + recoveringQueue);
+                    return;
+                }
+                basicConsume(consumerTag, recoveringQueue.substring(virtualHostName.length()), autoAck, consumer);
+            });
+            System.out.println("[VirtualHost] 队列还在恢复中, 恢复完再订阅! queueName=" + queueName);
+            return true;
+        }
         try {
             consumerManager.addConsumer(consumerTag, queueName, autoAck, consumer);
             System.out.println("[VirtualHost] basicConsume 成功! queueName=" + queueName);
@@ -322,8 +637,8 @@ public class VirtualHost {
     public boolean basicAck(String queueName, String messageId) {
         queueName = virtualHostName + queueName;
         try {
-            // 1. 获取到消息和队列
-            Message message = memoryDataCenter.selectMessage(messageId);
+            // 1. 获取到消息和队列, 转发给几个队列的消息 offset 各不相同, 要用这个队列自己的消息
+            Message message = memoryDataCenter.selectQueueMessage(queueName, messageId);
             if (message == null) {
                 throw new MqException("[VirtualHost] 要确认的消息不存在! messageId=" + messageId);
             }
@@ -331,14 +646,26 @@ public class VirtualHost {
             if (queue == null) {
                 throw new MqException("[VirtualHost] 要确认的队列不存在! queueName=" + queueName);
             }
-            // 2. 删除硬盘上的数据
+            if (memoryDataCenter.isRecovering(queueName)) {
+                throw new MqException("[VirtualHost] 要确认的队列还在恢复中! queueName=" + queueName);
+            }
+            // 2. 从待确认的集合中删除, 重复确认或者并发确认同一条消息, 只有删掉它的那一次往下走
+            if (!memoryDataCenter.deleteMeeageAck(queueName, messageId)) {
+                throw new MqException("[VirtualHost] 要确认的消息不在待确认的集合中, 可能已经确认过了! queueName=" + queueName
+                        + ", messageId=" + messageId);
+            }
+            // 3. 删除硬盘上的数据
             if (message.getDurable() == 2) {
-                diskDataCenter.deleteMessage(queue, message);
+                try {
+                    diskDataCenter.deleteMessage(queue, message);
+                } catch (Exception e) {
+                    // 硬盘上没删掉, 放回待确认的集合, 客户端可以再确认一次
+                    memoryDataCenter.insertMessageAck(queueName, message);
+                    throw e;
+                }
             }
-            // 3. 删除消息中心中的数据
-            memoryDataCenter.deleteMessage(messageId);
-            // 4. 删除待确认的集合中的数据
-            memoryDataCenter.deleteMeeageAck(queueName, messageId);
+            // 4. 释放消息中心中的数据, 所有队列都确认完才删除
+            memoryDataCenter.releaseMessage(messageId);
             System.out.println("[VirtualHost] basicAck 成功! 消息被成功确认! queueName=" + queueName
                     + ", messageId=" + messageId);
             return true;
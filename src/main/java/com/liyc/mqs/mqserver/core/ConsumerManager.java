@@ -6,10 +6,12 @@ import com.liyc.mqs.mqserver.VirtualHost;
 
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 消息消费处理类
@@ -26,7 +28,10 @@ public class ConsumerManager {
     //持有上层的 VirtualHost 对象的引用. 用来操作数据.
     private VirtualHost prent;
     //线程池，批量消费消息
-    private ExecutorService workPool = Executors.newFixedThreadPool(4);;
+    //任务队列有界, 满了由提交任务的线程自己执行. 订阅者读得慢时, 投递会卡在连接的发送额度上,
+    //这样消息留在队列里, 而不是从队列里取出来堆积在线程池的任务队列中
+    private ExecutorService workPool = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1024), new ThreadPoolExecutor.CallerRunsPolicy());
     //阻塞队列，线程池获取令牌，有令牌就通过轮询线程去查询此队列
     private BlockingQueue<String> tokenQueue = new LinkedBlockingQueue<>();
     //轮询线程，轮询读取消息
@@ -42,6 +47,7 @@ public class ConsumerManager {
                     Queue queue = prent.getMemoryDataCenter().selectQueue(queueName);
                     if (Objects.isNull(queue)) {
                         //无此队列
+                        continue;
                     }
                     //消费消息
                     sendConsumer(queue);
@@ -50,6 +56,8 @@ public class ConsumerManager {
                 }
             }
         });
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
@@ -81,7 +89,7 @@ public class ConsumerManager {
             queue.setConsumers(consumerEnv);
             //查询当前队列有多少个消息
             int messageCount = prent.getMemoryDataCenter().getMessageCount(queueName);
-            for (int i=0; i<=messageCount; i++) {
+            for (int i=0; i<messageCount; i++) {
                 //初始消费当列存在的消息，一个消息消费一次
                 sendConsumer(queue);
             }
@@ -95,7 +103,7 @@ public class ConsumerManager {
      * 2.获取消息
      * 3.线程池回调消费者消费方法
      * 3.1消息放入待确认
-     * 3.2回调消费方法
+     * 3.2回调消费方法, 懒队列的消息先从数据文件读出消息体, 顺序投递时有预读
      * 3.3.1自动确认：删除待确认消息，删除硬盘消息，删除内存消息
      * 3.3.2手动确认：等待手动调用basicAck方法获取结果
      * @param queue
@@ -104,17 +112,26 @@ public class ConsumerManager {
         //1.找到消费者
         ConsumerEnv consumerEnv = queue.chooseConsumers();
         if (Objects.isNull(consumerEnv)) {
-            //无订阅消费者
+            //无订阅消费者, 消息先留在队列里
+            return;
         }
         //2.获取消息
         Message message = prent.getMemoryDataCenter().pollMessage(queue.getName());
+        if (Objects.isNull(message)) {
+            return;
+        }
         //3.线程池回调消费者消费方法
         workPool.submit(() -> {
             try {
                 //3.1消息放入得确认
                 prent.getMemoryDataCenter().insertMessageAck(queue.getName(), message);
                 //3.2回调消费方法
-                consumerEnv.getConsumer().handleDelivery(consumerEnv.getConsumerTag(), message.getBasicProperties(), message.getBody());
+                //   懒队列里持久化的消息不带消息体, 投递前从数据文件读出来; 待确认和确认用的还是内存里的消息
+                Message delivery = message;
+                if (message.getDurable() == 2 && QueueMode.of(queue) == QueueMode.LAZY) {
+                    delivery = prent.getDiskDataCenter().loadMessageBody(queue, message);
+                }
+                consumerEnv.getConsumer().handleDelivery(consumerEnv.getConsumerTag(), queue, delivery);
                 //3.3消息确认
                 if (consumerEnv.isAutoAck()) {
                     //3.3.1自动确认：删除待确认消息，删除硬盘消息，删除内存消息
@@ -123,7 +140,7 @@ public class ConsumerManager {
                     if (message.getDurable() == 2) {
                         prent.getDiskDataCenter().deleteMessage(queue, message);
                     }
-                    prent.getMemoryDataCenter().deleteMeeageAck(queue.getName(), message.getMessageId());
+                    prent.getMemoryDataCenter().releaseMessage(message.getMessageId());
                 }
             } catch (IOException | ClassNotFoundException e) {
                 e.printStackTrace();
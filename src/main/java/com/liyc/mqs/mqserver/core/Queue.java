@@ -8,6 +8,7 @@ import com.liyc.mqs.common.ConsumerEnv;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -32,7 +33,7 @@ public class Queue {
     // 因此需要调整一下 argument 的 get 和 set 方法.
     private Map<String, Object> arguments = new HashMap<>();
     //订阅的消费者队列
-    private List<ConsumerEnv> consumers;
+    private List<ConsumerEnv> consumers = new CopyOnWriteArrayList<>();
     //当前是第几个消费者消费
     private AtomicInteger atomicConsumer = new AtomicInteger();
 
@@ -100,7 +101,8 @@ public class Queue {
         this.arguments.put(key, value);
     }
     public void setArguments(HashMap<String,Object> arguments) {
-        this.arguments = arguments;
+        // 客户端没有传参数时按空参数处理, 后面按 key 取参数不用判空
+        this.arguments = arguments == null ? new HashMap<>() : arguments;
     }
 
     public void setConsumers(ConsumerEnv consumerEnv) {
@@ -0,0 +1,35 @@
+package com.liyc.mqs.mqserver.core;
+
+/**
+ * 队列模式
+ * default: 队列里的消息连同消息体都放在内存里
+ * lazy: 持久化的消息在内存里只留属性和在数据文件里的位置(offsetBeg/offsetEnd), 消息体投递时再从数据文件读出来
+ *       积压很多消息的持久化队列用这个模式, 消息体不占堆内存
+ * 创建队列时用参数 x-queue-mode 设置, 只对持久化队列生效
+ * 1.取队列的模式-of
+ *
+ * @author Liyc
+ * @date 2026/10/17 21:10
+ **/
+
+public enum QueueMode {
+    DEFAULT,
+    LAZY;
+
+    //队列参数名
+    public static final String ARGUMENT = "x-queue-mode";
+
+    // 队列的模式, 参数不合法或者不是持久化队列就用 default
+    public static QueueMode of(Queue queue) {
+        Object argument = queue.getArguments(ARGUMENT);
+        if (argument == null || !queue.isDurable()) {
+            return DEFAULT;
+        }
+        try {
+            return valueOf(argument.toString().trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("[QueueMode] 队列模式不合法, 使用 default! queueName=" + queue.getName() + ", " + ARGUMENT + "=" + argument);
+            return DEFAULT;
+        }
+    }
+}
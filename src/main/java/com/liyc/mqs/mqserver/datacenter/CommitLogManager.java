@@ -0,0 +1,636 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.tool.BinaryTool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * 共享提交日志存储引擎, 一个虚拟主机的所有队列的消息写在同一个分段日志(QueueLog)里
+ * 队列再多, 写入也只是顺序追加一个文件; 每个队列只有一个定长的消费索引(ConsumeIndex), 记着自己的消息在日志里的位置
+ * 日志里一条记录是 [int 长度][消息][引用这条记录的队列名, 用换行分隔][int 队列名的字节数], 消息的 offsetBeg 是记录位置 + 4
+ * 删除记录和单队列日志一样只在长度上写删除标记, 段里的记录都删除了才删除整个段
+ * 一条消息转发给多个队列时消息只写一次(store once), 每个队列的索引都指向同一条记录, 内存里记着还有几个队列没确认(引用计数)
+ * 一个队列确认时只在自己的索引项上写确认标记, 引用计数减 1, 最后一个队列确认时才删除记录
+ * 目录结构: 提交日志目录下是段文件和 commitlog_stat.txt, index 目录下是每个队列的索引和 dispatch.pos
+ * 1.打开-open, 第一次用到时打开日志, 加载所有队列的索引, 恢复-recover
+ * 2.写入消息-saveMsgFile/saveMsgFiles/saveSharedMsgFiles: 在日志的锁里追加记录, 再追加每个队列的索引项, 索引和日志的顺序一致
+ * 3.等待刷盘-syncMsgFile: 所有队列共用日志的组提交, 刷盘策略相同的队列共用一个 GroupCommitter, 一次 force 带上所有队列的消息
+ * 4.删除消息-deleteMsgData: 共用的记录减引用计数-release, 只剩一个队列引用的记录写删除标记, 减少段的有效消息数, 减到 0 的封存段直接删除
+ * 5.定期检查点-checkpoint: 日志和索引都刷盘后, 把这时的写位置和序号记到 dispatch.pos, 恢复时只重放这之后的记录
+ * 6.恢复-recover: 索引截掉 dispatch.pos 之后的项, 按日志里记录的队列名重新追加; 再按索引统计每条记录的引用计数和每个段的有效记录数,
+ *   删除没有有效记录的段; 有效的项不到一半的索引重写, 索引不会一直变大
+ * 7.删除队列-deleteFile: 队列还没确认的消息全部按确认处理, 再删除索引文件
+ * 不做后台整理, 段里只剩少数没确认的消息时整个段要等它们确认后才能删除
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:10
+ **/
+
+public class CommitLogManager implements MessageStore {
+    //默认的提交日志目录
+    public static final String DEFAULT_DIRECTORY = "./data/commitlog";
+    private static final String STAT_FILE = "commitlog_stat.txt";
+    private static final String INDEX_DIRECTORY = "index";
+    private static final String DISPATCH_FILE = "dispatch.pos";
+    //检查点的间隔
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+    //恢复时每次读多少条记录
+    private static final int BATCH = 1024;
+    //项数超过这个值、有效的项不到一半时重写索引
+    private static final int REWRITE_MIN_ENTRIES = 1024;
+    //刷盘线程数
+    private static final int SYNC_THREADS = 2;
+    //完成刷盘 future 的线程数, 响应在这些线程上发出去
+    private static final int SYNC_CALLBACK_THREADS = 4;
+
+    private final File directory;
+    private final File indexDirectory;
+    private final long segmentSize;
+    private final SyncPolicy defaultPolicy;
+    private final QueueLog.StorageMode storageMode;
+    private final ScheduledExecutorService scheduler;
+    //刷盘完成之后完成写入的 future, 等它的响应可能阻塞, 不放在刷盘线程上
+    private final ExecutorService syncCallbacks;
+    //第一次用到时打开
+    private volatile QueueLog commitLog;
+    private QueueStats stats;
+    private final Map<String, ConsumeIndex> indexes = new ConcurrentHashMap<>();
+    //key 是刷盘策略
+    private final Map<String, GroupCommitter> committers = new ConcurrentHashMap<>();
+    //上次检查点记下的写位置
+    private long dispatchedPos = -1;
+    //转发给不止一个队列的记录, key 是记录的位置, value 是还没确认的队列数, 减到 0 删除记录; 在日志的锁里访问
+    private final Map<Long, Integer> sharedRefs = new HashMap<>();
+
+    public CommitLogManager() {
+        this(new File(DEFAULT_DIRECTORY), QueueLog.DEFAULT_SEGMENT_SIZE, SyncPolicy.defaultPolicy(), QueueLog.defaultStorageMode());
+    }
+
+    public CommitLogManager(File directory, long segmentSize, SyncPolicy defaultPolicy, QueueLog.StorageMode storageMode) {
+        this.directory = directory;
+        this.indexDirectory = new File(directory, INDEX_DIRECTORY);
+        this.segmentSize = segmentSize;
+        this.defaultPolicy = defaultPolicy;
+        this.storageMode = storageMode;
+        AtomicInteger index = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(SYNC_THREADS, r -> {
+            Thread thread = new Thread(r, "mqs-commitlog-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger callbackIndex = new AtomicInteger();
+        this.syncCallbacks = Executors.newFixedThreadPool(SYNC_CALLBACK_THREADS, r -> {
+            Thread thread = new Thread(r, "mqs-commitlog-callback-" + callbackIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void init() {
+        try {
+            getCommitLog();
+        } catch (IOException e) {
+            System.out.println("[CommitLogManager] 打开提交日志失败! directory=" + directory.getPath() + ", error=" + e);
+        }
+    }
+
+    // 获取提交日志, 第一次用到时打开并恢复
+    public QueueLog getCommitLog() throws IOException {
+        QueueLog queueLog = commitLog;
+        if (queueLog != null) {
+            return queueLog;
+        }
+        synchronized (this) {
+            if (commitLog == null) {
+                commitLog = open();
+            }
+            return commitLog;
+        }
+    }
+
+    private QueueLog open() throws IOException {
+        if (!indexDirectory.exists() && !indexDirectory.mkdirs()) {
+            throw new IOException("[CommitLogManager] 创建目录失败! directory=" + indexDirectory.getPath());
+        }
+        File statFile = new File(directory, STAT_FILE);
+        if (!statFile.exists()) {
+            statFile.createNewFile();
+        }
+        MessageFileManager.Stat stat = QueueStats.readHeader(statFile);
+        if (stat == null) {
+            stat = new MessageFileManager.Stat();
+        }
+        QueueLog queueLog = new QueueLog(directory, segmentSize, storageMode);
+        queueLog.open(stat.writePos);
+        stat.writePos = queueLog.getWritePosition();
+        QueueStats queueStats = new QueueStats(statFile, stat);
+        queueLog.setDropListener(segment -> queueStats.dropped(segment.getRecords(), segment.getSize()));
+        stats = queueStats;
+        long begin = System.currentTimeMillis();
+        recover(queueLog);
+        System.out.println("[CommitLogManager] 提交日志恢复完成! queues=" + indexes.size() + ", messages=" + stats.getCountMsg()
+                + ", segments=" + queueLog.getSegments().size() + ", 用时 " + (System.currentTimeMillis() - begin) + "ms");
+        return queueLog;
+    }
+
+    private void recover(QueueLog queueLog) throws IOException {
+        synchronized (queueLog) {
+            long[] dispatch = readDispatch();
+            long cut = Math.min(dispatch[0], queueLog.getWritePosition());
+            //1.加载所有索引, 截掉检查点之后的项, 这些项可能没刷盘
+            File[] files = indexDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String queueName = ConsumeIndex.queueNameOf(file);
+                    if (queueName == null) {
+                        continue;
+                    }
+                    ConsumeIndex index = new ConsumeIndex(indexDirectory, queueName);
+                    index.open();
+                    index.truncate(cut);
+                    indexes.put(queueName, index);
+                }
+            }
+            //2.检查点之后的记录按队列名重新追加到索引, 队列已经删除的记录标记删除
+            long fromSeq = dispatch[1];
+            int replayed = 0;
+            while (true) {
+                List<QueueLog.Record> records = queueLog.readRecords(fromSeq, BATCH);
+                if (records.isEmpty()) {
+                    break;
+                }
+                for (QueueLog.Record record : records) {
+                    byte[] payload = record.getPayload();
+                    int namesLength = ByteBuffer.wrap(payload, payload.length - 4, 4).getInt();
+                    int msgLength = payload.length - 4 - namesLength;
+                    boolean referenced = false;
+                    for (String queueName : new String(payload, msgLength, namesLength, StandardCharsets.UTF_8).split("\n")) {
+                        ConsumeIndex index = indexes.get(queueName);
+                        if (index != null) {
+                            index.append(record.getPosition(), msgLength);
+                            referenced = true;
+                        }
+                    }
+                    if (!referenced) {
+                        queueLog.markDeleted(record.getPosition(), payload.length);
+                        continue;
+                    }
+                    replayed++;
+                }
+                fromSeq = records.get(records.size() - 1).getSeq() + 1;
+            }
+            //3.按索引统计每条记录还有几个队列没确认, 没有被任何索引引用的记录都算删除的
+            Map<Long, Integer> refs = new HashMap<>();
+            //引用记录的队列数, 包括已经确认的
+            Map<Long, Integer> owners = new HashMap<>();
+            for (ConsumeIndex index : indexes.values()) {
+                List<ConsumeIndex.Entry> entries = index.readAll();
+                List<ConsumeIndex.Entry> live = new ArrayList<>();
+                for (ConsumeIndex.Entry entry : entries) {
+                    if (!queueLog.isLive(entry.getPosition())) {
+                        continue;
+                    }
+                    owners.merge(entry.getPosition(), 1, Integer::sum);
+                    if (entry.isAcked()) {
+                        continue;
+                    }
+                    refs.merge(entry.getPosition(), 1, Integer::sum);
+                    live.add(entry);
+                }
+                if (entries.size() >= REWRITE_MIN_ENTRIES && live.size() * 2 < entries.size()) {
+                    index.rewrite(live);
+                }
+            }
+            //4.每个段的有效记录数
+            Map<QueueLog.Segment, Integer> lives = new HashMap<>();
+            long liveBytes = 0;
+            sharedRefs.clear();
+            for (Map.Entry<Long, Integer> ref : refs.entrySet()) {
+                lives.merge(queueLog.segmentAt(ref.getKey()), 1, Integer::sum);
+                liveBytes += 4 + recordLength(queueLog, ref.getKey());
+                if (owners.get(ref.getKey()) > 1) {
+                    sharedRefs.put(ref.getKey(), ref.getValue());
+                }
+            }
+            MessageFileManager.Stat stat = new MessageFileManager.Stat();
+            for (QueueLog.Segment segment : queueLog.getSegments()) {
+                int live = lives.getOrDefault(segment, 0);
+                queueLog.setCounts(segment, segment.getRecords(), live);
+                stat.sumMsg += segment.getRecords();
+                stat.countMsg += live;
+                stat.totalBytes += segment.getSize();
+            }
+            stat.deadBytes = stat.totalBytes - liveBytes;
+            stats.reset(stat);
+            queueLog.dropDeadSegments();
+            if (replayed > 0) {
+                System.out.println("[CommitLogManager] 重放检查点之后的记录! records=" + replayed);
+            }
+        }
+    }
+
+    // 记录的长度, 去掉删除标记
+    private static int recordLength(QueueLog queueLog, long position) throws IOException {
+        return ByteBuffer.wrap(queueLog.read(position, 4)).getInt() & QueueLog.RECORD_LENGTH_MASK;
+    }
+
+    // 检查点文件: writePos(8) nextSeq(8), 没有就从头重放
+    private long[] readDispatch() throws IOException {
+        File file = new File(indexDirectory, DISPATCH_FILE);
+        if (file.length() < 16) {
+            return new long[]{0, 0};
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    return new long[]{0, 0};
+                }
+            }
+        }
+        buffer.flip();
+        return new long[]{buffer.getLong(), buffer.getLong()};
+    }
+
+    private void writeDispatch(long writePos, long nextSeq) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(writePos);
+        buffer.putLong(nextSeq);
+        buffer.flip();
+        File file = new File(indexDirectory, DISPATCH_FILE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * 检查点: 日志和所有索引刷盘, 再记下这时的写位置和序号
+     * 追加记录和索引项都在日志的锁里, 锁里取的写位置之前的记录都已经有索引项了
+     * 日志每个检查点至少刷一次盘, os 策略的队列在这个模式下最多丢一个间隔的消息
+     */
+    private synchronized void checkpoint() {
+        QueueLog queueLog = commitLog;
+        if (queueLog == null) {
+            return;
+        }
+        long writePos;
+        long nextSeq;
+        synchronized (queueLog) {
+            writePos = queueLog.getWritePosition();
+            nextSeq = queueLog.getNextSeq();
+        }
+        try {
+            if (writePos != dispatchedPos) {
+                queueLog.force();
+                for (ConsumeIndex index : indexes.values()) {
+                    index.force();
+                }
+                writeDispatch(writePos, nextSeq);
+                dispatchedPos = writePos;
+            }
+            stats.checkpoint(writePos, false);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("[CommitLogManager] 检查点失败! error=" + e);
+        }
+    }
+
+    // 获取队列的索引, 没有就创建
+    private ConsumeIndex getIndex(String queueName) throws IOException {
+        getCommitLog();
+        ConsumeIndex index = indexes.get(queueName);
+        if (index != null) {
+            return index;
+        }
+        synchronized (indexes) {
+            index = indexes.get(queueName);
+            if (index == null) {
+                index = new ConsumeIndex(indexDirectory, queueName);
+                index.open();
+                indexes.put(queueName, index);
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public void initMsg(String queueName) throws IOException {
+        getIndex(queueName);
+    }
+
+    @Override
+    public void deleteFile(String queueName) {
+        ConsumeIndex index;
+        synchronized (indexes) {
+            index = indexes.remove(queueName);
+        }
+        if (index == null) {
+            return;
+        }
+        try {
+            QueueLog queueLog = getCommitLog();
+            synchronized (queueLog) {
+                for (ConsumeIndex.Entry entry : index.readAll()) {
+                    if (!entry.isAcked() && queueLog.isLive(entry.getPosition())) {
+                        release(queueLog, index, entry.getPosition());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // 没删掉的记录下次恢复时没有索引引用, 算作删除的
+            System.out.println("[CommitLogManager] 删除队列的消息失败! queueName=" + queueName + ", error=" + e);
+        }
+        index.delete();
+    }
+
+    // 一条记录: [int 长度][消息][队列名][int 队列名的字节数]
+    private static void writeRecord(DataOutputStream out, byte[] mByte, byte[] names) throws IOException {
+        out.writeInt(mByte.length + names.length + 4);
+        out.write(mByte);
+        out.write(names);
+        out.writeInt(names.length);
+    }
+
+    @Override
+    public void saveMsgFile(Queue queue, Message message) throws IOException {
+        append(Collections.singletonList(message), Collections.singletonList(Collections.singletonList(queue)));
+    }
+
+    @Override
+    public void saveMsgFiles(Queue queue, List<Message> messages) throws IOException {
+        append(messages, Collections.nCopies(messages.size(), Collections.singletonList(queue)));
+    }
+
+    @Override
+    public boolean isStoreOnce() {
+        return true;
+    }
+
+    // 消息只写一次, 位置不会再变, 写完再按队列登记刷盘
+    @Override
+    public CompletableFuture<Void> saveSharedMsgFiles(List<Message> messages, List<List<Queue>> queues) throws IOException {
+        append(messages, queues);
+        Map<Queue, Integer> counts = new LinkedHashMap<>();
+        Map<Queue, Long> positions = new HashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            for (Queue queue : queues.get(i)) {
+                counts.merge(queue, 1, Integer::sum);
+                positions.put(queue, messages.get(i).getOffsetEnd());
+            }
+        }
+        List<CompletableFuture<Void>> syncs = new ArrayList<>();
+        for (Map.Entry<Queue, Integer> entry : counts.entrySet()) {
+            syncs.add(syncMsgFile(entry.getKey(), positions.get(entry.getKey()), entry.getValue()));
+        }
+        return CompletableFuture.allOf(syncs.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * 写入一批消息, 每条消息可以转发给多个队列, 消息只写一次, 每个队列的索引都指向这条记录
+     * 序列化放在锁外面, 一批消息拼成一块一次写入, 每个队列的索引项也一次写入
+     */
+    private void append(List<Message> messages, List<List<Queue>> queues) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<byte[]> mBytes = new ArrayList<>(messages.size());
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream block = new DataOutputStream(byteArrayOutputStream);
+        // 同一批消息转发的队列一般是一样的, 队列名只拼一次
+        Map<List<Queue>, byte[]> names = new HashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            byte[] mByte = BinaryTool.formatByte(messages.get(i));
+            mBytes.add(mByte);
+            writeRecord(block, mByte, names.computeIfAbsent(queues.get(i), CommitLogManager::joinNames));
+        }
+        // 每个队列的索引项
+        Map<ConsumeIndex, List<Integer>> indexMessages = new LinkedHashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            for (Queue queue : queues.get(i)) {
+                indexMessages.computeIfAbsent(getIndex(queue.getName()), k -> new ArrayList<>()).add(i);
+            }
+        }
+        QueueLog queueLog = commitLog;
+        synchronized (queueLog) {
+            long offset = queueLog.append(byteArrayOutputStream.toByteArray(), messages.size());
+            long[] positions = new long[messages.size()];
+            for (int i = 0; i < messages.size(); i++) {
+                positions[i] = offset;
+                byte[] mByte = mBytes.get(i);
+                messages.get(i).setOffsetBeg(offset + 4);
+                messages.get(i).setOffsetEnd(offset + 4 + mByte.length);
+                offset += 4 + mByte.length + names.get(queues.get(i)).length + 4;
+                if (queues.get(i).size() > 1) {
+                    sharedRefs.put(positions[i], queues.get(i).size());
+                }
+            }
+            for (Map.Entry<ConsumeIndex, List<Integer>> entry : indexMessages.entrySet()) {
+                List<Integer> list = entry.getValue();
+                long[] indexPositions = new long[list.size()];
+                int[] lengths = new int[list.size()];
+                for (int j = 0; j < list.size(); j++) {
+                    indexPositions[j] = positions[list.get(j)];
+                    lengths[j] = mBytes.get(list.get(j)).length;
+                }
+                entry.getKey().append(indexPositions, lengths);
+            }
+            stats.added(messages.size(), byteArrayOutputStream.size());
+        }
+    }
+
+    private static byte[] joinNames(List<Queue> queues) {
+        StringBuilder builder = new StringBuilder();
+        for (Queue queue : queues) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(queue.getName());
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 刷盘策略相同的队列共用一个组提交
+    private GroupCommitter getCommitter(Queue queue) throws IOException {
+        QueueLog queueLog = getCommitLog();
+        SyncPolicy policy = SyncPolicy.of(queue, defaultPolicy);
+        return committers.computeIfAbsent(policy.toString(), k -> new GroupCommitter(queueLog, stats, policy, scheduler, syncCallbacks));
+    }
+
+    @Override
+    public CompletableFuture<Void> syncMsgFile(Queue queue, long position, int records) throws IOException {
+        return getCommitter(queue).commit(position, records);
+    }
+
+    @Override
+    public void deleteMsgData(Queue queue, Message message) throws IOException {
+        ConsumeIndex index = getIndex(queue.getName());
+        QueueLog queueLog = commitLog;
+        synchronized (queueLog) {
+            release(queueLog, index, message.getOffsetBeg() - 4);
+        }
+    }
+
+    /**
+     * 一个队列确认了一条记录, 调用方持有日志的锁
+     * 几个队列共用的记录先在这个队列的索引项上写确认标记, 重复确认不算数, 还有别的队列没确认就到此为止
+     * 只有一个队列引用的记录已经删除了也是重复确认, 直接返回
+     * 最后在记录上写删除标记, 所在段的有效记录数减 1, 封存的段减到 0 整个段文件就删除了
+     */
+    private void release(QueueLog queueLog, ConsumeIndex index, long position) throws IOException {
+        Integer refs = sharedRefs.get(position);
+        if (refs != null) {
+            if (!index.markAcked(position)) {
+                return;
+            }
+            if (refs > 1) {
+                sharedRefs.put(position, refs - 1);
+                return;
+            }
+            sharedRefs.remove(position);
+        } else if (!queueLog.isLive(position)) {
+            // 只有一个队列引用的记录重复确认: 已经有删除标记或者所在的段已经删除了, 不能再减一次
+            return;
+        }
+        int length = recordLength(queueLog, position);
+        queueLog.markDeleted(position, length);
+        stats.deleted(4 + length);
+        queueLog.release(position);
+    }
+
+    // 按队列的索引读出还没确认的消息
+    @Override
+    public LinkedList<Message> initAllMsg(String queueName, boolean keepBody) throws IOException, ClassNotFoundException {
+        ConsumeIndex index = getIndex(queueName);
+        LinkedList<Message> list = new LinkedList<>();
+        QueueLog queueLog = commitLog;
+        synchronized (queueLog) {
+            for (ConsumeIndex.Entry entry : index.readAll()) {
+                if (entry.isAcked() || !queueLog.isLive(entry.getPosition())) {
+                    continue;
+                }
+                long offsetBeg = entry.getPosition() + 4;
+                Message message = (Message) BinaryTool.parseByte(queueLog.read(offsetBeg, entry.getLength()));
+                message.setOffsetBeg(offsetBeg);
+                message.setOffsetEnd(offsetBeg + entry.getLength());
+                if (!keepBody) {
+                    message.setBody(null);
+                }
+                list.add(message);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public Message readMsg(Queue queue, Message message) throws IOException, ClassNotFoundException {
+        QueueLog queueLog = getCommitLog();
+        long offsetBeg;
+        long offsetEnd;
+        byte[] bytes;
+        synchronized (queueLog) {
+            offsetBeg = message.getOffsetBeg();
+            offsetEnd = message.getOffsetEnd();
+            bytes = queueLog.read(offsetBeg, (int) (offsetEnd - offsetBeg));
+        }
+        Message result = (Message) BinaryTool.parseByte(bytes);
+        result.setOffsetBeg(offsetBeg);
+        result.setOffsetEnd(offsetEnd);
+        return result;
+    }
+
+    @Override
+    public MessageFileManager.MsgRegion openMsgRegion(Queue queue, Message message) throws IOException {
+        QueueLog queueLog = getCommitLog();
+        synchronized (queueLog) {
+            return queueLog.openRegion(message.getOffsetBeg(), message.getOffsetEnd() - message.getOffsetBeg());
+        }
+    }
+
+    // 不做后台整理, 消息的位置不会变
+    @Override
+    public void setMessageResolver(BiFunction<String, String, Message> messageResolver) {
+    }
+
+    @Override
+    public String getSyncStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, GroupCommitter> entry : committers.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append("commitlog{").append(entry.getValue()).append("}");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String getCompactStats() {
+        return "commitlog 模式不整理段文件";
+    }
+
+    @Override
+    public String getReadAheadStats() {
+        return "";
+    }
+
+    @Override
+    public String getArchiveStats() {
+        return "commitlog 模式不归档段文件";
+    }
+
+    public QueueStats getStats() {
+        return stats;
+    }
+
+    // 检查点之后关闭日志和所有索引
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        syncCallbacks.shutdown();
+        committers.clear();
+        QueueLog queueLog = commitLog;
+        if (queueLog == null) {
+            return;
+        }
+        checkpoint();
+        try {
+            stats.checkpoint(queueLog.getWritePosition(), true);
+            queueLog.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (ConsumeIndex index : indexes.values()) {
+            index.close();
+        }
+        indexes.clear();
+        commitLog = null;
+    }
+}
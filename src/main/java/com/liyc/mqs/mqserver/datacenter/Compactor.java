@@ -0,0 +1,295 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.tool.BinaryTool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * 后台增量整理队列的段文件
+ * 封存段里大部分消息都删除了、但还剩几条没确认时, 整个段文件删不掉; 整理就是把剩下的有效消息搬到日志末尾, 再删除这个段
+ * 整理在自己的线程上定期执行, 不占用确认消息的线程, 每个队列每次最多整理一个段
+ * 1.挑选要整理的段-pickSegment, 有效消息不到一半的封存段, 归档段不整理
+ * 2.一块一块复制-copy, 读在整理线程上, 每块的追加交给队列的写线程(QueueWriter), 整理期间队列照常写入和确认; 按 bytesPerSecond 限速-throttle
+ * 3.复制的数据刷盘, 写位置记到 stat 文件, 然后才能删除旧段
+ * 4.在队列的写线程上一次性切换-swap: 内存里消息的 offsetBeg/offsetEnd 改成新位置, 整理期间被确认的消息把新位置也标记删除, 再删除旧段
+ *   消息按队列名和 messageId 在这个队列里找(转发给几个队列的消息 messageId 相同), 有一条找不到或者 offset 对不上就不切换, 旧段留着
+ *   没切换成的段记下当时的有效消息数, 有效消息数变了(有消息确认了)再整理, 不会一直复制了又丢掉
+ *   确认消息也在写线程上读 offset, 零拷贝投递在日志的锁里读 offset, 不会拿到切换了一半的位置
+ * 旧段删除之前崩溃的话, 恢复时同一条消息会有两份, initAllMsg 按 messageId 去重
+ *
+ * @author Liyc
+ * @date 2026/10/17 19:50
+ **/
+
+public class Compactor {
+    //默认每次检查的间隔
+    public static final long DEFAULT_INTERVAL_MS = 10000;
+    //默认每秒最多读写的字节数
+    public static final long DEFAULT_BYTES_PER_SECOND = 8L * 1024 * 1024;
+    //一块的大小
+    private static final int CHUNK_BYTES = 256 * 1024;
+
+    //一条搬走的消息
+    private static class Moved {
+        private final long oldPosition;
+        private final int length;
+        private final String messageId;
+        private long newPosition;
+
+        Moved(long oldPosition, int length, String messageId) {
+            this.oldPosition = oldPosition;
+            this.length = length;
+            this.messageId = messageId;
+        }
+    }
+
+    private final MessageFileManager messageFileManager;
+    private final long bytesPerSecond;
+    private final ScheduledExecutorService scheduler;
+    //按队列名和 messageId 找到内存里的消息, 没有设置就不整理
+    private volatile BiFunction<String, String, Message> messageResolver;
+    //没切换成的段, value 是当时段里的有效消息数; 段删除后自动去掉
+    private final Map<QueueLog.Segment, Integer> failed = Collections.synchronizedMap(new WeakHashMap<>());
+
+    //整理的段数, 搬走的消息数, 读写的字节数
+    private final AtomicLong segments = new AtomicLong();
+    private final AtomicLong movedRecords = new AtomicLong();
+    private final AtomicLong movedBytes = new AtomicLong();
+
+    public Compactor(MessageFileManager messageFileManager, long intervalMillis, long bytesPerSecond) {
+        this.messageFileManager = messageFileManager;
+        this.bytesPerSecond = bytesPerSecond;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mqs-compact");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::compactAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void setMessageResolver(BiFunction<String, String, Message> messageResolver) {
+        this.messageResolver = messageResolver;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void compactAll() {
+        if (messageResolver == null) {
+            return;
+        }
+        for (String queueName : messageFileManager.getQueueNames()) {
+            try {
+                compact(queueName);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.out.println("[Compactor] 整理失败! queueName=" + queueName + ", error=" + e);
+            }
+        }
+    }
+
+    /**
+     * 整理队列的一个段
+     * @return 有没有整理
+     */
+    public boolean compact(String queueName) throws IOException, ClassNotFoundException, InterruptedException {
+        BiFunction<String, String, Message> resolver = messageResolver;
+        if (resolver == null) {
+            return false;
+        }
+        QueueLog queueLog = messageFileManager.getQueueLog(queueName);
+        QueueStats stats = messageFileManager.getQueueStats(queueName);
+        QueueLog.Segment segment = pickSegment(queueLog);
+        if (segment == null) {
+            return false;
+        }
+        long begin = System.currentTimeMillis();
+        List<Moved> moved = copy(queueName, queueLog, stats, segment);
+
+        // 复制的数据先刷盘, 写位置记下来, 否则删除旧段之后崩溃, 恢复时复制的数据会被截掉
+        long target = queueLog.getWritePosition();
+        queueLog.force();
+        stats.checkpoint(target, true);
+
+        if (!messageFileManager.write(queueName, () -> swap(queueName, queueLog, stats, segment, moved, resolver))) {
+            System.out.println("[Compactor] 有消息在内存里找不到, 放弃这次整理! queueName=" + queueName + ", file=" + segment.getFile().getPath());
+            return false;
+        }
+        segments.incrementAndGet();
+        System.out.println("[Compactor] 整理完毕! queueName=" + queueName + ", file=" + segment.getFile().getPath()
+                + ", moved=" + moved.size() + ", time=" + (System.currentTimeMillis() - begin) + "ms");
+        return true;
+    }
+
+    // 有效消息不到一半的封存段, 没有统计过的段(恢复扫描之前)不整理, 归档段是冷数据, 也不整理
+    // 上次没切换成、之后也没有消息确认的段, 再整理还是一样的结果, 跳过
+    private QueueLog.Segment pickSegment(QueueLog queueLog) {
+        QueueLog.Segment active = queueLog.getActive();
+        for (QueueLog.Segment segment : queueLog.getSegments()) {
+            if (segment == active || !segment.isCounted() || segment.getLive() <= 0 || segment.isArchived()) {
+                continue;
+            }
+            Integer live = failed.get(segment);
+            if (live != null && live == segment.getLive()) {
+                continue;
+            }
+            if (segment.getLive() * 2 < segment.getRecords()) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    // 一块一块地把段里的有效记录追加到日志末尾
+    private List<Moved> copy(String queueName, QueueLog queueLog, QueueStats stats, QueueLog.Segment segment) throws IOException, ClassNotFoundException, InterruptedException {
+        List<Moved> moved = new ArrayList<>();
+        long start = System.nanoTime();
+        long processed = 0;
+        // 自己打开一个 channel 读, 整理期间段被删除了也能读完
+        try (FileChannel channel = FileChannel.open(segment.getFile().toPath(), StandardOpenOption.READ)) {
+            long local = 0;
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (local < segment.getSize()) {
+                List<Moved> chunk = new ArrayList<>();
+                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                DataOutputStream block = new DataOutputStream(byteArrayOutputStream);
+                long chunkBegin = local;
+                while (local < segment.getSize() && byteArrayOutputStream.size() < CHUNK_BYTES) {
+                    header.clear();
+                    readFully(channel, header, local);
+                    int value = header.getInt(0);
+                    int length = value & QueueLog.RECORD_LENGTH_MASK;
+                    if ((value & QueueLog.RECORD_DELETED) != 0) {
+                        local += 4 + length;
+                        continue;
+                    }
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(channel, payload, local + 4);
+                    Message message = (Message) BinaryTool.parseByte(payload.array());
+                    if (message.getIsValid() == 0x1) {
+                        chunk.add(new Moved(segment.getBase() + local, length, message.getMessageId()));
+                        block.writeInt(length);
+                        block.write(payload.array());
+                    }
+                    local += 4 + length;
+                }
+                if (!chunk.isEmpty()) {
+                    messageFileManager.write(queueName, () -> {
+                        synchronized (queueLog) {
+                            long position = queueLog.append(byteArrayOutputStream.toByteArray(), chunk.size());
+                            stats.added(chunk.size(), byteArrayOutputStream.size());
+                            for (Moved record : chunk) {
+                                record.newPosition = position;
+                                position += 4 + record.length;
+                            }
+                        }
+                        return null;
+                    });
+                    moved.addAll(chunk);
+                    movedRecords.addAndGet(chunk.size());
+                }
+                processed += (local - chunkBegin) + byteArrayOutputStream.size();
+                movedBytes.addAndGet((local - chunkBegin) + byteArrayOutputStream.size());
+                throttle(start, processed);
+            }
+        }
+        return moved;
+    }
+
+    // 读写得太快就睡一会, 平均下来不超过 bytesPerSecond
+    private void throttle(long start, long processed) throws InterruptedException {
+        long expectedNanos = processed * 1000000000L / bytesPerSecond;
+        long sleepMillis = (expectedNanos - (System.nanoTime() - start)) / 1000000;
+        if (sleepMillis > 0) {
+            Thread.sleep(sleepMillis);
+        }
+    }
+
+    // 在日志的锁里切换到新位置, 删除旧段
+    // 有一条还有效的消息在内存里找不到(比如刚从队列里取出、还没放进待确认集合), 或者内存里的 offset 对不上, 这次就不切换:
+    // 新位置上的副本全部标记删除, 旧段留着, 段里有消息确认之后再整理
+    private boolean swap(String queueName, QueueLog queueLog, QueueStats stats, QueueLog.Segment segment,
+                         List<Moved> moved, BiFunction<String, String, Message> resolver) throws IOException {
+        synchronized (queueLog) {
+            // 段里的消息在整理期间都确认了的话, 段已经删除了
+            boolean alive = queueLog.contains(segment);
+            Message[] messages = new Message[moved.size()];
+            boolean resolved = true;
+            for (int i = 0; alive && resolved && i < moved.size(); i++) {
+                Moved record = moved.get(i);
+                if (queueLog.isDeleted(record.oldPosition)) {
+                    continue;
+                }
+                messages[i] = resolver.apply(queueName, record.messageId);
+                resolved = messages[i] != null && messages[i].getOffsetBeg() == record.oldPosition + 4
+                        && messages[i].getOffsetEnd() == record.oldPosition + 4 + record.length;
+            }
+            if (!resolved) {
+                for (Moved record : moved) {
+                    discard(queueLog, stats, record);
+                }
+                failed.put(segment, segment.getLive());
+                return false;
+            }
+            failed.remove(segment);
+            for (int i = 0; i < moved.size(); i++) {
+                Moved record = moved.get(i);
+                if (messages[i] == null) {
+                    // 整理期间被确认了, 新位置上的那份也删除
+                    discard(queueLog, stats, record);
+                    continue;
+                }
+                messages[i].setOffsetBeg(record.newPosition + 4);
+                messages[i].setOffsetEnd(record.newPosition + 4 + record.length);
+                // 旧位置上的那份随着段一起删除, 统计上算作删除
+                stats.deleted(4 + record.length);
+            }
+            if (alive) {
+                queueLog.drop(segment);
+            }
+            return true;
+        }
+    }
+
+    // 删除新位置上的副本
+    private static void discard(QueueLog queueLog, QueueStats stats, Moved record) throws IOException {
+        queueLog.markDeleted(record.newPosition, record.length);
+        stats.deleted(4 + record.length);
+        queueLog.release(record.newPosition);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("[Compactor] 读到了段文件结尾!");
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "segments=" + segments.get()
+                + ", movedRecords=" + movedRecords.get()
+                + ", bytes=" + movedBytes.get();
+    }
+}
@@ -0,0 +1,248 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 共享提交日志(CommitLogManager)里一个队列的消费索引
+ * 队列的消息都写在提交日志里, 每个队列只有这一个小文件, 按写入顺序记下自己的消息在日志里的位置, 项的位置是递增的
+ * 一项 12 字节: 记录开始的逻辑位置(8) 消息的长度(4), 只追加写, 由提交日志定期刷盘; 消息的 offsetBeg 是记录位置 + 4
+ * 长度的最高位是确认标记: 几个队列共用的记录, 一个队列确认了只在自己的索引项上做标记, 最后一个队列确认时才删除日志里的记录
+ * 文件名是 队列名.cq, 放在提交日志目录下的 index 目录里
+ * 1.打开-open, 截掉写了一半的项
+ * 2.追加-append, 刷盘-force, 按位置二分查找项并标记确认-markAcked
+ * 3.读出所有项-readAll, 截掉某个位置之后的项-truncate, 只留有效的项重写-rewrite
+ * 4.关闭-close, 删除-delete
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:10
+ **/
+
+public class ConsumeIndex {
+    public static final String SUFFIX = ".cq";
+    public static final int ENTRY_SIZE = 12;
+    //长度的最高位是确认标记
+    public static final int ENTRY_ACKED = 0x80000000;
+    public static final int ENTRY_LENGTH_MASK = 0x7FFFFFFF;
+
+    //索引里的一项
+    static public class Entry {
+        private final long position;
+        private final int length;
+        private final boolean acked;
+
+        Entry(long position, int length) {
+            this.position = position;
+            this.length = length & ENTRY_LENGTH_MASK;
+            this.acked = (length & ENTRY_ACKED) != 0;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public boolean isAcked() {
+            return acked;
+        }
+    }
+
+    private final String queueName;
+    private final File file;
+    private FileChannel channel;
+    //项数, 追加过还没刷盘
+    private long size;
+    private boolean dirty;
+
+    public ConsumeIndex(File directory, String queueName) {
+        this.queueName = queueName;
+        this.file = new File(directory, queueName + SUFFIX);
+    }
+
+    // 索引文件名对应的队列名, 不是索引文件返回 null
+    public static String queueNameOf(File file) {
+        String name = file.getName();
+        return name.endsWith(SUFFIX) ? name.substring(0, name.length() - SUFFIX.length()) : null;
+    }
+
+    public synchronized void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = channel.size() / ENTRY_SIZE;
+        if (channel.size() > size * ENTRY_SIZE) {
+            channel.truncate(size * ENTRY_SIZE);
+        }
+    }
+
+    public synchronized void append(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+        buffer.putLong(position);
+        buffer.putInt(length);
+        buffer.flip();
+        write(buffer);
+    }
+
+    // 一批消息的项一次写入
+    public synchronized void append(long[] positions, int[] lengths) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE * positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            buffer.putLong(positions[i]);
+            buffer.putInt(lengths[i]);
+        }
+        buffer.flip();
+        write(buffer);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        long offset = size * ENTRY_SIZE;
+        int count = buffer.remaining() / ENTRY_SIZE;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+        size += count;
+        dirty = true;
+    }
+
+    // 没有新的项就不刷
+    public void force() throws IOException {
+        FileChannel current;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            current = channel;
+        }
+        current.force(false);
+    }
+
+    /**
+     * 给位置是 position 的项写上确认标记, 只写长度的第一个字节
+     * @return 没有这一项或者已经确认过返回 false
+     */
+    public synchronized boolean markAcked(long position) throws IOException {
+        long low = 0;
+        long high = size - 1;
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                channel.read(buffer, middle * ENTRY_SIZE + buffer.position());
+            }
+            buffer.flip();
+            long current = buffer.getLong();
+            if (current < position) {
+                low = middle + 1;
+            } else if (current > position) {
+                high = middle - 1;
+            } else {
+                int length = buffer.getInt();
+                if ((length & ENTRY_ACKED) != 0) {
+                    return false;
+                }
+                channel.write(ByteBuffer.wrap(new byte[]{(byte) (((length | ENTRY_ACKED) >>> 24) & 0xff)}), middle * ENTRY_SIZE + 8);
+                dirty = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized List<Entry> readAll() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (size * ENTRY_SIZE));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        List<Entry> entries = new ArrayList<>((int) size);
+        while (buffer.remaining() >= ENTRY_SIZE) {
+            entries.add(new Entry(buffer.getLong(), buffer.getInt()));
+        }
+        return entries;
+    }
+
+    /**
+     * 截掉记录位置不小于 position 的项, 项是按位置递增的, 从后往前找
+     */
+    public synchronized void truncate(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        long keep = size;
+        while (keep > 0) {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                channel.read(buffer, (keep - 1) * ENTRY_SIZE + buffer.position());
+            }
+            buffer.flip();
+            if (buffer.getLong() < position) {
+                break;
+            }
+            keep--;
+        }
+        if (keep < size) {
+            channel.truncate(keep * ENTRY_SIZE);
+            size = keep;
+            dirty = true;
+        }
+    }
+
+    /**
+     * 只留给定的项, 先写临时文件再改名覆盖, 不会留下写了一半的索引
+     */
+    public synchronized void rewrite(List<Entry> entries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE * entries.size());
+        for (Entry entry : entries) {
+            buffer.putLong(entry.position);
+            buffer.putInt(entry.length);
+        }
+        buffer.flip();
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(false);
+        }
+        channel.close();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+    }
+
+    public String getQueueName() {
+        return queueName;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("[ConsumeIndex] 索引文件关闭失败! file=" + file.getPath() + ", error=" + e);
+        }
+        channel = null;
+    }
+
+    public synchronized void delete() {
+        close();
+        if (file.exists() && !file.delete()) {
+            System.out.println("[ConsumeIndex] 索引文件删除失败! file=" + file.getPath());
+        }
+    }
+}
@@ -8,6 +8,8 @@ import com.liyc.mqs.mqserver.core.Queue;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
 
 /**
  * 数据库和文件整合类
@@ -19,8 +21,8 @@ import java.util.List;
 public class DiskDataCenter {
     // 这个实例用来管理数据库中的数据
     private DataManager dataManager = new DataManager();
-    // 这个实例用来管理数据文件中的数据
-    private MessageFileManager messageFileManager = new MessageFileManager();
+    // 这个实例用来管理数据文件中的数据, 存储引擎用系统属性 mqs.store 选择
+    private MessageStore messageFileManager = MessageStore.create();
 
     public void init() {
         dataManager.init();
@@ -72,18 +74,79 @@ public class DiskDataCenter {
     }
 
     // 封装消息操作
-    public void sendMessage(Queue queue, Message message) throws IOException {
+    // 写入消息, 返回的 future 在消息按队列的刷盘策略刷到磁盘之后完成
+    public CompletableFuture<Void> sendMessage(Queue queue, Message message) throws IOException {
         messageFileManager.saveMsgFile(queue, message);
+        return messageFileManager.syncMsgFile(queue, message.getOffsetEnd(), 1);
+    }
+
+    public CompletableFuture<Void> sendMessages(Queue queue, List<Message> messages) throws IOException {
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        messageFileManager.saveMsgFiles(queue, messages);
+        return messageFileManager.syncMsgFile(queue, messages.get(messages.size() - 1).getOffsetEnd(), messages.size());
+    }
+
+    // 存储引擎是否把转发给多个队列的消息只写一份
+    public boolean isStoreOnce() {
+        return messageFileManager.isStoreOnce();
+    }
+
+    // 写入转发给多个队列的消息, 所有队列都刷盘之后 future 才完成
+    public CompletableFuture<Void> sendSharedMessages(List<Message> messages, List<List<Queue>> queues) throws IOException {
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return messageFileManager.saveSharedMsgFiles(messages, queues);
+    }
+
+    public String getSyncStats() {
+        return messageFileManager.getSyncStats();
+    }
+
+    public String getCompactStats() {
+        return messageFileManager.getCompactStats();
+    }
+
+    public String getReadAheadStats() {
+        return messageFileManager.getReadAheadStats();
+    }
+
+    public String getArchiveStats() {
+        return messageFileManager.getArchiveStats();
+    }
+
+    // 后台整理段文件时按 messageId 找内存里的消息, 改成新的 offset
+    public void setMessageResolver(BiFunction<String, String, Message> messageResolver) {
+        messageFileManager.setMessageResolver(messageResolver);
     }
 
     public void deleteMessage(Queue queue, Message message) throws IOException, ClassNotFoundException {
+        // 段里的消息都删除之后整个段文件就删掉了, 不再复制整个数据文件做 gc, gc 会改变内存里消息的 offset
         messageFileManager.deleteMsgData(queue, message);
-        if (messageFileManager.isFlagGC(queue.getName())) {
-                messageFileManager.gcMsgData(queue);
-        }
+    }
+
+    public MessageFileManager.MsgRegion openMessageRegion(Queue queue, Message message) throws IOException {
+        return messageFileManager.openMsgRegion(queue, message);
     }
 
     public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, ClassNotFoundException {
-        return messageFileManager.initAllMsg(queueName);
+        return messageFileManager.initAllMsg(queueName, true);
+    }
+
+    // 懒队列恢复时不保留消息体
+    public LinkedList<Message> loadAllMessageFromQueue(String queueName, boolean keepBody) throws IOException, ClassNotFoundException {
+        return messageFileManager.initAllMsg(queueName, keepBody);
+    }
+
+    // 懒队列投递时从数据文件读出消息体
+    public Message loadMessageBody(Queue queue, Message message) throws IOException, ClassNotFoundException {
+        return messageFileManager.readMsg(queue, message);
+    }
+
+    // 关闭存储, 刷盘并记下检查点
+    public void close() {
+        messageFileManager.close();
     }
 }
@@ -0,0 +1,238 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 队列消息日志的组提交
+ * 写入消息的线程追加完数据后登记自己写到的位置, 拿到一个 future, 数据 force 到磁盘之后 future 才完成
+ * 同一时间一个队列最多只有一次 force 在执行, force 期间登记的写入等下一次 force 一起刷盘, 并发写入的消息合并成一次 force
+ * 什么时候 force 由队列的刷盘策略(SyncPolicy)决定
+ * 1.登记写入的位置-commit
+ * 2.按策略安排刷盘-requestSync/scheduleTimer
+ * 3.刷盘-sync, 先 force 数据, 再把刷到的写位置和统计写进 stat 文件并 force, 然后完成位置在这之前的 future
+ *   future 交给 completer 去完成: 等它的回调(写响应)可能因为客户端读得慢阻塞, 不能占着所有队列共用的刷盘线程
+ * 4.刷盘统计-toString
+ *
+ * @author Liyc
+ * @date 2026/10/17 18:30
+ **/
+
+public class GroupCommitter {
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    //一个等待刷盘的写入
+    private static class Waiter {
+        private final long position;
+        private final int records;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long position, int records) {
+            this.position = position;
+            this.records = records;
+        }
+    }
+
+    private final QueueLog queueLog;
+    private final QueueStats stats;
+    private final SyncPolicy policy;
+    private final ScheduledExecutorService scheduler;
+    //完成 future 的线程
+    private final Executor completer;
+
+    //下面的字段都在 this 的锁里访问
+    private final LinkedList<Waiter> waiters = new LinkedList<>();
+    //已经刷到磁盘的位置
+    private long syncedPosition;
+    //等待刷盘的消息条数
+    private int pendingRecords;
+    //已经安排或者正在执行刷盘
+    private boolean syncing;
+    //interval 策略和 count 策略兜底的定时刷盘
+    private ScheduledFuture<?> timer;
+
+    //刷盘次数, 刷盘的消息条数, 刷盘总耗时
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong syncedRecords = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+
+    public GroupCommitter(QueueLog queueLog, QueueStats stats, SyncPolicy policy, ScheduledExecutorService scheduler, Executor completer) {
+        this.queueLog = queueLog;
+        this.stats = stats;
+        this.policy = policy;
+        this.scheduler = scheduler;
+        this.completer = completer;
+    }
+
+    /**
+     * 登记一次写入
+     * @param position 这次写入结束的逻辑位置
+     * @param records 这次写入的消息条数
+     * @return 数据刷到磁盘之后完成, os 策略直接返回完成的 future
+     */
+    public CompletableFuture<Void> commit(long position, int records) {
+        if (policy.getMode() == SyncPolicy.Mode.OS) {
+            return COMPLETED;
+        }
+        synchronized (this) {
+            if (position <= syncedPosition) {
+                // 登记之前已经被别的写入触发的刷盘带上了
+                syncedRecords.addAndGet(records);
+                return COMPLETED;
+            }
+            Waiter waiter = new Waiter(position, records);
+            waiters.add(waiter);
+            pendingRecords += records;
+            schedule();
+            return waiter.future;
+        }
+    }
+
+    // 按策略决定马上刷盘还是等一会, 调用方持有 this 的锁
+    private void schedule() {
+        if (waiters.isEmpty() || syncing) {
+            return;
+        }
+        switch (policy.getMode()) {
+            case ALWAYS:
+                requestSync();
+                break;
+            case COUNT:
+                if (pendingRecords >= policy.getValue()) {
+                    requestSync();
+                } else {
+                    scheduleTimer(SyncPolicy.COUNT_MAX_DELAY_MS);
+                }
+                break;
+            case INTERVAL:
+                scheduleTimer(policy.getValue());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void requestSync() {
+        syncing = true;
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        scheduler.execute(this::sync);
+    }
+
+    private void scheduleTimer(long delayMillis) {
+        if (timer != null) {
+            return;
+        }
+        timer = scheduler.schedule(() -> {
+            synchronized (this) {
+                timer = null;
+                if (!syncing && !waiters.isEmpty()) {
+                    requestSync();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // 刷盘, 在 scheduler 的线程上执行, force 的时候不持有任何锁, 别的线程可以继续追加
+    private void sync() {
+        long begin = System.nanoTime();
+        long target = queueLog.getWritePosition();
+        IOException error = null;
+        try {
+            queueLog.force();
+            // 写位置只记已经刷到磁盘的, 恢复时按它截掉后面的数据
+            stats.checkpoint(target, true);
+        } catch (IOException e) {
+            error = e;
+        }
+        List<Waiter> done = new ArrayList<>();
+        synchronized (this) {
+            syncing = false;
+            if (error == null) {
+                syncedPosition = Math.max(syncedPosition, target);
+            }
+            Iterator<Waiter> iterator = waiters.iterator();
+            while (iterator.hasNext()) {
+                Waiter waiter = iterator.next();
+                if (waiter.position <= target) {
+                    iterator.remove();
+                    pendingRecords -= waiter.records;
+                    done.add(waiter);
+                }
+            }
+            schedule();
+        }
+        if (error != null) {
+            System.out.println("[GroupCommitter] 刷盘失败! file=" + stats.getStatFile().getParent() + ", error=" + error);
+        } else {
+            int records = 0;
+            for (Waiter waiter : done) {
+                records += waiter.records;
+            }
+            syncs.incrementAndGet();
+            syncedRecords.addAndGet(records);
+            syncNanos.addAndGet(System.nanoTime() - begin);
+        }
+        if (!done.isEmpty()) {
+            complete(done, error);
+        }
+    }
+
+    // 在 completer 上按登记的顺序完成 future, 响应在那个线程上发出去, 不占刷盘线程
+    private void complete(List<Waiter> done, IOException error) {
+        Runnable task = () -> {
+            for (Waiter waiter : done) {
+                if (error != null) {
+                    waiter.future.completeExceptionally(error);
+                } else {
+                    waiter.future.complete(null);
+                }
+            }
+        };
+        try {
+            completer.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 正在关闭, 直接在当前线程上完成, 不能让等待的写入一直等下去
+            task.run();
+        }
+    }
+
+    public SyncPolicy getPolicy() {
+        return policy;
+    }
+
+    // 已经刷到磁盘的位置, future 完成时它一定不小于登记的位置
+    public synchronized long getSyncedPosition() {
+        return syncedPosition;
+    }
+
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    public long getSyncedRecords() {
+        return syncedRecords.get();
+    }
+
+    @Override
+    public String toString() {
+        long count = syncs.get();
+        return "policy=" + policy
+                + ", syncs=" + count
+                + ", records=" + syncedRecords.get()
+                + ", avgRecordsPerSync=" + (count == 0 ? 0 : syncedRecords.get() / count)
+                + ", avgSyncMicros=" + (count == 0 ? 0 : syncNanos.get() / count / 1000);
+    }
+}
@@ -4,13 +4,24 @@ import com.liyc.mqs.mqserver.core.Binding;
 import com.liyc.mqs.mqserver.core.Exchange;
 import com.liyc.mqs.mqserver.core.Message;
 import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.core.QueueMode;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 内存消息数据处理类
+ * 启动恢复分两步: 先恢复交换机、队列、绑定-recoverMetadata, 再按队列并行恢复消息-recoverMessages
+ * 消息恢复在 fork-join 线程池上执行, 每个队列一个任务, 并行度用系统属性 mqs.recovery.parallelism 设置, 默认是 CPU 核数
+ * 还在恢复消息的队列 isRecovering 返回 true, 调用方据此拒绝或者推迟这个队列的操作, 恢复完的队列马上可以用
  *
  * @author Liyc
  * @date 2024/12/20 15:56
@@ -25,10 +36,26 @@ public class MemoryDataCenter {
     private ConcurrentHashMap<String, ConcurrentHashMap<String, Binding>> bindingMap = new ConcurrentHashMap<>();
     // key 是 messageId, value 是 Message 对象
     private ConcurrentHashMap<String, Message> messageMap = new ConcurrentHashMap<>();
+    // key 是 messageId, value 是还有几个队列的消息链表或者待确认集合里有这个消息, 减到 0 才从消息中心删除
+    private ConcurrentHashMap<String, Integer> messageRefs = new ConcurrentHashMap<>();
     //第一个key是queueName队列，value是消息链表(一个哈希表+一个链表)
     private ConcurrentHashMap<String, LinkedList<Message>> queueMsg = new ConcurrentHashMap<>();
     //第一个key是queueName队列，第二个key是messageId待确认消息ID，value是待确认消息（一个哈希表+一个哈希表）
     private ConcurrentHashMap<String, ConcurrentHashMap<String, Message>> queueWaitMsg = new ConcurrentHashMap<>();
+    //消息中心里所有消息体占用的字节数, 流量控制按这个判断内存水位
+    private AtomicLong messageBytes = new AtomicLong();
+
+    //设置消息恢复并行度的系统属性
+    public static final String RECOVERY_PARALLELISM_PROPERTY = "mqs.recovery.parallelism";
+    //两次打印恢复进度的最小间隔
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+    //还在恢复消息的队列, key 是 queueName, value 在这个队列的消息恢复完时完成, 恢复失败的队列一直留在这里
+    private ConcurrentHashMap<String, CompletableFuture<Void>> recoveringQueues = new ConcurrentHashMap<>();
+    //恢复进度: 队列总数, 恢复完的队列数, 恢复出来的消息数
+    private volatile int recoveryTotal;
+    private AtomicInteger recoveredQueues = new AtomicInteger();
+    private AtomicLong recoveredMessages = new AtomicLong();
+    private AtomicLong lastProgressTime = new AtomicLong();
 
     /**
      * Exchange处理方法
@@ -84,6 +111,7 @@ public class MemoryDataCenter {
         ConcurrentHashMap<String, Binding> bing = bindingMap.get(exchangeName);
         if (bing == null) {
             //提示没有此binding
+            return null;
         }
         return bing.get(queueName);
     }
@@ -103,15 +131,43 @@ public class MemoryDataCenter {
      * 1.新增：
      * 2.查询
      * 3.删除
+     * 4.释放: 一个队列确认完消息后调用, 所有队列都确认完才删除
      */
     public void insertMessage(Message message) {
-        messageMap.put(message.getMessageId(), message);
+        // 同一个消息被转发到多个队列时会重复插入, 留第一次插入的对象, 只在第一次插入时计算字节数
+        if (messageMap.putIfAbsent(message.getMessageId(), message) == null) {
+            messageBytes.addAndGet(bodyLength(message));
+        }
     }
     public Message selectMessage(String messageID) {
         return messageMap.get(messageID);
     }
     public void deleteMessage(String messageID) {
-        messageMap.remove(messageID);
+        Message message = messageMap.remove(messageID);
+        if (message != null) {
+            messageBytes.addAndGet(-bodyLength(message));
+        }
+    }
+    // 转发给几个队列的消息, 前面的队列确认完还不能删, 后面的队列确认时还要用
+    public void releaseMessage(String messageID) {
+        messageRefs.computeIfPresent(messageID, (k, refs) -> {
+            if (refs > 1) {
+                return refs - 1;
+            }
+            deleteMessage(k);
+            return null;
+        });
+    }
+    // 消息进了一个队列, 引用数加一
+    private void refMessage(Message message) {
+        messageRefs.merge(message.getMessageId(), 1, Integer::sum);
+        insertMessage(message);
+    }
+    public long getMessageBytes() {
+        return messageBytes.get();
+    }
+    private long bodyLength(Message message) {
+        return message.getBody() == null ? 0 : message.getBody().length;
     }
 
     /**
@@ -127,7 +183,7 @@ public class MemoryDataCenter {
         }
         // 在这里把该消息也往消息中心中插入一下. 假设如果 message 已经在消息中心存在, 重复插入也没关系.
         // 主要就是相同 messageId, 对应的 message 的内容一定是一样的. (服务器代码不会对 Message 内容做修改 basicProperties 和 body)
-        insertMessage(message);
+        refMessage(message);
     }
     public Message pollMessage(String queueName) {
         LinkedList<Message> messages = queueMsg.get(queueName);
@@ -144,6 +200,26 @@ public class MemoryDataCenter {
             return message;
         }
     }
+    // 在一个队列里按 messageId 找消息, 先找待确认的, 再从队头往后找还没投递的
+    // 转发给几个队列的消息 messageId 相同, 懒队列里还是另外的对象, 不能只按 messageId 从消息中心里找
+    public Message selectQueueMessage(String queueName, String messageID) {
+        Message message = selectMessageAck(queueName, messageID);
+        if (message != null) {
+            return message;
+        }
+        LinkedList<Message> messages = queueMsg.get(queueName);
+        if (messages == null) {
+            return null;
+        }
+        synchronized (messages) {
+            for (Message queued : messages) {
+                if (messageID.equals(queued.getMessageId())) {
+                    return queued;
+                }
+            }
+        }
+        return null;
+    }
     public int getMessageCount(String queueName) {
         LinkedList<Message> messages = queueMsg.get(queueName);
         if (messages == null) {
@@ -176,22 +252,44 @@ public class MemoryDataCenter {
         }
         return messagesAck.get(messageID);
     }
-    public void deleteMeeageAck(String queueName, String messageID) {
+    // 返回消息是不是在待确认集合里, 并发的重复确认只有一个能删掉它
+    public boolean deleteMeeageAck(String queueName, String messageID) {
         ConcurrentHashMap<String, Message> messageAck = queueWaitMsg.get(queueName);
         if (messageAck == null) {
             //提示无此消息
+            return false;
         }
-        messageAck.remove(messageID);
+        return messageAck.remove(messageID) != null;
     }
 
     // 这个方法就是从硬盘上读取数据, 把硬盘中之前持久化存储的各个维度的数据都恢复到内存中.
+    // 等所有队列的消息都恢复完才返回.
     public void recovery(DiskDataCenter diskDataCenter) throws IOException, ClassNotFoundException {
+        recoverMetadata(diskDataCenter);
+        try {
+            recoverMessages(diskDataCenter, defaultRecoveryParallelism()).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // 恢复交换机、队列、绑定, 这些都在数据库里, 很快. 恢复完就可以开始监听了.
+    public void recoverMetadata(DiskDataCenter diskDataCenter) {
         // 0. 清空之前的所有数据
         exchangeMap.clear();
         queueMap.clear();
         bindingMap.clear();
         messageMap.clear();
+        messageRefs.clear();
         queueMsg.clear();
+        messageBytes.set(0);
+        recoveringQueues.clear();
 
         // 1. 恢复所有的交换机数据
         List<Exchange> exchanges = diskDataCenter.selectAllExchanges();
@@ -210,18 +308,110 @@ public class MemoryDataCenter {
                 k -> new ConcurrentHashMap<>());
             bindingTmp.put(binding.getQueueName(), binding);
         }
-        // 4. 恢复所有的消息数据
-        //    遍历所有的队列, 根据每个队列的名字, 获取到所有的消息.
+    }
+
+    /**
+     * 4. 恢复所有的消息数据
+     *    每个队列一个任务, 在 fork-join 线程池上并行扫描段文件, 队列之间互不影响.
+     *    开始之前所有队列都标记成恢复中, 哪个队列恢复完了就先放开哪个.
+     * 注意!! 针对 "未确认的消息" 这部分内存中的数据, 不需要从硬盘恢复. 之前考虑硬盘存储的时候, 也没设定这一块.
+     * 一旦在等待 ack 的过程中, 服务器重启了, 此时这些 "未被确认的消息", 就恢复成 "未被取走的消息" .
+     * 这个消息在硬盘上存储的时候, 就是当做 "未被取走"
+     * @param parallelism 同时恢复的队列数
+     * @return 所有队列都恢复完时完成, 有队列恢复失败就异常完成
+     */
+    public CompletableFuture<Void> recoverMessages(DiskDataCenter diskDataCenter, int parallelism) {
+        List<Queue> queues = new ArrayList<>(queueMap.values());
         for (Queue queue : queues) {
-            LinkedList<Message> messages = diskDataCenter.loadAllMessageFromQueue(queue.getName());
-            queueMsg.put(queue.getName(), messages);
+            recoveringQueues.put(queue.getName(), new CompletableFuture<>());
+        }
+        recoveryTotal = queues.size();
+        recoveredQueues.set(0);
+        recoveredMessages.set(0);
+        long begin = System.currentTimeMillis();
+        lastProgressTime.set(begin);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism), p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("mqs-recovery-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (Queue queue : queues) {
+            tasks.add(CompletableFuture.runAsync(() -> recoverQueue(diskDataCenter, queue), pool));
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            pool.shutdown();
+            System.out.println("[MemoryDataCenter] 消息恢复完成! " + recoveredQueues.get() + "/" + recoveryTotal + " 个队列, "
+                    + recoveredMessages.get() + " 条消息, 用时 " + (System.currentTimeMillis() - begin) + "ms"
+                    + (e == null ? "" : ", 恢复失败的队列: " + recoveringQueues.keySet()));
+        });
+    }
+
+    // 恢复一个队列的消息, 消息先放进消息中心和队列, 再放开这个队列
+    // 懒队列恢复出来的消息不带消息体, 投递时再读
+    private void recoverQueue(DiskDataCenter diskDataCenter, Queue queue) {
+        String queueName = queue.getName();
+        CompletableFuture<Void> recovered = recoveringQueues.get(queueName);
+        try {
+            LinkedList<Message> messages = QueueMode.of(queue) == QueueMode.LAZY
+                    ? diskDataCenter.loadAllMessageFromQueue(queueName, false)
+                    : diskDataCenter.loadAllMessageFromQueue(queueName);
             for (Message message : messages) {
-                    messageMap.put(message.getMessageId(), message);
+                refMessage(message);
             }
+            queueMsg.put(queueName, messages);
+            recoveredQueues.incrementAndGet();
+            recoveredMessages.addAndGet(messages.size());
+            recoveringQueues.remove(queueName);
+            recovered.complete(null);
+            reportProgress();
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            // 恢复失败的队列一直算作恢复中, 不接受操作, 免得在不完整的消息上继续读写
+            System.out.println("[MemoryDataCenter] 队列消息恢复失败! queueName=" + queueName + ", error=" + e);
+            recovered.completeExceptionally(e);
+            throw new CompletionException(e);
         }
-        // 注意!! 针对 "未确认的消息" 这部分内存中的数据, 不需要从硬盘恢复. 之前考虑硬盘存储的时候, 也没设定这一块.
-        // 一旦在等待 ack 的过程中, 服务器重启了, 此时这些 "未被确认的消息", 就恢复成 "未被取走的消息" .
-        // 这个消息在硬盘上存储的时候, 就是当做 "未被取走"
+    }
 
+    // 最多每秒打印一次恢复进度
+    private void reportProgress() {
+        long now = System.currentTimeMillis();
+        long last = lastProgressTime.get();
+        if (now - last >= PROGRESS_INTERVAL_MS && lastProgressTime.compareAndSet(last, now)) {
+            System.out.println("[MemoryDataCenter] 消息恢复进度: " + recoveredQueues.get() + "/" + recoveryTotal + " 个队列, "
+                    + recoveredMessages.get() + " 条消息");
+        }
+    }
+
+    // 队列的消息是否还在恢复(或者恢复失败了)
+    public boolean isRecovering(String queueName) {
+        return recoveringQueues.containsKey(queueName);
+    }
+
+    // 队列的消息恢复完时完成, 不在恢复中的队列返回已经完成的 future
+    public CompletableFuture<Void> queueRecovered(String queueName) {
+        CompletableFuture<Void> recovered = recoveringQueues.get(queueName);
+        return recovered == null ? CompletableFuture.completedFuture(null) : recovered;
+    }
+
+    public int getRecoveredQueues() {
+        return recoveredQueues.get();
+    }
+
+    public long getRecoveredMessages() {
+        return recoveredMessages.get();
+    }
+
+    public static int defaultRecoveryParallelism() {
+        String value = System.getProperty(RECOVERY_PARALLELISM_PROPERTY);
+        if (value == null || value.isEmpty()) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("[MemoryDataCenter] 恢复并行度不合法, 使用 CPU 核数! " + RECOVERY_PARALLELISM_PROPERTY + "=" + value);
+            return Runtime.getRuntime().availableProcessors();
+        }
     }
 }
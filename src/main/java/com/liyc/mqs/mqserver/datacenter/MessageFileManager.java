@@ -5,30 +5,165 @@ import com.liyc.mqs.mqserver.core.Queue;
 import com.liyc.mqs.mqserver.tool.BinaryTool;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 
 /**
  * 数据文件存储工厂类
- *  - stat类 + 读写stat（InputStream-Scanner OutputStreadm-PrintWriter）
- *  - stat的sumMsg get set方法
+ *  - stat类 + 读写stat, stat 文件是固定格式的二进制头部(QueueStats), 里面还记着消息日志的写位置; 以前的文本格式(Scanner)还能读
+ *  - 消息统计放在内存里(QueueStats), 写入和删除消息只改原子计数, 后台定期写到 stat 文件, 刷盘时带上写位置一起写
  *  - 获取数据目录方法；创建队列数据目录文件方法，并初始化stat文件数据 0 0。
  *  - 删除文件目录方法：删除队列目录文件
- *  - 新增Message，把消息写入队列中的方法：①拿到队列目录 ②上锁 ③序列化 ④message初始位置和起始位置 ⑤写入
- *  - 删除message：①上锁 ②找到队列 ③randomaccessfile 读取文件 ④设置无效 ⑤写回文件
- *  - message初始化到内存:
+ *  - 消息数据存放在队列的分段日志里(QueueLog), 每个队列一个, 第一次用到时打开, 活动段的文件一直打开着
+ *  - 存储模式: channel 按位置读写文件, mapped 把段映射到内存读写, broker 默认用系统属性 mqs.storage 设置
+ *  - 新增Message，把消息写入队列中的方法：①序列化 ②交给队列的写线程(QueueWriter) ③拿到队列日志追加写入, 得到消息的起始位置 ④更新内存里的统计
+ *  - 一个队列的文件修改(写入、删除消息、整理、gc、删除队列)只在它的写线程上执行, 同步方法等写线程执行完, 异步方法返回 future
+ *  - 批量新增Message：一批消息拼成一块, 一次写入, 统计文件也只更新一次
+ *  - 等待写入的消息刷盘: 每个队列一个组提交(GroupCommitter), 并发写入的消息合并成一次 force, 刷盘策略见 SyncPolicy
+ *  - 删除message：①交给队列的写线程 ②在记录长度的最高位写上删除标记, 只写一个字节 ③段里的消息都删除了就删除整个段文件
+ *  - message初始化到内存: 按顺序扫描所有段, 顺便统计每个段的有效消息数, 重新算一遍队列的统计
+ *  - 队列快照(QueueSnapshot): 后台定期和关闭时记下有效消息的属性和位置, 启动时从快照恢复, 只扫描快照之后写的记录
+ *  - 获取消息在数据文件中的位置, 用来直接从文件发送消息(零拷贝投递)
+ *  - 懒队列: 内存里的消息不带消息体, 投递时按 offset 读出来(readMsg), 每个队列一个预读缓冲
+ *  - 按序号读一页消息: 每个段有稀疏的序号索引(SegmentIndex), 从索引定位, 不用从头扫描
+ *  - 存储引擎(MessageStore)的默认实现, 另一个实现是所有队列共用一个提交日志(CommitLogManager)
+ *  - 后台整理段文件(Compactor): 有效消息不到一半的封存段, 把有效消息搬到日志末尾后删除, 需要设置按 messageId 找内存里消息的方法
+ *  - 分层存储(SegmentArchiver): 很久没有修改的封存段压缩后移到归档目录(系统属性 mqs.archive.dir), 读到时由队列日志解压, offset 不变
  *  -
  *
  * @author Liyc
  * @date 2024/12/13 15:45
  **/
 
-public class MessageFileManager {
+public class MessageFileManager implements MessageStore {
     //先创建一下个stat类来作为消息数量属性，如果设置全局属性会有并发问题，设置一个内部类挺好
     static public class Stat{
         public int sumMsg;
         public int countMsg;
+        //消息日志的写位置, 这之前的数据才算写入成功, -1 表示不知道
+        public long writePos = -1;
+        //段文件里所有记录的字节数, 其中已经删除的记录的字节数
+        public long totalBytes;
+        public long deadBytes;
     }
+    //消息在数据文件里的位置, channel 由调用方负责关闭
+    //消息在归档段里的话没法直接发送文件, channel 为 null, 解压出来的消息放在 bytes 里
+    static public class MsgRegion{
+        public FileChannel channel;
+        public long position;
+        public long count;
+        public byte[] bytes;
+    }
+
+    //按序号读出来的一页消息, nextSeq 是下一页开始的序号
+    static public class MsgPage{
+        public List<Message> messages = new ArrayList<>();
+        public long nextSeq;
+    }
+
+    //刷盘线程数
+    private static final int SYNC_THREADS = 4;
+    //完成刷盘 future 的线程数, 响应在这些线程上发出去
+    private static final int SYNC_CALLBACK_THREADS = 4;
+    //后台写 stat 文件的间隔
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+    //设置快照间隔(毫秒)的系统属性, 默认 60 秒, 0 表示只在关闭时写快照
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "mqs.snapshot.interval";
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_MS = 60000;
+    //设置归档目录的系统属性, 每个队列的归档段放在它下面的队列目录里
+    public static final String ARCHIVE_DIR_PROPERTY = "mqs.archive.dir";
+    private static final String DEFAULT_ARCHIVE_DIR = "./archive";
+    //每个队列的消息日志, key 是队列名
+    private final ConcurrentHashMap<String, QueueLog> queueLogs = new ConcurrentHashMap<>();
+    //打开队列日志用的锁, 每个队列一个, 启动时多个队列可以同时打开
+    private final ConcurrentHashMap<String, Object> openLocks = new ConcurrentHashMap<>();
+    //每个队列的消息统计, 和队列日志一起打开, key 是队列名
+    private final ConcurrentHashMap<String, QueueStats> queueStats = new ConcurrentHashMap<>();
+    //每个队列的组提交, key 是队列名
+    private final ConcurrentHashMap<String, GroupCommitter> committers = new ConcurrentHashMap<>();
+    //懒队列投递时的预读缓冲, 第一次投递时创建, key 是队列名
+    private final ConcurrentHashMap<String, ReadAheadBuffer> readAheads = new ConcurrentHashMap<>();
+    //段文件大小
+    private final long segmentSize;
+    //broker 默认的刷盘策略
+    private final SyncPolicy defaultPolicy;
+    //段文件的存储模式
+    private final QueueLog.StorageMode storageMode;
+    //执行刷盘的线程, 所有队列共用
+    private final ScheduledExecutorService syncScheduler;
+    //刷盘完成之后完成写入的 future, 等它的响应可能阻塞, 不放在刷盘线程上
+    private final ExecutorService syncCallbacks;
+    //后台整理段文件
+    private final Compactor compactor;
+    //后台归档冷的封存段
+    private final SegmentArchiver archiver;
+    //归档目录
+    private final String archiveRoot;
+    //队列文件的写线程, 一个队列的写入、确认、整理、gc、删除都在同一个线程上按顺序执行
+    private final QueueWriter writer;
+    //后台写队列快照的线程
+    private final ScheduledExecutorService snapshotScheduler;
+
+    public MessageFileManager() {
+        this(QueueLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MessageFileManager(long segmentSize) {
+        this(segmentSize, SyncPolicy.defaultPolicy());
+    }
+
+    public MessageFileManager(long segmentSize, SyncPolicy defaultPolicy) {
+        this(segmentSize, defaultPolicy, QueueLog.defaultStorageMode());
+    }
+
+    public MessageFileManager(long segmentSize, SyncPolicy defaultPolicy, QueueLog.StorageMode storageMode) {
+        this.segmentSize = segmentSize;
+        this.defaultPolicy = defaultPolicy;
+        this.storageMode = storageMode;
+        this.writer = new QueueWriter(QueueWriter.defaultThreads());
+        AtomicInteger index = new AtomicInteger();
+        this.syncScheduler = Executors.newScheduledThreadPool(SYNC_THREADS, r -> {
+            Thread thread = new Thread(r, "mqs-fsync-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger callbackIndex = new AtomicInteger();
+        this.syncCallbacks = Executors.newFixedThreadPool(SYNC_CALLBACK_THREADS, r -> {
+            Thread thread = new Thread(r, "mqs-fsync-callback-" + callbackIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncScheduler.scheduleWithFixedDelay(this::checkpointAll, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        this.compactor = new Compactor(this, Compactor.DEFAULT_INTERVAL_MS, Compactor.DEFAULT_BYTES_PER_SECOND);
+        this.archiveRoot = System.getProperty(ARCHIVE_DIR_PROPERTY, DEFAULT_ARCHIVE_DIR);
+        this.archiver = new SegmentArchiver(this, SegmentArchiver.DEFAULT_INTERVAL_MS, SegmentArchiver.defaultAge());
+        this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mqs-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long snapshotInterval = Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, DEFAULT_SNAPSHOT_INTERVAL_MS);
+        if (snapshotInterval > 0) {
+            this.snapshotScheduler.scheduleWithFixedDelay(this::snapshotAll, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
     //初始化，如果后续有扩展可以加
     public void init() {
 
@@ -38,40 +173,275 @@ public class MessageFileManager {
     public String queuePath(String queueName) {
         return "./data/" + queueName;
     }
-    //获取消息数据文件路径
-    public String msgDataPath(String queueName) {
-        return queuePath(queueName) + "/queue_data.txt";
+    //获取消息数据段文件路径
+    public String msgDataPath(String queueName, long base) {
+        return queuePath(queueName) + "/" + QueueLog.segmentName(base);
+    }
+    //获取队列的归档目录
+    public String archivePath(String queueName) {
+        return archiveRoot + "/" + queueName;
     }
     //获取消息统计文件
     public String msgCountPath(String queueName) {
         return queuePath(queueName) + "/queue_stat.txt";
     }
 
-    //把消息统计信息写入文件
+    //获取队列的消息日志, 第一次用到时按 stat 里记的写位置打开, 同时加载消息统计
+    public QueueLog getQueueLog(String queueName) throws IOException {
+        QueueLog queueLog = queueLogs.get(queueName);
+        if (queueLog != null) {
+            return queueLog;
+        }
+        synchronized (openLocks.computeIfAbsent(queueName, k -> new Object())) {
+            queueLog = queueLogs.get(queueName);
+            if (queueLog == null) {
+                Stat stat = new File(msgCountPath(queueName)).exists() ? readMsgCount(queueName) : null;
+                if (stat == null) {
+                    stat = new Stat();
+                }
+                queueLog = new QueueLog(new File(queuePath(queueName)), segmentSize, storageMode);
+                queueLog.setArchiveDirectory(new File(archivePath(queueName)));
+                queueLog.open(stat.writePos);
+                // 打开时截掉了写位置后面的数据, 现在的写位置之前都在磁盘上
+                stat.writePos = queueLog.getWritePosition();
+                QueueStats stats = new QueueStats(new File(msgCountPath(queueName)), stat);
+                queueLog.setDropListener(segment -> stats.dropped(segment.getRecords(), segment.getSize()));
+                queueStats.put(queueName, stats);
+                queueLogs.put(queueName, queueLog);
+            }
+            return queueLog;
+        }
+    }
+
+    //获取队列的消息统计
+    public QueueStats getQueueStats(String queueName) throws IOException {
+        getQueueLog(queueName);
+        return queueStats.get(queueName);
+    }
+
+    //已经打开的队列
+    public Set<String> getQueueNames() {
+        return new HashSet<>(queueLogs.keySet());
+    }
+
+    public Compactor getCompactor() {
+        return compactor;
+    }
+
+    public String getCompactStats() {
+        return compactor.toString();
+    }
+
+    public SegmentArchiver getArchiver() {
+        return archiver;
+    }
+
+    public String getArchiveStats() {
+        return archiver.toString();
+    }
+
+    //设置按队列名和 messageId 找内存里消息的方法, 后台整理搬走消息后要改内存里消息的 offset
+    public void setMessageResolver(BiFunction<String, String, Message> messageResolver) {
+        compactor.setMessageResolver(messageResolver);
+    }
+
+    //所有段文件的总长度
+    public long msgDataLength(String queueName) throws IOException {
+        return getQueueLog(queueName).getDataLength();
+    }
+
+    //获取队列的组提交, 刷盘策略取队列参数 x-fsync, 没有就用 broker 默认策略
+    public GroupCommitter getCommitter(Queue queue) throws IOException {
+        GroupCommitter committer = committers.get(queue.getName());
+        if (committer != null) {
+            return committer;
+        }
+        QueueLog queueLog = getQueueLog(queue.getName());
+        synchronized (committers) {
+            committer = committers.get(queue.getName());
+            if (committer == null) {
+                committer = new GroupCommitter(queueLog, queueStats.get(queue.getName()), SyncPolicy.of(queue, defaultPolicy), syncScheduler, syncCallbacks);
+                committers.put(queue.getName(), committer);
+            }
+            return committer;
+        }
+    }
+
+    /**
+     * 等待写入的消息刷到磁盘
+     * @param queue
+     * @param position 写入结束的逻辑位置, 最后一条消息的 offsetEnd
+     * @param records 写入的消息条数
+     * @return 按队列的刷盘策略刷盘之后完成
+     */
+    public CompletableFuture<Void> syncMsgFile(Queue queue, long position, int records) throws IOException {
+        return getCommitter(queue).commit(position, records);
+    }
+
+    //所有队列的刷盘统计
+    public String getSyncStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, GroupCommitter> entry : committers.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(entry.getKey()).append("{").append(entry.getValue()).append("}");
+        }
+        return sb.toString();
+    }
+
+    // 后台定期把统计写到 stat 文件
+    // 没有组提交或者 os 策略的队列不会主动刷盘, 写位置有变化时先把日志刷盘再记, stat 文件里的写位置不能超过磁盘上真有的数据,
+    // 进程崩溃时最多丢掉一个间隔里写入的消息; 其他队列的写位置只在刷盘后记(GroupCommitter), 这里只写计数
+    private void checkpointAll() {
+        for (Map.Entry<String, QueueStats> entry : queueStats.entrySet()) {
+            GroupCommitter committer = committers.get(entry.getKey());
+            QueueLog queueLog = queueLogs.get(entry.getKey());
+            try {
+                long writePos = -1;
+                if (queueLog != null && (committer == null || committer.getPolicy().getMode() == SyncPolicy.Mode.OS)) {
+                    // 先读写位置再刷盘, 刷盘期间追加的数据不记
+                    long position = queueLog.getWritePosition();
+                    if (position > entry.getValue().getCheckpointPos()) {
+                        queueLog.force();
+                    }
+                    writePos = position;
+                }
+                entry.getValue().checkpoint(writePos, false);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("[MessageFileManager] 写 stat 文件失败! queueName=" + entry.getKey() + ", error=" + e);
+            }
+        }
+    }
+
+    //获取队列快照文件
+    public File snapshotFile(String queueName) {
+        return QueueSnapshot.fileOf(new File(queuePath(queueName)));
+    }
+
+    // 读取队列的快照, 和日志对不上的快照不用
+    private QueueSnapshot readSnapshot(String queueName, QueueLog queueLog) throws IOException {
+        QueueSnapshot snapshot = QueueSnapshot.read(snapshotFile(queueName));
+        if (snapshot != null && !snapshot.matches(queueLog)) {
+            System.out.println("[MessageFileManager] 快照和日志对不上, 不使用快照! queueName=" + queueName);
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * 给队列写一个新快照, 在上一个快照的基础上只读之后写的记录
+     * 快照覆盖到的数据先刷盘, 写位置记到 stat 文件, 否则崩溃后日志被截短, 快照就用不上了
+     * @return 有没有写; 上次快照之后没有写入也没有确认就不写
+     */
+    public boolean snapshot(String queueName) throws IOException, ClassNotFoundException {
+        QueueLog queueLog = queueLogs.get(queueName);
+        QueueStats stats = queueStats.get(queueName);
+        if (queueLog == null || stats == null) {
+            return false;
+        }
+        QueueSnapshot previous = readSnapshot(queueName, queueLog);
+        if (previous != null && previous.getWritePos() == queueLog.getWritePosition()
+                && previous.getEntries().size() == stats.getCountMsg()) {
+            return false;
+        }
+        QueueSnapshot snapshot = QueueSnapshot.build(queueLog, previous);
+        // 生成快照期间还在写入, 刷盘前取的写位置不比快照的小
+        long writePos = queueLog.getWritePosition();
+        queueLog.force();
+        stats.checkpoint(writePos, true);
+        File file = snapshotFile(queueName);
+        snapshot.write(file);
+        // 写快照期间队列被删除了
+        if (!queueLogs.containsKey(queueName)) {
+            file.delete();
+        }
+        return true;
+    }
+
+    private void snapshotAll() {
+        for (String queueName : getQueueNames()) {
+            try {
+                snapshot(queueName);
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                System.out.println("[MessageFileManager] 写快照失败! queueName=" + queueName + ", error=" + e);
+            }
+        }
+    }
+
+    //关闭所有队列日志, 关闭前把数据刷盘, 统计和写位置写到 stat 文件, 再写一次快照, 下次启动不用扫描日志
+    public void close() {
+        compactor.shutdown();
+        archiver.shutdown();
+        // 先执行完已经交给写线程的写入和确认
+        writer.shutdown();
+        snapshotScheduler.shutdownNow();
+        syncScheduler.shutdown();
+        syncCallbacks.shutdown();
+        committers.clear();
+        for (Map.Entry<String, QueueLog> entry : queueLogs.entrySet()) {
+            QueueLog queueLog = entry.getValue();
+            try {
+                queueLog.force();
+                queueStats.get(entry.getKey()).checkpoint(queueLog.getWritePosition(), true);
+                snapshot(entry.getKey());
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println("[MessageFileManager] 写快照失败! queueName=" + entry.getKey() + ", error=" + e);
+            }
+            try {
+                queueLog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        queueLogs.clear();
+        queueStats.clear();
+    }
+
+    //把消息统计信息写入文件, 队列的统计已经加载到内存的话一起重置
     public void writeMsgCount(String queueName, Stat stat) {
-        // 使用 PrintWrite 来写文件.
-        // OutputStream 打开文件, 默认情况下, 会直接把原文件清空. 此时相当于新的数据覆盖了旧的.
+        QueueStats stats = queueStats.get(queueName);
+        if (stats != null) {
+            stats.reset(stat);
+        }
         try {
-            OutputStream file = new FileOutputStream(msgCountPath(queueName));
-            String msgCount = stat.sumMsg + "\t" + stat.countMsg;
-            PrintWriter printWriter = new PrintWriter(file);
-            printWriter.write(msgCount);
-            printWriter.flush();
-        } catch (FileNotFoundException e) {
+            QueueStats.writeHeader(new File(msgCountPath(queueName)), stat, false);
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
-    //读取消息统计信息文件
+    //读取消息统计信息, 队列的统计已经加载到内存的话直接取内存里的
     public Stat readMsgCount(String queueName) {
-        // 由于当前的消息统计文件是文本文件, 可以直接使用 Scanner 来读取文件内容
-        Stat stat = new Stat();
+        QueueStats stats = queueStats.get(queueName);
+        QueueLog queueLog = queueLogs.get(queueName);
+        if (stats != null && queueLog != null) {
+            return stats.snapshot(queueLog.getWritePosition());
+        }
         try {
-            InputStream file = new FileInputStream(msgCountPath(queueName));
+            Stat stat = QueueStats.readHeader(new File(msgCountPath(queueName)));
+            if (stat != null) {
+                return stat;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        // 以前的 stat 文件是文本文件, 可以直接使用 Scanner 来读取文件内容
+        Stat stat = new Stat();
+        try (InputStream file = new FileInputStream(msgCountPath(queueName))) {
             Scanner scanner = new Scanner(file);
+            if (!scanner.hasNextInt()) {
+                // 刚创建还没写过的空文件
+                return stat;
+            }
             stat.sumMsg = scanner.nextInt();
             stat.countMsg = scanner.nextInt();
+            // 老版本的 stat 文件没有写位置
+            if (scanner.hasNextLong()) {
+                stat.writePos = scanner.nextLong();
+            }
             return stat;
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
@@ -85,13 +455,8 @@ public class MessageFileManager {
                 //文件夹未生成
             }
         }
-        File msgDataPath = new File(msgDataPath(queueName));
-        if (!msgDataPath.exists()) {
-            boolean mfile = msgDataPath.createNewFile();
-            if (!mfile) {
-                //消息数据文件未生成
-            }
-        }
+        //打开消息日志, 没有段文件会创建第一个段
+        QueueLog queueLog = getQueueLog(queueName);
         File msgCountPath = new File(msgCountPath(queueName));
         if (!msgCountPath.exists()) {
             boolean cfile = msgCountPath.createNewFile();
@@ -103,25 +468,55 @@ public class MessageFileManager {
         Stat stat = new Stat();
         stat.countMsg = 0;
         stat.sumMsg = 0;
+        stat.writePos = queueLog.getWritePosition();
         writeMsgCount(queueName, stat);
     }
     //删除目录
+    //交给队列的写线程执行, 之前提交的写入和确认先执行完
     public void deleteFile(String queueName) {
-        File dataFile = new File(msgDataPath(queueName));
-        File countFile = new File(msgCountPath(queueName));
+        try {
+            write(queueName, () -> {
+                deleteFiles(queueName);
+                return null;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void deleteFiles(String queueName) {
+        committers.remove(queueName);
+        readAheads.remove(queueName);
+        QueueStats stats = queueStats.remove(queueName);
+        if (stats != null) {
+            stats.close();
+        }
+        QueueLog queueLog = queueLogs.remove(queueName);
+        if (queueLog != null) {
+            try {
+                queueLog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         File queueFile = new File(queuePath(queueName));
+        QueueLog.deleteSegmentFiles(queueFile);
+        File archiveFile = new File(archivePath(queueName));
+        QueueLog.deleteSegmentFiles(archiveFile);
+        archiveFile.delete();
+        snapshotFile(queueName).delete();
+        File countFile = new File(msgCountPath(queueName));
 
-        boolean ok1 = dataFile.delete();
         boolean ok2 = countFile.delete();
         boolean ok3 = queueFile.delete();
-        if (!ok1 || !ok2 || !ok3) {
+        if (!ok2 || !ok3) {
             //有文件未删除成功，提示
         }
     }
     //判断消息文件是否存在
     public boolean isFileExists(String queueName) {
-        File dataFile = new File(msgDataPath(queueName));
-        if (!dataFile.exists()) {
+        File queueFile = new File(queuePath(queueName));
+        if (!queueFile.isDirectory()) {
             return false;
         }
         File countFile = new File(msgCountPath(queueName));
@@ -131,156 +526,409 @@ public class MessageFileManager {
         return true;
     }
     //保存消息到文件
-    //获取目录-队列上锁-确定消息长度-写入
+    //获取队列日志-序列化-交给队列的写线程追加写入-更新统计
     public void saveMsgFile(Queue queue, Message message) throws IOException {
-        if (!isFileExists(queue.getName())) {
-            //提示文件不存在
-        }
-        byte[] mByte = BinaryTool.formatByte(message);
-        synchronized (queue) {
-            File file = new File(msgDataPath(queue.getName()));
-            message.setOffsetBeg(file.length() + 4);
-            message.setOffsetEnd(file.length() + 4 + mByte.length);
-            OutputStream outputStream = new FileOutputStream(msgDataPath(queue.getName()));
-            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-            dataOutputStream.writeInt(mByte.length);
-            dataOutputStream.write(mByte);
+        QueueWriter.await(saveMsgFilesAsync(queue, Collections.singletonList(message)));
+    }
+    //批量保存消息到文件
+    public void saveMsgFiles(Queue queue, List<Message> messages) throws IOException {
+        QueueWriter.await(saveMsgFilesAsync(queue, messages));
+    }
 
-            Stat stat = readMsgCount(queue.getName());
-            stat.sumMsg += 1;
-            stat.countMsg += 1;
-            writeMsgCount(queue.getName(), stat);
+    //序列化在调用线程上做, 拼成一块交给队列的写线程一次写入, 一批消息总在同一个段里, 拿到起始位置后再算每条消息的位置
+    //返回的 future 在写入日志之后完成, 这时消息的 offset 才设置好
+    @Override
+    public CompletableFuture<Void> saveMsgFilesAsync(Queue queue, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
         }
+        String queueName = queue.getName();
+        List<byte[]> mBytes = new ArrayList<>(messages.size());
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream block = new DataOutputStream(byteArrayOutputStream);
+        try {
+            for (Message message : messages) {
+                byte[] mByte = BinaryTool.formatByte(message);
+                mBytes.add(mByte);
+                block.writeInt(mByte.length);
+                block.write(mByte);
+            }
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return writer.submit(queueName, () -> {
+            QueueLog queueLog = getQueueLog(queueName);
+            // 日志的锁只剩写线程和读消息的线程用
+            synchronized (queueLog) {
+                // 追加写入日志的活动段, 返回的是这块数据开始的逻辑位置
+                long offset = queueLog.append(byteArrayOutputStream.toByteArray(), messages.size());
+                for (int i = 0; i < messages.size(); i++) {
+                    byte[] mByte = mBytes.get(i);
+                    messages.get(i).setOffsetBeg(offset + 4);
+                    messages.get(i).setOffsetEnd(offset + 4 + mByte.length);
+                    offset += 4 + mByte.length;
+                }
+                queueStats.get(queueName).added(messages.size(), byteArrayOutputStream.size());
+            }
+            return null;
+        });
     }
     //删除消息，逻辑删除
-    //获取目录-获取消息的位置-读取文件消息-反序列化-设置成无效-序列化-存入进去
+    //获取队列日志-在记录长度的最高位写上删除标记-段里都删除了就删除段文件
+    //以前是读出整条消息, 反序列化改 isValid 再写回去, 现在只写一个字节, 和消息多大没有关系; 消息本身不动, 以前写的 isValid 恢复时照样认
     public void deleteMsgData(Queue queue, Message message) throws IOException, ClassNotFoundException {
-        if (!isFileExists(queue.getName())) {
-            //提示文件不存在
-        }
-        synchronized (queue) {
-            // 1. 先从文件中读取对应的 Message 数据.
-            RandomAccessFile randomAccessFile = new RandomAccessFile(msgDataPath(queue.getName()), "rw");
-            byte[] mbyte = new byte[(int) (message.getOffsetEnd() - message.getOffsetBeg())];
-            randomAccessFile.seek(message.getOffsetBeg());
-            randomAccessFile.read(mbyte);
-            // 2. 把当前读出来的二进制数据, 转换回成 Message 对象
-            Message messageParse = (Message) BinaryTool.parseByte(mbyte);
-            // 3. 把 isValid 设置为无效.
-            messageParse.setIsValid((byte) 0x0);
-            // 此处不需要给参数的这个 message 的 isValid 设为 0, 因为这个参数代表的是内存中管理的 Message 对象
-            // 而这个对象马上也要被从内存中销毁了.
-            // 4. 重新写入文件
-            byte[] aByte = BinaryTool.formatByte(messageParse);
-
-            // 虽然上面已经 seek 过了, 但是上面 seek 完了之后, 进行了读操作, 这一读, 就导致, 文件光标往后移动, 移动到
-            // 下一个消息的位置了. 因此要想让接下来的写入, 能够刚好写回到之前的位置, 就需要重新调整文件光标.
-            randomAccessFile.seek(message.getOffsetBeg());
-            randomAccessFile.write(aByte);
-        }
-        //还有消息统计数据也要更新 把一个消息设为无效了, 此时有效消息个数就需要 - 1
-        Stat stat = readMsgCount(queue.getName());
-        if (stat.countMsg > 0) {
-            stat.countMsg -= 1;
-        }
-        writeMsgCount(queue.getName(), stat);
+        QueueWriter.await(deleteMsgDataAsync(queue, message));
+    }
+
+    //交给队列的写线程删除, 消息的 offset 在写线程上读, 和整理切换位置是同一个线程
+    @Override
+    public CompletableFuture<Void> deleteMsgDataAsync(Queue queue, Message message) {
+        String queueName = queue.getName();
+        return writer.submit(queueName, () -> {
+            QueueLog queueLog = getQueueLog(queueName);
+            synchronized (queueLog) {
+                int length = (int) (message.getOffsetEnd() - message.getOffsetBeg());
+                // offset 不是这个队列日志里的一条记录(比如拿了别的队列的 offset), 写删除标记会改坏别的记录, 直接报错
+                if (queueLog.segmentAt(message.getOffsetBeg() - 4) != null && !queueLog.isRecord(message.getOffsetBeg() - 4, length)) {
+                    throw new IOException("[MessageFileManager] 消息的 offset 对不上数据文件里的记录! queueName=" + queueName
+                            + ", messageId=" + message.getMessageId() + ", offsetBeg=" + message.getOffsetBeg() + ", offsetEnd=" + message.getOffsetEnd());
+                }
+                // 重复确认: 已经有删除标记或者所在的段已经删除了, 统计和段的有效消息数都不能再减一次
+                if (!queueLog.isLive(message.getOffsetBeg() - 4)) {
+                    System.out.println("[MessageFileManager] 消息已经删除过了! queueName=" + queueName + ", messageId=" + message.getMessageId());
+                    return null;
+                }
+                // 1. 记录从 offsetBeg 前面 4 个字节的长度开始
+                queueLog.markDeleted(message.getOffsetBeg() - 4, length);
+                //还有消息统计数据也要更新 把一个消息设为无效了, 此时有效消息个数就需要 - 1
+                queueStats.get(queueName).deleted(4 + length);
+                // 2. 所在段的有效消息数减 1, 封存的段减到 0 整个段文件就删除了, 删除的段里的消息由监听者从总数里减掉
+                queueLog.release(message.getOffsetBeg());
+            }
+            return null;
+        });
+    }
+
+    // 在队列的写线程上执行, 等它执行完; 后台整理用
+    <T> T write(String queueName, QueueWriter.Task<T> task) throws IOException {
+        return QueueWriter.await(writer.submit(queueName, task));
     }
+
     // 使用这个方法, 从文件中, 读取出所有的消息内容, 加载到内存中(具体来说是放到一个链表里)
     // 这个方法, 准备在程序启动的时候, 进行调用.
     // 这里使用一个 LinkedList, 主要目的是为了后续进行头删操作.
     // 这个方法的参数, 只是一个 queueName 而不是 MSGQueue 对象. 因为这个方法不需要加锁, 只使用 queueName 就够了.
     // 由于该方法是在程序启动时调用, 此时服务器还不能处理请求呢~~ 不涉及多线程操作文件.
+    // 按段的顺序扫描, 顺便统计每个段的有效消息数, 扫描完删除没有有效消息的封存段.
+    // 后台整理复制完消息、旧段还没删除时崩溃, 同一条消息会有两份, 后面那份标记删除.
     public LinkedList<Message> initAllMsg(String queueName) throws IOException, ClassNotFoundException {
+        return initAllMsg(queueName, true);
+    }
+
+    // keepBody 为 false 时不保留消息体, 懒队列恢复时内存里只留属性和 offset, 投递时再用 readMsg 读
+    public LinkedList<Message> initAllMsg(String queueName, boolean keepBody) throws IOException, ClassNotFoundException {
+        QueueLog queueLog = getQueueLog(queueName);
+        synchronized (queueLog) {
+            // 有对得上的快照就从快照恢复, 只扫描快照之后写的记录
+            QueueSnapshot snapshot = readSnapshot(queueName, queueLog);
+            if (snapshot != null) {
+                try {
+                    return recoverFromSnapshot(queueName, queueLog, snapshot, keepBody);
+                } catch (IOException e) {
+                    System.out.println("[MessageFileManager] 从快照恢复失败, 扫描整个日志! queueName=" + queueName + ", error=" + e);
+                }
+            }
+            return scanAllMsg(queueName, queueLog, keepBody);
+        }
+    }
+
+    /**
+     * 从快照恢复, 快照里的消息只检查还在不在, 快照之后写的记录按序号读出来反序列化
+     * 懒队列只用快照里的属性和位置, 不用读消息体; 普通队列还要把消息体读回来
+     * 每个段的记录条数打开日志时已经从索引里知道了, 有效消息按位置找到所在的段再计数
+     */
+    private LinkedList<Message> recoverFromSnapshot(String queueName, QueueLog queueLog, QueueSnapshot snapshot, boolean keepBody) throws IOException, ClassNotFoundException {
         LinkedList<Message> list = new LinkedList<>();
-        try {
-            InputStream inputStream = new FileInputStream(msgDataPath(queueName));
-            DataInputStream dataInputStream = new DataInputStream(inputStream);
-            //循环读取文件
-            long currentIndex = 0;
-            while (true) {
-                int msgLength = dataInputStream.readInt();
-                byte[] mbyte = new byte[msgLength];
-                int readLength = dataInputStream.read(mbyte);
-                if (msgLength != readLength) {
-                    //读取长度和存储长度不一致
+        Set<String> messageIds = new HashSet<>();
+        Map<QueueLog.Segment, Integer> lives = new HashMap<>();
+        long liveBytes = 0;
+        int fromSnapshot = 0;
+        synchronized (queueLog) {
+            for (QueueSnapshot.Entry entry : snapshot.getEntries()) {
+                long position = entry.getOffsetBeg() - 4;
+                if (!queueLog.isLive(position)) {
+                    continue;
                 }
-                Message message = (Message) BinaryTool.parseByte(mbyte);
-                //无效的信息不存储
-                if (message.getIsValid() != 0x1) {
-                    // 无效数据, 直接跳过.
-                    // 虽然消息是无效数据, 但是 offset 不要忘记更新.
-                    currentIndex += (4 + msgLength);
+                if (!messageIds.add(entry.getBasicProperties().getMessageId())) {
+                    queueLog.markDeleted(position, entry.getLength());
                     continue;
                 }
-                /// 5. 有效数据, 则需要把这个 Message 对象加入到链表中. 加入之前还需要填写 offsetBeg 和 offsetEnd
-                //    进行计算 offset 的时候, 需要知道当前文件光标的位置的. 由于当下使用的 DataInputStream 并不方便直接获取到文件光标位置
-                //    因此就需要手动计算下文件光标.
-                message.setOffsetBeg(currentIndex + 4);
-                message.setOffsetEnd(currentIndex + 4 + msgLength);
-                currentIndex += (4 + msgLength);
+                Message message;
+                if (keepBody) {
+                    message = (Message) BinaryTool.parseByte(queueLog.read(entry.getOffsetBeg(), entry.getLength()));
+                } else {
+                    message = new Message();
+                    message.setBasicProperties(entry.getBasicProperties());
+                }
+                message.setOffsetBeg(entry.getOffsetBeg());
+                message.setOffsetEnd(entry.getOffsetBeg() + entry.getLength());
+                lives.merge(queueLog.segmentAt(position), 1, Integer::sum);
+                liveBytes += 4 + entry.getLength();
+                fromSnapshot++;
                 list.add(message);
             }
+            // 快照之后写的记录, 删除标记的记录 readRecords 已经跳过了
+            long fromSeq = snapshot.getNextSeq();
+            while (true) {
+                List<QueueLog.Record> records = queueLog.readRecords(fromSeq, 1024);
+                if (records.isEmpty()) {
+                    break;
+                }
+                for (QueueLog.Record record : records) {
+                    Message message = (Message) BinaryTool.parseByte(record.getPayload());
+                    int msgLength = record.getPayload().length;
+                    //以前删除消息是把 isValid 改成 0 写回去
+                    if (message.getIsValid() != 0x1) {
+                        continue;
+                    }
+                    if (!messageIds.add(message.getMessageId())) {
+                        queueLog.markDeleted(record.getPosition(), msgLength);
+                        continue;
+                    }
+                    message.setOffsetBeg(record.getPosition() + 4);
+                    message.setOffsetEnd(record.getPosition() + 4 + msgLength);
+                    if (!keepBody) {
+                        message.setBody(null);
+                    }
+                    lives.merge(queueLog.segmentAt(record.getPosition()), 1, Integer::sum);
+                    liveBytes += 4 + msgLength;
+                    list.add(message);
+                }
+                fromSeq = records.get(records.size() - 1).getSeq() + 1;
+            }
+            Stat stat = new Stat();
+            for (QueueLog.Segment segment : queueLog.getSegments()) {
+                int live = lives.getOrDefault(segment, 0);
+                queueLog.setCounts(segment, segment.getRecords(), live);
+                stat.sumMsg += segment.getRecords();
+                stat.countMsg += live;
+                stat.totalBytes += segment.getSize();
+            }
+            stat.deadBytes = stat.totalBytes - liveBytes;
+            queueStats.get(queueName).reset(stat);
+            // 删除的段由监听者从统计里减掉
+            queueLog.dropDeadSegments();
+        }
+        System.out.println("[MessageFileManager] 从快照恢复队列! queueName=" + queueName + ", 快照消息=" + fromSnapshot
+                + ", 快照之后的消息=" + (list.size() - fromSnapshot));
+        return list;
+    }
 
-        } catch (EOFException e) {
-            // 这个 catch 并非真是处理 "异常", 而是处理 "正常" 的业务逻辑. 文件读到末尾, 会被 readInt 抛出该异常.
-            // 这个 catch 语句中也不需要做啥特殊的事情
+    // 从头扫描所有段
+    private LinkedList<Message> scanAllMsg(String queueName, QueueLog queueLog, boolean keepBody) throws IOException, ClassNotFoundException {
+        LinkedList<Message> list = new LinkedList<>();
+        synchronized (queueLog) {
+            //重新统计整个队列
+            Stat stat = new Stat();
+            Set<String> messageIds = new HashSet<>();
+            for (QueueLog.Segment segment : queueLog.getSegments()) {
+                int records = 0;
+                int live = 0;
+                // 归档段由队列日志边读边解压
+                try (InputStream inputStream = new BufferedInputStream(queueLog.openStream(segment, 0));
+                     DataInputStream dataInputStream = new DataInputStream(inputStream)) {
+                    //循环读取段文件, 只读到段的写位置
+                    long currentIndex = 0;
+                    while (currentIndex < segment.getSize()) {
+                        int header = dataInputStream.readInt();
+                        int msgLength = header & QueueLog.RECORD_LENGTH_MASK;
+                        records++;
+                        stat.totalBytes += 4 + msgLength;
+                        // 长度上有删除标记的记录不用反序列化, 直接跳过
+                        if ((header & QueueLog.RECORD_DELETED) != 0) {
+                            dataInputStream.readFully(new byte[msgLength]);
+                            stat.deadBytes += 4 + msgLength;
+                            currentIndex += (4 + msgLength);
+                            continue;
+                        }
+                        byte[] mbyte = new byte[msgLength];
+                        dataInputStream.readFully(mbyte);
+                        Message message = (Message) BinaryTool.parseByte(mbyte);
+                        //无效的信息不存储, 以前删除消息是把 isValid 改成 0 写回去
+                        if (message.getIsValid() != 0x1) {
+                            // 无效数据, 直接跳过.
+                            // 虽然消息是无效数据, 但是 offset 不要忘记更新.
+                            stat.deadBytes += 4 + msgLength;
+                            currentIndex += (4 + msgLength);
+                            continue;
+                        }
+                        if (!messageIds.add(message.getMessageId())) {
+                            queueLog.markDeleted(segment.getBase() + currentIndex, msgLength);
+                            stat.deadBytes += 4 + msgLength;
+                            currentIndex += (4 + msgLength);
+                            continue;
+                        }
+                        /// 5. 有效数据, 则需要把这个 Message 对象加入到链表中. 加入之前还需要填写 offsetBeg 和 offsetEnd
+                        //    offset 是整个队列日志里的逻辑位置, 段里的位置加上段的起始位置
+                        message.setOffsetBeg(segment.getBase() + currentIndex + 4);
+                        message.setOffsetEnd(segment.getBase() + currentIndex + 4 + msgLength);
+                        if (!keepBody) {
+                            message.setBody(null);
+                        }
+                        currentIndex += (4 + msgLength);
+                        live++;
+                        list.add(message);
+                    }
+                } catch (EOFException e) {
+                    // 写位置之前的数据都是完整的, 读到文件结尾说明段文件被截断了
+                    System.out.println("[MessageFileManager] 段文件不完整! file=" + segment.getFile().getPath());
+                }
+                queueLog.setCounts(segment, records, live);
+                stat.sumMsg += records;
+                stat.countMsg += live;
+            }
+            QueueStats stats = queueStats.get(queueName);
+            stats.reset(stat);
+            // 删除的段由监听者从统计里减掉
+            queueLog.dropDeadSegments();
         }
         return list;
     }
 
-    // 检查当前是否要针对该队列的消息数据文件进行 GC
+    // 获取消息在数据文件中的位置, 投递时直接把这段数据从文件发给客户端, 不用再序列化一遍.
+    // 打开消息所在的段文件要在队列日志的锁里做, 这样不会赶上段文件被删除或者 gc 换文件.
+    // 段文件被删掉之后, 已经打开的 channel 仍然可以读到原来的内容.
+    // 消息的 offset 也在锁里读, 后台整理在锁里切换 offset, 不会读到已经删除的旧位置.
+    // 先核对 offset 前面 4 个字节的记录长度, offset 不是这个队列日志里的一条记录就报错, 不能把文件里别的字节发给客户端.
+    public MsgRegion openMsgRegion(Queue queue, Message message) throws IOException {
+        QueueLog queueLog = getQueueLog(queue.getName());
+        synchronized (queueLog) {
+            long offsetBeg = message.getOffsetBeg();
+            long length = message.getOffsetEnd() - offsetBeg;
+            if (!queueLog.isRecord(offsetBeg - 4, (int) length)) {
+                throw new IOException("[MessageFileManager] 消息的 offset 对不上数据文件里的记录! queueName=" + queue.getName()
+                        + ", messageId=" + message.getMessageId() + ", offsetBeg=" + offsetBeg + ", offsetEnd=" + message.getOffsetEnd());
+            }
+            return queueLog.openRegion(offsetBeg, length);
+        }
+    }
+
+    // 按序号从队列日志里读一页消息, 已经删除的记录只读长度就跳过, 用来随机访问和扫描队列, 不用从头读.
+    // 序号所在的段已经删除的话从后面第一条还在的消息开始; 记录在锁里读出来, 反序列化在锁外做.
+    public MsgPage readMsgRange(String queueName, long fromSeq, int maxCount) throws IOException, ClassNotFoundException {
+        QueueLog queueLog = getQueueLog(queueName);
+        List<QueueLog.Record> records;
+        long nextSeq;
+        synchronized (queueLog) {
+            records = queueLog.readRecords(fromSeq, maxCount);
+            nextSeq = records.isEmpty() ? Math.max(fromSeq, queueLog.getNextSeq()) : records.get(records.size() - 1).getSeq() + 1;
+        }
+        MsgPage page = new MsgPage();
+        for (QueueLog.Record record : records) {
+            Message message = (Message) BinaryTool.parseByte(record.getPayload());
+            //以前删除消息是把 isValid 改成 0 写回去
+            if (message.getIsValid() != 0x1) {
+                continue;
+            }
+            message.setOffsetBeg(record.getPosition() + 4);
+            message.setOffsetEnd(record.getPosition() + 4 + record.getPayload().length);
+            page.messages.add(message);
+        }
+        page.nextSeq = nextSeq;
+        return page;
+    }
+
+    // 按消息的 offset 从数据文件里读出完整的消息, 懒队列投递时用.
+    // 每个队列一个预读缓冲, 按顺序投递时后面几条消息不用再读文件.
+    // offset 在日志的锁里读, 后台整理在锁里切换 offset, 不会读到已经删除的旧位置.
+    public Message readMsg(Queue queue, Message message) throws IOException, ClassNotFoundException {
+        QueueLog queueLog = getQueueLog(queue.getName());
+        ReadAheadBuffer readAhead = readAheads.computeIfAbsent(queue.getName(), k -> new ReadAheadBuffer(ReadAheadBuffer.DEFAULT_SIZE));
+        long offsetBeg;
+        long offsetEnd;
+        byte[] bytes;
+        synchronized (queueLog) {
+            offsetBeg = message.getOffsetBeg();
+            offsetEnd = message.getOffsetEnd();
+            bytes = readAhead.read(queueLog, offsetBeg, (int) (offsetEnd - offsetBeg));
+        }
+        Message result = (Message) BinaryTool.parseByte(bytes);
+        result.setOffsetBeg(offsetBeg);
+        result.setOffsetEnd(offsetEnd);
+        return result;
+    }
+
+    // 懒队列的预读统计
+    public String getReadAheadStats() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, ReadAheadBuffer> entry : readAheads.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append("; ");
+            }
+            builder.append(entry.getKey()).append("{").append(entry.getValue()).append("}");
+        }
+        return builder.toString();
+    }
+
+    // 检查当前是否要针对该队列的消息数据文件进行 GC, 只看内存里的统计, 不读文件
     public boolean isFlagGC(String queueName){
-        Stat stat = readMsgCount(queueName);
-        if (stat.sumMsg > 2000 && (double)stat.countMsg / (double) stat.sumMsg < 0.5) {
+        QueueStats stats = queueStats.get(queueName);
+        if (stats == null) {
+            return false;
+        }
+        int sumMsg = stats.getSumMsg();
+        if (sumMsg > 2000 && (double) stats.getCountMsg() / (double) sumMsg < 0.5) {
             return true;
         }
         return false;
     }
 
-    public String msgDataPathNew(String queueName) {
-        return queueName + "/queue_data_new.txt";
-    }
-
     // 通过这个方法, 真正执行消息数据文件的垃圾回收操作.
     // 使用复制算法来完成.
-    // 创建一个新的文件, 名字就是 queue_data_new.txt
-    // 把之前消息数据文件中的有效消息都读出来, 写到新的文件中.
-    // 删除旧的文件, 再把新的文件改名回 queue_data.txt
+    // 把所有段里的有效消息都读出来, 追加写到一个新的段里, 再删除原来所有的段.
+    // 逻辑位置一直递增, 有效消息的 offset 都变了, 内存里还拿着旧 offset 的消息需要重新加载.
     // 同时要记得更新消息统计文件.
     public void gcMsgData(Queue queue) throws IOException, ClassNotFoundException {
+        write(queue.getName(), () -> {
+            gc(queue);
+            return null;
+        });
+    }
 
-        synchronized (queue) {
+    private void gc(Queue queue) throws IOException, ClassNotFoundException {
+        QueueLog queueLog = getQueueLog(queue.getName());
+        synchronized (queueLog) {
             // 由于 gc 操作可能比较耗时, 此处统计一下执行消耗的时间.
             long gcBeg = System.currentTimeMillis();
-            File fileNew = new File(msgDataPath(queue.getName()));
-            if (!fileNew.exists()) {
-                boolean ok = fileNew.createNewFile();
-                if (!ok) {
-                    //提示文件未创建成功
-                }
-            }
             LinkedList<Message> messages = initAllMsg(queue.getName());
-            OutputStream outputStream = new FileOutputStream(msgDataPathNew(queue.getName()));
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+            // 封存活动段, 有效消息都写到新的段里
+            queueLog.roll();
+            List<QueueLog.Segment> oldSegments = queueLog.getSegments();
+            oldSegments.remove(queueLog.getActive());
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            DataOutputStream block = new DataOutputStream(byteArrayOutputStream);
             for (Message message : messages) {
                 byte[] mbytes = BinaryTool.formatByte(message);
-                objectOutputStream.writeInt(mbytes.length);
-                objectOutputStream.write(mbytes);
+                block.writeInt(mbytes.length);
+                block.write(mbytes);
             }
-
-            File fileOld = new File(msgDataPath(queue.getName()));
-            boolean delete = fileOld.delete();
-            if (!delete) {
-                //提示旧文件未删除
+            if (!messages.isEmpty()) {
+                queueLog.append(byteArrayOutputStream.toByteArray(), messages.size());
             }
-            boolean rename = fileNew.renameTo(fileOld);
-            if (!rename){
-                //更改名称错误
-            }
-            Stat stat = readMsgCount(queue.getName());
+            // 删除旧段之前新段必须已经在磁盘上, 写位置也要先记下来, 否则恢复时新段会被截掉
+            Stat stat = new Stat();
             stat.sumMsg = messages.size();
             stat.countMsg = messages.size();
-            writeMsgCount(queue.getName(), stat);
+            stat.totalBytes = byteArrayOutputStream.size();
+            QueueStats stats = queueStats.get(queue.getName());
+            queueLog.force();
+            stats.checkpoint(queueLog.getWritePosition(), true);
+            for (QueueLog.Segment segment : oldSegments) {
+                queueLog.drop(segment);
+            }
+            stats.reset(stat);
 
             long gcEnd = System.currentTimeMillis();
             System.out.println("[MessageFileManager] gc 执行完毕! queueName=" + queue.getName() + ", time="
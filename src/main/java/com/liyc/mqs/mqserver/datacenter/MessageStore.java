@@ -0,0 +1,142 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+/**
+ * 持久化消息的存储引擎
+ * 有两种实现, 用系统属性 mqs.store 选择:
+ * queue: 每个队列一个目录, 自己的分段日志和 stat 文件(MessageFileManager), 默认
+ * commitlog: 一个虚拟主机的所有队列写同一个提交日志, 每个队列只有一个定长的消费索引文件(CommitLogManager)
+ *            队列再多, 写入也是顺序写一个文件; 日志的段里所有队列的消息都确认了才删除整个段
+ * 1.创建队列的存储-initMsg, 删除-deleteFile
+ * 2.写入消息-saveMsgFile/saveMsgFiles, 转发给多个队列的消息-saveSharedMsgFiles(isStoreOnce 是否只写一份), 等待刷盘-syncMsgFile, 删除消息-deleteMsgData
+ *   异步写入和删除-saveMsgFilesAsync/deleteMsgDataAsync, 返回 future; queue 引擎交给队列的写线程(QueueWriter), 默认在调用线程上执行
+ * 3.恢复队列的消息-initAllMsg, 读消息体-readMsg, 打开消息所在的文件区域-openMsgRegion
+ * 4.统计-getSyncStats/getCompactStats/getReadAheadStats/getArchiveStats, 关闭-close
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:10
+ **/
+
+public interface MessageStore {
+    //选择存储引擎的系统属性名
+    String PROPERTY = "mqs.store";
+
+    // broker 的存储引擎, 没有设置就用每个队列一个日志
+    static MessageStore create() {
+        String text = System.getProperty(PROPERTY, "queue").trim().toLowerCase();
+        if ("commitlog".equals(text)) {
+            return new CommitLogManager();
+        }
+        if (!"queue".equals(text)) {
+            System.out.println("[MessageStore] 存储引擎不合法, 使用 queue! " + PROPERTY + "=" + text);
+        }
+        return new MessageFileManager();
+    }
+
+    void init();
+
+    void initMsg(String queueName) throws IOException;
+
+    void deleteFile(String queueName);
+
+    void saveMsgFile(Queue queue, Message message) throws IOException;
+
+    void saveMsgFiles(Queue queue, List<Message> messages) throws IOException;
+
+    /**
+     * 异步写入一批消息, 默认在调用线程上写
+     * @return 写入日志(不是刷盘)之后完成, 这时消息的 offset 才设置好
+     */
+    default CompletableFuture<Void> saveMsgFilesAsync(Queue queue, List<Message> messages) {
+        try {
+            saveMsgFiles(queue, messages);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    // 转发给多个队列的消息是否只写一份, 只写一份时所有队列里消息的 offset 都一样
+    default boolean isStoreOnce() {
+        return false;
+    }
+
+    /**
+     * 写入一批消息, 每条消息转发给 queues 里对应的一组队列
+     * commitlog 引擎消息只写一次, 每个队列引用同一条记录
+     * 默认按队列分组, 每个队列各写一份; 同一个消息对象的 offset 会被后写的队列覆盖, 所以每个队列写完马上登记刷盘
+     * @param queues 和 messages 一一对应
+     * @return 所有队列都按各自的刷盘策略刷盘之后完成
+     */
+    default CompletableFuture<Void> saveSharedMsgFiles(List<Message> messages, List<List<Queue>> queues) throws IOException {
+        Map<Queue, List<Message>> queueMessages = new LinkedHashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            for (Queue queue : queues.get(i)) {
+                queueMessages.computeIfAbsent(queue, k -> new ArrayList<>()).add(messages.get(i));
+            }
+        }
+        List<CompletableFuture<Void>> syncs = new ArrayList<>();
+        for (Map.Entry<Queue, List<Message>> entry : queueMessages.entrySet()) {
+            List<Message> list = entry.getValue();
+            saveMsgFiles(entry.getKey(), list);
+            syncs.add(syncMsgFile(entry.getKey(), list.get(list.size() - 1).getOffsetEnd(), list.size()));
+        }
+        return CompletableFuture.allOf(syncs.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * 等待写入的消息刷到磁盘
+     * @param position 写入结束的逻辑位置, 最后一条消息的 offsetEnd
+     * @param records 写入的消息条数
+     * @return 按队列的刷盘策略刷盘之后完成
+     */
+    CompletableFuture<Void> syncMsgFile(Queue queue, long position, int records) throws IOException;
+
+    void deleteMsgData(Queue queue, Message message) throws IOException, ClassNotFoundException;
+
+    // 异步删除消息, 默认在调用线程上删除
+    default CompletableFuture<Void> deleteMsgDataAsync(Queue queue, Message message) {
+        try {
+            deleteMsgData(queue, message);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | ClassNotFoundException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    // keepBody 为 false 时不保留消息体, 懒队列投递时再用 readMsg 读
+    LinkedList<Message> initAllMsg(String queueName, boolean keepBody) throws IOException, ClassNotFoundException;
+
+    Message readMsg(Queue queue, Message message) throws IOException, ClassNotFoundException;
+
+    // 消息在数据文件里的位置, channel 由调用方负责关闭
+    MessageFileManager.MsgRegion openMsgRegion(Queue queue, Message message) throws IOException;
+
+    // 按队列名和 messageId 找内存里的消息, 后台整理搬走消息后要改 offset
+    void setMessageResolver(BiFunction<String, String, Message> messageResolver);
+
+    String getSyncStats();
+
+    String getCompactStats();
+
+    String getReadAheadStats();
+
+    String getArchiveStats();
+
+    void close();
+}
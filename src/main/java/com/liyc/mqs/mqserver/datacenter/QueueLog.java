@@ -0,0 +1,1056 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * 队列的分段消息日志, 只追加写
+ * 一个队列的消息存放在多个固定大小的段文件里, 段文件名里带着这个段第一个字节的逻辑位置
+ * 逻辑位置在整个队列里一直递增, 删掉的段的位置不会再用, Message 的 offsetBeg/offsetEnd 记录的就是逻辑位置
+ * 只有最后一个段(活动段)可以追加, 它的 FileChannel 一直打开着; 写满了就封存, 再开一个新段
+ * 封存的段里的消息全部确认删除之后, 直接删除整个段文件, 不用复制数据
+ * 一条记录是 [int 长度][消息], 长度的最高位是删除标记, 删除消息只要改长度的第一个字节, 不用读写消息本身
+ * 每条记录按写入顺序有一个序号, 每个段有一个稀疏索引(SegmentIndex)记录序号到位置的对应, 可以按序号定位和分页读取
+ * 存储模式(StorageMode)有两种, 用系统属性 mqs.storage 设置
+ * channel: 用 FileChannel 按位置读写
+ * mapped: 活动段预分配成段大小并整个映射到内存(MappedByteBuffer), 追加就是内存复制; 封存段读写时按需映射, 按位置读不用系统调用
+ *         滚动时解除旧活动段的映射, 再把文件截到实际长度, 封存段和 channel 模式的文件一样; 段删除、日志关闭时解除映射-unmap
+ * channel 模式的活动段按块预分配-preallocate(系统属性 mqs.preallocate, 默认 4MB, 0 表示不预分配)
+ *         追加不再每次改文件长度, 刷盘时也不用每次都刷文件大小这些元数据; 滚动和关闭时同样截到实际长度
+ * 文件长度不再是数据的结尾, 数据的逻辑结尾是 stat 文件头里记的写位置(QueueStats), 封存段的结尾就是下一个段的起始位置
+ * 分层存储: 设置了归档目录(setArchiveDirectory)的话, 冷的封存段可以压缩成归档段(SegmentArchive)放到归档目录里, 再删除热目录里的段文件
+ *         段的逻辑位置、序号索引(还在热目录里)都不变, 按位置读到归档段时解压出来, 删除标记记在归档段旁边的文件里; 归档段不能零拷贝, openRegion 返回读出来的数据
+ * 1.打开-open, 加载段文件和归档段, 持久化的写位置后面写了一半的数据截掉, 不知道写位置就按记录长度扫描-scanEnd, 加载索引-loadIndex
+ * 2.追加-append, 活动段写不下就滚动到新段-roll
+ * 3.按逻辑位置读写-read/write, 标记记录删除-markDeleted, 打开消息所在段给零拷贝投递用-openRegion, 活动段刷盘-force
+ *   按序号定位-positionOf, 按序号读一批记录-readRecords
+ * 4.消息删除后减少段的有效消息数-release, 封存的段减到 0 就删除段文件-drop, 删除的段交给监听者更新统计-setDropListener
+ * 5.关闭-close, 删除所有段文件-deleteSegmentFiles
+ * 6.归档封存段: 开始-beginArchive, 压缩在锁外做, 期间的删除标记记下来; 切换到归档段-completeArchive, 压缩失败时放弃-abortArchive
+ *
+ * @author Liyc
+ * @date 2026/10/17 17:50
+ **/
+
+public class QueueLog {
+    //默认段大小
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "queue_data_";
+    private static final String SEGMENT_SUFFIX = ".txt";
+    //以前一个队列只有一个数据文件, 打开时改名成起始位置为 0 的段
+    private static final String LEGACY_DATA_FILE = "queue_data.txt";
+    //记录长度的最高位是删除标记, 剩下的是消息的长度
+    public static final int RECORD_DELETED = 0x80000000;
+    public static final int RECORD_LENGTH_MASK = 0x7FFFFFFF;
+    //channel 模式预分配块大小的系统属性名, 单位字节
+    public static final String PREALLOCATE_PROPERTY = "mqs.preallocate";
+    public static final long DEFAULT_PREALLOCATE_SIZE = 4L * 1024 * 1024;
+
+    //Java 9 以后解除映射用 Unsafe.invokeCleaner, Java 8 没有这个方法, 为 null
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    //一个段文件
+    static public class Segment {
+        //段的第一个字节的逻辑位置
+        private final long base;
+        private final File file;
+        //段文件已经写入的长度
+        private long size;
+        //段里的消息数和还没删除的消息数
+        //已经存在的封存段在恢复扫描之前不知道有多少有效消息, counted 为 false, 不能删除
+        private int records;
+        private int live;
+        private boolean counted;
+        //mapped 模式下段的内存映射, 没有映射为 null, 只在日志的锁里访问
+        private MappedByteBuffer mapped;
+        //封存段的 channel, 第一次读写时打开, 段删除或者日志关闭时关掉, 只在日志的锁里访问
+        private FileChannel channel;
+        //段里第一条记录的序号和段的稀疏索引, 段里的记录序号是 firstSeq 到 firstSeq + records - 1
+        private long firstSeq;
+        private SegmentIndex index;
+        //归档之后的压缩文件, 没有归档为 null; 归档之后段文件删掉了, file 只用来算索引文件和归档文件的名字
+        private SegmentArchive archive;
+        //正在压缩时标记删除的记录的段内位置, 切换到归档段时补上, 没在归档为 null
+        private List<Long> archiving;
+
+        Segment(long base, File file) {
+            this.base = base;
+            this.file = file;
+        }
+
+        public long getBase() {
+            return base;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getRecords() {
+            return records;
+        }
+
+        public int getLive() {
+            return live;
+        }
+
+        public boolean isCounted() {
+            return counted;
+        }
+
+        public long getFirstSeq() {
+            return firstSeq;
+        }
+
+        public boolean isArchived() {
+            return archive != null;
+        }
+
+        public SegmentArchive getArchive() {
+            return archive;
+        }
+    }
+
+    //按序号读出来的一条记录
+    static public class Record {
+        private final long seq;
+        //记录开始的逻辑位置, 消息的 offsetBeg 是 position + 4
+        private final long position;
+        private final byte[] payload;
+
+        Record(long seq, long position, byte[] payload) {
+            this.seq = seq;
+            this.position = position;
+            this.payload = payload;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    public enum StorageMode {
+        CHANNEL,
+        MAPPED
+    }
+
+    //存储模式的系统属性名
+    public static final String STORAGE_PROPERTY = "mqs.storage";
+
+    private final File directory;
+    private final long segmentSize;
+    private final StorageMode mode;
+    //channel 模式每次预分配多少字节, 不超过段大小, 0 表示不预分配
+    private final long preallocateSize;
+    //key 是段的起始逻辑位置
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    //活动段的 channel, 一直打开着
+    private FileChannel activeChannel;
+    //活动段文件的实际长度, 预分配过的话比活动段的 size 大
+    private long allocated;
+    //段被删除后调用, 在日志的锁里执行
+    private Consumer<Segment> dropListener;
+    //归档段所在的目录, 为 null 表示不分层
+    private File archiveDirectory;
+
+    public QueueLog(File directory, long segmentSize) {
+        this(directory, segmentSize, StorageMode.CHANNEL);
+    }
+
+    public QueueLog(File directory, long segmentSize, StorageMode mode) {
+        this(directory, segmentSize, mode, defaultPreallocateSize());
+    }
+
+    public QueueLog(File directory, long segmentSize, StorageMode mode, long preallocateSize) {
+        if (mode == StorageMode.MAPPED && segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("[QueueLog] mapped 模式的段大小不能超过 2GB! segmentSize=" + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.mode = mode;
+        this.preallocateSize = Math.max(0, Math.min(preallocateSize, segmentSize));
+    }
+
+    // broker 的预分配块大小, 没有设置就用 4MB
+    public static long defaultPreallocateSize() {
+        return Long.getLong(PREALLOCATE_PROPERTY, DEFAULT_PREALLOCATE_SIZE);
+    }
+
+    // broker 的默认存储模式, 没有设置就用 channel
+    public static StorageMode defaultStorageMode() {
+        String text = System.getProperty(STORAGE_PROPERTY, "channel");
+        try {
+            return StorageMode.valueOf(text.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("[QueueLog] 存储模式不合法, 使用 channel 模式! " + STORAGE_PROPERTY + "=" + text);
+            return StorageMode.CHANNEL;
+        }
+    }
+
+    public static String segmentName(long base) {
+        return SEGMENT_PREFIX + String.format("%020d", base) + SEGMENT_SUFFIX;
+    }
+
+    // 设置归档目录, 要在打开之前设置, 打开时加载里面的归档段
+    public synchronized void setArchiveDirectory(File archiveDirectory) {
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    /**
+     * 打开日志
+     * @param committed 持久化的写位置, 这之后的数据是写了一半或者还没有记下来的, 截掉; 小于 0 表示不知道, 扫描最后一个段的记录算
+     */
+    public synchronized void open(long committed) throws IOException {
+        //1.旧的单个数据文件改名成第一个段
+        File legacy = new File(directory, LEGACY_DATA_FILE);
+        if (legacy.exists() && !new File(directory, segmentName(0)).exists()) {
+            if (!legacy.renameTo(new File(directory, segmentName(0)))) {
+                throw new IOException("[QueueLog] 旧数据文件改名失败! file=" + legacy.getPath());
+            }
+        }
+        //2.加载所有段文件
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                long base = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(base, file);
+                segment.size = file.length();
+                segments.put(base, segment);
+            }
+        }
+        //  归档目录里的归档段也加载进来
+        loadArchives();
+        //3.封存段的结尾是下一个段的起始位置, 滚动时截掉预分配部分之前崩溃的话, 后面是预分配的 0, 截掉
+        Segment previous = null;
+        for (Segment segment : segments.values()) {
+            if (previous != null && previous.archive == null && previous.base + previous.size > segment.base) {
+                truncate(previous, segment.base - previous.base);
+            }
+            previous = segment;
+        }
+        //4.截掉写位置后面的数据, 截空的段只保留最后一个
+        //  不知道写位置时, 最后一个段可能是预分配过的, 后面全是 0, 也可能有写了一半的记录, 按记录长度扫描出结尾
+        if (committed < 0 && !segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            committed = last.base + (last.archive != null ? last.size : scanEnd(last));
+        }
+        if (committed >= 0) {
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                // 归档的段在归档之前早就刷过盘, 也截不了
+                if (segment.base + segment.size <= committed || segment.archive != null) {
+                    continue;
+                }
+                long keep = Math.max(0, committed - segment.base);
+                // 异常退出时活动段没来得及截短, 后面预分配的部分不用提示
+                boolean preallocated = mode == StorageMode.MAPPED || preallocateSize > 0;
+                if (!preallocated || segment != segments.lastEntry().getValue()) {
+                    System.out.println("[QueueLog] 截掉没有提交的数据! file=" + segment.file.getPath() + ", size=" + segment.size + ", keep=" + keep);
+                }
+                truncate(segment, keep);
+                if (keep == 0 && segment != segments.lastEntry().getValue()) {
+                    segments.remove(segment.base);
+                    segment.file.delete();
+                    SegmentIndex.fileOf(segment.file).delete();
+                }
+            }
+        }
+        //5.打开活动段, 一个段都没有就从写位置开始建一个, 最后一个段是归档段的话从它的结尾开始建一个
+        if (segments.isEmpty() || segments.lastEntry().getValue().archive != null) {
+            long base = segments.isEmpty() ? Math.max(0, committed) : segments.lastEntry().getValue().base + segments.lastEntry().getValue().size;
+            Segment segment = new Segment(base, new File(directory, segmentName(base)));
+            segment.counted = true;
+            segments.put(base, segment);
+        }
+        active = segments.lastEntry().getValue();
+        if (active.size == 0) {
+            active.counted = true;
+        }
+        //6.加载每个段的索引, 算出每个段的起始序号和记录数
+        long nextSeq = 0;
+        for (Segment segment : segments.values()) {
+            loadIndex(segment, nextSeq);
+            nextSeq = segment.firstSeq + segment.records;
+        }
+        activeChannel = FileChannel.open(active.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        allocated = activeChannel.size();
+        mapActive();
+    }
+
+    /**
+     * 加载归档目录里的归档段
+     * 归档段改名完成之后、热目录里的段文件删除之前崩溃的话, 两个都在, 用归档段, 删掉段文件
+     * 临时文件是没完成的归档, 没有归档段的删除标记文件是改名之前崩溃留下的, 段文件里也有这些标记, 都删掉
+     */
+    private void loadArchives() throws IOException {
+        File[] files = archiveDirectory == null ? null : archiveDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX)) {
+                continue;
+            }
+            if (name.endsWith(SegmentArchive.TEMP_SUFFIX)
+                    || (name.endsWith(SegmentArchive.DELETED_SUFFIX) && !new File(archiveDirectory, name.substring(0, name.length() - SegmentArchive.DELETED_SUFFIX.length()) + SegmentArchive.SUFFIX).exists())) {
+                file.delete();
+                continue;
+            }
+            if (!name.endsWith(SegmentArchive.SUFFIX)) {
+                continue;
+            }
+            long base = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SegmentArchive.SUFFIX.length()));
+            Segment segment = new Segment(base, new File(directory, segmentName(base)));
+            segment.archive = SegmentArchive.open(file);
+            segment.size = segment.archive.getSize();
+            Segment hot = segments.put(base, segment);
+            if (hot != null) {
+                System.out.println("[QueueLog] 段已经归档, 删除热目录里的段文件! file=" + hot.file.getPath());
+                hot.file.delete();
+            }
+        }
+    }
+
+    // 把段文件截到 length, 段的长度也改成 length
+    private static void truncate(Segment segment, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+        segment.size = length;
+    }
+
+    // mapped 模式下把活动段整个映射进来, 文件不够长时 map 会把它扩展到段大小
+    private void mapActive() throws IOException {
+        if (mode == StorageMode.MAPPED) {
+            active.mapped = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, active.size));
+            allocated = Math.max(allocated, active.mapped.capacity());
+        }
+    }
+
+    /**
+     * 加载段的索引, 从最后一项往后按记录长度扫描, 补上缺的项(没刷盘的、以前没有索引的段)
+     * 只读记录的长度, 不读消息本身
+     * @param expectedFirstSeq 没有索引时段的起始序号, 也就是前一个段的下一个序号
+     */
+    private void loadIndex(Segment segment, long expectedFirstSeq) throws IOException {
+        segment.index = new SegmentIndex(SegmentIndex.fileOf(segment.file));
+        segment.index.load(segment.size);
+        if (segment.index.size() == 0) {
+            segment.index.add(expectedFirstSeq, 0);
+        }
+        segment.firstSeq = segment.index.seqAt(0);
+        int last = segment.index.size() - 1;
+        long seq = segment.index.seqAt(last);
+        long local = segment.index.positionAt(last);
+        if (local < segment.size) {
+            try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(openStream(segment, local)))) {
+                while (local < segment.size) {
+                    if (seq % SegmentIndex.INTERVAL == 0) {
+                        segment.index.add(seq, local);
+                    }
+                    int length = dataInputStream.readInt() & RECORD_LENGTH_MASK;
+                    skipFully(dataInputStream, length);
+                    local += 4 + length;
+                    seq++;
+                }
+            } catch (EOFException e) {
+                // 段文件被截断了, 索引只记到完整的记录
+                System.out.println("[QueueLog] 段文件不完整! file=" + segment.file.getPath());
+            }
+        }
+        segment.records = (int) (seq - segment.firstSeq);
+    }
+
+    /**
+     * 从段内位置 local 开始顺序读段的数据, 归档段边读边解压, 流由调用方关闭
+     * 读归档段的流要在日志的锁里用完
+     */
+    public synchronized InputStream openStream(Segment segment, long local) throws IOException {
+        if (segment.archive != null) {
+            return segment.archive.openStream(local);
+        }
+        return Channels.newInputStream(FileChannel.open(segment.file.toPath(), StandardOpenOption.READ).position(local));
+    }
+
+    private static void skipFully(InputStream inputStream, long count) throws IOException {
+        while (count > 0) {
+            long skipped = inputStream.skip(count);
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new EOFException("[QueueLog] 读到了段文件结尾!");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    // 从段的开头按记录长度往后扫, 遇到长度为 0(预分配的部分)或者不完整的记录就停下, 返回有效数据的长度
+    private static long scanEnd(Segment segment) throws IOException {
+        long end = 0;
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (end + 4 <= length) {
+                header.clear();
+                readFully(channel, header, end);
+                int recordLength = header.getInt(0) & RECORD_LENGTH_MASK;
+                if (recordLength == 0 || end + 4 + recordLength > length) {
+                    break;
+                }
+                end += 4 + recordLength;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * 追加一块数据, 一块数据不会拆到两个段里
+     * @param block 一条或多条消息记录
+     * @param records 记录条数
+     * @return 这块数据开始的逻辑位置
+     */
+    public synchronized long append(byte[] block, int records) throws IOException {
+        if (active.size > 0 && active.size + block.length > segmentSize) {
+            roll();
+        }
+        long position = active.base + active.size;
+        ByteBuffer mapped = view(active, active.size, block.length);
+        if (mapped != null) {
+            mapped.put(block);
+        } else {
+            // channel 模式, 或者一块数据比整个段还大, 映射里放不下
+            preallocate(active.size + block.length);
+            writeFully(activeChannel, ByteBuffer.wrap(block), active.size);
+        }
+        active.size += block.length;
+        indexBlock(block, records, position - active.base);
+        active.records += records;
+        active.live += records;
+        return position;
+    }
+
+    /**
+     * channel 模式下活动段文件不够 end 字节时, 一次把文件加长一块, 最多到段大小, 一块数据比段还大时到 end
+     * 用 setLength 改一次文件长度, 后面在这一块里的追加都不会再改文件长度
+     */
+    private void preallocate(long end) throws IOException {
+        if (mode != StorageMode.CHANNEL || preallocateSize == 0 || end <= allocated) {
+            return;
+        }
+        long length = Math.max(end, Math.min(segmentSize, allocated + preallocateSize));
+        try (RandomAccessFile file = new RandomAccessFile(active.file, "rw")) {
+            file.setLength(length);
+        }
+        allocated = length;
+    }
+
+    // 给刚追加的一块数据里序号是 INTERVAL 整数倍的记录记索引, 索引写失败不影响数据, 下次打开时会补上
+    private void indexBlock(byte[] block, int records, long local) {
+        long seq = active.firstSeq + active.records;
+        int offset = 0;
+        try {
+            for (int i = 0; i < records; i++) {
+                if (seq % SegmentIndex.INTERVAL == 0) {
+                    active.index.add(seq, local + offset);
+                }
+                int length = ByteBuffer.wrap(block, offset, 4).getInt() & RECORD_LENGTH_MASK;
+                offset += 4 + length;
+                seq++;
+            }
+        } catch (IOException e) {
+            System.out.println("[QueueLog] 索引写入失败, 下次打开时重建! file=" + active.file.getPath() + ", error=" + e);
+        }
+    }
+
+    /**
+     * 封存活动段, 新开一个段, 新段从活动段结尾的逻辑位置开始
+     */
+    public synchronized void roll() throws IOException {
+        if (active.size == 0) {
+            return;
+        }
+        Segment sealed = active;
+        long base = sealed.base + sealed.size;
+        Segment segment = new Segment(base, new File(directory, segmentName(base)));
+        segment.counted = true;
+        segment.firstSeq = sealed.firstSeq + sealed.records;
+        segment.index = new SegmentIndex(SegmentIndex.fileOf(segment.file));
+        segment.index.add(segment.firstSeq, 0);
+        sealed.index.close();
+        FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // 封存之前先刷盘, 正在刷旧活动段的 force 拿到的 channel 被关掉了也不会丢数据
+        activeChannel.force(false);
+        // 解除映射之后才能截掉预分配的部分
+        unmap(sealed);
+        if (allocated > sealed.size) {
+            activeChannel.truncate(sealed.size);
+        }
+        activeChannel.close();
+        activeChannel = channel;
+        allocated = 0;
+        segments.put(base, segment);
+        active = segment;
+        mapActive();
+        System.out.println("[QueueLog] 滚动到新的段! file=" + segment.file.getPath());
+        if (sealed.counted && sealed.live <= 0) {
+            drop(sealed);
+        }
+    }
+
+    /**
+     * 把活动段的数据刷到磁盘
+     * force 的时候不持有日志的锁, 别的线程可以继续追加; 封存的段在滚动时已经刷过盘
+     * mapped 模式也用 channel 刷盘: 映射写的脏页和 channel 写的一样在这个文件的 page cache 里, fsync 会一起刷下去
+     * 这样刷盘不会碰到映射, 滚动时解除映射也不用等正在执行的 force
+     */
+    public void force() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            channel = activeChannel;
+        }
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            synchronized (this) {
+                // 日志关闭了才是真的失败, 否则是滚动到了新段, 旧段关闭前已经刷过盘
+                if (activeChannel == null) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public synchronized byte[] read(long position, int length) throws IOException {
+        Segment segment = locate(position);
+        if (segment.archive != null) {
+            return segment.archive.read(position - segment.base, length);
+        }
+        ByteBuffer mapped = view(segment, position - segment.base, length);
+        if (mapped != null) {
+            byte[] bytes = new byte[length];
+            mapped.get(bytes);
+            return bytes;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channelOf(segment), buffer, position - segment.base);
+        return buffer.array();
+    }
+
+    // 从 position 读至少 length 字节, 段里后面还有数据的话最多读 max 字节, 给投递时预读后面的消息用
+    public synchronized byte[] readAhead(long position, int length, int max) throws IOException {
+        Segment segment = locate(position);
+        long available = segment.base + segment.size - position;
+        return read(position, (int) Math.max(length, Math.min(max, available)));
+    }
+
+    public synchronized void write(long position, byte[] bytes) throws IOException {
+        Segment segment = locate(position);
+        if (position - segment.base + bytes.length > segment.size) {
+            throw new IOException("[QueueLog] 写入位置超出段的范围! position=" + position + ", length=" + bytes.length);
+        }
+        if (segment.archive != null) {
+            throw new IOException("[QueueLog] 归档段不能写入! file=" + segment.archive.getFile().getPath() + ", position=" + position);
+        }
+        ByteBuffer mapped = view(segment, position - segment.base, bytes.length);
+        if (mapped != null) {
+            mapped.put(bytes);
+            return;
+        }
+        writeFully(channelOf(segment), ByteBuffer.wrap(bytes), position - segment.base);
+    }
+
+    /**
+     * 标记一条记录已经删除, 只写长度的第一个字节, 和消息多大没有关系
+     * @param position 记录开始的逻辑位置, 也就是消息的 offsetBeg - 4
+     * @param length 消息的长度
+     */
+    public synchronized void markDeleted(long position, int length) throws IOException {
+        Segment segment = locate(position);
+        if (segment.archive != null) {
+            segment.archive.markDeleted(position - segment.base);
+            return;
+        }
+        write(position, new byte[]{(byte) (((length | RECORD_DELETED) >>> 24) & 0xff)});
+        if (segment.archiving != null) {
+            segment.archiving.add(position - segment.base);
+        }
+    }
+
+    // 记录是否已经标记删除, position 是记录开始的逻辑位置
+    public synchronized boolean isDeleted(long position) throws IOException {
+        return (read(position, 1)[0] & 0x80) != 0;
+    }
+
+    // position 上是不是一条长度为 length 的记录(不管有没有删除标记), 按消息的 offset 改写或者发送之前核对, 对不上的位置不能动
+    public synchronized boolean isRecord(long position, int length) throws IOException {
+        Segment segment = segmentAt(position);
+        if (segment == null || length < 0 || position - segment.base + 4 + length > segment.size) {
+            return false;
+        }
+        return (ByteBuffer.wrap(read(position, 4)).getInt() & RECORD_LENGTH_MASK) == length;
+    }
+
+    /**
+     * 打开消息所在的段文件, channel 由调用方负责关闭
+     * 段被删除之后, 已经打开的 channel 仍然可以读到原来的内容
+     * 归档段是压缩过的, 不能直接发送文件, 解压出来放在 bytes 里, channel 为 null
+     */
+    public synchronized MessageFileManager.MsgRegion openRegion(long position, long count) throws IOException {
+        Segment segment = locate(position);
+        MessageFileManager.MsgRegion region = new MessageFileManager.MsgRegion();
+        if (segment.archive != null) {
+            region.bytes = segment.archive.read(position - segment.base, (int) count);
+            region.count = count;
+            return region;
+        }
+        region.channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ);
+        region.position = position - segment.base;
+        region.count = count;
+        return region;
+    }
+
+    /**
+     * 一条消息删除了, 减少所在段的有效消息数
+     * @param position 消息的逻辑位置
+     * @return 因此删除的段文件里的消息条数, 没有删除段返回 0
+     */
+    public synchronized int release(long position) throws IOException {
+        Segment segment = locate(position);
+        segment.live--;
+        if (segment != active && segment.counted && segment.live <= 0) {
+            drop(segment);
+            return segment.records;
+        }
+        return 0;
+    }
+
+    /**
+     * 恢复扫描时记录段里的消息数
+     */
+    public synchronized void setCounts(Segment segment, int records, int live) {
+        segment.records = records;
+        segment.live = live;
+        segment.counted = true;
+    }
+
+    /**
+     * 删除所有没有有效消息的封存段
+     * @return 删除的段里的消息条数
+     */
+    public synchronized int dropDeadSegments() throws IOException {
+        int dropped = 0;
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment != active && segment.counted && segment.live <= 0) {
+                drop(segment);
+                dropped += segment.records;
+            }
+        }
+        return dropped;
+    }
+
+    public synchronized void setDropListener(Consumer<Segment> dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * 删除一个封存段
+     */
+    public synchronized void drop(Segment segment) throws IOException {
+        if (segment == active) {
+            throw new IOException("[QueueLog] 不能删除活动段! file=" + segment.file.getPath());
+        }
+        segments.remove(segment.base);
+        unmap(segment);
+        closeChannel(segment);
+        segment.index.delete();
+        if (dropListener != null) {
+            dropListener.accept(segment);
+        }
+        if (segment.archive != null) {
+            if (!segment.archive.delete()) {
+                System.out.println("[QueueLog] 归档文件删除失败! file=" + segment.archive.getFile().getPath());
+                return;
+            }
+            System.out.println("[QueueLog] 归档段里的消息都已经删除, 删除归档文件! file=" + segment.archive.getFile().getPath() + ", records=" + segment.records);
+            return;
+        }
+        if (!segment.file.delete()) {
+            System.out.println("[QueueLog] 段文件删除失败! file=" + segment.file.getPath());
+            return;
+        }
+        System.out.println("[QueueLog] 段里的消息都已经删除, 删除段文件! file=" + segment.file.getPath() + ", records=" + segment.records);
+    }
+
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(segments.values());
+    }
+
+    // 段是否还在日志里, 没有被删除
+    public synchronized boolean contains(Segment segment) {
+        return segments.get(segment.base) == segment;
+    }
+
+    public synchronized Segment getActive() {
+        return active;
+    }
+
+    // 逻辑位置所在的段, 段已经删除或者还没写到返回 null
+    public synchronized Segment segmentAt(long position) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+        if (entry == null || position >= entry.getValue().base + entry.getValue().size) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    // 记录是否还有效: 所在的段没有删除, 也没有删除标记; position 是记录开始的逻辑位置
+    public synchronized boolean isLive(long position) throws IOException {
+        return segmentAt(position) != null && !isDeleted(position);
+    }
+
+    /**
+     * 序号对应的记录开始的逻辑位置, 从索引里前面最近的一项往后按记录长度找, 最多找 INTERVAL 条
+     * @return 序号所在的段已经删除或者还没有写到返回 -1
+     */
+    public synchronized long positionOf(long seq) throws IOException {
+        Segment segment = segmentOfSeq(seq);
+        if (segment == null) {
+            return -1;
+        }
+        return segment.base + localOf(segment, seq);
+    }
+
+    /**
+     * 从 seq 开始按顺序读记录, 跳过已经删除的记录(只读长度, 不读消息), 序号所在的段删除了就从后面第一个段开始
+     * @param maxRecords 最多读多少条没删除的记录
+     */
+    public synchronized List<Record> readRecords(long fromSeq, int maxRecords) throws IOException {
+        List<Record> result = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            long end = segment.firstSeq + segment.records;
+            if (end <= fromSeq) {
+                continue;
+            }
+            long seq = Math.max(fromSeq, segment.firstSeq);
+            long local = localOf(segment, seq);
+            while (local < segment.size && result.size() < maxRecords) {
+                int header = ByteBuffer.wrap(read(segment.base + local, 4)).getInt();
+                int length = header & RECORD_LENGTH_MASK;
+                if ((header & RECORD_DELETED) == 0) {
+                    result.add(new Record(seq, segment.base + local, read(segment.base + local + 4, length)));
+                }
+                local += 4 + length;
+                seq++;
+            }
+            if (result.size() >= maxRecords) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    // 序号所在的段
+    private Segment segmentOfSeq(long seq) {
+        for (Segment segment : segments.values()) {
+            if (seq >= segment.firstSeq && seq < segment.firstSeq + segment.records) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    // 序号在段里的位置, 序号要在段的范围里
+    private long localOf(Segment segment, long seq) throws IOException {
+        int index = segment.index.floor(seq);
+        long current = segment.index.seqAt(index);
+        long local = segment.index.positionAt(index);
+        while (current < seq) {
+            local += 4 + (ByteBuffer.wrap(read(segment.base + local, 4)).getInt() & RECORD_LENGTH_MASK);
+            current++;
+        }
+        return local;
+    }
+
+    //最早的还在日志里的记录的序号
+    public synchronized long getFirstSeq() {
+        return segments.firstEntry().getValue().firstSeq;
+    }
+
+    //下一条写入的记录的序号
+    public synchronized long getNextSeq() {
+        return active.firstSeq + active.records;
+    }
+
+    //下一条消息写入的逻辑位置
+    public synchronized long getWritePosition() {
+        return active.base + active.size;
+    }
+
+    //所有段文件的总长度
+    public synchronized long getDataLength() {
+        long length = 0;
+        for (Segment segment : segments.values()) {
+            length += segment.size;
+        }
+        return length;
+    }
+
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            unmap(segment);
+            closeChannel(segment);
+            if (segment.archive != null) {
+                segment.archive.close();
+            }
+            if (segment.index != null) {
+                segment.index.close();
+            }
+        }
+        if (activeChannel != null) {
+            // 截掉活动段预分配的部分, 下次用哪种模式打开都可以
+            if (allocated > active.size) {
+                activeChannel.truncate(active.size);
+            }
+            activeChannel.close();
+            activeChannel = null;
+        }
+    }
+
+    /**
+     * 开始归档一个封存段, 之后在锁外把段文件压缩到返回的临时文件里(SegmentArchive.compress), 再调用 completeArchive 切换
+     * 压缩期间段照常读和标记删除, 标记删除的位置记下来, 切换时补到归档段上
+     * @return 临时文件, 段不能归档(没设置归档目录、活动段、已经归档或者正在归档、已经删除)返回 null
+     */
+    public synchronized File beginArchive(Segment segment) throws IOException {
+        if (archiveDirectory == null || segment == active || !contains(segment) || segment.archive != null || segment.archiving != null) {
+            return null;
+        }
+        if (!archiveDirectory.exists() && !archiveDirectory.mkdirs()) {
+            throw new IOException("[QueueLog] 归档目录创建失败! directory=" + archiveDirectory.getPath());
+        }
+        segment.archiving = new ArrayList<>();
+        return SegmentArchive.tempFileOf(archiveDirectory, segment.file);
+    }
+
+    /**
+     * 压缩完了, 切换到归档段
+     * 1.压缩期间标记删除的位置写到删除标记文件里 2.临时文件改名成归档文件 3.后面的读写都走归档段 4.删除热目录里的段文件
+     * 改名之前崩溃的话还用段文件, 段文件里也有这些删除标记; 改名之后崩溃的话打开时用归档段
+     * @return 有没有切换, 压缩期间段被删除了(消息都确认了、整理或者 gc 了)、日志关闭了就不切换, 删掉临时文件
+     */
+    public synchronized boolean completeArchive(Segment segment, File temp) throws IOException {
+        List<Long> pending = segment.archiving;
+        segment.archiving = null;
+        if (activeChannel == null || !contains(segment) || pending == null) {
+            temp.delete();
+            return false;
+        }
+        File file = SegmentArchive.fileOf(archiveDirectory, segment.file);
+        SegmentArchive archive;
+        try {
+            if (!pending.isEmpty()) {
+                SegmentArchive.appendDeleted(SegmentArchive.deletedFileOf(file), pending);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            archive = SegmentArchive.open(file);
+        } catch (IOException e) {
+            temp.delete();
+            file.delete();
+            SegmentArchive.deletedFileOf(file).delete();
+            throw e;
+        }
+        unmap(segment);
+        closeChannel(segment);
+        segment.archive = archive;
+        if (!segment.file.delete()) {
+            System.out.println("[QueueLog] 段文件删除失败! file=" + segment.file.getPath());
+        }
+        System.out.println("[QueueLog] 段已经归档! file=" + file.getPath() + ", size=" + segment.size + ", archived=" + archive.getLength());
+        return true;
+    }
+
+    // 压缩失败, 放弃归档
+    public synchronized void abortArchive(Segment segment, File temp) {
+        segment.archiving = null;
+        temp.delete();
+    }
+
+    // 删除目录下所有的段文件, 归档目录里的归档文件也用这个删除
+    public static void deleteSegmentFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            boolean archived = name.endsWith(SegmentArchive.SUFFIX) || name.endsWith(SegmentArchive.DELETED_SUFFIX) || name.endsWith(SegmentArchive.TEMP_SUFFIX);
+            if ((name.startsWith(SEGMENT_PREFIX) && (name.endsWith(SEGMENT_SUFFIX) || name.endsWith(SegmentIndex.SUFFIX) || archived)) || name.equals(LEGACY_DATA_FILE)) {
+                if (!file.delete()) {
+                    System.out.println("[QueueLog] 段文件删除失败! file=" + file.getPath());
+                }
+            }
+        }
+    }
+
+    // 找到逻辑位置所在的段
+    private Segment locate(long position) throws IOException {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+        if (entry == null || position >= entry.getValue().base + entry.getValue().size) {
+            throw new IOException("[QueueLog] 逻辑位置不在任何段里! directory=" + directory.getPath() + ", position=" + position);
+        }
+        return entry.getValue();
+    }
+
+    // 段的 channel, 活动段用一直打开着的那个, 封存段第一次用到时打开
+    private FileChannel channelOf(Segment segment) throws IOException {
+        if (segment == active) {
+            return activeChannel;
+        }
+        if (segment.channel == null) {
+            segment.channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return segment.channel;
+    }
+
+    private static void closeChannel(Segment segment) {
+        if (segment.channel == null) {
+            return;
+        }
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            System.out.println("[QueueLog] 段文件关闭失败! file=" + segment.file.getPath() + ", error=" + e);
+        }
+        segment.channel = null;
+    }
+
+    /**
+     * mapped 模式下取段里一段数据的映射视图, 封存段第一次访问时才映射
+     * @return 位置和长度都在映射范围里时返回视图, 否则返回 null, 调用方改用 channel
+     */
+    private ByteBuffer view(Segment segment, long local, int length) throws IOException {
+        if (mode != StorageMode.MAPPED) {
+            return null;
+        }
+        if (segment.mapped == null && segment != active) {
+            try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // 映射建立之后关掉 channel 映射仍然有效
+                segment.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segment.size);
+            }
+        }
+        if (segment.mapped == null || local + length > segment.mapped.capacity()) {
+            return null;
+        }
+        ByteBuffer view = segment.mapped.duplicate();
+        view.position((int) local);
+        view.limit((int) local + length);
+        return view;
+    }
+
+    /**
+     * 解除段的映射
+     * 映射只在日志的锁里访问, 读出来的数据都是复制出去的, 刷盘和零拷贝投递走的是 channel, 解除之后不会有人再碰到这块内存
+     * 不主动解除的话要等 GC 回收 MappedByteBuffer 才释放, 段文件删掉了地址空间和磁盘空间也不会马上还回来
+     */
+    private static void unmap(Segment segment) {
+        MappedByteBuffer buffer = segment.mapped;
+        if (buffer == null) {
+            return;
+        }
+        segment.mapped = null;
+        try {
+            if (INVOKE_CLEANER != null) {
+                // Java 9 以后
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("[QueueLog] 解除映射失败, 等待 GC 回收! file=" + segment.file.getPath() + ", error=" + e);
+        }
+    }
+
+    public StorageMode getMode() {
+        return mode;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("[QueueLog] 读到了段文件结尾!");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
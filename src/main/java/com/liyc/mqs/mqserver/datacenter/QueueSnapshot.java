@@ -0,0 +1,220 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.tool.BinaryTool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 队列快照, 记录某个写位置之前所有有效消息的属性和位置, 不带消息体
+ * 启动时先加载快照, 再从快照的位置往后扫描, 不用从头反序列化整个日志
+ * 快照文件是 queue_snapshot.dat, 格式:
+ *   magic(4) version(4) writePos(8) nextSeq(8) count(4), 之后每条消息 offsetBeg(8) length(4) messageId routingKey durable(4)
+ * 快照里的消息之后可能被确认了、所在的段可能被整理删除了, 加载时逐条检查(isLive), 快照只会多不会少
+ * 1.读快照-read, 写快照-write, 先写临时文件再改名, 不会留下写了一半的快照
+ * 2.检查快照和日志对得上-matches, 日志被截短了或者序号索引重建过就不用这个快照
+ * 3.在上一个快照的基础上生成新快照-build, 只需要检查旧快照里的消息还在不在, 再读快照之后新写的记录
+ *
+ * @author Liyc
+ * @date 2026/10/17 21:30
+ **/
+
+public class QueueSnapshot {
+    public static final String FILE_NAME = "queue_snapshot.dat";
+    public static final int MAGIC = 0x4D51534E;
+    public static final int VERSION = 1;
+    //生成快照时每次读多少条记录
+    private static final int BATCH = 1024;
+
+    //快照里的一条消息
+    static public class Entry {
+        private final long offsetBeg;
+        private final int length;
+        private final BasicProperties basicProperties;
+
+        Entry(long offsetBeg, int length, BasicProperties basicProperties) {
+            this.offsetBeg = offsetBeg;
+            this.length = length;
+            this.basicProperties = basicProperties;
+        }
+
+        public long getOffsetBeg() {
+            return offsetBeg;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public BasicProperties getBasicProperties() {
+            return basicProperties;
+        }
+    }
+
+    //快照覆盖到的写位置和记录序号, 之后写的记录要扫描日志
+    private final long writePos;
+    private final long nextSeq;
+    private final List<Entry> entries;
+
+    public QueueSnapshot(long writePos, long nextSeq, List<Entry> entries) {
+        this.writePos = writePos;
+        this.nextSeq = nextSeq;
+        this.entries = entries;
+    }
+
+    public static File fileOf(File queueDirectory) {
+        return new File(queueDirectory, FILE_NAME);
+    }
+
+    /**
+     * 读取快照
+     * @return 没有快照或者快照文件不完整返回 null
+     */
+    public static QueueSnapshot read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                System.out.println("[QueueSnapshot] 快照版本不支持! file=" + file.getPath() + ", version=" + version);
+                return null;
+            }
+            long writePos = in.readLong();
+            long nextSeq = in.readLong();
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long offsetBeg = in.readLong();
+                int length = in.readInt();
+                BasicProperties basicProperties = new BasicProperties();
+                basicProperties.setMessageId(in.readUTF());
+                basicProperties.setRoutingKey(in.readBoolean() ? in.readUTF() : null);
+                basicProperties.setDurable(in.readInt());
+                entries.add(new Entry(offsetBeg, length, basicProperties));
+            }
+            return new QueueSnapshot(writePos, nextSeq, entries);
+        } catch (EOFException e) {
+            System.out.println("[QueueSnapshot] 快照文件不完整! file=" + file.getPath());
+            return null;
+        }
+    }
+
+    // 写到临时文件, 刷盘后改名覆盖旧快照
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOutputStream = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(writePos);
+            out.writeLong(nextSeq);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.offsetBeg);
+                out.writeInt(entry.length);
+                out.writeUTF(entry.basicProperties.getMessageId());
+                out.writeBoolean(entry.basicProperties.getRoutingKey() != null);
+                if (entry.basicProperties.getRoutingKey() != null) {
+                    out.writeUTF(entry.basicProperties.getRoutingKey());
+                }
+                out.writeInt(entry.basicProperties.getDurable());
+            }
+            out.flush();
+            fileOutputStream.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 快照是否和日志对得上
+     * 快照的写位置不能超过日志的写位置(没刷盘的数据恢复时被截掉了), 快照的序号在日志里的位置要等于快照的写位置
+     */
+    public boolean matches(QueueLog queueLog) throws IOException {
+        synchronized (queueLog) {
+            if (writePos > queueLog.getWritePosition()) {
+                return false;
+            }
+            long position = queueLog.positionOf(nextSeq);
+            if (position >= 0) {
+                return position == writePos;
+            }
+            if (nextSeq == queueLog.getNextSeq()) {
+                return writePos == queueLog.getWritePosition();
+            }
+            // 序号所在的段已经删除了, 快照的写位置也要在剩下的段前面
+            return nextSeq < queueLog.getFirstSeq() && writePos <= queueLog.getSegments().get(0).getBase();
+        }
+    }
+
+    /**
+     * 生成新快照, 覆盖到现在的写位置
+     * 旧快照里的消息只留还有效的, 再读旧快照之后写的记录; 没有旧快照就读整个日志
+     * 读记录时不一直持有日志的锁, 读的过程中被确认的消息可能还留在快照里, 加载时会再检查一遍
+     * @param previous 上一个快照, 要和日志对得上
+     */
+    public static QueueSnapshot build(QueueLog queueLog, QueueSnapshot previous) throws IOException, ClassNotFoundException {
+        long endPos;
+        long endSeq;
+        synchronized (queueLog) {
+            endPos = queueLog.getWritePosition();
+            endSeq = queueLog.getNextSeq();
+        }
+        List<Entry> entries = new ArrayList<>();
+        long fromSeq = 0;
+        if (previous != null) {
+            for (Entry entry : previous.entries) {
+                if (queueLog.isLive(entry.offsetBeg - 4)) {
+                    entries.add(entry);
+                }
+            }
+            fromSeq = previous.nextSeq;
+        }
+        while (fromSeq < endSeq) {
+            List<QueueLog.Record> records = queueLog.readRecords(fromSeq, BATCH);
+            if (records.isEmpty()) {
+                break;
+            }
+            for (QueueLog.Record record : records) {
+                if (record.getSeq() >= endSeq) {
+                    break;
+                }
+                Message message = (Message) BinaryTool.parseByte(record.getPayload());
+                //以前删除消息是把 isValid 改成 0 写回去
+                if (message.getIsValid() == 0x1) {
+                    entries.add(new Entry(record.getPosition() + 4, record.getPayload().length, message.getBasicProperties()));
+                }
+            }
+            fromSeq = records.get(records.size() - 1).getSeq() + 1;
+        }
+        return new QueueSnapshot(endPos, endSeq, entries);
+    }
+
+    public long getWritePos() {
+        return writePos;
+    }
+
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+}
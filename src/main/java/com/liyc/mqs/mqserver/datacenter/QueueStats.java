@@ -0,0 +1,204 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 队列的消息统计, 放在内存里
+ * 写入和删除消息只改内存里的原子计数, 不读写文件; 统计在后台定期写到 stat 文件里(checkpoint)
+ * stat 文件是一个固定格式的二进制头部, 按位置整个覆盖写
+ *   magic(4) version(4) sumMsg(4) countMsg(4) totalBytes(8) deadBytes(8) writePos(8), 共 40 字节
+ * 计数只是给 gc 判断用的, 启动恢复扫描段文件时会重新算一遍; writePos 决定恢复时从哪里截掉数据, 只能写已经刷盘的位置
+ * 1.写入、删除、删除段时更新计数-added/deleted/dropped, 恢复扫描后重置-reset
+ * 2.取快照-snapshot
+ * 3.写 stat 文件-checkpoint, 读 stat 文件-readHeader/writeHeader
+ *
+ * @author Liyc
+ * @date 2026/10/17 19:30
+ **/
+
+public class QueueStats {
+    public static final int MAGIC = 0x4D515354;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 40;
+
+    private final File statFile;
+    //消息总数(包括已经删除但是还在段文件里的), 有效消息数
+    private final AtomicInteger sumMsg = new AtomicInteger();
+    private final AtomicInteger countMsg = new AtomicInteger();
+    //段文件里所有记录的字节数, 其中已经删除的记录的字节数
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong deadBytes = new AtomicLong();
+    //每次改计数加 1, 和上次写文件时的值一样就不用再写
+    private final AtomicLong version = new AtomicLong();
+
+    //下面的字段在 this 的锁里访问
+    //上次写到文件里的写位置和计数版本
+    private long checkpointPos;
+    private long checkpointVersion = -1;
+    //队列删除后不再写文件
+    private boolean closed;
+
+    public QueueStats(File statFile, MessageFileManager.Stat stat) {
+        this.statFile = statFile;
+        reset(stat);
+        this.checkpointPos = Math.max(0, stat.writePos);
+    }
+
+    public void added(int records, long bytes) {
+        sumMsg.addAndGet(records);
+        countMsg.addAndGet(records);
+        totalBytes.addAndGet(bytes);
+        version.incrementAndGet();
+    }
+
+    public void deleted(long bytes) {
+        countMsg.updateAndGet(count -> Math.max(0, count - 1));
+        deadBytes.addAndGet(bytes);
+        version.incrementAndGet();
+    }
+
+    // 删除了一个段, 段里的记录都是已经删除的
+    public void dropped(int records, long bytes) {
+        sumMsg.updateAndGet(sum -> Math.max(0, sum - records));
+        totalBytes.updateAndGet(total -> Math.max(0, total - bytes));
+        deadBytes.updateAndGet(dead -> Math.max(0, dead - bytes));
+        version.incrementAndGet();
+    }
+
+    public void reset(MessageFileManager.Stat stat) {
+        sumMsg.set(stat.sumMsg);
+        countMsg.set(stat.countMsg);
+        totalBytes.set(stat.totalBytes);
+        deadBytes.set(stat.deadBytes);
+        version.incrementAndGet();
+    }
+
+    /**
+     * 当前计数的快照, 几个计数之间不保证是同一时刻的
+     * @param writePos 快照里的写位置
+     */
+    public MessageFileManager.Stat snapshot(long writePos) {
+        MessageFileManager.Stat stat = new MessageFileManager.Stat();
+        stat.sumMsg = sumMsg.get();
+        stat.countMsg = countMsg.get();
+        stat.totalBytes = totalBytes.get();
+        stat.deadBytes = deadBytes.get();
+        stat.writePos = writePos;
+        return stat;
+    }
+
+    /**
+     * 把计数和写位置写到 stat 文件
+     * @param writePos 已经刷到磁盘的写位置, 小于 0 表示沿用上次写的位置
+     * @param force 是否把 stat 文件刷盘
+     */
+    public synchronized void checkpoint(long writePos, boolean force) throws IOException {
+        if (closed) {
+            return;
+        }
+        // 逻辑位置只会变大, 几个组提交共用一个日志时, 晚到的小位置不能把已经记下的大位置盖掉
+        long position = writePos < 0 ? checkpointPos : Math.max(writePos, checkpointPos);
+        long current = version.get();
+        if (position == checkpointPos && current == checkpointVersion && !force) {
+            return;
+        }
+        try {
+            writeHeader(statFile, snapshot(position), force);
+        } catch (NoSuchFileException e) {
+            // 队列正在删除, 文件已经没有了
+            return;
+        }
+        checkpointPos = position;
+        checkpointVersion = current;
+    }
+
+    // 队列删除, 之后的 checkpoint 都不写文件
+    public synchronized void close() {
+        closed = true;
+    }
+
+    // stat 文件里记的写位置
+    public synchronized long getCheckpointPos() {
+        return checkpointPos;
+    }
+
+    public File getStatFile() {
+        return statFile;
+    }
+
+    public int getSumMsg() {
+        return sumMsg.get();
+    }
+
+    public int getCountMsg() {
+        return countMsg.get();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    public long getDeadBytes() {
+        return deadBytes.get();
+    }
+
+    public static void writeHeader(File statFile, MessageFileManager.Stat stat, boolean force) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(stat.sumMsg);
+        header.putInt(stat.countMsg);
+        header.putLong(stat.totalBytes);
+        header.putLong(stat.deadBytes);
+        header.putLong(stat.writePos);
+        header.flip();
+        // 文件由创建队列时建好, 这里不创建, 避免队列删除后又被写出来
+        try (FileChannel channel = FileChannel.open(statFile.toPath(), StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            // 以前的文本格式可能比头部长
+            channel.truncate(HEADER_SIZE);
+            if (force) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * 读取二进制头部
+     * @return 不是二进制头部(比如以前的文本格式)返回 null
+     */
+    public static MessageFileManager.Stat readHeader(File statFile) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(statFile.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    return null;
+                }
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return null;
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("[QueueStats] stat 文件版本不支持! file=" + statFile.getPath() + ", version=" + version);
+        }
+        MessageFileManager.Stat stat = new MessageFileManager.Stat();
+        stat.sumMsg = header.getInt();
+        stat.countMsg = header.getInt();
+        stat.totalBytes = header.getLong();
+        stat.deadBytes = header.getLong();
+        stat.writePos = header.getLong();
+        return stat;
+    }
+}
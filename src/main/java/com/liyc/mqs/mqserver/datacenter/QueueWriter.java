@@ -0,0 +1,170 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 队列文件的单线程写入
+ * 一个队列的文件修改(写入消息、确认消息、整理、gc、删除队列)都交给同一个写线程按提交顺序执行, 调用方拿到 future
+ * 有 N 个写线程(系统属性 mqs.writer.threads, 默认 CPU 核数, 最多 4 个), 队列按名字的 hash 固定到其中一个, 一个队列的文件只有一个线程改
+ * 提交不加锁: 每个写线程一个无锁队列(ConcurrentLinkedQueue), 没有任务时 park, 提交之后 unpark
+ * 发布、确认、整理的线程不再抢同一个日志的锁, 慢的确认或者整理只是排在写线程的队列里, 不会让热点队列的发布线程排队抢锁
+ * 1.提交任务-submit, 写线程自己提交的任务直接执行, 关闭之后提交的任务在调用线程执行
+ * 2.等待 future, 把任务抛出的异常还原出来-await
+ * 3.关闭-shutdown, 先执行完已经提交的任务
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:30
+ **/
+
+public class QueueWriter {
+    //写线程数的系统属性名
+    public static final String THREADS_PROPERTY = "mqs.writer.threads";
+    private static final int MAX_DEFAULT_THREADS = 4;
+
+    //写线程上执行的任务
+    @FunctionalInterface
+    public interface Task<T> {
+        T run() throws Exception;
+    }
+
+    //一个写线程和它的任务队列
+    private static class Loop implements Runnable {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Loop(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = tasks.poll();
+                if (task != null) {
+                    task.run();
+                    continue;
+                }
+                if (!running) {
+                    return;
+                }
+                // 提交在 park 之前 unpark 的话, park 会马上返回, 不会漏掉任务
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private final Loop[] loops;
+    private volatile boolean closed;
+
+    public QueueWriter(int threads) {
+        loops = new Loop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop("mqs-writer-" + i);
+            loops[i].thread.start();
+        }
+    }
+
+    // broker 的写线程数, 没有设置就按 CPU 核数, 最多 4 个
+    public static int defaultThreads() {
+        String value = System.getProperty(THREADS_PROPERTY);
+        if (value == null || value.isEmpty()) {
+            return Math.min(MAX_DEFAULT_THREADS, Runtime.getRuntime().availableProcessors());
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("[QueueWriter] 写线程数不合法, 使用默认值! " + THREADS_PROPERTY + "=" + value);
+            return Math.min(MAX_DEFAULT_THREADS, Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /**
+     * 把任务交给队列的写线程
+     * @return 任务执行完之后完成, 任务抛出异常时异常完成
+     */
+    public <T> CompletableFuture<T> submit(String queueName, Task<T> task) {
+        Loop loop = loops[(queueName.hashCode() & 0x7FFFFFFF) % loops.length];
+        if (closed || Thread.currentThread() == loop.thread) {
+            return execute(task);
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        loop.tasks.offer(() -> {
+            try {
+                future.complete(task.run());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        LockSupport.unpark(loop.thread);
+        // 关闭时写线程可能已经退出了, 剩下的任务在这里执行
+        if (closed) {
+            drain(loop);
+        }
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> execute(Task<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(task.run());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static void drain(Loop loop) {
+        Runnable task;
+        while ((task = loop.tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * 等任务执行完, 任务抛出的 IOException 原样抛出, 其他受检异常包成 IOException
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // 执行完已经提交的任务再停下写线程, 之后提交的任务在调用线程执行
+    public void shutdown() {
+        closed = true;
+        for (Loop loop : loops) {
+            loop.running = false;
+            LockSupport.unpark(loop.thread);
+        }
+        for (Loop loop : loops) {
+            if (loop.thread == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            drain(loop);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 懒队列投递用的预读缓冲, 每个队列一个
+ * 队列里的消息在数据文件里基本是挨着的, 按顺序投递时读一条消息顺便把后面的一块也读进来, 后面几条直接从缓冲里拿
+ * 缓冲里存的是逻辑位置 [start, start + data.length) 的数据, 逻辑位置不会重复使用, 缓冲里的数据不会过期
+ * 1.按逻辑位置读-read, 不在缓冲里就从这个位置开始重新读一块
+ *
+ * @author Liyc
+ * @date 2026/10/17 21:10
+ **/
+
+public class ReadAheadBuffer {
+    //默认每次预读的字节数
+    public static final int DEFAULT_SIZE = 64 * 1024;
+
+    private final int size;
+    private long start = -1;
+    private byte[] data = new byte[0];
+    //命中缓冲的次数, 读文件的次数
+    private long hits;
+    private long misses;
+
+    public ReadAheadBuffer(int size) {
+        this.size = size;
+    }
+
+    /**
+     * 读 [position, position + length) 的数据
+     * @param queueLog 数据所在的队列日志
+     */
+    public synchronized byte[] read(QueueLog queueLog, long position, int length) throws IOException {
+        if (start < 0 || position < start || position + length > start + data.length) {
+            // 比缓冲还大的消息只读它自己
+            data = queueLog.readAhead(position, length, size);
+            start = position;
+            misses++;
+        } else {
+            hits++;
+        }
+        int from = (int) (position - start);
+        return Arrays.copyOfRange(data, from, from + length);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits=" + hits + ", misses=" + misses;
+    }
+}
@@ -0,0 +1,373 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 归档段, 冷的封存段压缩之后放在归档目录里的只读文件
+ * 段数据按 BLOCK_SIZE 分块, 每块单独用 deflate 压缩, 按位置读一条消息只解压它所在的块, 不用从头解压
+ * 文件格式: [块0][块1]...[块n-1] [每块在文件里的起始位置 long * n] [段长度 long][块数 int][块大小 int][MAGIC int]
+ * 归档的数据不再修改, 消息确认的删除标记记在旁边的 .del 文件里: 只追加写记录开始的段内位置(long), 不刷盘, 和段文件里的删除标记一样
+ * 打开时把删除标记读进内存, 读数据时加到记录长度的最高位上, 读出来的和段文件里的一样
+ * 只在队列日志的锁里访问
+ * 1.压缩段文件-compress, 写到临时文件, 刷盘后由队列日志改名
+ * 2.打开-open, 读文件末尾的块表和删除标记
+ * 3.按段内位置读-read, 缓存最近解压的一块, 按顺序读记录时不用重复解压; 从某个位置顺序读-openStream
+ * 4.标记删除-markDeleted, 归档之前补写压缩期间的删除标记-appendDeleted
+ * 5.关闭-close, 删除归档文件和删除标记文件-delete
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:40
+ **/
+
+public class SegmentArchive {
+    public static final String SUFFIX = ".arc";
+    public static final String DELETED_SUFFIX = ".del";
+    public static final String TEMP_SUFFIX = ".arc.tmp";
+    //每块压缩前的大小
+    public static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAGIC = 0x4d514152;
+    //文件末尾固定部分: 段长度(8) + 块数(4) + 块大小(4) + MAGIC(4)
+    private static final int TRAILER_SIZE = 20;
+
+    private final File file;
+    private final File deletedFile;
+    //段的长度, 也就是压缩前的长度
+    private final long size;
+    private final int blockSize;
+    //每块在文件里的起始位置, 最后一项是块表的位置, 也就是最后一块的结尾
+    private final long[] offsets;
+    //删除标记, 记录开始的段内位置
+    private final TreeSet<Long> deleted = new TreeSet<>();
+    private final Inflater inflater = new Inflater();
+    private FileChannel channel;
+    //追加删除标记用的 channel, 第一次标记时打开
+    private FileChannel deletedChannel;
+    //最近解压的一块
+    private int cachedBlock = -1;
+    private byte[] cached;
+
+    private SegmentArchive(File file, File deletedFile, long size, int blockSize, long[] offsets) {
+        this.file = file;
+        this.deletedFile = deletedFile;
+        this.size = size;
+        this.blockSize = blockSize;
+        this.offsets = offsets;
+    }
+
+    // 段文件对应的归档文件, 和段文件同名, 在归档目录里
+    public static File fileOf(File archiveDirectory, File segmentFile) {
+        return new File(archiveDirectory, baseName(segmentFile) + SUFFIX);
+    }
+
+    public static File tempFileOf(File archiveDirectory, File segmentFile) {
+        return new File(archiveDirectory, baseName(segmentFile) + TEMP_SUFFIX);
+    }
+
+    // 归档文件旁边的删除标记文件
+    public static File deletedFileOf(File archiveFile) {
+        String name = archiveFile.getName();
+        return new File(archiveFile.getParentFile(), name.substring(0, name.lastIndexOf('.')) + DELETED_SUFFIX);
+    }
+
+    private static String baseName(File segmentFile) {
+        String name = segmentFile.getName();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    /**
+     * 把段文件的前 size 字节一块一块压缩写到 target, 刷盘
+     * 自己打开一个 channel 读, 压缩期间段文件里新写的删除标记可能读到也可能读不到, 由队列日志另外补上
+     * @return 归档文件的长度
+     */
+    public static long compress(File source, long size, File target) throws IOException {
+        int blocks = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        long[] offsets = new long[blocks];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileOutputStream fileOutputStream = new FileOutputStream(target);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream))) {
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            byte[] compressed = new byte[BLOCK_SIZE];
+            long position = 0;
+            for (int i = 0; i < blocks; i++) {
+                block.clear();
+                block.limit((int) Math.min(BLOCK_SIZE, size - position));
+                while (block.hasRemaining()) {
+                    if (in.read(block, position + block.position()) < 0) {
+                        throw new IOException("[SegmentArchive] 读到了段文件结尾! file=" + source.getPath());
+                    }
+                }
+                offsets[i] = out.size();
+                deflater.reset();
+                deflater.setInput(block.array(), 0, block.limit());
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(compressed);
+                    out.write(compressed, 0, n);
+                }
+                position += block.limit();
+            }
+            // 块表的位置超过 2GB 时 out.size() 会溢出, 段大小不超过 2GB 就不会
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.writeLong(size);
+            out.writeInt(blocks);
+            out.writeInt(BLOCK_SIZE);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOutputStream.getFD().sync();
+            return out.size();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 打开归档文件, 读块表和删除标记
+     */
+    public static SegmentArchive open(File file) throws IOException {
+        SegmentArchive archive;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = in.size();
+            if (length < TRAILER_SIZE) {
+                throw new IOException("[SegmentArchive] 归档文件不完整! file=" + file.getPath());
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(in, trailer, length - TRAILER_SIZE);
+            trailer.flip();
+            long size = trailer.getLong();
+            int blocks = trailer.getInt();
+            int blockSize = trailer.getInt();
+            if (trailer.getInt() != MAGIC || blocks < 0 || length < TRAILER_SIZE + 8L * blocks) {
+                throw new IOException("[SegmentArchive] 归档文件格式不对! file=" + file.getPath());
+            }
+            long tablePosition = length - TRAILER_SIZE - 8L * blocks;
+            ByteBuffer table = ByteBuffer.allocate(8 * blocks);
+            readFully(in, table, tablePosition);
+            table.flip();
+            long[] offsets = new long[blocks + 1];
+            for (int i = 0; i < blocks; i++) {
+                offsets[i] = table.getLong();
+            }
+            offsets[blocks] = tablePosition;
+            archive = new SegmentArchive(file, deletedFileOf(file), size, blockSize, offsets);
+        }
+        archive.loadDeleted();
+        return archive;
+    }
+
+    // 读删除标记, 最后写了一半的一项丢掉
+    private void loadDeleted() throws IOException {
+        if (!deletedFile.exists()) {
+            return;
+        }
+        try (FileChannel in = FileChannel.open(deletedFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) (in.size() / 8 * 8));
+            readFully(in, buffer, 0);
+            buffer.flip();
+            while (buffer.remaining() >= 8) {
+                deleted.add(buffer.getLong());
+            }
+        }
+    }
+
+    /**
+     * 从段内位置 local 读 length 字节, 跨块的话解压每一块拼起来, 删除标记加到记录长度上
+     */
+    public byte[] read(long local, int length) throws IOException {
+        if (local < 0 || local + length > size) {
+            throw new IOException("[SegmentArchive] 读取位置超出段的范围! file=" + file.getPath() + ", local=" + local + ", length=" + length);
+        }
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long position = local + copied;
+            int block = (int) (position / blockSize);
+            byte[] data = block(block);
+            int from = (int) (position - (long) block * blockSize);
+            int n = Math.min(length - copied, data.length - from);
+            System.arraycopy(data, from, bytes, copied, n);
+            copied += n;
+        }
+        for (long position : deleted.subSet(local, local + length)) {
+            bytes[(int) (position - local)] |= (byte) 0x80;
+        }
+        return bytes;
+    }
+
+    // 解压一块, 按顺序读时大多数都命中缓存的那一块
+    private byte[] block(int block) throws IOException {
+        if (block == cachedBlock) {
+            return cached;
+        }
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        ByteBuffer compressed = ByteBuffer.allocate((int) (offsets[block + 1] - offsets[block]));
+        readFully(channel, compressed, offsets[block]);
+        byte[] data = new byte[(int) Math.min(blockSize, size - (long) block * blockSize)];
+        inflater.reset();
+        inflater.setInput(compressed.array());
+        try {
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, data.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != data.length) {
+                throw new IOException("[SegmentArchive] 解压出来的长度不对! file=" + file.getPath() + ", block=" + block);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("[SegmentArchive] 归档数据损坏! file=" + file.getPath() + ", block=" + block, e);
+        }
+        cachedBlock = block;
+        cached = data;
+        return data;
+    }
+
+    /**
+     * 从段内位置 from 开始顺序读到段的结尾, 一次最多读到当前块的结尾
+     * 流要在队列日志的锁里用完
+     */
+    public InputStream openStream(long from) {
+        return new InputStream() {
+            private long position = from;
+
+            @Override
+            public int read() throws IOException {
+                if (position >= size) {
+                    return -1;
+                }
+                return SegmentArchive.this.read(position++, 1)[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= size) {
+                    return -1;
+                }
+                long blockEnd = (position / blockSize + 1) * blockSize;
+                int n = (int) Math.min(len, Math.min(blockEnd, size) - position);
+                System.arraycopy(SegmentArchive.this.read(position, n), 0, b, off, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, size - position));
+                position += skipped;
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * 标记一条记录已经删除
+     * @param local 记录开始的段内位置
+     */
+    public void markDeleted(long local) throws IOException {
+        if (!deleted.add(local)) {
+            return;
+        }
+        if (deletedChannel == null) {
+            deletedChannel = FileChannel.open(deletedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(local);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            deletedChannel.write(buffer);
+        }
+    }
+
+    // 归档之前把压缩期间的删除标记一次写进删除标记文件
+    public static void appendDeleted(File deletedFile, List<Long> positions) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * positions.size());
+        for (long position : positions) {
+            buffer.putLong(position);
+        }
+        buffer.flip();
+        try (FileChannel out = FileChannel.open(deletedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    // 归档文件的长度, 也就是压缩后的长度
+    public long getLength() {
+        return offsets[offsets.length - 1] + 8L * (offsets.length - 1) + TRAILER_SIZE;
+    }
+
+    public void close() {
+        closeQuietly(channel);
+        closeQuietly(deletedChannel);
+        channel = null;
+        deletedChannel = null;
+        cachedBlock = -1;
+        cached = null;
+        inflater.end();
+    }
+
+    /**
+     * 删除归档文件和删除标记文件
+     * @return 归档文件有没有删掉
+     */
+    public boolean delete() {
+        close();
+        if (deletedFile.exists() && !deletedFile.delete()) {
+            System.out.println("[SegmentArchive] 删除标记文件删除失败! file=" + deletedFile.getPath());
+        }
+        return file.delete();
+    }
+
+    private void closeQuietly(FileChannel fileChannel) {
+        if (fileChannel == null) {
+            return;
+        }
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            System.out.println("[SegmentArchive] 归档文件关闭失败! file=" + file.getPath() + ", error=" + e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("[SegmentArchive] 读到了归档文件结尾!");
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台把冷的封存段移到归档目录(分层存储)
+ * 重放、审计这类队列积压很久才消费一次, 段文件一直放在热目录 ./data/<queue> 里, 占着热盘的空间, 偶尔读一次还会把 page cache 里的热数据挤出去
+ * 超过 ageMillis 没有修改过的封存段(按段文件的修改时间, 确认消息也会改它)压缩成归档段(SegmentArchive), 放到归档目录下的队列目录里, 再删除热目录里的段文件
+ * 归档目录用系统属性 mqs.archive.dir 设置(默认 ./archive), 可以放在另一块盘上; 时间用 mqs.archive.age 设置(毫秒, 默认一天, 0 表示不归档)
+ * 消息的 offset、段的序号索引、统计都不变, 队列日志读到归档段时解压出来, 投递、懒队列读消息体、恢复扫描都照常
+ * 1.挑选要归档的段-archive, 活动段以外、还有有效消息、没有归档、超过 ageMillis 没有修改的封存段
+ * 2.压缩在归档线程上做, 不占日志的锁, 压缩期间队列照常写入和确认
+ * 3.在队列的写线程(QueueWriter)上切换到归档段-completeArchive, 补上压缩期间的删除标记, 删除热目录里的段文件
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:40
+ **/
+
+public class SegmentArchiver {
+    //归档时间的系统属性名, 单位毫秒
+    public static final String AGE_PROPERTY = "mqs.archive.age";
+    public static final long DEFAULT_AGE_MS = 24L * 60 * 60 * 1000;
+    //默认每次检查的间隔
+    public static final long DEFAULT_INTERVAL_MS = 60000;
+
+    private final MessageFileManager messageFileManager;
+    private final ScheduledExecutorService scheduler;
+
+    //归档的段数, 压缩前后的字节数
+    private final AtomicLong segments = new AtomicLong();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+
+    public SegmentArchiver(MessageFileManager messageFileManager, long intervalMillis, long ageMillis) {
+        this.messageFileManager = messageFileManager;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mqs-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (ageMillis > 0) {
+            this.scheduler.scheduleWithFixedDelay(() -> archiveAll(ageMillis), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // broker 的归档时间, 没有设置就是一天
+    public static long defaultAge() {
+        return Long.getLong(AGE_PROPERTY, DEFAULT_AGE_MS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void archiveAll(long ageMillis) {
+        for (String queueName : messageFileManager.getQueueNames()) {
+            try {
+                archive(queueName, ageMillis);
+            } catch (Exception e) {
+                System.out.println("[SegmentArchiver] 归档失败! queueName=" + queueName + ", error=" + e);
+            }
+        }
+    }
+
+    /**
+     * 归档队列里超过 ageMillis 没有修改过的封存段
+     * @return 归档的段数
+     */
+    public int archive(String queueName, long ageMillis) throws IOException {
+        QueueLog queueLog = messageFileManager.getQueueLog(queueName);
+        long now = System.currentTimeMillis();
+        int archived = 0;
+        for (QueueLog.Segment segment : queueLog.getSegments()) {
+            // 没有统计过的段(恢复扫描之前)不知道还有没有有效消息, 有效消息都删除了的段马上会被删除, 都不用归档
+            if (segment == queueLog.getActive() || segment.isArchived() || !segment.isCounted() || segment.getLive() <= 0) {
+                continue;
+            }
+            if (now - segment.getFile().lastModified() < ageMillis) {
+                continue;
+            }
+            File temp = queueLog.beginArchive(segment);
+            if (temp == null) {
+                continue;
+            }
+            long begin = System.currentTimeMillis();
+            long length;
+            try {
+                length = SegmentArchive.compress(segment.getFile(), segment.getSize(), temp);
+            } catch (IOException e) {
+                queueLog.abortArchive(segment, temp);
+                throw e;
+            }
+            if (!messageFileManager.write(queueName, () -> queueLog.completeArchive(segment, temp))) {
+                continue;
+            }
+            archived++;
+            segments.incrementAndGet();
+            bytesBefore.addAndGet(segment.getSize());
+            bytesAfter.addAndGet(length);
+            System.out.println("[SegmentArchiver] 归档完毕! queueName=" + queueName + ", file=" + segment.getFile().getPath()
+                    + ", size=" + segment.getSize() + ", archived=" + length + ", time=" + (System.currentTimeMillis() - begin) + "ms");
+        }
+        return archived;
+    }
+
+    @Override
+    public String toString() {
+        return "segments=" + segments.get()
+                + ", bytesBefore=" + bytesBefore.get()
+                + ", bytesAfter=" + bytesAfter.get();
+    }
+}
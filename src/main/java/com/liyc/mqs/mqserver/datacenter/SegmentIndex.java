@@ -0,0 +1,150 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 段的稀疏索引, 记录序号到段内位置的对应关系
+ * 队列里每条记录按写入顺序有一个序号, 从 0 开始一直递增, 段删除了序号也不会再用
+ * 每个段一个索引文件, 和段文件同名, 后缀是 .idx; 第一项是段的起始序号(位置 0), 之后每 INTERVAL 条记录记一项
+ * 一项 16 字节: seq(8) position(8), 只追加写, 不刷盘, 打开时按段的实际长度校验, 缺的部分扫描记录长度补上
+ * 1.加载索引文件-load, 超出段长度的项截掉
+ * 2.追加一项-add
+ * 3.查找序号前面最近的一项-floor
+ * 4.关闭-close, 删除-delete
+ *
+ * @author Liyc
+ * @date 2026/10/17 20:30
+ **/
+
+public class SegmentIndex {
+    public static final String SUFFIX = ".idx";
+    //每多少条记录记一项
+    public static final int INTERVAL = 64;
+    private static final int ENTRY_SIZE = 16;
+
+    private final File file;
+    private long[] seqs = new long[16];
+    private long[] positions = new long[16];
+    private int size;
+    //追加用的 channel, 第一次追加时打开
+    private FileChannel channel;
+
+    public SegmentIndex(File file) {
+        this.file = file;
+    }
+
+    // 段文件对应的索引文件
+    public static File fileOf(File segmentFile) {
+        String name = segmentFile.getName();
+        return new File(segmentFile.getParentFile(), name.substring(0, name.lastIndexOf('.')) + SUFFIX);
+    }
+
+    /**
+     * 加载索引文件, 位置超出段长度或者顺序不对的项连同后面的都截掉
+     * 第一项的位置是 0, 段还是空的时候也保留, 用来记住段的起始序号
+     * @param segmentSize 段的实际长度
+     */
+    public void load(long segmentSize) throws IOException {
+        size = 0;
+        if (!file.exists()) {
+            return;
+        }
+        // 一个段的索引很小, 64MB 的段、1KB 的消息也只有 1024 项, 一次读进来
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() / ENTRY_SIZE * ENTRY_SIZE));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            while (buffer.remaining() >= ENTRY_SIZE) {
+                long seq = buffer.getLong();
+                long position = buffer.getLong();
+                boolean ordered = size == 0 ? position == 0 : seq > seqs[size - 1] && position > positions[size - 1];
+                if (!ordered || (size > 0 && position >= segmentSize)) {
+                    break;
+                }
+                append(seq, position);
+            }
+            if (channel.size() > (long) size * ENTRY_SIZE) {
+                channel.truncate((long) size * ENTRY_SIZE);
+            }
+        }
+    }
+
+    // 追加一项, 序号要比最后一项大
+    public void add(long seq, long position) throws IOException {
+        if (size > 0 && seq <= seqs[size - 1]) {
+            return;
+        }
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+        buffer.putLong(seq);
+        buffer.putLong(position);
+        buffer.flip();
+        long offset = (long) size * ENTRY_SIZE;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+        append(seq, position);
+    }
+
+    private void append(long seq, long position) {
+        if (size == seqs.length) {
+            seqs = Arrays.copyOf(seqs, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        seqs[size] = seq;
+        positions[size] = position;
+        size++;
+    }
+
+    /**
+     * 序号前面最近的一项
+     * @return 项的下标, 序号比第一项还小返回 -1
+     */
+    public int floor(long seq) {
+        int index = Arrays.binarySearch(seqs, 0, size, seq);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long seqAt(int index) {
+        return seqs[index];
+    }
+
+    public long positionAt(int index) {
+        return positions[index];
+    }
+
+    // 追加结束, 关掉 channel, 内存里的项还可以查
+    public void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("[SegmentIndex] 索引文件关闭失败! file=" + file.getPath() + ", error=" + e);
+        }
+        channel = null;
+    }
+
+    public void delete() {
+        close();
+        if (file.exists() && !file.delete()) {
+            System.out.println("[SegmentIndex] 索引文件删除失败! file=" + file.getPath());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.liyc.mqs.mqserver.datacenter;
+
+import com.liyc.mqs.mqserver.core.Queue;
+
+/**
+ * 持久化消息的刷盘策略
+ * always: 每批写入都 force 到磁盘, 并发写入的消息合并成一次 force
+ * interval:N: 最多每 N 毫秒 force 一次
+ * count:N: 攒够 N 条消息 force 一次, 消息不够时最多等 COUNT_MAX_DELAY_MS 毫秒
+ * os: 不主动 force, 由操作系统决定什么时候写到磁盘
+ * 整个 broker 的默认策略用系统属性 mqs.fsync 设置, 单个队列可以在创建时用参数 x-fsync 覆盖
+ * 1.解析策略-parse
+ * 2.取 broker 默认策略-defaultPolicy
+ * 3.取队列的策略-of
+ *
+ * @author Liyc
+ * @date 2026/10/17 18:20
+ **/
+
+public class SyncPolicy {
+    public enum Mode {
+        ALWAYS,
+        INTERVAL,
+        COUNT,
+        OS
+    }
+
+    //队列参数名
+    public static final String ARGUMENT = "x-fsync";
+    //broker 默认策略的系统属性名
+    public static final String PROPERTY = "mqs.fsync";
+    //count 策略下消息不够时最多等待的时间
+    public static final long COUNT_MAX_DELAY_MS = 100;
+
+    public static final SyncPolicy ALWAYS = new SyncPolicy(Mode.ALWAYS, 0);
+    public static final SyncPolicy OS = new SyncPolicy(Mode.OS, 0);
+
+    private final Mode mode;
+    //interval 的毫秒数或者 count 的消息条数
+    private final int value;
+
+    public SyncPolicy(Mode mode, int value) {
+        if ((mode == Mode.INTERVAL || mode == Mode.COUNT) && value <= 0) {
+            throw new IllegalArgumentException("[SyncPolicy] 刷盘策略的参数必须大于 0! mode=" + mode + ", value=" + value);
+        }
+        this.mode = mode;
+        this.value = value;
+    }
+
+    /**
+     * 解析刷盘策略
+     * @param text always, os, interval:毫秒数, count:消息条数
+     * @return
+     */
+    public static SyncPolicy parse(String text) {
+        String[] parts = text.trim().toLowerCase().split(":");
+        try {
+            switch (parts[0]) {
+                case "always":
+                    return ALWAYS;
+                case "os":
+                    return OS;
+                case "interval":
+                    return new SyncPolicy(Mode.INTERVAL, Integer.parseInt(parts[1]));
+                case "count":
+                    return new SyncPolicy(Mode.COUNT, Integer.parseInt(parts[1]));
+                default:
+                    break;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            // 下面统一报错
+        }
+        throw new IllegalArgumentException("[SyncPolicy] 刷盘策略格式错误! text=" + text);
+    }
+
+    // broker 的默认策略, 没有设置就每批都刷盘
+    public static SyncPolicy defaultPolicy() {
+        return parse(System.getProperty(PROPERTY, "always"));
+    }
+
+    // 队列的策略, 队列参数不合法就用默认策略
+    public static SyncPolicy of(Queue queue, SyncPolicy defaultPolicy) {
+        Object argument = queue.getArguments(ARGUMENT);
+        if (argument == null) {
+            return defaultPolicy;
+        }
+        try {
+            return parse(argument.toString());
+        } catch (IllegalArgumentException e) {
+            System.out.println("[SyncPolicy] 队列的刷盘策略不合法, 使用默认策略! queueName=" + queue.getName() + ", " + ARGUMENT + "=" + argument);
+            return defaultPolicy;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.INTERVAL || mode == Mode.COUNT ? mode.name().toLowerCase() + ":" + value : mode.name().toLowerCase();
+    }
+}
@@ -0,0 +1,61 @@
+package com.liyc.mqs.mqserver.network;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 文件中的一段数据, 发送时用 FileChannel.transferTo 直接从文件拷贝到 socket, 不经过 Java 堆.
+ * 发送完或者连接关闭时由发送方关闭文件.
+ *
+ * @author Liyc
+ * @date 2026/10/17 11:02
+ **/
+
+public class FileRegion {
+    private final FileChannel fileChannel;
+    private final long position;
+    private final long count;
+    //已经发送的字节数
+    private long transferred;
+
+    public FileRegion(FileChannel fileChannel, long position, long count) {
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.count = count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * 尽可能多地发送剩余的数据
+     * @param target
+     * @return 是否全部发送完
+     */
+    public boolean transferTo(WritableByteChannel target) throws IOException {
+        while (transferred < count) {
+            long n = fileChannel.transferTo(position + transferred, count - transferred, target);
+            if (n == 0) {
+                if (position + transferred >= fileChannel.size()) {
+                    // 文件比预期的短, 再等也等不到数据了
+                    throw new IOException("[FileRegion] 文件数据不完整! position=" + (position + transferred)
+                            + ", size=" + fileChannel.size());
+                }
+                // socket 缓冲区满了
+                return false;
+            }
+            transferred += n;
+        }
+        return true;
+    }
+
+    public void release() {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
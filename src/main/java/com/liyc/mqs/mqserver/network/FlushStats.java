@@ -0,0 +1,69 @@
+package com.liyc.mqs.mqserver.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 写 socket 的统计, 每个事件循环一份
+ * 1.flush 次数(一次聚集写算一次)
+ * 2.写出去的帧数, 字节数
+ * 3.单次 flush 最多带了多少帧
+ * 帧数 / flush 次数 就是平均每次 flush 合并了多少帧, 负载越高这个值应该越大
+ *
+ * @author Liyc
+ * @date 2026/10/17 13:40
+ **/
+
+public class FlushStats {
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong maxFramesPerFlush = new AtomicLong();
+
+    // 只有事件循环线程写, 其他线程可以随时读
+    void record(int frameCount, long byteCount) {
+        flushes.incrementAndGet();
+        frames.addAndGet(frameCount);
+        bytes.addAndGet(byteCount);
+        if (frameCount > maxFramesPerFlush.get()) {
+            maxFramesPerFlush.set(frameCount);
+        }
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getMaxFramesPerFlush() {
+        return maxFramesPerFlush.get();
+    }
+
+    public double getFramesPerFlush() {
+        long f = flushes.get();
+        return f == 0 ? 0 : (double) frames.get() / f;
+    }
+
+    // 把另一个事件循环的统计累加进来, 用来汇总
+    public void add(FlushStats other) {
+        flushes.addAndGet(other.getFlushes());
+        frames.addAndGet(other.getFrames());
+        bytes.addAndGet(other.getBytes());
+        if (other.getMaxFramesPerFlush() > maxFramesPerFlush.get()) {
+            maxFramesPerFlush.set(other.getMaxFramesPerFlush());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "flushes=" + getFlushes() + ", frames=" + getFrames() + ", bytes=" + getBytes()
+                + ", framesPerFlush=" + String.format("%.2f", getFramesPerFlush())
+                + ", maxFramesPerFlush=" + getMaxFramesPerFlush();
+    }
+}
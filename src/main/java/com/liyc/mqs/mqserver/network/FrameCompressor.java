@@ -0,0 +1,181 @@
+package com.liyc.mqs.mqserver.network;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 帧压缩, 连接在创建 channel(0x1)时协商好之后, 大的 payload 压缩后再发送
+ * 帧的 type 低 8 位是帧类型, FLAG_COMPRESSED 这一位表示 payload 是压缩过的
+ * 压缩后的 payload: 原始长度(4) + deflate 数据
+ * 1.压缩-compress, 先压缩开头一小段试一下, 压不下去的数据(图片、已经压缩过的文件)直接跳过
+ * 2.解压-decompress
+ * 3.压缩统计
+ *
+ * @author Liyc
+ * @date 2026/10/17 17:10
+ **/
+
+public class FrameCompressor {
+    //协商用的压缩算法编号
+    public static final int COMPRESSION_NONE = 0;
+    public static final int COMPRESSION_DEFLATE = 1;
+    //帧 type 里表示 payload 压缩过的标记
+    public static final int FLAG_COMPRESSED = 0x100;
+    public static final int TYPE_MASK = 0xff;
+    //先试压这么多字节, 压缩率达不到 MIN_SAVING 就不压整个 payload 了
+    private static final int SAMPLE_SIZE = 4 * 1024;
+    //至少要省下 10% 才值得压缩
+    private static final double MIN_SAVING = 0.1;
+    //太小的 payload 压缩省不了几个字节
+    private static final int MIN_PAYLOAD = 256;
+
+    //每个线程复用自己的 Deflater/Inflater, 它们内部有 native 内存, 不适合每次都新建
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    //压缩发送的帧数, 试压后跳过的帧数, 压缩前后的字节数
+    private final AtomicLong compressedFrames = new AtomicLong();
+    private final AtomicLong skippedFrames = new AtomicLong();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+
+    /**
+     * 压缩 payload
+     * @param payload
+     * @return 压缩后的 payload, 压缩不划算时返回 null, 调用方按原样发送
+     */
+    public byte[] compress(byte[] payload) {
+        if (payload.length < MIN_PAYLOAD) {
+            return null;
+        }
+        Deflater deflater = DEFLATER.get();
+        try {
+            //1.试压开头一段, 判断是不是压不下去的数据
+            if (payload.length > SAMPLE_SIZE * 2) {
+                deflater.setInput(payload, 0, SAMPLE_SIZE);
+                deflater.finish();
+                byte[] sample = new byte[SAMPLE_SIZE + 64];
+                int sampleLength = 0;
+                while (!deflater.finished() && sampleLength < sample.length) {
+                    sampleLength += deflater.deflate(sample, sampleLength, sample.length - sampleLength);
+                }
+                deflater.reset();
+                if (sampleLength > SAMPLE_SIZE * (1 - MIN_SAVING)) {
+                    skippedFrames.incrementAndGet();
+                    return null;
+                }
+            }
+            //2.压缩整个 payload, 输出超过上限说明不划算, 放弃
+            int limit = (int) (payload.length * (1 - MIN_SAVING));
+            byte[] out = new byte[limit];
+            out[0] = (byte) (payload.length >>> 24);
+            out[1] = (byte) (payload.length >>> 16);
+            out[2] = (byte) (payload.length >>> 8);
+            out[3] = (byte) payload.length;
+            int length = 4;
+            deflater.setInput(payload);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    skippedFrames.incrementAndGet();
+                    return null;
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            compressedFrames.incrementAndGet();
+            bytesBefore.addAndGet(payload.length);
+            bytesAfter.addAndGet(length);
+            return length == out.length ? out : Arrays.copyOf(out, length);
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * 解压 payload
+     * @param payload 原始长度(4) + deflate 数据
+     * @return
+     */
+    public static byte[] decompress(byte[] payload) throws IOException {
+        if (payload.length < 4) {
+            throw new IOException("[FrameCompressor] 压缩的 payload 长度错误! length=" + payload.length);
+        }
+        int length = ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16) | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+        if (length < 0 || length > NioConnection.MAX_FRAME_LENGTH) {
+            throw new IOException("[FrameCompressor] 解压后的长度错误! length=" + length);
+        }
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(payload, 4, payload.length - 4);
+            byte[] out = new byte[length];
+            int n = 0;
+            while (n < length) {
+                int r = inflater.inflate(out, n, length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != length) {
+                throw new IOException("[FrameCompressor] 解压后的长度不对! expect=" + length + ", actual=" + n);
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("[FrameCompressor] 压缩数据格式错误!", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * 只解压开头的一段, 用来读 payload 开头的公共字段
+     * @param payload 原始长度(4) + deflate 数据
+     * @param maxLength 最多解压的字节数
+     * @return
+     */
+    public static byte[] decompressPrefix(byte[] payload, int maxLength) throws IOException {
+        if (payload.length < 4) {
+            throw new IOException("[FrameCompressor] 压缩的 payload 长度错误! length=" + payload.length);
+        }
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(payload, 4, payload.length - 4);
+            byte[] out = new byte[maxLength];
+            int n = 0;
+            while (n < maxLength) {
+                int r = inflater.inflate(out, n, maxLength - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            return n == maxLength ? out : Arrays.copyOf(out, n);
+        } catch (DataFormatException e) {
+            throw new IOException("[FrameCompressor] 压缩数据格式错误!", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    public long getCompressedFrames() {
+        return compressedFrames.get();
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    @Override
+    public String toString() {
+        long before = bytesBefore.get();
+        return "compressedFrames=" + compressedFrames.get()
+                + ", skippedFrames=" + skippedFrames.get()
+                + ", bytesBefore=" + before
+                + ", bytesAfter=" + bytesAfter.get()
+                + ", ratio=" + (before == 0 ? "0" : String.format("%.2f", (double) bytesAfter.get() / before));
+    }
+}
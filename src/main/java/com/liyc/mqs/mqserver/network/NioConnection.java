@@ -0,0 +1,426 @@
+package com.liyc.mqs.mqserver.network;
+
+import com.liyc.mqs.common.Request;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个客户端连接在事件循环里的状态.
+ * 1.非阻塞地按 type(4) + length(4) + payload 的格式解析请求帧-read
+ * 2.发送数据-send, 任意线程都可以调用(请求的响应, 推送给订阅者的消息), 先放进有界的发送队列
+ * 3.事件循环线程是唯一的写者, 把发送队列里积压的多个帧用一次聚集写(gathering write)写到 socket-flush
+ *   零拷贝的帧(带 FileRegion)帧头写完之后用 transferTo 把文件数据直接发出去
+ * 4.关闭连接-close
+ * 5.流量控制: 发送队列按字节数限额; 上层可以暂停/恢复读这个连接-pauseReading/resumeReading
+ * 6.帧压缩: 解析时把 type 里的压缩标记拆出来, 协商好的压缩阈值记在连接上-enableCompression
+ * 7.编码: 第一个请求帧是什么编码, 发给这个连接的响应和推送就用什么编码-setEncoding
+ *
+ * @author Liyc
+ * @date 2026/10/17 09:20
+ **/
+
+public class NioConnection {
+    //帧长度上限, 防止错误的报文让服务器分配超大的数组
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    //发送队列最多缓存的帧数
+    public static final int MAX_PENDING_FRAMES = 1024;
+    //发送队列最多缓存的字节数, 对端读得慢时, 推送消息的线程会在这里等待
+    public static final int MAX_OUTBOUND_BYTES = 8 * 1024 * 1024;
+    //一次聚集写最多带的 buffer 个数和字节数
+    private static final int MAX_GATHER_BUFFERS = 128;
+    private static final long MAX_GATHER_BYTES = 256 * 1024;
+    //发送队列满了之后, 发送方最多等待的时间. 超时说明对端长时间不读数据, 直接断开
+    private static final long SEND_TIMEOUT_MS = 30 * 1000;
+
+    private final NioEventLoop eventLoop;
+    private final SocketChannel socketChannel;
+    private final SelectionKey key;
+    private final RequestHandler handler;
+    private final String remoteAddress;
+
+    //解析状态: header 读满 8 个字节之后, 再按 length 读 payload
+    private final ByteBuffer header = ByteBuffer.allocate(8);
+    private int type;
+    private byte[] payload;
+    private int payloadPos;
+    //暂停读的时候读缓冲区里还没解析的数据, 恢复之后先解析它, 保证请求的顺序
+    private ByteBuffer pendingInput;
+
+    //发送队列: 多个线程放, 只有事件循环线程取
+    private final ArrayBlockingQueue<OutboundFrame> writeQueue = new ArrayBlockingQueue<>(MAX_PENDING_FRAMES);
+    //发送队列的字节额度, 帧入队前申请, 写到 socket 之后归还
+    private final Semaphore outboundBytes = new Semaphore(MAX_OUTBOUND_BYTES, true);
+    //已经有 flush 在进行(任务已提交, 或者 socket 写满在等 OP_WRITE), 新入队的帧不用再提交任务
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    //聚集写的状态, 只有事件循环线程访问. [gatherIndex, gatherEnd) 是还没写完的 buffer
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+    private int gatherIndex;
+    private int gatherEnd;
+    private int gatherFrames;
+    private long gatherBytes;
+    private int gatherBudget;
+    //帧头已经放进聚集写数组, 文件部分还没发送的零拷贝帧
+    private OutboundFrame regionFrame;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    //暂停读的原因(按位), 为 0 才读 socket. 不读 socket, 对端就会被 TCP 的窗口挡住
+    private final AtomicInteger readPauseReasons = new AtomicInteger();
+    //已经解析出来还没处理完的请求数
+    private final AtomicInteger inflightRequests = new AtomicInteger();
+    //创建 channel 时协商的压缩阈值, payload 达到这个字节数才压缩, 0 表示这个连接不压缩
+    private volatile int compressThreshold = 0;
+    //响应和推送用的编码, 按第一个请求帧的编码确定(见 WireCodec), -1 表示还没收到请求
+    private volatile int encoding = -1;
+
+    public NioConnection(NioEventLoop eventLoop, SocketChannel socketChannel, SelectionKey key, RequestHandler handler) {
+        this.eventLoop = eventLoop;
+        this.socketChannel = socketChannel;
+        this.key = key;
+        this.handler = handler;
+        this.remoteAddress = String.valueOf(socketChannel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * 读取 socket 中当前可读的数据, 解析出所有完整的请求帧交给 handler
+     * 半包数据保存在连接的解析状态里, 等下一次可读事件再继续
+     * @param readBuffer 事件循环共用的读缓冲区
+     */
+    void read(ByteBuffer readBuffer) throws IOException {
+        if (pendingInput != null) {
+            // 还有暂停时留下的数据没解析, 等恢复读的时候先解析它
+            return;
+        }
+        while (true) {
+            readBuffer.clear();
+            int n = socketChannel.read(readBuffer);
+            if (n < 0) {
+                // 对端关闭了连接
+                close();
+                return;
+            }
+            if (n == 0) {
+                return;
+            }
+            readBuffer.flip();
+            decode(readBuffer, false);
+            if (closed.get() || readPauseReasons.get() != 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 解析 buffer 里的请求帧
+     * 解析过程中被暂停读(在途请求太多等), 剩下的数据先留在 pendingInput, 不再继续往上层交请求
+     * @param buffer
+     * @param owned buffer 是不是这个连接自己的(不是事件循环共用的读缓冲区), 是的话留下时不用拷贝
+     */
+    private void decode(ByteBuffer buffer, boolean owned) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (readPauseReasons.get() != 0) {
+                if (owned) {
+                    pendingInput = buffer;
+                } else {
+                    pendingInput = ByteBuffer.allocate(buffer.remaining());
+                    pendingInput.put(buffer);
+                    pendingInput.flip();
+                }
+                return;
+            }
+            if (payload == null) {
+                //1.读 header
+                while (header.hasRemaining() && buffer.hasRemaining()) {
+                    header.put(buffer.get());
+                }
+                if (header.hasRemaining()) {
+                    return;
+                }
+                header.flip();
+                type = header.getInt();
+                int length = header.getInt();
+                header.clear();
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("request请求报文长度错误! length=" + length);
+                }
+                payload = new byte[length];
+                payloadPos = 0;
+            }
+            //2.读 payload
+            int n = Math.min(buffer.remaining(), payload.length - payloadPos);
+            buffer.get(payload, payloadPos, n);
+            payloadPos += n;
+            if (payloadPos < payload.length) {
+                return;
+            }
+            //3.一个完整的请求
+            Request request = new Request();
+            request.setType(type & FrameCompressor.TYPE_MASK);
+            request.setCompressed((type & FrameCompressor.FLAG_COMPRESSED) != 0);
+            request.setLength(payload.length);
+            request.setPayload(payload);
+            payload = null;
+            handler.handleRequest(this, request);
+        }
+    }
+
+    public void send(ByteBuffer frame) throws IOException {
+        send(new OutboundFrame(frame));
+    }
+
+    /**
+     * 发送一个完整的帧, 任意线程都可以调用
+     * 先申请字节额度再入队, 额度或者队列满了就阻塞等待, 让生产太快的一方慢下来
+     * @param frame
+     */
+    public void send(OutboundFrame frame) throws IOException {
+        int budget = (int) Math.min(frame.heapBytes() + frame.fileBytes(), MAX_OUTBOUND_BYTES);
+        frame.setBudget(budget);
+        if (eventLoop.inEventLoop()) {
+            // 事件循环线程自己就是写者, 不能在这里阻塞等自己
+            if (!outboundBytes.tryAcquire(budget)) {
+                sendFailed(frame, 0, "[NioConnection] 发送队列已满! remote=" + remoteAddress);
+            }
+            if (!writeQueue.offer(frame)) {
+                sendFailed(frame, budget, "[NioConnection] 发送队列已满! remote=" + remoteAddress);
+            }
+        } else {
+            long deadline = System.currentTimeMillis() + SEND_TIMEOUT_MS;
+            try {
+                while (!outboundBytes.tryAcquire(budget, 100, TimeUnit.MILLISECONDS)) {
+                    checkWaiting(frame, 0, deadline);
+                }
+                while (!writeQueue.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+                    checkWaiting(frame, budget, deadline);
+                }
+            } catch (InterruptedException e) {
+                frame.release();
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        if (closed.get()) {
+            // 入队的同时连接被关闭了, 帧可能没被 close 清理到
+            releaseQueued();
+            throw new IOException("[NioConnection] 连接已经关闭! remote=" + remoteAddress);
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+    }
+
+    // 等待发送额度的过程中, 连接关了或者等太久了就放弃
+    private void checkWaiting(OutboundFrame frame, int budgetHeld, long deadline) throws IOException {
+        if (closed.get()) {
+            frame.release();
+            outboundBytes.release(budgetHeld);
+            throw new IOException("[NioConnection] 连接已经关闭! remote=" + remoteAddress);
+        }
+        if (System.currentTimeMillis() > deadline) {
+            sendFailed(frame, budgetHeld, "[NioConnection] 发送队列已满, 等待超时! remote=" + remoteAddress);
+        }
+    }
+
+    private void sendFailed(OutboundFrame frame, int budgetHeld, String reason) throws IOException {
+        frame.release();
+        outboundBytes.release(budgetHeld);
+        close();
+        throw new IOException(reason);
+    }
+
+    /**
+     * 把发送队列里的数据写到 socket, 只在事件循环线程上调用
+     * 自适应的 flush 策略:
+     * 1.连接空闲时, 第一个帧入队就提交 flush 任务, 马上写出去, 不额外等待
+     * 2.有负载时, flush 任务还没执行或者 socket 写满在等 OP_WRITE, 这期间新来的帧只入队, 不再提交任务,
+     *   下一次 flush 把积压的帧(每个帧是帧头 + 正文两块 buffer)一次聚集写出去, 负载越高每次带的帧越多
+     * 零拷贝的帧: 帧头跟前面的帧一起聚集写, 写完之后再 transferTo 文件部分.
+     * 写不完的部分留着, 注册 OP_WRITE 等 socket 可写了再继续
+     */
+    void flush() throws IOException {
+        while (!closed.get()) {
+            //1.先把上次没写完的写出去
+            if (gatherEnd > 0) {
+                socketChannel.write(gatherBuffers, gatherIndex, gatherEnd - gatherIndex);
+                while (gatherIndex < gatherEnd && !gatherBuffers[gatherIndex].hasRemaining()) {
+                    gatherBuffers[gatherIndex++] = null;
+                }
+                if (gatherIndex < gatherEnd) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                eventLoop.getFlushStats().record(gatherFrames, gatherBytes);
+                outboundBytes.release(gatherBudget);
+                gatherIndex = 0;
+                gatherEnd = 0;
+            }
+            //2.零拷贝帧的文件部分
+            if (regionFrame != null) {
+                if (!regionFrame.transferFileRegion(socketChannel)) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                regionFrame.release();
+                outboundBytes.release(regionFrame.getBudget());
+                regionFrame = null;
+            }
+            //3.从发送队列取出积压的帧, 放进聚集写的数组
+            gatherFrames = 0;
+            gatherBytes = 0;
+            gatherBudget = 0;
+            OutboundFrame frame;
+            while (gatherEnd + 2 <= MAX_GATHER_BUFFERS && gatherBytes < MAX_GATHER_BYTES
+                    && (frame = writeQueue.poll()) != null) {
+                gatherEnd = frame.addBuffers(gatherBuffers, gatherEnd);
+                gatherFrames++;
+                gatherBytes += frame.heapBytes() + frame.fileBytes();
+                if (frame.hasFileRegion()) {
+                    regionFrame = frame;
+                    break;
+                }
+                gatherBudget += frame.getBudget();
+            }
+            if (gatherEnd == 0) {
+                //4.发送队列空了. 先清标记再检查一次, 防止有帧在清标记之前入队但没提交 flush 任务
+                flushScheduled.set(false);
+                if (writeQueue.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    break;
+                }
+            }
+        }
+        if (!closed.get()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * 暂停读这个连接, 可以有多个原因同时暂停, 每个原因都恢复了才继续读
+     * @param reason 暂停原因, 按位区分
+     */
+    public void pauseReading(int reason) {
+        int old = readPauseReasons.getAndUpdate(r -> r | reason);
+        if (old == 0) {
+            updateReadInterest();
+        }
+    }
+
+    public void resumeReading(int reason) {
+        int old = readPauseReasons.getAndUpdate(r -> r & ~reason);
+        if (old != 0 && (old & ~reason) == 0) {
+            updateReadInterest();
+        }
+    }
+
+    public boolean isReadPaused(int reason) {
+        return (readPauseReasons.get() & reason) != 0;
+    }
+
+    private void updateReadInterest() {
+        eventLoop.execute(() -> {
+            if (closed.get()) {
+                return;
+            }
+            if (readPauseReasons.get() != 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            if (pendingInput != null) {
+                ByteBuffer input = pendingInput;
+                pendingInput = null;
+                try {
+                    decode(input, true);
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        });
+    }
+
+    /**
+     * 在连接所在的事件循环上执行任务, 已经在事件循环线程上就直接执行
+     * @param task
+     */
+    public void execute(Runnable task) {
+        eventLoop.execute(task);
+    }
+
+    public int incrementInflight() {
+        return inflightRequests.incrementAndGet();
+    }
+
+    public int decrementInflight() {
+        return inflightRequests.decrementAndGet();
+    }
+
+    public void enableCompression(int threshold) {
+        this.compressThreshold = threshold;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public void setEncoding(int encoding) {
+        this.encoding = encoding;
+    }
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * 关闭连接, 可以重复调用
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        key.cancel();
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        releaseQueued();
+        handler.connectionClosed(this);
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // 丢弃发送队列里还没发出去的帧, 释放零拷贝帧打开的文件
+    private void releaseQueued() {
+        OutboundFrame frame;
+        while ((frame = writeQueue.poll()) != null) {
+            frame.release();
+        }
+        eventLoop.execute(() -> {
+            Arrays.fill(gatherBuffers, null);
+            gatherIndex = 0;
+            gatherEnd = 0;
+            if (regionFrame != null) {
+                regionFrame.release();
+                regionFrame = null;
+            }
+        });
+    }
+}
@@ -0,0 +1,156 @@
+package com.liyc.mqs.mqserver.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * I/O 事件循环, 一个线程 + 一个 Selector 负责一批连接的读写.
+ * 1.注册新连接-register
+ * 2.其他线程提交任务到事件循环-execute
+ * 3.循环 select, 分发读写事件
+ * 4.停止-shutdown
+ *
+ * @author Liyc
+ * @date 2026/10/17 09:15
+ **/
+
+public class NioEventLoop implements Runnable {
+    //读缓冲区大小, 同一个事件循环里的连接共用一块
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final RequestHandler handler;
+    private final Thread thread;
+    //其他线程提交过来的任务(注册连接, 写数据等), 统一在事件循环线程上执行
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    //这个事件循环上所有连接写 socket 的统计
+    private final FlushStats flushStats = new FlushStats();
+    private volatile boolean runable = true;
+
+    public NioEventLoop(String name, RequestHandler handler) throws IOException {
+        this.selector = Selector.open();
+        this.handler = handler;
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public FlushStats getFlushStats() {
+        return flushStats;
+    }
+
+    /**
+     * 其他线程提交任务到事件循环
+     * @param task
+     */
+    public void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        taskQueue.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * 注册新连接, 由 accept 线程调用
+     * @param socketChannel
+     */
+    public void register(SocketChannel socketChannel) {
+        execute(() -> {
+            try {
+                socketChannel.configureBlocking(false);
+                socketChannel.socket().setTcpNoDelay(true);
+                SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(this, socketChannel, key, handler);
+                key.attach(connection);
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    socketChannel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (runable) {
+            try {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    processKey(key);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.read(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            // 对端断开或者读写出错, 直接关闭这个连接, 不影响同一个事件循环里的其他连接
+            connection.close();
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) {
+                ((NioConnection) key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 停止事件循环, 关闭所有连接
+     */
+    public void shutdown() {
+        runable = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,97 @@
+package com.liyc.mqs.mqserver.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 放进连接发送队列的一个帧.
+ * 1.普通的帧: 帧头 + 正文, 两块堆上的 buffer, 发送时和其他帧一起聚集写(gathering write), 不用先拷贝到一起
+ * 2.零拷贝的帧: 堆上只有很小的帧头, 正文是消息文件里的一段数据(FileRegion)
+ *
+ * @author Liyc
+ * @date 2026/10/17 11:05
+ **/
+
+public class OutboundFrame {
+    private final ByteBuffer header;
+    private final ByteBuffer body;
+    private final FileRegion fileRegion;
+    //入队时占用的发送额度(字节), 发送完归还
+    private int budget;
+
+    public OutboundFrame(ByteBuffer buffer) {
+        this(buffer, null, null);
+    }
+
+    public OutboundFrame(ByteBuffer header, ByteBuffer body) {
+        this(header, body, null);
+    }
+
+    public OutboundFrame(ByteBuffer header, FileRegion fileRegion) {
+        this(header, null, fileRegion);
+    }
+
+    private OutboundFrame(ByteBuffer header, ByteBuffer body, FileRegion fileRegion) {
+        this.header = header;
+        this.body = body;
+        this.fileRegion = fileRegion;
+    }
+
+    int getBudget() {
+        return budget;
+    }
+
+    void setBudget(int budget) {
+        this.budget = budget;
+    }
+
+    public boolean hasFileRegion() {
+        return fileRegion != null;
+    }
+
+    // 堆上的 buffer 个数, 最多两个
+    int bufferCount() {
+        return body == null ? 1 : 2;
+    }
+
+    // 堆上的字节数
+    long heapBytes() {
+        return header.remaining() + (body == null ? 0 : body.remaining());
+    }
+
+    // 文件部分的字节数
+    long fileBytes() {
+        return fileRegion == null ? 0 : fileRegion.getCount();
+    }
+
+    /**
+     * 把堆上的 buffer 放进聚集写的数组
+     * @param buffers
+     * @param index 从这个位置开始放
+     * @return 放完之后的下一个位置
+     */
+    int addBuffers(ByteBuffer[] buffers, int index) {
+        buffers[index++] = header;
+        if (body != null) {
+            buffers[index++] = body;
+        }
+        return index;
+    }
+
+    /**
+     * 发送文件部分, 堆上的帧头要先写完
+     * @param socketChannel
+     * @return 是否全部写完
+     */
+    boolean transferFileRegion(SocketChannel socketChannel) throws IOException {
+        return fileRegion.transferTo(socketChannel);
+    }
+
+    // 发送完或者被丢弃时调用, 释放文件
+    void release() {
+        if (fileRegion != null) {
+            fileRegion.release();
+        }
+    }
+}
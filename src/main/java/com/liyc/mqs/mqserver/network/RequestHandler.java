@@ -0,0 +1,20 @@
+package com.liyc.mqs.mqserver.network;
+
+import com.liyc.mqs.common.Request;
+
+/**
+ * I/O 事件循环把解析出来的完整请求交给上层处理的回调接口.
+ * 1.收到一个完整的 Request 帧
+ * 2.连接被关闭
+ *
+ * @author Liyc
+ * @date 2026/10/17 09:12
+ **/
+
+public interface RequestHandler {
+    // 在事件循环线程上调用, 实现里不要长时间阻塞, 耗时的处理应该交给其他线程.
+    // 同一个连接上可能连续收到多个请求, 每解析出一个就回调一次.
+    void handleRequest(NioConnection connection, Request request);
+
+    void connectionClosed(NioConnection connection);
+}
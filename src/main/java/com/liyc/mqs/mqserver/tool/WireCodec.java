@@ -0,0 +1,686 @@
+package com.liyc.mqs.mqserver.tool;
+
+import com.liyc.mqs.common.*;
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.ExchangeType;
+import com.liyc.mqs.mqserver.core.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 网络帧的二进制编解码工具类, 代替 Java 序列化
+ * 每种帧 type 有固定的字段顺序, 不再把类描述信息写到网络上, 解码也不走反射
+ * 格式: 版本号(1字节) + 按 type 固定顺序排列的字段
+ * 1.整数用 varint, 字符串和字节数组用 varint 长度前缀(0 表示 null, 其余是长度+1), 布尔用 1 个字节
+ * 2.编码-encode
+ * 3.解码-decode, 直接从 ByteBuffer 读
+ * 4.第一个字节是 0xAC 的 payload 是老客户端发来的 Java 序列化数据, 交给 BinaryTool 解析
+ *   老客户端只认识 Java 序列化, 发给它的响应和推送也要用 Java 序列化-encode(type, object, encoding)
+ * 5.固定字段后面追加的字段是可选的, 老版本的报文里没有就用默认值(比如 0x1 里协商帧压缩的字段)
+ *   响应(0xd)的公共字段后面可以跟一个扩展: 扩展类型(varint) + 扩展字段, 用来带创建 channel、批量发布这些命令自己的结果
+ * 6.零拷贝投递(0xe)不是这个格式: consumerTag长度(4) + consumerTag + 消息文件里存的 Message 记录, 解码成和 0xc 一样的 SubScribeReturns-decodeDelivery
+ *
+ * @author Liyc
+ * @date 2026/10/17 15:20
+ **/
+
+public class WireCodec {
+    //当前的编码版本
+    public static final byte VERSION = 1;
+    //Java 序列化的数据都以 0xACED 开头
+    private static final byte JAVA_SERIAL_MAGIC = (byte) 0xAC;
+    //连接的编码, 按连接发来的第一个请求确定, 响应和推送用同样的编码
+    public static final int ENCODING_WIRE = 0;
+    public static final int ENCODING_JAVA = 1;
+
+    //arguments 里 value 的类型标记
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_INT = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_BOOLEAN = 4;
+    //其他类型的 value 不常见, 还是用 Java 序列化
+    private static final byte VALUE_SERIALIZED = 5;
+
+    //响应的扩展类型
+    private static final int RETURNS_CHANNEL_CREATE = 1;
+    private static final int RETURNS_BATCH_PUBLISH = 2;
+
+    /**
+     * 编码
+     * @param type 帧的 type, 决定字段的顺序
+     * @param object 要编码的参数或者返回值
+     * @return
+     */
+    public static byte[] encode(int type, Object object) throws IOException {
+        Encoder out = new Encoder(estimateBodyLength(object));
+        out.writeByte(VERSION);
+        if ((type >= 0x1 && type <= 0xb) || type == 0x10) {
+            BasicArguments arguments = (BasicArguments) object;
+            out.writeString(arguments.getRid());
+            out.writeString(arguments.getChannelId());
+        } else if (type == 0xc || type == 0xd || type == 0xf) {
+            BasicReturns returns = (BasicReturns) object;
+            out.writeString(returns.getRid());
+            out.writeString(returns.getChannelId());
+            out.writeBoolean(returns.isOk());
+        }
+
+        if (type == 0x1 || type == 0xd) {
+            //可选的帧压缩协商字段
+            if (object instanceof ChannelCreateArguments) {
+                out.writeVarint(((ChannelCreateArguments) object).getCompression());
+                out.writeVarint(((ChannelCreateArguments) object).getCompressThreshold());
+            } else if (object instanceof ChannelCreateReturns) {
+                out.writeVarint(RETURNS_CHANNEL_CREATE);
+                out.writeVarint(((ChannelCreateReturns) object).getCompression());
+                out.writeVarint(((ChannelCreateReturns) object).getCompressThreshold());
+            } else if (object instanceof BatchPublishReturns) {
+                BatchPublishReturns batchReturns = (BatchPublishReturns) object;
+                boolean[] results = batchReturns.getResults();
+                out.writeVarint(RETURNS_BATCH_PUBLISH);
+                out.writeVarint(results.length);
+                for (int i = 0; i < results.length; i++) {
+                    out.writeBoolean(results[i]);
+                    out.writeString(batchReturns.getMessageIds()[i]);
+                }
+            }
+        } else if (type == 0x2) {
+            //只有公共字段
+        } else if (type == 0x3) {
+            ExchangeDeclareArguments exchange = (ExchangeDeclareArguments) object;
+            out.writeString(exchange.getExchangeName());
+            out.writeVarint(exchange.getType() == null ? 0 : exchange.getType().ordinal() + 1);
+            out.writeBoolean(exchange.isDurable());
+            out.writeBoolean(exchange.isAutoDelete());
+            out.writeArguments(exchange.getArguments());
+        } else if (type == 0x4) {
+            out.writeString(((ExchangeDeleteArguments) object).getExchangeName());
+        } else if (type == 0x5) {
+            QueueDeclareArguments queue = (QueueDeclareArguments) object;
+            out.writeString(queue.getQueueName());
+            out.writeBoolean(queue.isExclusive());
+            out.writeBoolean(queue.isDurable());
+            out.writeBoolean(queue.isAutoDelete());
+            out.writeArguments(queue.getArguments());
+        } else if (type == 0x6) {
+            out.writeString(((QueueDeleteArguments) object).getQueueName());
+        } else if (type == 0x7) {
+            QueueBindArguments binding = (QueueBindArguments) object;
+            out.writeString(binding.getExchangeName());
+            out.writeString(binding.getQueueName());
+            out.writeString(binding.getBindingKey());
+        } else if (type == 0x8) {
+            QueueUnbindArguments binding = (QueueUnbindArguments) object;
+            out.writeString(binding.getExchangeName());
+            out.writeString(binding.getQueueName());
+        } else if (type == 0x9) {
+            BasicPublishArguments publish = (BasicPublishArguments) object;
+            out.writeString(publish.getExchangeName());
+            out.writeString(publish.getRoutingKey());
+            out.writeProperties(publish.getBasicProperties());
+            out.writeBytes(publish.getBytes());
+        } else if (type == 0xa) {
+            BasicConsumeArguments consume = (BasicConsumeArguments) object;
+            out.writeString(consume.getConsumerTag());
+            out.writeString(consume.getQueueName());
+            out.writeBoolean(consume.isAutoAck());
+        } else if (type == 0xb) {
+            BasicAckArguments ack = (BasicAckArguments) object;
+            out.writeString(ack.getQueueName());
+            out.writeString(ack.getMessageId());
+        } else if (type == 0xc) {
+            SubScribeReturns subReturns = (SubScribeReturns) object;
+            out.writeString(subReturns.getConsumerTag());
+            out.writeProperties(subReturns.getBasicProperties());
+            out.writeBytes(subReturns.getBody());
+        } else if (type == 0xf) {
+            FlowControlReturns flowReturns = (FlowControlReturns) object;
+            out.writeVarint(flowReturns.getCredit());
+            out.writeBoolean(flowReturns.isBlocked());
+        } else if (type == 0x10) {
+            BatchPublishArguments batch = (BatchPublishArguments) object;
+            out.writeString(batch.getExchangeName());
+            out.writeVarint(batch.getEntries().size());
+            for (BatchPublishArguments.Entry entry : batch.getEntries()) {
+                out.writeString(entry.getRoutingKey());
+                out.writeProperties(entry.getBasicProperties());
+                out.writeBytes(entry.getBytes());
+            }
+        } else {
+            // 编码的 type 都是服务器自己指定的, 走到这里是代码写错了
+            throw new IllegalArgumentException("[WireCodec] 未知的 type! type=" + type);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码
+     * @param type 帧的 type
+     * @param payload
+     * @return
+     */
+    public static Object decode(int type, byte[] payload) throws IOException, ClassNotFoundException, MqException {
+        return decode(type, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * 按连接的编码编码响应和推送
+     * @param type 帧的 type
+     * @param object 要编码的返回值
+     * @param encoding ENCODING_WIRE 或 ENCODING_JAVA
+     * @return
+     */
+    public static byte[] encode(int type, Object object, int encoding) throws IOException {
+        if (encoding == ENCODING_JAVA) {
+            return BinaryTool.formatByte(object);
+        }
+        return encode(type, object);
+    }
+
+    /**
+     * payload 的编码
+     * @param payload
+     * @return 第一个字节是 0xAC 的是 ENCODING_JAVA, 其余是 ENCODING_WIRE
+     */
+    public static int encodingOf(byte[] payload) {
+        return payload.length > 0 && payload[0] == JAVA_SERIAL_MAGIC ? ENCODING_JAVA : ENCODING_WIRE;
+    }
+
+    /**
+     * 解码零拷贝投递(0xe), 得到的 SubScribeReturns 和普通推送(0xc)的一样, 客户端按同一个路径交给消费者
+     * @param buffer consumerTag长度(4) + consumerTag + 消息文件里存的 Message 记录(Java 序列化)
+     * @return
+     */
+    public static SubScribeReturns decodeDelivery(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        if (buffer.remaining() < 4) {
+            throw new IOException("[WireCodec] payload 不完整!");
+        }
+        int tagLength = buffer.getInt();
+        if (tagLength < 0 || tagLength > buffer.remaining()) {
+            throw new IOException("[WireCodec] consumerTag 长度错误! length=" + tagLength);
+        }
+        byte[] tag = new byte[tagLength];
+        buffer.get(tag);
+        byte[] record = new byte[buffer.remaining()];
+        buffer.get(record);
+        Object object = BinaryTool.parseByte(record);
+        if (!(object instanceof Message)) {
+            throw new IOException("[WireCodec] 投递的记录不是消息! record=" + (object == null ? null : object.getClass().getName()));
+        }
+        Message message = (Message) object;
+        String consumerTag = new String(tag, StandardCharsets.UTF_8);
+        SubScribeReturns subReturns = new SubScribeReturns();
+        subReturns.setChannelId(consumerTag);
+        subReturns.setRid("");
+        subReturns.setOk(true);
+        subReturns.setConsumerTag(consumerTag);
+        subReturns.setBasicProperties(message.getBasicProperties());
+        subReturns.setBody(message.getBody());
+        return subReturns;
+    }
+
+    /**
+     * 只读出请求的 channelId, 事件循环用它把同一个 channel 的请求排到一起, 不用解码整个 payload
+     * @param payload 请求的 payload, 可以只是开头的一段
+     * @return Java 序列化的 payload 返回 null
+     */
+    public static String peekChannelId(byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        if (!buffer.hasRemaining()) {
+            throw new IOException("[WireCodec] payload 为空!");
+        }
+        byte version = buffer.get();
+        if (version == JAVA_SERIAL_MAGIC) {
+            return null;
+        }
+        if (version != VERSION) {
+            throw new IOException("[WireCodec] 不支持的编码版本! version=" + version);
+        }
+        readString(buffer);
+        return readString(buffer);
+    }
+
+    /**
+     * 解码, 从 buffer 当前的 position 读到 limit
+     * @param type 帧的 type
+     * @param buffer
+     * @return
+     */
+    public static Object decode(int type, ByteBuffer buffer) throws IOException, ClassNotFoundException, MqException {
+        if (!buffer.hasRemaining()) {
+            throw new IOException("[WireCodec] payload 为空! type=" + type);
+        }
+        if (type == 0xe) {
+            return decodeDelivery(buffer);
+        }
+        byte version = buffer.get(buffer.position());
+        if (version == JAVA_SERIAL_MAGIC) {
+            //老客户端, 还是 Java 序列化
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return BinaryTool.parseByte(bytes);
+        }
+        if (version != VERSION) {
+            throw new IOException("[WireCodec] 不支持的编码版本! version=" + version);
+        }
+        buffer.get();
+
+        BasicArguments arguments = null;
+        BasicReturns returns = null;
+        if (type == 0x1) {
+            arguments = new ChannelCreateArguments();
+        } else if (type == 0x2) {
+            arguments = new BasicArguments();
+        } else if (type == 0x3) {
+            arguments = new ExchangeDeclareArguments();
+        } else if (type == 0x4) {
+            arguments = new ExchangeDeleteArguments();
+        } else if (type == 0x5) {
+            arguments = new QueueDeclareArguments();
+        } else if (type == 0x6) {
+            arguments = new QueueDeleteArguments();
+        } else if (type == 0x7) {
+            arguments = new QueueBindArguments();
+        } else if (type == 0x8) {
+            arguments = new QueueUnbindArguments();
+        } else if (type == 0x9) {
+            arguments = new BasicPublishArguments();
+        } else if (type == 0xa) {
+            arguments = new BasicConsumeArguments();
+        } else if (type == 0xb) {
+            arguments = new BasicAckArguments();
+        } else if (type == 0x10) {
+            arguments = new BatchPublishArguments();
+        } else if (type == 0xc) {
+            returns = new SubScribeReturns();
+        } else if (type == 0xd) {
+            returns = new BasicReturns();
+        } else if (type == 0xf) {
+            returns = new FlowControlReturns();
+        } else {
+            throw new MqException("[WireCodec] 未知的 type! type=" + type);
+        }
+        if (arguments != null) {
+            arguments.setRid(readString(buffer));
+            arguments.setChannelId(readString(buffer));
+        } else {
+            returns.setRid(readString(buffer));
+            returns.setChannelId(readString(buffer));
+            returns.setOk(readBoolean(buffer));
+        }
+
+        if (type == 0x1) {
+            if (buffer.hasRemaining()) {
+                ChannelCreateArguments channelCreate = (ChannelCreateArguments) arguments;
+                channelCreate.setCompression(readVarint(buffer));
+                channelCreate.setCompressThreshold(readVarint(buffer));
+            }
+        } else if (type == 0xd) {
+            if (buffer.hasRemaining()) {
+                returns = readReturnsExtension(buffer, returns);
+            }
+        } else if (type == 0x3) {
+            ExchangeDeclareArguments exchange = (ExchangeDeclareArguments) arguments;
+            exchange.setExchangeName(readString(buffer));
+            int exchangeType = readVarint(buffer);
+            if (exchangeType < 0 || exchangeType > ExchangeType.values().length) {
+                throw new IOException("[WireCodec] 未知的交换机类型! exchangeType=" + exchangeType);
+            }
+            exchange.setType(exchangeType == 0 ? null : ExchangeType.values()[exchangeType - 1]);
+            exchange.setDurable(readBoolean(buffer));
+            exchange.setAutoDelete(readBoolean(buffer));
+            exchange.setArguments(readArguments(buffer));
+        } else if (type == 0x4) {
+            ((ExchangeDeleteArguments) arguments).setExchangeName(readString(buffer));
+        } else if (type == 0x5) {
+            QueueDeclareArguments queue = (QueueDeclareArguments) arguments;
+            queue.setQueueName(readString(buffer));
+            queue.setExclusive(readBoolean(buffer));
+            queue.setDurable(readBoolean(buffer));
+            queue.setAutoDelete(readBoolean(buffer));
+            queue.setArguments(readArguments(buffer));
+        } else if (type == 0x6) {
+            ((QueueDeleteArguments) arguments).setQueueName(readString(buffer));
+        } else if (type == 0x7) {
+            QueueBindArguments binding = (QueueBindArguments) arguments;
+            binding.setExchangeName(readString(buffer));
+            binding.setQueueName(readString(buffer));
+            binding.setBindingKey(readString(buffer));
+        } else if (type == 0x8) {
+            QueueUnbindArguments binding = (QueueUnbindArguments) arguments;
+            binding.setExchangeName(readString(buffer));
+            binding.setQueueName(readString(buffer));
+        } else if (type == 0x9) {
+            BasicPublishArguments publish = (BasicPublishArguments) arguments;
+            publish.setExchangeName(readString(buffer));
+            publish.setRoutingKey(readString(buffer));
+            publish.setBasicProperties(readProperties(buffer));
+            publish.setBytes(readBytes(buffer));
+        } else if (type == 0xa) {
+            BasicConsumeArguments consume = (BasicConsumeArguments) arguments;
+            consume.setConsumerTag(readString(buffer));
+            consume.setQueueName(readString(buffer));
+            consume.setAutoAck(readBoolean(buffer));
+        } else if (type == 0xb) {
+            BasicAckArguments ack = (BasicAckArguments) arguments;
+            ack.setQueueName(readString(buffer));
+            ack.setMessageId(readString(buffer));
+        } else if (type == 0xc) {
+            SubScribeReturns subReturns = (SubScribeReturns) returns;
+            subReturns.setConsumerTag(readString(buffer));
+            subReturns.setBasicProperties(readProperties(buffer));
+            subReturns.setBody(readBytes(buffer));
+        } else if (type == 0xf) {
+            FlowControlReturns flowReturns = (FlowControlReturns) returns;
+            flowReturns.setCredit(readVarint(buffer));
+            flowReturns.setBlocked(readBoolean(buffer));
+        } else if (type == 0x10) {
+            BatchPublishArguments batch = (BatchPublishArguments) arguments;
+            batch.setExchangeName(readString(buffer));
+            int count = readCount(buffer);
+            List<BatchPublishArguments.Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                BatchPublishArguments.Entry entry = new BatchPublishArguments.Entry();
+                entry.setRoutingKey(readString(buffer));
+                entry.setBasicProperties(readProperties(buffer));
+                entry.setBytes(readBytes(buffer));
+                entries.add(entry);
+            }
+            batch.setEntries(entries);
+        }
+        return arguments != null ? arguments : returns;
+    }
+
+    private static int bodyLength(byte[] body) {
+        return body == null ? 0 : body.length;
+    }
+
+    // 按消息体的大小预估编码后的长度, 避免编码过程中扩容
+    private static int estimateBodyLength(Object object) {
+        if (object instanceof BasicPublishArguments) {
+            return bodyLength(((BasicPublishArguments) object).getBytes());
+        }
+        if (object instanceof SubScribeReturns) {
+            return bodyLength(((SubScribeReturns) object).getBody());
+        }
+        if (object instanceof BatchPublishArguments && ((BatchPublishArguments) object).getEntries() != null) {
+            int length = 0;
+            for (BatchPublishArguments.Entry entry : ((BatchPublishArguments) object).getEntries()) {
+                length += bodyLength(entry.getBytes()) + 64;
+            }
+            return length;
+        }
+        return 0;
+    }
+
+    // 响应公共字段后面的扩展
+    private static BasicReturns readReturnsExtension(ByteBuffer buffer, BasicReturns common) throws IOException {
+        int kind = readVarint(buffer);
+        BasicReturns returns;
+        if (kind == RETURNS_CHANNEL_CREATE) {
+            ChannelCreateReturns channelCreate = new ChannelCreateReturns();
+            channelCreate.setCompression(readVarint(buffer));
+            channelCreate.setCompressThreshold(readVarint(buffer));
+            returns = channelCreate;
+        } else if (kind == RETURNS_BATCH_PUBLISH) {
+            BatchPublishReturns batchReturns = new BatchPublishReturns();
+            int count = readCount(buffer);
+            boolean[] results = new boolean[count];
+            String[] messageIds = new String[count];
+            for (int i = 0; i < count; i++) {
+                results[i] = readBoolean(buffer);
+                messageIds[i] = readString(buffer);
+            }
+            batchReturns.setResults(results);
+            batchReturns.setMessageIds(messageIds);
+            returns = batchReturns;
+        } else {
+            // 不认识的扩展, 可能是更新版本的服务器加的, 忽略掉
+            return common;
+        }
+        returns.setRid(common.getRid());
+        returns.setChannelId(common.getChannelId());
+        returns.setOk(common.isOk());
+        return returns;
+    }
+
+    // 元素个数, 每个元素至少占一个字节, 不会超过剩下的长度
+    private static int readCount(ByteBuffer buffer) throws IOException {
+        int count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IOException("[WireCodec] 元素个数错误! count=" + count);
+        }
+        return count;
+    }
+
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("[WireCodec] payload 不完整!");
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("[WireCodec] varint 格式错误!");
+    }
+
+    private static long readVarlong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("[WireCodec] payload 不完整!");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("[WireCodec] varint 格式错误!");
+    }
+
+    private static boolean readBoolean(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new IOException("[WireCodec] payload 不完整!");
+        }
+        return buffer.get() != 0;
+    }
+
+    // 长度前缀: 0 是 null, 其余是长度+1
+    private static int readLength(ByteBuffer buffer) throws IOException {
+        int length = readVarint(buffer) - 1;
+        if (length < -1 || length > buffer.remaining()) {
+            throw new IOException("[WireCodec] 长度超出 payload! length=" + length + ", remaining=" + buffer.remaining());
+        }
+        return length;
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = readLength(buffer);
+        if (length < 0) {
+            return null;
+        }
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) throws IOException {
+        int length = readLength(buffer);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static BasicProperties readProperties(ByteBuffer buffer) throws IOException {
+        if (!readBoolean(buffer)) {
+            return null;
+        }
+        BasicProperties properties = new BasicProperties();
+        properties.setMessageId(readString(buffer));
+        properties.setRoutingKey(readString(buffer));
+        properties.setDurable(readVarint(buffer));
+        return properties;
+    }
+
+    private static HashMap<String, Object> readArguments(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        int size = readVarint(buffer) - 1;
+        if (size < 0) {
+            return null;
+        }
+        HashMap<String, Object> arguments = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = readString(buffer);
+            byte tag = buffer.hasRemaining() ? buffer.get() : -1;
+            Object value;
+            if (tag == VALUE_NULL) {
+                value = null;
+            } else if (tag == VALUE_STRING) {
+                value = readString(buffer);
+            } else if (tag == VALUE_INT) {
+                int v = readVarint(buffer);
+                value = (v >>> 1) ^ -(v & 1);
+            } else if (tag == VALUE_LONG) {
+                long v = readVarlong(buffer);
+                value = (v >>> 1) ^ -(v & 1);
+            } else if (tag == VALUE_BOOLEAN) {
+                value = readBoolean(buffer);
+            } else if (tag == VALUE_SERIALIZED) {
+                value = BinaryTool.parseByte(readBytes(buffer));
+            } else {
+                throw new IOException("[WireCodec] 未知的参数类型! tag=" + tag);
+            }
+            arguments.put(key, value);
+        }
+        return arguments;
+    }
+
+    /**
+     * 编码用的可扩容字节数组, 大小按消息体预估, 一般不需要扩容
+     */
+    private static class Encoder {
+        private byte[] buf;
+        private int pos = 0;
+
+        Encoder(int bodyLength) {
+            buf = new byte[128 + bodyLength];
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            if (bytes == null) {
+                writeVarint(0);
+                return;
+            }
+            writeVarint(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeString(String value) {
+            writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeProperties(BasicProperties properties) {
+            writeBoolean(properties != null);
+            if (properties == null) {
+                return;
+            }
+            writeString(properties.getMessageId());
+            writeString(properties.getRoutingKey());
+            writeVarint(properties.getDurable());
+        }
+
+        void writeArguments(Map<String, Object> arguments) throws IOException {
+            if (arguments == null) {
+                writeVarint(0);
+                return;
+            }
+            writeVarint(arguments.size() + 1);
+            for (Map.Entry<String, Object> entry : arguments.entrySet()) {
+                writeString(entry.getKey());
+                Object value = entry.getValue();
+                if (value == null) {
+                    writeByte(VALUE_NULL);
+                } else if (value instanceof String) {
+                    writeByte(VALUE_STRING);
+                    writeString((String) value);
+                } else if (value instanceof Integer) {
+                    // zigzag, 负数也只占几个字节
+                    int v = (Integer) value;
+                    writeByte(VALUE_INT);
+                    writeVarint((v << 1) ^ (v >> 31));
+                } else if (value instanceof Long) {
+                    long v = (Long) value;
+                    writeByte(VALUE_LONG);
+                    writeVarlong((v << 1) ^ (v >> 63));
+                } else if (value instanceof Boolean) {
+                    writeByte(VALUE_BOOLEAN);
+                    writeBoolean((Boolean) value);
+                } else {
+                    writeByte(VALUE_SERIALIZED);
+                    writeBytes(BinaryTool.formatByte(value));
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.common.BasicReturns;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求分发测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 16:40
+ **/
+@SpringBootTest
+public class CommandDispatcherTest {
+    private CommandDispatcher dispatcher = null;
+
+    @BeforeEach
+    public void setUp() {
+        dispatcher = new CommandDispatcher();
+        dispatcher.configure(CommandDispatcher.CommandClass.CONTROL, 1, 4);
+        dispatcher.configure(CommandDispatcher.CommandClass.PUBLISH, 1, 16);
+        dispatcher.configure(CommandDispatcher.CommandClass.ACK, 1, 16);
+        dispatcher.register(0x3, CommandDispatcher.CommandClass.CONTROL, (connection, arguments) -> CompletableFuture.completedFuture(new BasicReturns()));
+        dispatcher.register(0x9, CommandDispatcher.CommandClass.PUBLISH, (connection, arguments) -> CompletableFuture.completedFuture(new BasicReturns()));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dispatcher.shutdown();
+        dispatcher = null;
+    }
+
+    // 控制命令卡住的时候, 发布请求照样执行; 控制命令的队列满了就拒绝
+    @Test
+    public void testIsolation() throws InterruptedException {
+        CountDownLatch blocker = new CountDownLatch(1);
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertTrue(dispatcher.execute(0x3, () -> {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        // 1 个在执行, 4 个在排队, 再来就要拒绝
+        Assertions.assertFalse(dispatcher.execute(0x3, () -> {
+        }));
+        Assertions.assertEquals(1, dispatcher.getRejected(CommandDispatcher.CommandClass.CONTROL));
+        Assertions.assertEquals(4, dispatcher.getQueueDepth(CommandDispatcher.CommandClass.CONTROL));
+        Assertions.assertTrue(dispatcher.getMaxQueueDepth(CommandDispatcher.CommandClass.CONTROL) >= 3);
+
+        CountDownLatch published = new CountDownLatch(1);
+        Assertions.assertTrue(dispatcher.execute(0x9, published::countDown));
+        Assertions.assertTrue(published.await(1, TimeUnit.SECONDS));
+
+        blocker.countDown();
+        System.out.println("[CommandDispatcherTest] " + dispatcher.getStats());
+    }
+
+    @Test
+    public void testRegister() {
+        Assertions.assertTrue(dispatcher.isRegistered(0x3));
+        Assertions.assertNotNull(dispatcher.getHandler(0x9));
+        Assertions.assertFalse(dispatcher.isRegistered(0xb));
+        Assertions.assertNull(dispatcher.getHandler(0xb));
+        Assertions.assertFalse(dispatcher.execute(0xb, () -> {
+        }));
+    }
+
+    // 同一个 channel 流水线发来的控制命令和发布交替到达, 不同类别的线程池也按到达的顺序执行
+    @Test
+    public void testOrderByChannel() throws InterruptedException {
+        dispatcher.configure(CommandDispatcher.CommandClass.CONTROL, 4, 1024);
+        dispatcher.configure(CommandDispatcher.CommandClass.PUBLISH, 4, 1024);
+        List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(500);
+        for (int i = 0; i < 500; i++) {
+            int seq = i;
+            Assertions.assertTrue(dispatcher.execute(i % 3 == 0 ? 0x3 : 0x9, "channel-1", () -> {
+                executed.add(seq);
+                done.countDown();
+            }));
+        }
+        Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 500; i++) {
+            Assertions.assertEquals(i, (int) executed.get(i));
+        }
+    }
+
+    // 一个 channel 卡住的时候, 另一个 channel 的请求照样执行, 卡住的 channel 后面的请求排队等着
+    @Test
+    public void testIndependentChannels() throws InterruptedException {
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+        Assertions.assertTrue(dispatcher.execute(0x9, "channel-1", () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        Assertions.assertTrue(dispatcher.execute(0x9, "channel-1", second::countDown));
+        Assertions.assertEquals(1, dispatcher.getQueueDepth(CommandDispatcher.CommandClass.PUBLISH));
+
+        dispatcher.configure(CommandDispatcher.CommandClass.ACK, 1, 16);
+        dispatcher.register(0xb, CommandDispatcher.CommandClass.ACK, (connection, arguments) -> CompletableFuture.completedFuture(new BasicReturns()));
+        CountDownLatch other = new CountDownLatch(1);
+        Assertions.assertTrue(dispatcher.execute(0xb, "channel-2", other::countDown));
+        Assertions.assertTrue(other.await(1, TimeUnit.SECONDS));
+        Assertions.assertFalse(second.await(100, TimeUnit.MILLISECONDS));
+
+        blocker.countDown();
+        Assertions.assertTrue(second.await(1, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, dispatcher.getQueueDepth(CommandDispatcher.CommandClass.PUBLISH));
+    }
+}
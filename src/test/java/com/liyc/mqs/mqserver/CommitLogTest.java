@@ -0,0 +1,250 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.datacenter.CommitLogManager;
+import com.liyc.mqs.mqserver.datacenter.ConsumeIndex;
+import com.liyc.mqs.mqserver.datacenter.QueueLog;
+import com.liyc.mqs.mqserver.datacenter.SyncPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 共享提交日志测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:10
+ **/
+@SpringBootTest
+public class CommitLogTest {
+    private final File directory = new File("./data/testCommitLog");
+    private CommitLogManager commitLogManager = null;
+
+    @AfterEach
+    public void tearDown() {
+        if (commitLogManager != null) {
+            commitLogManager.close();
+            commitLogManager = null;
+        }
+        deleteDirectory(directory);
+    }
+
+    private static void deleteDirectory(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteDirectory(child);
+            }
+        }
+        file.delete();
+    }
+
+    private CommitLogManager open() {
+        commitLogManager = new CommitLogManager(directory, 8192, SyncPolicy.OS, QueueLog.StorageMode.CHANNEL);
+        commitLogManager.init();
+        return commitLogManager;
+    }
+
+    private Queue createQueue(String queueName) {
+        Queue queue = new Queue();
+        queue.setName(queueName);
+        queue.setDurable(true);
+        return queue;
+    }
+
+    private Message createMessage(String text) {
+        return Message.createMessageWithID("testRoutingKey", new BasicProperties(), text.getBytes());
+    }
+
+    private void assertMessages(List<Message> expected, List<Message> actual) {
+        Assertions.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertEquals(expected.get(i).getMessageId(), actual.get(i).getMessageId());
+            Assertions.assertArrayEquals(expected.get(i).getBody(), actual.get(i).getBody());
+            Assertions.assertEquals(expected.get(i).getOffsetBeg(), actual.get(i).getOffsetBeg());
+            Assertions.assertEquals(expected.get(i).getOffsetEnd(), actual.get(i).getOffsetEnd());
+        }
+    }
+
+    // 几个队列交替写入同一个日志, 每个队列只读到自己的消息
+    @Test
+    public void testQueues() throws IOException, ClassNotFoundException {
+        open();
+        List<List<Message>> expected = new ArrayList<>();
+        for (int q = 0; q < 3; q++) {
+            commitLogManager.initMsg("testQueue" + q);
+            expected.add(new ArrayList<>());
+        }
+        for (int i = 0; i < 150; i++) {
+            int q = i % 3;
+            Message message = createMessage("testMessage" + i);
+            commitLogManager.saveMsgFile(createQueue("testQueue" + q), message);
+            expected.get(q).add(message);
+        }
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(createMessage("testBatch" + i));
+        }
+        commitLogManager.saveMsgFiles(createQueue("testQueue1"), batch);
+        expected.get(1).addAll(batch);
+        // 确认一部分消息
+        commitLogManager.deleteMsgData(createQueue("testQueue2"), expected.get(2).remove(0));
+        commitLogManager.deleteMsgData(createQueue("testQueue0"), expected.get(0).remove(7));
+        Assertions.assertEquals(168, commitLogManager.getStats().getCountMsg());
+
+        for (int q = 0; q < 3; q++) {
+            assertMessages(expected.get(q), commitLogManager.initAllMsg("testQueue" + q, true));
+        }
+        Message message = expected.get(1).get(3);
+        Message actual = commitLogManager.readMsg(createQueue("testQueue1"), commitLogManager.initAllMsg("testQueue1", false).get(3));
+        Assertions.assertArrayEquals(message.getBody(), actual.getBody());
+    }
+
+    // 段里所有队列的消息都确认了才删除段文件
+    @Test
+    public void testReclaimSegment() throws IOException, ClassNotFoundException {
+        open();
+        List<Message> messagesA = new ArrayList<>();
+        List<Message> messagesB = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Message message = createMessage("testMessage" + i);
+            if (i % 2 == 0) {
+                commitLogManager.saveMsgFile(createQueue("testQueueA"), message);
+                messagesA.add(message);
+            } else {
+                commitLogManager.saveMsgFile(createQueue("testQueueB"), message);
+                messagesB.add(message);
+            }
+        }
+        QueueLog commitLog = commitLogManager.getCommitLog();
+        QueueLog.Segment first = commitLog.getSegments().get(0);
+        Assertions.assertTrue(commitLog.getSegments().size() > 2);
+        long end = first.getBase() + first.getSize();
+        int countMsg = commitLogManager.getStats().getCountMsg();
+        int ackedA = 0;
+        for (Message message : messagesA) {
+            if (message.getOffsetEnd() <= end) {
+                // 重复确认不能再减段的有效记录数
+                commitLogManager.deleteMsgData(createQueue("testQueueA"), message);
+                commitLogManager.deleteMsgData(createQueue("testQueueA"), message);
+                ackedA++;
+            }
+        }
+        // 第一个段里还有 B 的消息
+        Assertions.assertTrue(first.getFile().exists());
+        Assertions.assertEquals(countMsg - ackedA, commitLogManager.getStats().getCountMsg());
+        for (Message message : messagesB) {
+            if (message.getOffsetEnd() <= end) {
+                commitLogManager.deleteMsgData(createQueue("testQueueB"), message);
+            }
+        }
+        Assertions.assertFalse(first.getFile().exists());
+
+        // 删除队列, 它的消息都标记删除; 再确认 A 剩下的消息, 封存的段都删除了
+        commitLogManager.deleteFile("testQueueB");
+        Assertions.assertEquals(commitLogManager.initAllMsg("testQueueA", true).size(), commitLogManager.getStats().getCountMsg());
+        Assertions.assertTrue(commitLogManager.initAllMsg("testQueueB", true).isEmpty());
+        for (Message message : commitLogManager.initAllMsg("testQueueA", true)) {
+            Assertions.assertTrue(message.getOffsetBeg() > end);
+            commitLogManager.deleteMsgData(createQueue("testQueueA"), message);
+        }
+        Assertions.assertEquals(1, commitLog.getSegments().size());
+        Assertions.assertEquals(0, commitLogManager.getStats().getCountMsg());
+    }
+
+    // 转发给几个队列的消息只写一份, 最后一个队列确认了才删除记录
+    @Test
+    public void testSharedMessage() throws IOException, ClassNotFoundException {
+        open();
+        List<Queue> queues = new ArrayList<>();
+        for (int q = 0; q < 3; q++) {
+            queues.add(createQueue("testQueue" + q));
+        }
+        Message message = createMessage("testShared");
+        long writePos = commitLogManager.getCommitLog().getWritePosition();
+        commitLogManager.saveSharedMsgFiles(Collections.singletonList(message), Collections.singletonList(queues)).join();
+        Assertions.assertEquals(1, commitLogManager.getStats().getCountMsg());
+        // 一条记录: 长度, 消息, 队列名, 队列名的长度
+        long recordLength = 4 + (message.getOffsetEnd() - message.getOffsetBeg()) + "testQueue0\ntestQueue1\ntestQueue2".length() + 4;
+        Assertions.assertEquals(writePos + recordLength, commitLogManager.getCommitLog().getWritePosition());
+        for (Queue queue : queues) {
+            assertMessages(Collections.singletonList(message), commitLogManager.initAllMsg(queue.getName(), true));
+        }
+
+        // 两个队列确认了, 记录还在
+        commitLogManager.deleteMsgData(queues.get(0), message);
+        commitLogManager.deleteMsgData(queues.get(1), message);
+        // 重复确认不算数
+        commitLogManager.deleteMsgData(queues.get(1), message);
+        Assertions.assertEquals(1, commitLogManager.getStats().getCountMsg());
+        Assertions.assertTrue(commitLogManager.initAllMsg("testQueue0", true).isEmpty());
+        Assertions.assertTrue(commitLogManager.initAllMsg("testQueue1", true).isEmpty());
+        commitLogManager.close();
+
+        // 重新打开后引用数从索引里算出来
+        open();
+        Assertions.assertTrue(commitLogManager.initAllMsg("testQueue1", true).isEmpty());
+        assertMessages(Collections.singletonList(message), commitLogManager.initAllMsg("testQueue2", true));
+        Assertions.assertEquals(1, commitLogManager.getStats().getCountMsg());
+        commitLogManager.deleteMsgData(queues.get(2), message);
+        Assertions.assertEquals(0, commitLogManager.getStats().getCountMsg());
+
+        // 写满几个段再全部确认, 共用的记录不会挡住段的删除
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Message shared = createMessage("testShared" + i);
+            commitLogManager.saveSharedMsgFiles(Collections.singletonList(shared), Collections.singletonList(queues)).join();
+            messages.add(shared);
+        }
+        QueueLog commitLog = commitLogManager.getCommitLog();
+        Assertions.assertTrue(commitLog.getSegments().size() > 2);
+        for (Queue queue : queues) {
+            for (Message shared : messages) {
+                commitLogManager.deleteMsgData(queue, shared);
+            }
+        }
+        Assertions.assertEquals(0, commitLogManager.getStats().getCountMsg());
+        Assertions.assertEquals(1, commitLog.getSegments().size());
+    }
+
+    // 重新打开后按索引恢复; 检查点之后的索引项丢了, 从日志里重放出来
+    @Test
+    public void testRecover() throws IOException, ClassNotFoundException {
+        open();
+        List<Message> messagesA = new ArrayList<>();
+        List<Message> messagesB = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Message message = createMessage("testMessage" + i);
+            commitLogManager.saveMsgFile(createQueue(i % 2 == 0 ? "testQueueA" : "testQueueB"), message);
+            (i % 2 == 0 ? messagesA : messagesB).add(message);
+        }
+        commitLogManager.deleteMsgData(createQueue("testQueueA"), messagesA.remove(0));
+        commitLogManager.close();
+
+        open();
+        assertMessages(messagesA, commitLogManager.initAllMsg("testQueueA", true));
+        assertMessages(messagesB, commitLogManager.initAllMsg("testQueueB", true));
+        Assertions.assertEquals(99, commitLogManager.getStats().getCountMsg());
+        commitLogManager.close();
+
+        // 模拟崩溃: 检查点和索引都没有写下来
+        Assertions.assertTrue(new File(directory, "index/dispatch.pos").delete());
+        Assertions.assertTrue(new File(directory, "index/testQueueB" + ConsumeIndex.SUFFIX).delete());
+        new File(directory, "index/testQueueB" + ConsumeIndex.SUFFIX).createNewFile();
+        open();
+        assertMessages(messagesA, commitLogManager.initAllMsg("testQueueA", true));
+        assertMessages(messagesB, commitLogManager.initAllMsg("testQueueB", true));
+        LinkedList<Message> lazyMessages = commitLogManager.initAllMsg("testQueueB", false);
+        Assertions.assertNull(lazyMessages.get(0).getBody());
+    }
+}
@@ -0,0 +1,219 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.datacenter.Compactor;
+import com.liyc.mqs.mqserver.datacenter.QueueLog;
+import com.liyc.mqs.mqserver.datacenter.QueueStats;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 后台整理测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 20:10
+ **/
+@SpringBootTest
+public class CompactorTest extends QueueFileTestSupport {
+    //模拟内存里的消息
+    private final ConcurrentHashMap<String, Message> messageMap = new ConcurrentHashMap<>();
+
+    public CompactorTest() {
+        super("testQueueCompact");
+    }
+
+    // 写入 count 条消息, 删除第一个段里除了最后一条以外的消息, 返回留下的那条
+    private Message prepare(long segmentSize, int count, List<Message> messages) throws IOException, ClassNotFoundException {
+        open(segmentSize);
+        messageFileManager.setMessageResolver((queueName, messageId) -> messageMap.get(messageId));
+        Queue queue = createQueue();
+        for (Message message : save(0, count)) {
+            messageMap.put(message.getMessageId(), message);
+            messages.add(message);
+        }
+        QueueLog.Segment first = messageFileManager.getQueueLog(testQueueName).getSegments().get(0);
+        Message kept = null;
+        for (Message message : messages) {
+            if (message.getOffsetEnd() <= first.getBase() + first.getSize()) {
+                kept = message;
+            }
+        }
+        for (Message message : new ArrayList<>(messages)) {
+            if (message.getOffsetEnd() <= first.getBase() + first.getSize() && message != kept) {
+                messageFileManager.deleteMsgData(queue, message);
+                messageMap.remove(message.getMessageId());
+                messages.remove(message);
+            }
+        }
+        return kept;
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        List<Message> messages = new ArrayList<>();
+        Message kept = prepare(4096, 60, messages);
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        QueueLog.Segment first = queueLog.getSegments().get(0);
+        long oldOffset = kept.getOffsetBeg();
+
+        Assertions.assertTrue(messageFileManager.getCompactor().compact(testQueueName));
+        // 旧段删除了, 留下的消息搬到了日志末尾, 内存里的 offset 也改了
+        Assertions.assertFalse(first.getFile().exists());
+        Assertions.assertTrue(kept.getOffsetBeg() > oldOffset);
+        Assertions.assertEquals(kept.getOffsetEnd(), queueLog.getWritePosition());
+        QueueStats stats = messageFileManager.getQueueStats(testQueueName);
+        Assertions.assertEquals(messages.size(), stats.getCountMsg());
+        Assertions.assertEquals(messageFileManager.msgDataLength(testQueueName), stats.getTotalBytes());
+
+        // 新位置上可以正常确认
+        messageFileManager.deleteMsgData(createQueue(), kept);
+        messages.remove(kept);
+        LinkedList<Message> actualMessages = messageFileManager.initAllMsg(testQueueName);
+        Set<String> expectedIds = new HashSet<>();
+        for (Message message : messages) {
+            expectedIds.add(message.getMessageId());
+        }
+        Set<String> actualIds = new HashSet<>();
+        for (Message message : actualMessages) {
+            actualIds.add(message.getMessageId());
+        }
+        Assertions.assertEquals(expectedIds, actualIds);
+    }
+
+    // 单独建一个整理器, 没有上次没切换成的段的记录
+    private Compactor newCompactor() {
+        Compactor compactor = new Compactor(messageFileManager, 3600 * 1000L, Compactor.DEFAULT_BYTES_PER_SECOND);
+        compactor.setMessageResolver((queueName, messageId) -> messageMap.get(messageId));
+        return compactor;
+    }
+
+    // 留下的消息在内存里找不到, 不切换, 旧段留着, 新的副本标记删除; 段里没有消息确认之前不再整理这个段
+    @Test
+    public void testUnresolved() throws Exception {
+        List<Message> messages = new ArrayList<>();
+        Message kept = prepare(4096, 60, messages);
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        QueueLog.Segment first = queueLog.getSegments().get(0);
+        QueueStats stats = messageFileManager.getQueueStats(testQueueName);
+        long oldOffset = kept.getOffsetBeg();
+        long writePosition = queueLog.getWritePosition();
+
+        messageMap.remove(kept.getMessageId());
+        Compactor compactor = messageFileManager.getCompactor();
+        Assertions.assertFalse(compactor.compact(testQueueName));
+        Assertions.assertTrue(queueLog.contains(first));
+        Assertions.assertEquals(oldOffset, kept.getOffsetBeg());
+        Assertions.assertTrue(queueLog.isDeleted(writePosition));
+        Assertions.assertEquals(messages.size(), stats.getCountMsg());
+
+        // 有效消息数没变, 不再复制
+        writePosition = queueLog.getWritePosition();
+        messageMap.put(kept.getMessageId(), kept);
+        Assertions.assertFalse(compactor.compact(testQueueName));
+        Assertions.assertEquals(writePosition, queueLog.getWritePosition());
+        Assertions.assertTrue(queueLog.contains(first));
+
+        // 找得到之后照常整理
+        Compactor fresh = newCompactor();
+        try {
+            Assertions.assertTrue(fresh.compact(testQueueName));
+        } finally {
+            fresh.shutdown();
+        }
+        Assertions.assertFalse(queueLog.contains(first));
+        Assertions.assertEquals(kept.getOffsetEnd(), queueLog.getWritePosition());
+        Assertions.assertEquals(messages.size(), stats.getCountMsg());
+        Assertions.assertEquals(messages.size(), messageFileManager.initAllMsg(testQueueName).size());
+    }
+
+    // 找到的是 offset 对不上的另一份(转发给别的队列的), 不切换, 两份消息的 offset 都不改
+    @Test
+    public void testMismatch() throws Exception {
+        List<Message> messages = new ArrayList<>();
+        Message kept = prepare(4096, 60, messages);
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        QueueLog.Segment first = queueLog.getSegments().get(0);
+        QueueStats stats = messageFileManager.getQueueStats(testQueueName);
+        long oldOffsetBeg = kept.getOffsetBeg();
+        long oldOffsetEnd = kept.getOffsetEnd();
+
+        Message other = Message.createMessageWithID("testRoutingKey", new BasicProperties(), kept.getBody());
+        other.getBasicProperties().setMessageId(kept.getMessageId());
+        other.setOffsetBeg(oldOffsetBeg + 100);
+        other.setOffsetEnd(oldOffsetEnd + 100);
+        messageMap.put(kept.getMessageId(), other);
+        Compactor compactor = newCompactor();
+        try {
+            Assertions.assertFalse(compactor.compact(testQueueName));
+        } finally {
+            compactor.shutdown();
+        }
+        Assertions.assertTrue(queueLog.contains(first));
+        Assertions.assertEquals(oldOffsetBeg, kept.getOffsetBeg());
+        Assertions.assertEquals(oldOffsetEnd, kept.getOffsetEnd());
+        Assertions.assertEquals(oldOffsetBeg + 100, other.getOffsetBeg());
+        Assertions.assertEquals(oldOffsetEnd + 100, other.getOffsetEnd());
+        Assertions.assertEquals(messages.size(), stats.getCountMsg());
+
+        // offsetBeg 一样、长度不一样的也不切换
+        other.setOffsetBeg(oldOffsetBeg);
+        other.setOffsetEnd(oldOffsetEnd + 100);
+        compactor = newCompactor();
+        try {
+            Assertions.assertFalse(compactor.compact(testQueueName));
+        } finally {
+            compactor.shutdown();
+        }
+        Assertions.assertTrue(queueLog.contains(first));
+        Assertions.assertEquals(oldOffsetBeg, other.getOffsetBeg());
+        Assertions.assertEquals(oldOffsetEnd + 100, other.getOffsetEnd());
+        Assertions.assertEquals(messages.size(), stats.getCountMsg());
+        Assertions.assertEquals(messageFileManager.msgDataLength(testQueueName), stats.getTotalBytes());
+    }
+
+    // 复制完还没删除旧段时崩溃, 恢复时同一条消息有两份, 只留第一份
+    @Test
+    public void testDuplicate() throws Exception {
+        List<Message> messages = new ArrayList<>();
+        Message kept = prepare(4096, 60, messages);
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        int length = (int) (kept.getOffsetEnd() - kept.getOffsetBeg());
+        queueLog.append(queueLog.read(kept.getOffsetBeg() - 4, 4 + length), 1);
+
+        LinkedList<Message> actualMessages = messageFileManager.initAllMsg(testQueueName);
+        Assertions.assertEquals(messages.size(), actualMessages.size());
+        Assertions.assertEquals(kept.getOffsetBeg(), actualMessages.get(0).getOffsetBeg());
+        Assertions.assertTrue(queueLog.isDeleted(queueLog.getWritePosition() - 4 - length));
+        Assertions.assertEquals(messages.size(), messageFileManager.getQueueStats(testQueueName).getCountMsg());
+    }
+
+    // 限速: 64KB 的段按 128KB/s 整理, 至少要半秒左右
+    @Test
+    public void testThrottle() throws Exception {
+        List<Message> messages = new ArrayList<>();
+        Message kept = prepare(64 * 1024, 800, messages);
+        Compactor compactor = new Compactor(messageFileManager, 3600 * 1000L, 128 * 1024);
+        compactor.setMessageResolver((queueName, messageId) -> messageMap.get(messageId));
+        try {
+            long begin = System.currentTimeMillis();
+            Assertions.assertTrue(compactor.compact(testQueueName));
+            long time = System.currentTimeMillis() - begin;
+            System.out.println("[CompactorTest] " + compactor + ", time=" + time + "ms");
+            Assertions.assertTrue(time >= 400);
+            Assertions.assertEquals(kept.getOffsetEnd(), messageFileManager.getQueueLog(testQueueName).getWritePosition());
+        } finally {
+            compactor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.common.FlowControlReturns;
+import com.liyc.mqs.common.Request;
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.datacenter.MemoryDataCenter;
+import com.liyc.mqs.mqserver.network.NioConnection;
+import com.liyc.mqs.mqserver.network.NioEventLoop;
+import com.liyc.mqs.mqserver.network.RequestHandler;
+import com.liyc.mqs.mqserver.tool.WireCodec;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 流量控制测试类
+ * 客户端用阻塞的 SocketChannel 连到测试的事件循环, 请求的 payload 是 "channelId:名字", 放行的请求记下名字
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:50
+ **/
+@SpringBootTest
+public class FlowControllerTest {
+    private MemoryDataCenter memoryDataCenter = null;
+    private FlowController flowController = null;
+    private NioEventLoop eventLoop = null;
+    private ServerSocketChannel serverChannel = null;
+    private SocketChannel client = null;
+    private volatile NioConnection connection = null;
+    //放行的请求名字, 按放行的顺序
+    private final BlockingQueue<String> dispatched = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        memoryDataCenter = new MemoryDataCenter();
+        flowController = new FlowController(memoryDataCenter);
+        eventLoop = new NioEventLoop("test-io", new RequestHandler() {
+            @Override
+            public void handleRequest(NioConnection conn, Request request) {
+                connection = conn;
+                String[] parts = new String(request.getPayload(), StandardCharsets.UTF_8).split(":");
+                CommandDispatcher.CommandClass commandClass = request.getType() == 0x9 ? CommandDispatcher.CommandClass.PUBLISH
+                        : request.getType() == 0xb ? CommandDispatcher.CommandClass.ACK : CommandDispatcher.CommandClass.CONTROL;
+                flowController.admit(conn, parts[0], commandClass, () -> {
+                    flowController.requestReceived(conn);
+                    dispatched.add(parts[1]);
+                });
+            }
+
+            @Override
+            public void connectionClosed(NioConnection conn) {
+                flowController.connectionClosed(conn);
+            }
+        });
+        eventLoop.start();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        client = SocketChannel.open(serverChannel.getLocalAddress());
+        eventLoop.register(serverChannel.accept());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        flowController.stop();
+        client.close();
+        serverChannel.close();
+        eventLoop.shutdown();
+    }
+
+    private void send(int type, String channelId, String name) throws IOException {
+        byte[] payload = (channelId + ":" + name).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.putInt(type);
+        frame.putInt(payload.length);
+        frame.put(payload);
+        frame.flip();
+        while (frame.hasRemaining()) {
+            client.write(frame);
+        }
+    }
+
+    private List<String> take(int count) throws InterruptedException {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = dispatched.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(name);
+            names.add(name);
+        }
+        return names;
+    }
+
+    private FlowControlReturns readFlow() throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (header.hasRemaining()) {
+            client.read(header);
+        }
+        header.flip();
+        Assertions.assertEquals(0xf, header.getInt());
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+        while (payload.hasRemaining()) {
+            client.read(payload);
+        }
+        return (FlowControlReturns) WireCodec.decode(0xf, payload.array());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    // 一个 channel 的额度用完, 只有它后面的请求等待; 确认和其他 channel 照常放行, 连接也不暂停读
+    @Test
+    public void testChannelCredit() throws Exception {
+        for (int i = 0; i < FlowController.CHANNEL_PUBLISH_CREDIT; i++) {
+            send(0x9, "ch1", "p" + i);
+        }
+        send(0x9, "ch1", "over");
+        send(0x3, "ch1", "declare");
+        send(0xb, "ch1", "ack");
+        send(0x9, "ch2", "other");
+        List<String> names = take(FlowController.CHANNEL_PUBLISH_CREDIT + 2);
+        Assertions.assertTrue(names.contains("ack"));
+        Assertions.assertTrue(names.contains("other"));
+        Assertions.assertNull(dispatched.poll(200, TimeUnit.MILLISECONDS));
+        Assertions.assertFalse(connection.isReadPaused(FlowController.PAUSE_CREDIT));
+
+        // 处理完一个发布, 等待的请求按顺序放行
+        flowController.requestCompleted(connection, "ch1", CommandDispatcher.CommandClass.PUBLISH);
+        Assertions.assertEquals("over", dispatched.poll(5, TimeUnit.SECONDS));
+        Assertions.assertEquals("declare", dispatched.poll(5, TimeUnit.SECONDS));
+        Assertions.assertNull(dispatched.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    // 客户端不管额度一直发, 才暂停读连接; 等待的请求放行之后恢复
+    @Test
+    public void testOverflow() throws Exception {
+        int credit = FlowController.CHANNEL_PUBLISH_CREDIT;
+        for (int i = 0; i < credit * 2 + 1; i++) {
+            send(0x9, "ch1", "p" + i);
+        }
+        take(credit);
+        await(() -> connection.isReadPaused(FlowController.PAUSE_CREDIT));
+        for (int i = 0; i < credit; i++) {
+            flowController.requestCompleted(connection, "ch1", CommandDispatcher.CommandClass.PUBLISH);
+        }
+        List<String> names = take(credit);
+        Assertions.assertEquals("p" + credit, names.get(0));
+        Assertions.assertEquals("p" + (credit * 2 - 1), names.get(credit - 1));
+        await(() -> !connection.isReadPaused(FlowController.PAUSE_CREDIT));
+    }
+
+    // 内存超过高水位, 发布等待并收到阻塞通知, 确认照样读进来处理; 降到低水位之后通知恢复并放行
+    @Test
+    public void testMemoryBlock() throws Exception {
+        flowController.setWatermarks(100, 50);
+        flowController.start();
+        Message message = Message.createMessageWithID("testRoutingKey", new BasicProperties(), new byte[200]);
+        memoryDataCenter.insertMessage(message);
+
+        send(0x9, "ch1", "publish");
+        FlowControlReturns blocked = readFlow();
+        Assertions.assertEquals("ch1", blocked.getChannelId());
+        Assertions.assertTrue(blocked.isBlocked());
+        Assertions.assertTrue(flowController.isMemoryBlocked());
+
+        send(0xb, "ch1", "ack");
+        Assertions.assertEquals("ack", dispatched.poll(5, TimeUnit.SECONDS));
+        Assertions.assertNull(dispatched.poll(200, TimeUnit.MILLISECONDS));
+
+        // 确认之后消息删掉了, 内存降下来
+        memoryDataCenter.deleteMessage(message.getMessageId());
+        FlowControlReturns resumed = readFlow();
+        Assertions.assertEquals("ch1", resumed.getChannelId());
+        Assertions.assertFalse(resumed.isBlocked());
+        Assertions.assertEquals(FlowController.CHANNEL_PUBLISH_CREDIT, resumed.getCredit());
+        Assertions.assertEquals("publish", dispatched.poll(5, TimeUnit.SECONDS));
+        Assertions.assertFalse(flowController.isMemoryBlocked());
+    }
+}
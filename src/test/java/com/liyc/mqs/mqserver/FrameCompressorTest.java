@@ -0,0 +1,60 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.network.FrameCompressor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 帧压缩测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 17:40
+ **/
+@SpringBootTest
+public class FrameCompressorTest {
+    private FrameCompressor frameCompressor = new FrameCompressor();
+
+    // 创建一个测试用的 JSON 文本
+    private byte[] createTestJson(int length) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"item-").append(i % 100).append("\",\"tags\":[\"a\",\"b\"]},");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCompress() throws IOException {
+        byte[] json = createTestJson(100 * 1024);
+        byte[] compressed = frameCompressor.compress(json);
+        Assertions.assertNotNull(compressed);
+        Assertions.assertTrue(compressed.length < json.length / 4);
+        Assertions.assertArrayEquals(json, FrameCompressor.decompress(compressed));
+        Assertions.assertEquals(1, frameCompressor.getCompressedFrames());
+    }
+
+    // 随机数据压不下去, 直接跳过
+    @Test
+    public void testIncompressible() {
+        byte[] noise = new byte[100 * 1024];
+        new Random(1).nextBytes(noise);
+        Assertions.assertNull(frameCompressor.compress(noise));
+        // 太小的 payload 不压缩
+        Assertions.assertNull(frameCompressor.compress(createTestJson(100)));
+        Assertions.assertEquals(1, frameCompressor.getSkippedFrames());
+        Assertions.assertEquals(0, frameCompressor.getCompressedFrames());
+    }
+
+    @Test
+    public void testCorrupted() {
+        byte[] compressed = frameCompressor.compress(createTestJson(16 * 1024));
+        Assertions.assertThrows(IOException.class, () -> FrameCompressor.decompress(Arrays.copyOf(compressed, compressed.length / 2)));
+        Assertions.assertThrows(IOException.class, () -> FrameCompressor.decompress(new byte[]{0, 0}));
+    }
+}
@@ -0,0 +1,196 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.datacenter.GroupCommitter;
+import com.liyc.mqs.mqserver.datacenter.MessageFileManager;
+import com.liyc.mqs.mqserver.datacenter.SyncPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 组提交测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 18:50
+ **/
+@SpringBootTest
+public class GroupCommitterTest {
+    private final String testQueueName = "testQueueSync";
+    private MessageFileManager messageFileManager = null;
+    //每次写入的消息, 按写入的下标
+    private final Map<Integer, Message> sent = new ConcurrentHashMap<>();
+    //future 完成时已经刷到磁盘的位置, 按写入的下标
+    private final Map<Integer, Long> syncedAt = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        messageFileManager = new MessageFileManager();
+        messageFileManager.initMsg(testQueueName);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        messageFileManager.deleteFile(testQueueName);
+        messageFileManager.close();
+        messageFileManager = null;
+    }
+
+    private Queue createQueue(String fsync) {
+        Queue queue = new Queue();
+        queue.setName(testQueueName);
+        queue.setDurable(true);
+        if (fsync != null) {
+            queue.setArguments(SyncPolicy.ARGUMENT, fsync);
+        }
+        return queue;
+    }
+
+    // 写入一条消息, 返回刷盘的 future. future 完成时记下已经刷到磁盘的位置
+    private CompletableFuture<Void> send(Queue queue, int i) throws IOException {
+        Message message = Message.createMessageWithID("testRoutingKey", new BasicProperties(), ("testMessage" + i).getBytes());
+        messageFileManager.saveMsgFile(queue, message);
+        sent.put(i, message);
+        GroupCommitter committer = messageFileManager.getCommitter(queue);
+        return messageFileManager.syncMsgFile(queue, message.getOffsetEnd(), 1)
+                .thenRun(() -> syncedAt.put(i, committer.getSyncedPosition()));
+    }
+
+    // 每个 future 完成时, 它写入的数据已经刷到磁盘. 刷盘是按位置刷的, 位置在它前面的写入也一起刷到了
+    private void assertDurable(int count) {
+        for (int i = 0; i < count; i++) {
+            Assertions.assertNotNull(syncedAt.get(i));
+            Assertions.assertTrue(syncedAt.get(i) >= sent.get(i).getOffsetEnd());
+        }
+    }
+
+    // 单线程写入时, 文件里的消息和写入的顺序一样
+    private void assertOrder(int count) throws Exception {
+        List<Message> messages = messageFileManager.initAllMsg(testQueueName);
+        Assertions.assertEquals(count, messages.size());
+        for (int i = 0; i < count; i++) {
+            Assertions.assertEquals(sent.get(i).getMessageId(), messages.get(i).getMessageId());
+            if (i > 0) {
+                Assertions.assertTrue(sent.get(i).getOffsetBeg() > sent.get(i - 1).getOffsetBeg());
+            }
+        }
+    }
+
+    @Test
+    public void testParse() {
+        Assertions.assertEquals(SyncPolicy.Mode.ALWAYS, SyncPolicy.parse("always").getMode());
+        Assertions.assertEquals(SyncPolicy.Mode.OS, SyncPolicy.parse(" OS ").getMode());
+        Assertions.assertEquals(10, SyncPolicy.parse("interval:10").getValue());
+        Assertions.assertEquals(SyncPolicy.Mode.COUNT, SyncPolicy.parse("count:100").getMode());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SyncPolicy.parse("count"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SyncPolicy.parse("interval:0"));
+        // 队列参数不合法就用默认策略
+        Assertions.assertEquals(SyncPolicy.ALWAYS, SyncPolicy.of(createQueue("sometimes"), SyncPolicy.ALWAYS));
+    }
+
+    // 多个线程并发写入, 每个 future 都要等到刷盘
+    @Test
+    public void testAlways() throws Exception {
+        Queue queue = createQueue("always");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<CompletableFuture<Void>>> futures = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            int index = i;
+            futures.add(pool.submit(() -> send(queue, index)));
+        }
+        for (Future<CompletableFuture<Void>> future : futures) {
+            future.get().get(5, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        GroupCommitter committer = messageFileManager.getCommitter(queue);
+        System.out.println("[GroupCommitterTest] " + committer);
+        Assertions.assertEquals(400, committer.getSyncedRecords());
+        assertDurable(400);
+    }
+
+    // 攒够条数才刷盘, 不够的时候最多等 COUNT_MAX_DELAY_MS
+    @Test
+    public void testCount() throws Exception {
+        Queue queue = createQueue("count:3");
+        CompletableFuture<Void> first = send(queue, 0);
+        CompletableFuture<Void> second = send(queue, 1);
+        Assertions.assertFalse(first.isDone());
+        CompletableFuture<Void> third = send(queue, 2);
+        CompletableFuture.allOf(first, second, third).get(5, TimeUnit.SECONDS);
+        assertDurable(3);
+
+        CompletableFuture<Void> fourth = send(queue, 3);
+        fourth.get(SyncPolicy.COUNT_MAX_DELAY_MS * 10, TimeUnit.MILLISECONDS);
+        assertDurable(4);
+        assertOrder(4);
+    }
+
+    @Test
+    public void testIntervalAndOs() throws Exception {
+        Queue queue = createQueue("interval:20");
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(send(queue, i));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        assertDurable(50);
+        assertOrder(50);
+
+        // os 策略不主动刷盘, 直接完成
+        messageFileManager.deleteFile(testQueueName);
+        messageFileManager.initMsg(testQueueName);
+        Queue osQueue = createQueue("os");
+        Assertions.assertTrue(send(osQueue, 0).isDone());
+    }
+
+    // 等刷盘的回调(写响应)阻塞住了, 同一个队列后面的写入和别的队列照样刷盘完成
+    @Test
+    public void testSlowCallback() throws Exception {
+        Queue queue = createQueue("always");
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CompletableFuture<Void> slow = send(queue, 0).thenRun(() -> {
+            blocked.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Assertions.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        try {
+            send(queue, 1).get(5, TimeUnit.SECONDS);
+            String otherQueueName = "testQueueSyncOther";
+            messageFileManager.initMsg(otherQueueName);
+            try {
+                Queue other = new Queue();
+                other.setName(otherQueueName);
+                other.setDurable(true);
+                Message message = Message.createMessageWithID("testRoutingKey", new BasicProperties(), "testOther".getBytes());
+                messageFileManager.saveMsgFile(other, message);
+                messageFileManager.syncMsgFile(other, message.getOffsetEnd(), 1).get(5, TimeUnit.SECONDS);
+            } finally {
+                messageFileManager.deleteFile(otherQueueName);
+            }
+        } finally {
+            blocker.countDown();
+        }
+        slow.get(5, TimeUnit.SECONDS);
+    }
+}
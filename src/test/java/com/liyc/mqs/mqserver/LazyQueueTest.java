@@ -0,0 +1,87 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.core.QueueMode;
+import com.liyc.mqs.mqserver.datacenter.ReadAheadBuffer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 懒队列测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 21:10
+ **/
+@SpringBootTest
+public class LazyQueueTest extends QueueFileTestSupport {
+    public LazyQueueTest() {
+        super("testQueueLazy");
+    }
+
+    @Override
+    protected Queue createQueue() {
+        Queue queue = super.createQueue();
+        queue.setArguments(QueueMode.ARGUMENT, "lazy");
+        return queue;
+    }
+
+    @Test
+    public void testQueueMode() {
+        Queue queue = createQueue();
+        Assertions.assertEquals(QueueMode.LAZY, QueueMode.of(queue));
+        queue.setArguments(QueueMode.ARGUMENT, "LAZY ");
+        Assertions.assertEquals(QueueMode.LAZY, QueueMode.of(queue));
+        queue.setArguments(QueueMode.ARGUMENT, "unknown");
+        Assertions.assertEquals(QueueMode.DEFAULT, QueueMode.of(queue));
+        // 不持久化的队列没有数据文件, 只能是 default
+        queue.setArguments(QueueMode.ARGUMENT, "lazy");
+        queue.setDurable(false);
+        Assertions.assertEquals(QueueMode.DEFAULT, QueueMode.of(queue));
+        Assertions.assertEquals(QueueMode.DEFAULT, QueueMode.of(new Queue()));
+    }
+
+    // 恢复时不保留消息体, 投递时按 offset 读回来, 顺序读的时候大部分命中预读缓冲
+    @Test
+    public void testReadBody() throws IOException, ClassNotFoundException {
+        open(1024 * 1024);
+        Queue queue = createQueue();
+        List<Message> expectedMessages = save(0, 200);
+
+        LinkedList<Message> lazyMessages = messageFileManager.initAllMsg(testQueueName, false);
+        assertMessages(expectedMessages, lazyMessages, false);
+        for (int i = 0; i < lazyMessages.size(); i++) {
+            Message lazy = lazyMessages.get(i);
+            Message actual = messageFileManager.readMsg(queue, lazy);
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(), actual.getMessageId());
+            Assertions.assertArrayEquals(expectedMessages.get(i).getBody(), actual.getBody());
+            Assertions.assertEquals(lazy.getOffsetBeg(), actual.getOffsetBeg());
+            Assertions.assertEquals(lazy.getOffsetEnd(), actual.getOffsetEnd());
+        }
+        String stats = messageFileManager.getReadAheadStats();
+        System.out.println("[LazyQueueTest] " + stats);
+        // 200 条消息只读了几次文件
+        int misses = Integer.parseInt(stats.substring(stats.indexOf("misses=") + 7, stats.indexOf("}")));
+        Assertions.assertTrue(misses > 0 && misses <= 200 * (expectedMessages.get(0).getOffsetEnd() - expectedMessages.get(0).getOffsetBeg() + 4) / ReadAheadBuffer.DEFAULT_SIZE + 1);
+    }
+
+    // 比预读缓冲还大的消息, 只读它自己
+    @Test
+    public void testLargeBody() throws IOException, ClassNotFoundException {
+        open(1024 * 1024);
+        Queue queue = createQueue();
+        byte[] body = new byte[200 * 1024];
+        body[body.length - 1] = 1;
+        Message message = Message.createMessageWithID("testRoutingKey", new BasicProperties(), body);
+        messageFileManager.saveMsgFile(queue, message);
+
+        Message actual = messageFileManager.readMsg(queue, messageFileManager.initAllMsg(testQueueName, false).get(0));
+        Assertions.assertArrayEquals(body, actual.getBody());
+    }
+}
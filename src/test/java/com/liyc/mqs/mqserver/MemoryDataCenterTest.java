@@ -14,8 +14,12 @@ import org.springframework.boot.test.context.SpringBootTest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 内存数据测试类
@@ -232,4 +236,53 @@ public class MemoryDataCenterTest {
         File dataDir = new File("./data");
         FileUtils.deleteDirectory(dataDir);
     }
+
+    // 按队列并行恢复消息, 恢复完的队列先放开, 慢的队列还算恢复中, 失败的队列一直不放开
+    @Test
+    public void testParallelRecovery() throws Exception {
+        CountDownLatch slowLatch = new CountDownLatch(1);
+        DiskDataCenter diskDataCenter = new DiskDataCenter() {
+            @Override
+            public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, ClassNotFoundException {
+                if (queueName.equals("badQueue")) {
+                    throw new IOException("段文件损坏");
+                }
+                if (queueName.equals("slowQueue")) {
+                    try {
+                        slowLatch.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                LinkedList<Message> messages = new LinkedList<>();
+                for (int i = 0; i < 100; i++) {
+                    messages.add(Message.createMessageWithID("testRoutingKey", new BasicProperties(), (queueName + i).getBytes()));
+                }
+                return messages;
+            }
+        };
+        for (int i = 0; i < 20; i++) {
+            memoryDataCenter.insertQueue(createTestQueue("testQueue" + i));
+        }
+        memoryDataCenter.insertQueue(createTestQueue("slowQueue"));
+        memoryDataCenter.insertQueue(createTestQueue("badQueue"));
+
+        CompletableFuture<Void> recovery = memoryDataCenter.recoverMessages(diskDataCenter, 4);
+        for (int i = 0; i < 20; i++) {
+            memoryDataCenter.queueRecovered("testQueue" + i).get(10, TimeUnit.SECONDS);
+            Assertions.assertFalse(memoryDataCenter.isRecovering("testQueue" + i));
+            Assertions.assertEquals(100, memoryDataCenter.getMessageCount("testQueue" + i));
+        }
+        Assertions.assertTrue(memoryDataCenter.isRecovering("slowQueue"));
+        Assertions.assertFalse(recovery.isDone());
+
+        slowLatch.countDown();
+        memoryDataCenter.queueRecovered("slowQueue").get(10, TimeUnit.SECONDS);
+        Assertions.assertEquals(100, memoryDataCenter.getMessageCount("slowQueue"));
+        Assertions.assertThrows(Exception.class, () -> recovery.get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(memoryDataCenter.isRecovering("badQueue"));
+        Assertions.assertEquals(21, memoryDataCenter.getRecoveredQueues());
+        Assertions.assertEquals(2100, memoryDataCenter.getRecoveredMessages());
+        Assertions.assertFalse(memoryDataCenter.isRecovering("notExistQueue"));
+    }
 }
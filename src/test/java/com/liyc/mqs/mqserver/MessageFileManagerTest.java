@@ -1,9 +1,12 @@
 package com.liyc.mqs.mqserver;
 
 import com.liyc.mqs.MqsApplication;
+import com.liyc.mqs.mqserver.core.BasicProperties;
 import com.liyc.mqs.mqserver.core.Message;
 import com.liyc.mqs.mqserver.core.Queue;
 import com.liyc.mqs.mqserver.datacenter.MessageFileManager;
+import com.liyc.mqs.mqserver.datacenter.QueueLog;
+import com.liyc.mqs.mqserver.datacenter.QueueStats;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -12,9 +15,12 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.test.context.SpringBootTest;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 文件操作测试类
@@ -51,12 +57,12 @@ public class MessageFileManagerTest {
     @Test
     public void createQueueFile() {
         // 创建队列文件已经在上面 setUp 阶段执行过了. 此处主要是验证看看文件是否存在.
-        File queueDataFile1 = new File("./data/" + testQueueName1 + "/queue_data.txt");
+        File queueDataFile1 = new File(messageFileManager.msgDataPath(testQueueName1, 0));
         Assertions.assertEquals(true, queueDataFile1.isFile());
         File queueStatFile1 = new File("./data/" + testQueueName1 + "/queue_stat.txt");
         Assertions.assertEquals(true, queueStatFile1.isFile());
 
-        File queueDataFile2 = new File("./data/" + testQueueName2 + "/queue_data.txt");
+        File queueDataFile2 = new File(messageFileManager.msgDataPath(testQueueName2, 0));
         Assertions.assertEquals(true, queueDataFile2.isFile());
         File queueStatFile2 = new File("./data/" + testQueueName2 + "/queue_stat.txt");
         Assertions.assertEquals(true, queueStatFile2.isFile());
@@ -189,8 +195,8 @@ public class MessageFileManagerTest {
         }
 
         // 获取 gc 前的文件大小
-        File beforeGCFile = new File("./data/" + testQueueName1 + "/queue_data.txt");
-        long beforeGCLength = beforeGCFile.length();
+        // 数据分散在多个段文件里, 统计所有段文件的总长度
+        long beforeGCLength = messageFileManager.msgDataLength(testQueueName1);
 
         // 删除偶数下标的消息
         for (int i = 0; i < 100; i += 2) {
@@ -219,10 +225,269 @@ public class MessageFileManagerTest {
             Assertions.assertEquals(0x1, actualMessage.getIsValid());
         }
         // 获取新的文件的大小
-        File afterGCFile = new File("./data/" + testQueueName1 + "/queue_data.txt");
-        long afterGCLength = afterGCFile.length();
+        // 数据分散在多个段文件里, 统计所有段文件的总长度
+        long afterGCLength = messageFileManager.msgDataLength(testQueueName1);
         System.out.println("before: " + beforeGCLength);
         System.out.println("after: " + afterGCLength);
         Assertions.assertTrue(beforeGCLength > afterGCLength);
     }
+
+    //测试分段: 写满滚动到新段, 段里的消息都删除后删除段文件, 重新打开后接着原来的写位置写
+    @Test
+    public void testSegment() throws IOException, ClassNotFoundException {
+        String queueName = "testQueueSegment";
+        MessageFileManager segmentManager = new MessageFileManager(1024);
+        segmentManager.initMsg(queueName);
+        try {
+            Queue queue = createQueue(queueName);
+            List<Message> expectedMessages = new LinkedList<>();
+            for (int i = 0; i < 30; i++) {
+                Message message = Message.createMessageWithID("testRoutingKey", new BasicProperties(), ("testMessage" + i).getBytes());
+                segmentManager.saveMsgFile(queue, message);
+                expectedMessages.add(message);
+            }
+            List<QueueLog.Segment> segments = segmentManager.getQueueLog(queueName).getSegments();
+            Assertions.assertTrue(segments.size() > 2);
+            for (QueueLog.Segment segment : segments) {
+                Assertions.assertTrue(segment.getSize() <= 1024);
+            }
+
+            // 删除第一个段里的所有消息, 第一个段文件就删掉了
+            QueueLog.Segment first = segments.get(0);
+            int firstCount = 0;
+            for (Message message : expectedMessages) {
+                if (message.getOffsetBeg() < first.getBase() + first.getSize()) {
+                    segmentManager.deleteMsgData(queue, message);
+                    firstCount++;
+                }
+            }
+            Assertions.assertFalse(first.getFile().exists());
+            MessageFileManager.Stat stat = segmentManager.readMsgCount(queueName);
+            Assertions.assertEquals(30 - firstCount, stat.countMsg);
+            Assertions.assertEquals(30 - firstCount, stat.sumMsg);
+
+            // 活动段末尾写了一半的数据, 重新打开时按 stat 里的写位置截掉
+            long writePos = segmentManager.getQueueLog(queueName).getWritePosition();
+            File active = segmentManager.getQueueLog(queueName).getActive().getFile();
+            segmentManager.close();
+            try (FileOutputStream outputStream = new FileOutputStream(active, true)) {
+                outputStream.write(new byte[]{0, 0, 1, 0, 7});
+            }
+            MessageFileManager reopenManager = new MessageFileManager(1024);
+            LinkedList<Message> actualMessages = reopenManager.initAllMsg(queueName);
+            Assertions.assertEquals(30 - firstCount, actualMessages.size());
+            Assertions.assertEquals(writePos, reopenManager.getQueueLog(queueName).getWritePosition());
+            for (int i = 0; i < actualMessages.size(); i++) {
+                Message expectedMessage = expectedMessages.get(i + firstCount);
+                Assertions.assertEquals(expectedMessage.getMessageId(), actualMessages.get(i).getMessageId());
+                Assertions.assertEquals(expectedMessage.getOffsetBeg(), actualMessages.get(i).getOffsetBeg());
+            }
+
+            // 接着原来的写位置写
+            Message message = Message.createMessageWithID("testRoutingKey", new BasicProperties(), "testMessageAfter".getBytes());
+            reopenManager.saveMsgFile(queue, message);
+            Assertions.assertEquals(writePos + 4, message.getOffsetBeg());
+            reopenManager.deleteFile(queueName);
+        } finally {
+            segmentManager.deleteFile(queueName);
+        }
+    }
+
+    //测试统计: 写入和删除只改内存里的计数, 关闭时写到 stat 文件, 重新打开扫描时重新统计
+    @Test
+    public void testStats() throws IOException, ClassNotFoundException {
+        String queueName = "testQueueStats";
+        MessageFileManager statsManager = new MessageFileManager(1024);
+        statsManager.initMsg(queueName);
+        try {
+            Queue queue = createQueue(queueName);
+            List<Message> expectedMessages = new LinkedList<>();
+            for (int i = 0; i < 30; i++) {
+                Message message = Message.createMessageWithID("testRoutingKey", new BasicProperties(), ("testMessage" + i).getBytes());
+                statsManager.saveMsgFile(queue, message);
+                expectedMessages.add(message);
+            }
+            QueueStats stats = statsManager.getQueueStats(queueName);
+            Assertions.assertEquals(30, stats.getSumMsg());
+            Assertions.assertEquals(30, stats.getCountMsg());
+            Assertions.assertEquals(statsManager.msgDataLength(queueName), stats.getTotalBytes());
+
+            // 删除第一个段里的消息, 段删除后总数和字节数都减掉
+            QueueLog.Segment first = statsManager.getQueueLog(queueName).getSegments().get(0);
+            int firstCount = 0;
+            for (Message message : expectedMessages) {
+                if (message.getOffsetBeg() < first.getBase() + first.getSize()) {
+                    statsManager.deleteMsgData(queue, message);
+                    firstCount++;
+                }
+            }
+            Message second = expectedMessages.get(firstCount);
+            statsManager.deleteMsgData(queue, second);
+            Assertions.assertEquals(30 - firstCount, stats.getSumMsg());
+            Assertions.assertEquals(29 - firstCount, stats.getCountMsg());
+            Assertions.assertEquals(statsManager.msgDataLength(queueName), stats.getTotalBytes());
+            Assertions.assertEquals(4 + second.getOffsetEnd() - second.getOffsetBeg(), stats.getDeadBytes());
+
+            // 关闭时写到 stat 文件
+            long writePos = statsManager.getQueueLog(queueName).getWritePosition();
+            statsManager.close();
+            File statFile = new File(statsManager.msgCountPath(queueName));
+            Assertions.assertEquals(QueueStats.HEADER_SIZE, statFile.length());
+            MessageFileManager.Stat stat = QueueStats.readHeader(statFile);
+            Assertions.assertEquals(30 - firstCount, stat.sumMsg);
+            Assertions.assertEquals(29 - firstCount, stat.countMsg);
+            Assertions.assertEquals(writePos, stat.writePos);
+
+            // 以前的文本格式也能打开, 扫描时重新统计
+            try (PrintWriter printWriter = new PrintWriter(new FileOutputStream(statFile))) {
+                printWriter.write("0\t0\t" + writePos);
+            }
+            MessageFileManager reopenManager = new MessageFileManager(1024);
+            Assertions.assertEquals(29 - firstCount, reopenManager.initAllMsg(queueName).size());
+            QueueStats reopenStats = reopenManager.getQueueStats(queueName);
+            Assertions.assertEquals(30 - firstCount, reopenStats.getSumMsg());
+            Assertions.assertEquals(29 - firstCount, reopenStats.getCountMsg());
+            Assertions.assertEquals(stats.getDeadBytes(), reopenStats.getDeadBytes());
+            Assertions.assertEquals(writePos, reopenManager.getQueueLog(queueName).getWritePosition());
+            reopenManager.deleteFile(queueName);
+            reopenManager.close();
+        } finally {
+            statsManager.deleteFile(queueName);
+        }
+    }
+
+    //测试删除标记: 删除只改记录长度的最高位, 消息本身不动; 以前用 isValid 删除的消息恢复时照样跳过
+    @Test
+    public void testTombstone() throws IOException, ClassNotFoundException {
+        Queue queue = createQueue(testQueueName1);
+        Message bigMessage = Message.createMessageWithID("testRoutingKey", new BasicProperties(), new byte[1024 * 1024]);
+        Message legacyMessage = Message.createMessageWithID("testRoutingKey", new BasicProperties(), "testLegacy".getBytes());
+        legacyMessage.setIsValid((byte) 0x0);
+        Message liveMessage = Message.createMessageWithID("testRoutingKey", new BasicProperties(), "testLive".getBytes());
+        messageFileManager.saveMsgFile(queue, bigMessage);
+        messageFileManager.saveMsgFile(queue, legacyMessage);
+        messageFileManager.saveMsgFile(queue, liveMessage);
+
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName1);
+        int length = (int) (bigMessage.getOffsetEnd() - bigMessage.getOffsetBeg());
+        byte[] before = queueLog.read(bigMessage.getOffsetBeg(), length);
+        messageFileManager.deleteMsgData(queue, bigMessage);
+        byte[] header = queueLog.read(bigMessage.getOffsetBeg() - 4, 4);
+        int value = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+        Assertions.assertTrue((value & QueueLog.RECORD_DELETED) != 0);
+        Assertions.assertEquals(length, value & QueueLog.RECORD_LENGTH_MASK);
+        Assertions.assertArrayEquals(before, queueLog.read(bigMessage.getOffsetBeg(), length));
+
+        LinkedList<Message> messages = messageFileManager.initAllMsg(testQueueName1);
+        Assertions.assertEquals(1, messages.size());
+        Assertions.assertEquals(liveMessage.getMessageId(), messages.get(0).getMessageId());
+        QueueStats stats = messageFileManager.getQueueStats(testQueueName1);
+        Assertions.assertEquals(3, stats.getSumMsg());
+        Assertions.assertEquals(1, stats.getCountMsg());
+    }
+
+    //测试重复确认: 同一条消息确认两次(先后和并发), 统计和段的有效消息数只减一次, 还有有效消息的段不会被删除
+    @Test
+    public void testDoubleAck() throws IOException, ClassNotFoundException {
+        String queueName = "testQueueDoubleAck";
+        MessageFileManager ackManager = new MessageFileManager(4096);
+        ackManager.initMsg(queueName);
+        try {
+            Queue queue = createQueue(queueName);
+            List<Message> messages = new LinkedList<>();
+            for (int i = 0; i < 30; i++) {
+                Message message = Message.createMessageWithID("testRoutingKey", new BasicProperties(), ("testMessage" + i).getBytes());
+                ackManager.saveMsgFile(queue, message);
+                messages.add(message);
+            }
+            QueueLog queueLog = ackManager.getQueueLog(queueName);
+            QueueLog.Segment first = queueLog.getSegments().get(0);
+            List<Message> firstMessages = new LinkedList<>();
+            for (Message message : messages) {
+                if (message.getOffsetBeg() < first.getBase() + first.getSize()) {
+                    firstMessages.add(message);
+                }
+            }
+            Assertions.assertTrue(firstMessages.size() > 2);
+            QueueStats stats = ackManager.getQueueStats(queueName);
+
+            // 先后确认两次
+            Message acked = firstMessages.get(0);
+            ackManager.deleteMsgData(queue, acked);
+            long deadBytes = stats.getDeadBytes();
+            ackManager.deleteMsgData(queue, acked);
+            Assertions.assertEquals(29, stats.getCountMsg());
+            Assertions.assertEquals(deadBytes, stats.getDeadBytes());
+            Assertions.assertEquals(firstMessages.size() - 1, first.getLive());
+
+            // 并发确认两次
+            Message concurrent = firstMessages.get(1);
+            CompletableFuture.allOf(ackManager.deleteMsgDataAsync(queue, concurrent), ackManager.deleteMsgDataAsync(queue, concurrent)).join();
+            Assertions.assertEquals(28, stats.getCountMsg());
+            Assertions.assertEquals(firstMessages.size() - 2, first.getLive());
+            Assertions.assertTrue(queueLog.contains(first));
+            for (int i = 0; i < firstMessages.size() - 2; i++) {
+                ackManager.deleteMsgData(queue, acked);
+            }
+            Assertions.assertTrue(queueLog.contains(first));
+
+            // 段里剩下的消息都确认之后段才删除, 再确认已经删除的段里的消息也不会出错
+            for (Message message : firstMessages.subList(2, firstMessages.size())) {
+                ackManager.deleteMsgData(queue, message);
+            }
+            Assertions.assertFalse(queueLog.contains(first));
+            ackManager.deleteMsgData(queue, acked);
+            Assertions.assertEquals(30 - firstMessages.size(), stats.getCountMsg());
+            Assertions.assertEquals(30 - firstMessages.size(), ackManager.initAllMsg(queueName).size());
+        } finally {
+            ackManager.close();
+            ackManager.deleteFile(queueName);
+        }
+    }
+
+    //测试确认时 offset 对不上: 转发给两个队列的同一个对象, offset 是后写的队列的; 在前一个队列上确认要报错, 不能改坏那里的别的记录
+    @Test
+    public void testAckWrongOffset() throws IOException, ClassNotFoundException {
+        Queue queue1 = createQueue(testQueueName1);
+        Queue queue2 = createQueue(testQueueName2);
+        Message shared = Message.createMessageWithID("testRoutingKey", new BasicProperties(), "testShared".getBytes());
+        Message other = Message.createMessageWithID("testRoutingKey", new BasicProperties(), new byte[1000]);
+        Message padding = Message.createMessageWithID("testRoutingKey", new BasicProperties(), new byte[100]);
+        messageFileManager.saveMsgFile(queue1, shared);
+        messageFileManager.saveMsgFile(queue1, other);
+        messageFileManager.saveMsgFile(queue2, padding);
+        messageFileManager.saveMsgFile(queue2, shared);
+
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName1);
+        byte[] before = queueLog.read(0, (int) queueLog.getWritePosition());
+        Assertions.assertThrows(IOException.class, () -> messageFileManager.deleteMsgData(queue1, shared));
+        Assertions.assertArrayEquals(before, queueLog.read(0, (int) queueLog.getWritePosition()));
+        Assertions.assertEquals(2, messageFileManager.getQueueStats(testQueueName1).getCountMsg());
+        Assertions.assertEquals(2, messageFileManager.initAllMsg(testQueueName1).size());
+
+        // 在自己的队列上确认照常删除
+        messageFileManager.deleteMsgData(queue2, shared);
+        LinkedList<Message> messages = messageFileManager.initAllMsg(testQueueName2);
+        Assertions.assertEquals(1, messages.size());
+        Assertions.assertEquals(padding.getMessageId(), messages.get(0).getMessageId());
+    }
+
+    //测试零拷贝投递时 offset 对不上: 别的队列的 offset 在这个队列的数据文件里不是一条记录, 不能打开发送
+    @Test
+    public void testRegionWrongOffset() throws IOException {
+        Queue queue1 = createQueue(testQueueName1);
+        Queue queue2 = createQueue(testQueueName2);
+        Message shared = Message.createMessageWithID("testRoutingKey", new BasicProperties(), "testShared".getBytes());
+        messageFileManager.saveMsgFile(queue1, Message.createMessageWithID("testRoutingKey", new BasicProperties(), new byte[1000]));
+        messageFileManager.saveMsgFile(queue2, Message.createMessageWithID("testRoutingKey", new BasicProperties(), new byte[100]));
+        messageFileManager.saveMsgFile(queue2, shared);
+
+        Assertions.assertThrows(IOException.class, () -> messageFileManager.openMsgRegion(queue1, shared));
+        MessageFileManager.MsgRegion region = messageFileManager.openMsgRegion(queue2, shared);
+        try {
+            Assertions.assertEquals(shared.getOffsetEnd() - shared.getOffsetBeg(), region.count);
+        } finally {
+            region.channel.close();
+        }
+    }
 }
@@ -0,0 +1,124 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.common.Request;
+import com.liyc.mqs.mqserver.network.NioConnection;
+import com.liyc.mqs.mqserver.network.NioEventLoop;
+import com.liyc.mqs.mqserver.network.OutboundFrame;
+import com.liyc.mqs.mqserver.network.RequestHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接发送队列测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:50
+ **/
+@SpringBootTest
+public class NioConnectionTest {
+    private NioEventLoop eventLoop = null;
+    private ServerSocketChannel serverChannel = null;
+    private SocketChannel client = null;
+    private final CompletableFuture<NioConnection> connection = new CompletableFuture<>();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        eventLoop = new NioEventLoop("test-io", new RequestHandler() {
+            @Override
+            public void handleRequest(NioConnection conn, Request request) {
+                connection.complete(conn);
+            }
+
+            @Override
+            public void connectionClosed(NioConnection conn) {
+            }
+        });
+        eventLoop.start();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        client = SocketChannel.open(serverChannel.getLocalAddress());
+        eventLoop.register(serverChannel.accept());
+        // 发一个请求拿到服务器这边的连接
+        ByteBuffer request = ByteBuffer.allocate(8);
+        request.putInt(0x1);
+        request.putInt(0);
+        request.flip();
+        client.write(request);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        client.close();
+        serverChannel.close();
+        eventLoop.shutdown();
+    }
+
+    // 客户端不读, 发送队列的字节额度用完之后发送方等待; 客户端读走之后额度归还, 发送方继续, 数据完整
+    @Test
+    public void testOutboundBudget() throws Exception {
+        NioConnection conn = connection.get(5, TimeUnit.SECONDS);
+        int frames = 48;
+        int frameSize = 1024 * 1024;
+        AtomicInteger sent = new AtomicInteger();
+        CompletableFuture<Void> sender = CompletableFuture.runAsync(() -> {
+            try {
+                for (int i = 0; i < frames; i++) {
+                    ByteBuffer header = ByteBuffer.allocate(8);
+                    header.putInt(0xc);
+                    header.putInt(frameSize);
+                    header.flip();
+                    byte[] payload = new byte[frameSize];
+                    payload[0] = (byte) i;
+                    conn.send(new OutboundFrame(header, ByteBuffer.wrap(payload)));
+                    sent.incrementAndGet();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        // 额度加上 socket 的缓冲区都写满了, 发送方停在 send 里
+        int last = -1;
+        while (sent.get() != last) {
+            last = sent.get();
+            Thread.sleep(500);
+        }
+        Assertions.assertFalse(sender.isDone());
+        Assertions.assertTrue(sent.get() < frames);
+        Assertions.assertTrue((long) sent.get() * frameSize >= NioConnection.MAX_OUTBOUND_BYTES);
+        Assertions.assertFalse(conn.isClosed());
+
+        // 读走所有帧, 发送方全部发完
+        ByteBuffer header = ByteBuffer.allocate(8);
+        ByteBuffer payload = ByteBuffer.allocate(frameSize);
+        for (int i = 0; i < frames; i++) {
+            header.clear();
+            while (header.hasRemaining()) {
+                client.read(header);
+            }
+            header.flip();
+            Assertions.assertEquals(0xc, header.getInt());
+            Assertions.assertEquals(frameSize, header.getInt());
+            payload.clear();
+            while (payload.hasRemaining()) {
+                client.read(payload);
+            }
+            Assertions.assertEquals((byte) i, payload.get(0));
+        }
+        sender.get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals(frames, sent.get());
+        Assertions.assertFalse(conn.isClosed());
+    }
+}
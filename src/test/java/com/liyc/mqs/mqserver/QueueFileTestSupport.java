@@ -0,0 +1,91 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.datacenter.MessageFileManager;
+import com.liyc.mqs.mqserver.datacenter.SyncPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 队列消息文件测试的公共部分, 各个存储测试类继承它, 只写自己的用例
+ * 1.测试队列名由子类传进来, 测试类之间不会用到同一个目录
+ * 2.打开 MessageFileManager-open, 每个测试结束时关闭并删除队列文件
+ * 3.创建测试队列-createQueue, 写入第 from 条开始的 count 条消息-save
+ * 4.比较消息-assertMessages
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:50
+ **/
+public abstract class QueueFileTestSupport {
+    protected final String testQueueName;
+    protected MessageFileManager messageFileManager = null;
+
+    protected QueueFileTestSupport(String testQueueName) {
+        this.testQueueName = testQueueName;
+    }
+
+    @AfterEach
+    public void closeQueueFile() {
+        if (messageFileManager == null) {
+            return;
+        }
+        messageFileManager.close();
+        messageFileManager.deleteFile(testQueueName);
+        messageFileManager = null;
+    }
+
+    // 按段大小打开 MessageFileManager, 不主动刷盘
+    protected MessageFileManager open(long segmentSize) throws IOException {
+        messageFileManager = new MessageFileManager(segmentSize, SyncPolicy.OS);
+        messageFileManager.initMsg(testQueueName);
+        return messageFileManager;
+    }
+
+    protected Queue createQueue() {
+        Queue queue = new Queue();
+        queue.setName(testQueueName);
+        queue.setDurable(true);
+        return queue;
+    }
+
+    // 第 i 条测试消息
+    protected static Message createMessage(int i) {
+        return Message.createMessageWithID("testRoutingKey", new BasicProperties(), ("testMessage" + i).getBytes());
+    }
+
+    protected List<Message> save(int from, int count) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            Message message = createMessage(i);
+            messageFileManager.saveMsgFile(createQueue(), message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    protected static void assertMessages(List<Message> expected, List<Message> actual) {
+        assertMessages(expected, actual, true);
+    }
+
+    // keepBody 为 false 时, 读出来的消息不带消息体
+    protected static void assertMessages(List<Message> expected, List<Message> actual, boolean keepBody) {
+        Assertions.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertEquals(expected.get(i).getMessageId(), actual.get(i).getMessageId());
+            Assertions.assertEquals(expected.get(i).getRoutingKey(), actual.get(i).getRoutingKey());
+            Assertions.assertEquals(expected.get(i).getOffsetBeg(), actual.get(i).getOffsetBeg());
+            Assertions.assertEquals(expected.get(i).getOffsetEnd(), actual.get(i).getOffsetEnd());
+            if (keepBody) {
+                Assertions.assertArrayEquals(expected.get(i).getBody(), actual.get(i).getBody());
+            } else {
+                Assertions.assertNull(actual.get(i).getBody());
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.datacenter.MessageFileManager;
+import com.liyc.mqs.mqserver.datacenter.QueueSnapshot;
+import com.liyc.mqs.mqserver.datacenter.SyncPolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 队列快照测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 21:50
+ **/
+@SpringBootTest
+public class QueueSnapshotTest extends QueueFileTestSupport {
+    public QueueSnapshotTest() {
+        super("testQueueSnapshot");
+    }
+
+    // 快照加上快照之后写的记录, 和扫描整个日志的结果一样; 快照之后确认的消息不会恢复
+    @Test
+    public void testRecoverFromSnapshot() throws IOException, ClassNotFoundException {
+        open(8192);
+        List<Message> messages = save(0, 300);
+        for (int i = 0; i < 300; i += 3) {
+            messageFileManager.deleteMsgData(createQueue(), messages.get(i));
+        }
+        Assertions.assertTrue(messageFileManager.snapshot(testQueueName));
+        Assertions.assertTrue(messageFileManager.snapshotFile(testQueueName).exists());
+        messages.addAll(save(300, 100));
+        for (int i = 1; i < 400; i += 3) {
+            messageFileManager.deleteMsgData(createQueue(), messages.get(i));
+        }
+        List<Message> expected = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (i % 3 == 2 || (i >= 300 && i % 3 == 0)) {
+                expected.add(messages.get(i));
+            }
+        }
+
+        assertMessages(expected, messageFileManager.initAllMsg(testQueueName), true);
+        MessageFileManager.Stat fromSnapshot = messageFileManager.getQueueStats(testQueueName).snapshot(-1);
+        // 没有快照时扫描整个日志, 统计一样
+        Assertions.assertTrue(messageFileManager.snapshotFile(testQueueName).delete());
+        assertMessages(expected, messageFileManager.initAllMsg(testQueueName), true);
+        MessageFileManager.Stat fromScan = messageFileManager.getQueueStats(testQueueName).snapshot(-1);
+        Assertions.assertEquals(fromScan.sumMsg, fromSnapshot.sumMsg);
+        Assertions.assertEquals(fromScan.countMsg, fromSnapshot.countMsg);
+        Assertions.assertEquals(fromScan.totalBytes, fromSnapshot.totalBytes);
+        Assertions.assertEquals(fromScan.deadBytes, fromSnapshot.deadBytes);
+    }
+
+    // 在上一个快照的基础上生成新快照, 没有变化就不写
+    @Test
+    public void testIncrementalSnapshot() throws IOException, ClassNotFoundException {
+        open(8192);
+        List<Message> messages = save(0, 100);
+        Assertions.assertTrue(messageFileManager.snapshot(testQueueName));
+        Assertions.assertFalse(messageFileManager.snapshot(testQueueName));
+
+        messageFileManager.deleteMsgData(createQueue(), messages.get(0));
+        messages.addAll(save(100, 50));
+        Assertions.assertTrue(messageFileManager.snapshot(testQueueName));
+        QueueSnapshot snapshot = QueueSnapshot.read(messageFileManager.snapshotFile(testQueueName));
+        Assertions.assertNotNull(snapshot);
+        Assertions.assertEquals(149, snapshot.getEntries().size());
+        Assertions.assertEquals(150, snapshot.getNextSeq());
+        Assertions.assertEquals(messageFileManager.getQueueLog(testQueueName).getWritePosition(), snapshot.getWritePos());
+        for (int i = 0; i < snapshot.getEntries().size(); i++) {
+            Message message = messages.get(i + 1);
+            QueueSnapshot.Entry entry = snapshot.getEntries().get(i);
+            Assertions.assertEquals(message.getMessageId(), entry.getBasicProperties().getMessageId());
+            Assertions.assertEquals(message.getOffsetBeg(), entry.getOffsetBeg());
+            Assertions.assertEquals(message.getOffsetEnd() - message.getOffsetBeg(), entry.getLength());
+        }
+    }
+
+    // 重新打开后懒队列从快照恢复, 不带消息体
+    @Test
+    public void testReopenLazy() throws IOException, ClassNotFoundException {
+        open(8192);
+        List<Message> messages = save(0, 200);
+        messageFileManager.deleteMsgData(createQueue(), messages.remove(10));
+        // 关闭时写快照
+        messageFileManager.close();
+        Assertions.assertTrue(messageFileManager.snapshotFile(testQueueName).exists());
+
+        messageFileManager = new MessageFileManager(8192, SyncPolicy.OS);
+        LinkedList<Message> lazyMessages = messageFileManager.initAllMsg(testQueueName, false);
+        assertMessages(messages, lazyMessages, false);
+        Assertions.assertEquals(messages.size(), messageFileManager.getQueueStats(testQueueName).getCountMsg());
+        Message actual = messageFileManager.readMsg(createQueue(), lazyMessages.get(5));
+        Assertions.assertArrayEquals(messages.get(5).getBody(), actual.getBody());
+    }
+
+    // 和日志对不上的快照不用, 扫描整个日志
+    @Test
+    public void testStaleSnapshot() throws IOException, ClassNotFoundException {
+        open(8192);
+        List<Message> messages = save(0, 100);
+        long writePos = messageFileManager.getQueueLog(testQueueName).getWritePosition();
+        new QueueSnapshot(writePos + 100, 101, new ArrayList<>()).write(messageFileManager.snapshotFile(testQueueName));
+        assertMessages(messages, messageFileManager.initAllMsg(testQueueName), true);
+
+        new QueueSnapshot(writePos, 50, new ArrayList<>()).write(messageFileManager.snapshotFile(testQueueName));
+        assertMessages(messages, messageFileManager.initAllMsg(testQueueName), true);
+    }
+}
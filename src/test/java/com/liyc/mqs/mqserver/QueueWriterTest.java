@@ -0,0 +1,149 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.datacenter.QueueWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 队列写线程测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:30
+ **/
+@SpringBootTest
+public class QueueWriterTest extends QueueFileTestSupport {
+    private QueueWriter queueWriter = null;
+
+    public QueueWriterTest() {
+        super("testQueueWriter");
+    }
+
+    // 先停写线程, 再由父类关闭并删除队列文件
+    @AfterEach
+    public void tearDown() {
+        if (queueWriter != null) {
+            queueWriter.shutdown();
+            queueWriter = null;
+        }
+    }
+
+    // 一个队列的任务总在同一个线程上按提交顺序执行
+    @Test
+    public void testSingleWriter() throws Exception {
+        queueWriter = new QueueWriter(3);
+        List<List<Integer>> orders = new ArrayList<>();
+        List<Set<Thread>> threads = new ArrayList<>();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int q = 0; q < 5; q++) {
+            orders.add(new ArrayList<>());
+            threads.add(new HashSet<>());
+        }
+        for (int i = 0; i < 1000; i++) {
+            int q = i % 5;
+            int value = i;
+            futures.add(queueWriter.submit("testQueue" + q, () -> {
+                // 同一个队列只有一个线程碰这两个集合, 不用加锁
+                orders.get(q).add(value);
+                threads.get(q).add(Thread.currentThread());
+                return value;
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Assertions.assertEquals(i, (int) QueueWriter.await(futures.get(i)));
+        }
+        for (int q = 0; q < 5; q++) {
+            Assertions.assertEquals(1, threads.get(q).size());
+            Assertions.assertEquals(200, orders.get(q).size());
+            for (int i = 1; i < orders.get(q).size(); i++) {
+                Assertions.assertTrue(orders.get(q).get(i - 1) < orders.get(q).get(i));
+            }
+        }
+
+        // 任务抛出的异常从 await 原样抛出
+        CompletableFuture<Object> failed = queueWriter.submit(testQueueName, () -> {
+            throw new IOException("testError");
+        });
+        IOException exception = Assertions.assertThrows(IOException.class, () -> QueueWriter.await(failed));
+        Assertions.assertEquals("testError", exception.getMessage());
+
+        // 写线程上再提交的任务直接执行, 不会等自己
+        int nested = QueueWriter.await(queueWriter.submit(testQueueName,
+                () -> QueueWriter.await(queueWriter.submit(testQueueName, () -> 42))));
+        Assertions.assertEquals(42, nested);
+
+        // 关闭前提交的任务都执行完, 关闭后提交的任务在调用线程执行
+        List<CompletableFuture<Integer>> pending = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int value = i;
+            pending.add(queueWriter.submit(testQueueName, () -> value));
+        }
+        queueWriter.shutdown();
+        for (CompletableFuture<Integer> future : pending) {
+            Assertions.assertTrue(future.isDone());
+        }
+        Thread caller = Thread.currentThread();
+        Assertions.assertTrue(caller == QueueWriter.await(queueWriter.submit(testQueueName, Thread::currentThread)));
+        queueWriter = null;
+    }
+
+    // 多个发布线程和确认线程同时操作一个队列, 写入和确认都交给写线程, 位置不会重叠, 统计对得上
+    @Test
+    public void testConcurrentPublishAndAck() throws Exception {
+        open(64 * 1024);
+        Queue queue = createQueue();
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        List<Future<List<Message>>> publishers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            publishers.add(executor.submit(() -> {
+                List<Message> messages = new ArrayList<>();
+                for (int i = 0; i < 250; i++) {
+                    Message message = Message.createMessageWithID("testRoutingKey", new BasicProperties(), ("testMessage" + thread + "-" + i).getBytes());
+                    if (i % 5 == 0) {
+                        QueueWriter.await(messageFileManager.saveMsgFilesAsync(queue, Collections.singletonList(message)));
+                    } else {
+                        messageFileManager.saveMsgFile(queue, message);
+                    }
+                    messages.add(message);
+                }
+                return messages;
+            }));
+        }
+        List<Message> all = new ArrayList<>();
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (Future<List<Message>> publisher : publishers) {
+            List<Message> messages = publisher.get(60, TimeUnit.SECONDS);
+            all.addAll(messages);
+            // 每个线程写的消息确认一半, 异步确认
+            for (int i = 0; i < messages.size(); i += 2) {
+                acks.add(messageFileManager.deleteMsgDataAsync(queue, messages.get(i)));
+            }
+        }
+        executor.shutdown();
+        CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+
+        Set<Long> positions = new HashSet<>();
+        for (Message message : all) {
+            Assertions.assertTrue(positions.add(message.getOffsetBeg()));
+        }
+        Assertions.assertEquals(500, messageFileManager.getQueueStats(testQueueName).getCountMsg());
+        Assertions.assertEquals(500, messageFileManager.initAllMsg(testQueueName).size());
+    }
+}
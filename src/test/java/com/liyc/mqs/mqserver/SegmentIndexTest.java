@@ -0,0 +1,122 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.datacenter.MessageFileManager;
+import com.liyc.mqs.mqserver.datacenter.QueueLog;
+import com.liyc.mqs.mqserver.datacenter.SegmentIndex;
+import com.liyc.mqs.mqserver.datacenter.SyncPolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 段的稀疏序号索引测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 20:50
+ **/
+@SpringBootTest
+public class SegmentIndexTest extends QueueFileTestSupport {
+    public SegmentIndexTest() {
+        super("testQueueIndex");
+    }
+
+    // 分页读完整个队列
+    private List<Message> readAll(long fromSeq, int pageSize) throws IOException, ClassNotFoundException {
+        List<Message> result = new ArrayList<>();
+        while (true) {
+            MessageFileManager.MsgPage page = messageFileManager.readMsgRange(testQueueName, fromSeq, pageSize);
+            if (page.messages.isEmpty()) {
+                return result;
+            }
+            result.addAll(page.messages);
+            fromSeq = page.nextSeq;
+        }
+    }
+
+    @Test
+    public void testPositionOf() throws IOException, ClassNotFoundException {
+        open(8192);
+        List<Message> messages = save(0, 300);
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        Assertions.assertTrue(queueLog.getSegments().size() > 2);
+        Assertions.assertEquals(300, queueLog.getNextSeq());
+        for (int i = 0; i < messages.size(); i++) {
+            Assertions.assertEquals(messages.get(i).getOffsetBeg() - 4, queueLog.positionOf(i));
+        }
+        Assertions.assertEquals(-1, queueLog.positionOf(300));
+        // 索引是稀疏的, 每个段一个起始项, 加上每 INTERVAL 条一项
+        int entries = 0;
+        for (QueueLog.Segment segment : queueLog.getSegments()) {
+            SegmentIndex index = new SegmentIndex(SegmentIndex.fileOf(segment.getFile()));
+            index.load(segment.getSize());
+            Assertions.assertEquals(segment.getFirstSeq(), index.seqAt(0));
+            entries += index.size();
+        }
+        Assertions.assertTrue(entries < 300 / SegmentIndex.INTERVAL + queueLog.getSegments().size() + 1);
+    }
+
+    // 分页跳过删除的消息, 从中间的序号开始读
+    @Test
+    public void testReadRange() throws IOException, ClassNotFoundException {
+        open(8192);
+        List<Message> messages = save(0, 300);
+        List<Message> expected = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (i % 3 == 0) {
+                messageFileManager.deleteMsgData(createQueue(), messages.get(i));
+            } else {
+                expected.add(messages.get(i));
+            }
+        }
+        assertMessages(expected, readAll(0, 17));
+
+        MessageFileManager.MsgPage page = messageFileManager.readMsgRange(testQueueName, 150, 10);
+        Assertions.assertEquals(messages.get(151).getMessageId(), page.messages.get(0).getMessageId());
+        Assertions.assertEquals(10, page.messages.size());
+        Assertions.assertEquals(165, page.nextSeq);
+        // 读到结尾, 下一页从下一条写入的序号开始
+        page = messageFileManager.readMsgRange(testQueueName, 299, 10);
+        Assertions.assertEquals(1, page.messages.size());
+        Assertions.assertEquals(300, page.nextSeq);
+    }
+
+    // 重新打开后序号接着用, 删除的索引文件扫描段重建
+    @Test
+    public void testReopen() throws IOException, ClassNotFoundException {
+        open(8192);
+        List<Message> messages = save(0, 200);
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        QueueLog.Segment second = queueLog.getSegments().get(1);
+        messageFileManager.close();
+        Assertions.assertTrue(SegmentIndex.fileOf(second.getFile()).delete());
+
+        messageFileManager = new MessageFileManager(8192, SyncPolicy.OS);
+        queueLog = messageFileManager.getQueueLog(testQueueName);
+        Assertions.assertEquals(200, messageFileManager.initAllMsg(testQueueName).size());
+        Assertions.assertEquals(200, queueLog.getNextSeq());
+        for (int i = 0; i < messages.size(); i++) {
+            Assertions.assertEquals(messages.get(i).getOffsetBeg() - 4, queueLog.positionOf(i));
+        }
+        Assertions.assertTrue(SegmentIndex.fileOf(second.getFile()).exists());
+        Message message = save(200, 1).get(0);
+        Assertions.assertEquals(message.getOffsetBeg() - 4, queueLog.positionOf(200));
+
+        // 第一个段里的消息都删除了, 段删除后从后面的段开始读
+        QueueLog.Segment first = queueLog.getSegments().get(0);
+        int deleted = 0;
+        for (Message m : messages) {
+            if (m.getOffsetEnd() <= first.getBase() + first.getSize()) {
+                messageFileManager.deleteMsgData(createQueue(), m);
+                deleted++;
+            }
+        }
+        Assertions.assertFalse(SegmentIndex.fileOf(first.getFile()).exists());
+        Assertions.assertEquals(deleted, queueLog.getFirstSeq());
+        Assertions.assertEquals(201 - deleted, readAll(0, 50).size());
+    }
+}
@@ -0,0 +1,206 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.datacenter.MessageFileManager;
+import com.liyc.mqs.mqserver.datacenter.QueueLog;
+import com.liyc.mqs.mqserver.datacenter.SyncPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 存储模式测试类, 对比 channel 模式和 mapped 模式
+ *
+ * @author Liyc
+ * @date 2026/10/17 19:10
+ **/
+@SpringBootTest
+public class StorageModeTest extends QueueFileTestSupport {
+    private final File benchDirectory = new File("./data/testQueueBench");
+
+    public StorageModeTest() {
+        super("testQueueMapped");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        QueueLog.deleteSegmentFiles(benchDirectory);
+        benchDirectory.delete();
+    }
+
+    // 一条长度为 length 的记录, 内容是 i
+    private static byte[] record(int i, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) i);
+        }
+        return buffer.array();
+    }
+
+    @Test
+    public void testMapped() throws IOException, ClassNotFoundException {
+        messageFileManager = new MessageFileManager(1024, SyncPolicy.OS, QueueLog.StorageMode.MAPPED);
+        messageFileManager.initMsg(testQueueName);
+        Queue queue = createQueue();
+        List<Message> expectedMessages = save(0, 30);
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        List<QueueLog.Segment> segments = queueLog.getSegments();
+        Assertions.assertTrue(segments.size() > 2);
+        // 封存段截到了实际长度, 活动段预分配成段大小
+        for (QueueLog.Segment segment : segments) {
+            if (segment == queueLog.getActive()) {
+                Assertions.assertEquals(1024, segment.getFile().length());
+            } else {
+                Assertions.assertEquals(segment.getSize(), segment.getFile().length());
+            }
+        }
+
+        // 删除第一个段里的消息, 要先把封存段映射进来读写, 删除段时解除映射
+        QueueLog.Segment first = segments.get(0);
+        int firstCount = 0;
+        for (Message message : expectedMessages) {
+            if (message.getOffsetBeg() < first.getBase() + first.getSize()) {
+                messageFileManager.deleteMsgData(queue, message);
+                firstCount++;
+            }
+        }
+        Assertions.assertFalse(first.getFile().exists());
+        long writePos = queueLog.getWritePosition();
+        File active = queueLog.getActive().getFile();
+        messageFileManager.close();
+        // 关闭时截掉预分配的部分, 用 channel 模式也能打开
+        Assertions.assertEquals(writePos - queueLog.getActive().getBase(), active.length());
+        messageFileManager = new MessageFileManager(1024, SyncPolicy.OS, QueueLog.StorageMode.CHANNEL);
+        LinkedList<Message> actualMessages = messageFileManager.initAllMsg(testQueueName);
+        Assertions.assertEquals(30 - firstCount, actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Assertions.assertEquals(expectedMessages.get(i + firstCount).getMessageId(), actualMessages.get(i).getMessageId());
+        }
+    }
+
+    // 没有正常关闭时活动段后面是预分配的 0, 不知道写位置的话扫描记录找到结尾
+    @Test
+    public void testMappedRecover() throws IOException {
+        benchDirectory.mkdirs();
+        QueueLog mappedLog = new QueueLog(benchDirectory, 4096, QueueLog.StorageMode.MAPPED);
+        mappedLog.open(-1);
+        for (int i = 0; i < 10; i++) {
+            mappedLog.append(record(i, 100), 1);
+        }
+        // 一块比整个段还大的数据, 映射里放不下, 用 channel 写
+        long bigPosition = mappedLog.append(record(10, 5000), 1);
+        long writePos = mappedLog.getWritePosition();
+        Assertions.assertArrayEquals(record(10, 5000), mappedLog.read(bigPosition, 5004));
+        mappedLog.append(record(11, 100), 1);
+        mappedLog.force();
+
+        QueueLog recoverLog = new QueueLog(benchDirectory, 4096, QueueLog.StorageMode.CHANNEL);
+        recoverLog.open(-1);
+        Assertions.assertEquals(writePos + 104, recoverLog.getWritePosition());
+        Assertions.assertArrayEquals(record(11, 100), recoverLog.read(writePos, 104));
+        recoverLog.close();
+        mappedLog.close();
+    }
+
+    // channel 模式按块预分配, 文件长度不是数据的结尾; 恢复时按写位置或者扫描记录找到结尾, 滚动和关闭时截到实际长度
+    @Test
+    public void testPreallocate() throws IOException {
+        benchDirectory.mkdirs();
+        QueueLog queueLog = new QueueLog(benchDirectory, 4096, QueueLog.StorageMode.CHANNEL, 1024);
+        queueLog.open(-1);
+        for (int i = 0; i < 10; i++) {
+            queueLog.append(record(i, 100), 1);
+        }
+        queueLog.force();
+        File first = queueLog.getActive().getFile();
+        Assertions.assertEquals(1040, queueLog.getWritePosition());
+        Assertions.assertEquals(2048, first.length());
+
+        // 没有正常关闭, 按 stat 里记的写位置恢复, 或者不知道写位置时扫描记录
+        QueueLog recoverLog = new QueueLog(benchDirectory, 4096, QueueLog.StorageMode.CHANNEL, 1024);
+        recoverLog.open(-1);
+        Assertions.assertEquals(1040, recoverLog.getWritePosition());
+        Assertions.assertEquals(10, recoverLog.getNextSeq());
+        Assertions.assertArrayEquals(record(9, 100), recoverLog.read(936, 104));
+        recoverLog.close();
+        queueLog.close();
+        Assertions.assertEquals(1040, first.length());
+
+        queueLog = new QueueLog(benchDirectory, 4096, QueueLog.StorageMode.CHANNEL, 1024);
+        queueLog.open(1040);
+        for (int i = 10; i < 60; i++) {
+            queueLog.append(record(i, 100), 1);
+        }
+        // 封存段截到了实际长度
+        List<QueueLog.Segment> segments = queueLog.getSegments();
+        Assertions.assertTrue(segments.size() > 1);
+        for (QueueLog.Segment segment : segments) {
+            if (segment != queueLog.getActive()) {
+                Assertions.assertEquals(segment.getSize(), segment.getFile().length());
+            }
+        }
+        long writePos = queueLog.getWritePosition();
+        queueLog.close();
+
+        // 滚动时截掉预分配部分之前崩溃了, 封存段后面还有 0, 按下一个段的起始位置截掉
+        long firstSize = segments.get(0).getSize();
+        try (RandomAccessFile file = new RandomAccessFile(first, "rw")) {
+            file.setLength(4096);
+        }
+        recoverLog = new QueueLog(benchDirectory, 4096, QueueLog.StorageMode.CHANNEL, 1024);
+        recoverLog.open(writePos);
+        Assertions.assertEquals(firstSize, recoverLog.getSegments().get(0).getSize());
+        Assertions.assertEquals(firstSize, first.length());
+        Assertions.assertEquals(60, recoverLog.getNextSeq());
+        Assertions.assertEquals(writePos, recoverLog.getWritePosition());
+        Assertions.assertArrayEquals(record(59, 100), recoverLog.read(writePos - 104, 104));
+        recoverLog.close();
+    }
+
+    @Test
+    public void testBenchmark() throws IOException {
+        int rounds = 100000;
+        int length = 124;
+        long[] channelTimes = runBenchmark(QueueLog.StorageMode.CHANNEL, rounds, length);
+        long[] mappedTimes = runBenchmark(QueueLog.StorageMode.MAPPED, rounds, length);
+        System.out.println("[StorageModeTest] channel: 追加 " + rounds * 1000000000L / channelTimes[0] + " 条/秒, 按位置读 " + rounds * 1000000000L / channelTimes[1] + " 条/秒");
+        System.out.println("[StorageModeTest] mapped: 追加 " + rounds * 1000000000L / mappedTimes[0] + " 条/秒, 按位置读 " + rounds * 1000000000L / mappedTimes[1] + " 条/秒");
+    }
+
+    // 返回追加和按位置读 rounds 条记录的耗时
+    private long[] runBenchmark(QueueLog.StorageMode mode, int rounds, int length) throws IOException {
+        QueueLog.deleteSegmentFiles(benchDirectory);
+        benchDirectory.mkdirs();
+        QueueLog queueLog = new QueueLog(benchDirectory, QueueLog.DEFAULT_SEGMENT_SIZE, mode);
+        queueLog.open(-1);
+        try {
+            byte[] block = record(1, length);
+            long[] positions = new long[rounds];
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                positions[i] = queueLog.append(block, 1);
+            }
+            long appendTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                byte[] bytes = queueLog.read(positions[i] + 4, length);
+                Assertions.assertEquals(1, bytes[length - 1]);
+            }
+            long readTime = System.nanoTime() - start;
+            return new long[]{appendTime, readTime};
+        } finally {
+            queueLog.close();
+        }
+    }
+}
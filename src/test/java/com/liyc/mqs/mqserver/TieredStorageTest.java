@@ -0,0 +1,181 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.datacenter.MessageFileManager;
+import com.liyc.mqs.mqserver.datacenter.QueueLog;
+import com.liyc.mqs.mqserver.datacenter.SegmentArchive;
+import com.liyc.mqs.mqserver.tool.BinaryTool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 分层存储测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 22:40
+ **/
+@SpringBootTest
+public class TieredStorageTest extends QueueFileTestSupport {
+    public TieredStorageTest() {
+        super("testQueueArchive");
+    }
+
+    private List<Message> save(int from, int count, int bodySize) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            byte[] body = new byte[bodySize];
+            Arrays.fill(body, (byte) ('a' + i % 26));
+            Message message = Message.createMessageWithID("testRoutingKey" + i, new BasicProperties(), body);
+            messageFileManager.saveMsgFile(createQueue(), message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // 封存段归档之后热目录里的段文件删掉了, 按原来的 offset 照样读得到, 零拷贝投递拿到解压出来的记录
+    @Test
+    public void testArchive() throws IOException, ClassNotFoundException {
+        open(64 * 1024);
+        // 有几条比压缩块还大的消息, 读的时候要跨块
+        List<Message> messages = save(0, 200, 1000);
+        messages.addAll(save(200, 3, SegmentArchive.BLOCK_SIZE + 100));
+        messages.addAll(save(203, 50, 1000));
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        int sealed = queueLog.getSegments().size() - 1;
+        Assertions.assertTrue(sealed > 2);
+        long dataLength = messageFileManager.msgDataLength(testQueueName);
+
+        Assertions.assertEquals(sealed, messageFileManager.getArchiver().archive(testQueueName, 0));
+        // 再来一次没有可以归档的段
+        Assertions.assertEquals(0, messageFileManager.getArchiver().archive(testQueueName, 0));
+        File archiveDirectory = new File(messageFileManager.archivePath(testQueueName));
+        for (QueueLog.Segment segment : queueLog.getSegments()) {
+            if (segment == queueLog.getActive()) {
+                Assertions.assertFalse(segment.isArchived());
+                continue;
+            }
+            Assertions.assertTrue(segment.isArchived());
+            Assertions.assertFalse(segment.getFile().exists());
+            Assertions.assertTrue(SegmentArchive.fileOf(archiveDirectory, segment.getFile()).exists());
+            // 消息体都是重复的字节, 压缩之后小很多
+            Assertions.assertTrue(segment.getArchive().getLength() * 4 < segment.getSize());
+        }
+        Assertions.assertEquals(dataLength, messageFileManager.msgDataLength(testQueueName));
+
+        for (Message message : messages) {
+            Message actual = messageFileManager.readMsg(createQueue(), message);
+            Assertions.assertEquals(message.getMessageId(), actual.getMessageId());
+            Assertions.assertArrayEquals(message.getBody(), actual.getBody());
+        }
+        assertMessages(messages, messageFileManager.readMsgRange(testQueueName, 0, 1000).messages);
+        Message first = messages.get(0);
+        MessageFileManager.MsgRegion region = messageFileManager.openMsgRegion(createQueue(), first);
+        Assertions.assertNull(region.channel);
+        Assertions.assertEquals(first.getOffsetEnd() - first.getOffsetBeg(), region.count);
+        Assertions.assertArrayEquals(first.getBody(), ((Message) BinaryTool.parseByte(region.bytes)).getBody());
+
+        // 新写的消息还在热目录里
+        messages.addAll(save(253, 10, 1000));
+        assertMessages(messages, messageFileManager.initAllMsg(testQueueName));
+    }
+
+    // 归档段里的消息确认之后, 重新打开不会再恢复出来; 段里的消息都确认了就删除归档文件
+    @Test
+    public void testAckAndRecover() throws IOException, ClassNotFoundException {
+        open(64 * 1024);
+        List<Message> messages = save(0, 300, 1000);
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        QueueLog.Segment first = queueLog.getSegments().get(0);
+        messageFileManager.getArchiver().archive(testQueueName, 0);
+        Assertions.assertTrue(first.isArchived());
+        File archiveFile = first.getArchive().getFile();
+
+        // 确认第一个段里一半的消息, 剩下的最后再确认
+        List<Message> expected = new ArrayList<>();
+        List<Message> remaining = new ArrayList<>();
+        boolean ack = true;
+        for (Message message : messages) {
+            if (message.getOffsetEnd() > first.getBase() + first.getSize()) {
+                expected.add(message);
+                continue;
+            }
+            if (ack) {
+                messageFileManager.deleteMsgData(createQueue(), message);
+            } else {
+                expected.add(message);
+                remaining.add(message);
+            }
+            ack = !ack;
+        }
+        Assertions.assertEquals(expected.size(), messageFileManager.getQueueStats(testQueueName).getCountMsg());
+        messageFileManager.close();
+
+        // 从快照恢复
+        open(64 * 1024);
+        assertMessages(expected, messageFileManager.initAllMsg(testQueueName));
+        Assertions.assertTrue(messageFileManager.getQueueLog(testQueueName).getSegments().get(0).isArchived());
+        messageFileManager.close();
+
+        // 没有快照, 扫描所有段恢复
+        Assertions.assertTrue(messageFileManager.snapshotFile(testQueueName).delete());
+        open(64 * 1024);
+        assertMessages(expected, messageFileManager.initAllMsg(testQueueName));
+        Assertions.assertEquals(expected.size(), messageFileManager.getQueueStats(testQueueName).getCountMsg());
+
+        for (Message message : remaining) {
+            messageFileManager.deleteMsgData(createQueue(), message);
+        }
+        Assertions.assertFalse(archiveFile.exists());
+        Assertions.assertFalse(SegmentArchive.deletedFileOf(archiveFile).exists());
+        Assertions.assertTrue(messageFileManager.getQueueLog(testQueueName).getSegments().get(0).getBase() > first.getBase());
+    }
+
+    // 压缩期间确认的消息, 切换到归档段时补上删除标记
+    @Test
+    public void testAckWhileArchiving() throws IOException, ClassNotFoundException {
+        open(64 * 1024);
+        List<Message> messages = save(0, 200, 1000);
+        QueueLog queueLog = messageFileManager.getQueueLog(testQueueName);
+        QueueLog.Segment first = queueLog.getSegments().get(0);
+        File temp = queueLog.beginArchive(first);
+        Assertions.assertNotNull(temp);
+        // 正在归档的段不能再开始归档
+        Assertions.assertNull(queueLog.beginArchive(first));
+        SegmentArchive.compress(first.getFile(), first.getSize(), temp);
+        messageFileManager.deleteMsgData(createQueue(), messages.get(1));
+        Assertions.assertTrue(queueLog.completeArchive(first, temp));
+        Assertions.assertFalse(temp.exists());
+        Assertions.assertTrue(queueLog.isDeleted(messages.get(1).getOffsetBeg() - 4));
+        Assertions.assertFalse(queueLog.isDeleted(messages.get(0).getOffsetBeg() - 4));
+
+        // 压缩期间段被删除了就不切换
+        QueueLog.Segment second = queueLog.getSegments().get(1);
+        temp = queueLog.beginArchive(second);
+        SegmentArchive.compress(second.getFile(), second.getSize(), temp);
+        for (Message message : messages) {
+            if (message.getOffsetBeg() >= second.getBase() && message.getOffsetEnd() <= second.getBase() + second.getSize()) {
+                messageFileManager.deleteMsgData(createQueue(), message);
+            }
+        }
+        Assertions.assertFalse(queueLog.contains(second));
+        Assertions.assertFalse(queueLog.completeArchive(second, temp));
+        Assertions.assertFalse(temp.exists());
+        messageFileManager.close();
+
+        Assertions.assertTrue(messageFileManager.snapshotFile(testQueueName).delete());
+        open(64 * 1024);
+        List<Message> recovered = messageFileManager.initAllMsg(testQueueName);
+        for (Message message : recovered) {
+            Assertions.assertFalse(messages.get(1).getMessageId().equals(message.getMessageId()));
+        }
+        Assertions.assertEquals(messageFileManager.getQueueStats(testQueueName).getCountMsg(), recovered.size());
+    }
+}
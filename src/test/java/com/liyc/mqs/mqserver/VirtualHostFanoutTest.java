@@ -0,0 +1,127 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.MqsApplication;
+import com.liyc.mqs.common.Consumer;
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.ExchangeType;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.core.Queue;
+import com.liyc.mqs.mqserver.datacenter.MessageStore;
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 转发给多个队列的消息, 在每个队列上分别确认
+ * 1.testQueue1 先放一条直接投递的消息, 两个队列里同一个消息的 offset 不一样
+ * 2.扇出交换机把一个持久化消息转发给两个队列, 两个队列都手动确认
+ * 3.两个队列都能确认成功, 第二个队列确认完才从消息中心删除, 硬盘上只剩直接投递的消息
+ *
+ * @author Liyc
+ * @date 2026/10/18 10:20
+ **/
+@SpringBootTest
+public class VirtualHostFanoutTest {
+    private VirtualHost virtualHost = null;
+
+    private VirtualHost open(String store) {
+        System.setProperty(MessageStore.PROPERTY, store);
+        MqsApplication.context = SpringApplication.run(MqsApplication.class);
+        virtualHost = new VirtualHost("default");
+        virtualHost.getRecovery().join();
+        return virtualHost;
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (virtualHost != null) {
+            virtualHost.getDiskDataCenter().close();
+            virtualHost = null;
+        }
+        System.clearProperty(MessageStore.PROPERTY);
+        MqsApplication.context.close();
+        FileUtils.deleteDirectory(new File("./data"));
+    }
+
+    // 订阅一个队列, 手动确认, 收到的消息放进 received
+    private void consume(String queueName, List<Message> received, CountDownLatch latch) {
+        Assertions.assertTrue(virtualHost.basicConsume("testConsumer" + queueName, queueName, false, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] bytes) {
+            }
+
+            @Override
+            public void handleDelivery(String consumerTag, Queue queue, Message message) {
+                received.add(message);
+                latch.countDown();
+            }
+        }));
+    }
+
+    private void ackOnEveryQueue() throws IOException, ClassNotFoundException, InterruptedException {
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testDirect", ExchangeType.DIRECT, true, false, null));
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testFanout", ExchangeType.FANOUT, true, false, null));
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue1", false, true, false, null));
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue2", false, true, false, null));
+        Assertions.assertTrue(virtualHost.bindingDeclare("testFanout", "testQueue1", ""));
+        Assertions.assertTrue(virtualHost.bindingDeclare("testFanout", "testQueue2", ""));
+
+        BasicProperties basicProperties = new BasicProperties();
+        basicProperties.setDurable(2);
+        Assertions.assertTrue(virtualHost.basicPublic("testDirect", "testQueue1", basicProperties, "direct".getBytes()));
+        basicProperties = new BasicProperties();
+        basicProperties.setDurable(2);
+        Assertions.assertTrue(virtualHost.basicPublic("testFanout", "", basicProperties, "fanout".getBytes()));
+
+        List<Message> received1 = new CopyOnWriteArrayList<>();
+        List<Message> received2 = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        consume("testQueue1", received1, latch);
+        consume("testQueue2", received2, latch);
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, received1.size());
+        Assertions.assertEquals(1, received2.size());
+        // 投递在线程池里, 同一个队列的两个消息先后不一定
+        String messageId = received2.get(0).getMessageId();
+        Message direct = messageId.equals(received1.get(0).getMessageId()) ? received1.get(1) : received1.get(0);
+        Assertions.assertArrayEquals("direct".getBytes(), direct.getBody());
+        Assertions.assertArrayEquals("fanout".getBytes(), received2.get(0).getBody());
+
+        // 第一个队列确认完, 第二个队列还没确认, 消息还在消息中心
+        Assertions.assertTrue(virtualHost.basicAck("testQueue1", messageId));
+        Assertions.assertNotNull(virtualHost.getMemoryDataCenter().selectMessage(messageId));
+        Assertions.assertFalse(virtualHost.basicAck("testQueue1", messageId));
+        Assertions.assertTrue(virtualHost.basicAck("testQueue2", messageId));
+        Assertions.assertNull(virtualHost.getMemoryDataCenter().selectMessage(messageId));
+
+        LinkedList<Message> messages1 = virtualHost.getDiskDataCenter().loadAllMessageFromQueue("defaulttestQueue1");
+        Assertions.assertEquals(1, messages1.size());
+        Assertions.assertEquals(direct.getMessageId(), messages1.get(0).getMessageId());
+        Assertions.assertTrue(virtualHost.getDiskDataCenter().loadAllMessageFromQueue("defaulttestQueue2").isEmpty());
+    }
+
+    // 每个队列的数据文件各写一份
+    @Test
+    public void testAckOnEveryQueue() throws IOException, ClassNotFoundException, InterruptedException {
+        open("queue");
+        ackOnEveryQueue();
+    }
+
+    // 所有队列共用一份提交日志
+    @Test
+    public void testAckOnEveryQueueCommitLog() throws IOException, ClassNotFoundException, InterruptedException {
+        open("commitlog");
+        ackOnEveryQueue();
+    }
+}
@@ -0,0 +1,369 @@
+package com.liyc.mqs.mqserver;
+
+import com.liyc.mqs.common.*;
+import com.liyc.mqs.mqserver.core.BasicProperties;
+import com.liyc.mqs.mqserver.core.ExchangeType;
+import com.liyc.mqs.mqserver.core.Message;
+import com.liyc.mqs.mqserver.tool.BinaryTool;
+import com.liyc.mqs.mqserver.tool.WireCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 网络帧二进制编解码测试类
+ *
+ * @author Liyc
+ * @date 2026/10/17 15:50
+ **/
+@SpringBootTest
+public class WireCodecTest {
+
+    // 创建一个测试发布请求
+    private BasicPublishArguments createTestPublish(int bodyLength) {
+        BasicPublishArguments publish = new BasicPublishArguments();
+        publish.setRid("rid-publish");
+        publish.setChannelId("channel-1");
+        publish.setExchangeName("testExchange");
+        publish.setRoutingKey("testRoutingKey");
+        BasicProperties properties = new BasicProperties();
+        properties.setMessageId("M-0001");
+        properties.setRoutingKey("testRoutingKey");
+        properties.setDurable(2);
+        publish.setBasicProperties(properties);
+        byte[] body = new byte[bodyLength];
+        Arrays.fill(body, (byte) 'x');
+        publish.setBytes(body);
+        return publish;
+    }
+
+    @Test
+    public void testDeclare() throws Exception {
+        HashMap<String, Object> arguments = new HashMap<>();
+        arguments.put("x-string", "中文");
+        arguments.put("x-int", -42);
+        arguments.put("x-long", Long.MAX_VALUE);
+        arguments.put("x-bool", true);
+        arguments.put("x-null", null);
+        arguments.put("x-other", 3.5d);
+
+        ExchangeDeclareArguments exchange = new ExchangeDeclareArguments();
+        exchange.setRid("rid-1");
+        exchange.setChannelId("channel-1");
+        exchange.setExchangeName("testExchange");
+        exchange.setType(ExchangeType.TOPIC);
+        exchange.setDurable(true);
+        exchange.setAutoDelete(false);
+        exchange.setArguments(arguments);
+        ExchangeDeclareArguments exchangeParse = (ExchangeDeclareArguments) WireCodec.decode(0x3, WireCodec.encode(0x3, exchange));
+        Assertions.assertEquals("rid-1", exchangeParse.getRid());
+        Assertions.assertEquals("channel-1", exchangeParse.getChannelId());
+        Assertions.assertEquals("testExchange", exchangeParse.getExchangeName());
+        Assertions.assertEquals(ExchangeType.TOPIC, exchangeParse.getType());
+        Assertions.assertTrue(exchangeParse.isDurable());
+        Assertions.assertFalse(exchangeParse.isAutoDelete());
+        Assertions.assertEquals(arguments, exchangeParse.getArguments());
+
+        // 交换机类型是负数的 varint 要报协议错误, 不能数组越界
+        byte[] encoded = WireCodec.encode(0x3, exchange);
+        byte[] name = "testExchange".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        int typeIndex = indexOf(encoded, name) + name.length;
+        Assertions.assertEquals(ExchangeType.TOPIC.ordinal() + 1, encoded[typeIndex]);
+        byte[] negative = new byte[encoded.length + 4];
+        System.arraycopy(encoded, 0, negative, 0, typeIndex);
+        System.arraycopy(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f}, 0, negative, typeIndex, 5);
+        System.arraycopy(encoded, typeIndex + 1, negative, typeIndex + 5, encoded.length - typeIndex - 1);
+        Assertions.assertThrows(java.io.IOException.class, () -> WireCodec.decode(0x3, negative));
+
+        QueueDeclareArguments queue = new QueueDeclareArguments();
+        queue.setRid("rid-2");
+        queue.setChannelId(null);
+        queue.setQueueName("testQueue");
+        queue.setExclusive(true);
+        queue.setDurable(false);
+        queue.setAutoDelete(true);
+        QueueDeclareArguments queueParse = (QueueDeclareArguments) WireCodec.decode(0x5, WireCodec.encode(0x5, queue));
+        Assertions.assertEquals("rid-2", queueParse.getRid());
+        Assertions.assertNull(queueParse.getChannelId());
+        Assertions.assertEquals("testQueue", queueParse.getQueueName());
+        Assertions.assertTrue(queueParse.isExclusive());
+        Assertions.assertFalse(queueParse.isDurable());
+        Assertions.assertTrue(queueParse.isAutoDelete());
+        Assertions.assertNull(queueParse.getArguments());
+    }
+
+    @Test
+    public void testCommand() throws Exception {
+        QueueBindArguments binding = new QueueBindArguments();
+        binding.setRid("rid-3");
+        binding.setChannelId("channel-1");
+        binding.setExchangeName("testExchange");
+        binding.setQueueName("testQueue");
+        binding.setBindingKey("a.*.c");
+        QueueBindArguments bindingParse = (QueueBindArguments) WireCodec.decode(0x7, WireCodec.encode(0x7, binding));
+        Assertions.assertEquals("testExchange", bindingParse.getExchangeName());
+        Assertions.assertEquals("testQueue", bindingParse.getQueueName());
+        Assertions.assertEquals("a.*.c", bindingParse.getBindingKey());
+
+        BasicConsumeArguments consume = new BasicConsumeArguments();
+        consume.setRid("rid-4");
+        consume.setChannelId("channel-1");
+        consume.setConsumerTag("channel-1");
+        consume.setQueueName("testQueue");
+        consume.setAutoAck(true);
+        BasicConsumeArguments consumeParse = (BasicConsumeArguments) WireCodec.decode(0xa, WireCodec.encode(0xa, consume));
+        Assertions.assertEquals("channel-1", consumeParse.getConsumerTag());
+        Assertions.assertEquals("testQueue", consumeParse.getQueueName());
+        Assertions.assertTrue(consumeParse.isAutoAck());
+
+        BasicAckArguments ack = new BasicAckArguments();
+        ack.setRid("rid-5");
+        ack.setChannelId("channel-1");
+        ack.setQueueName("testQueue");
+        ack.setMessageId("M-0001");
+        BasicAckArguments ackParse = (BasicAckArguments) WireCodec.decode(0xb, WireCodec.encode(0xb, ack));
+        Assertions.assertEquals("rid-5", ackParse.getRid());
+        Assertions.assertEquals("testQueue", ackParse.getQueueName());
+        Assertions.assertEquals("M-0001", ackParse.getMessageId());
+    }
+
+    @Test
+    public void testPublishAndDelivery() throws Exception {
+        BasicPublishArguments publish = createTestPublish(1024);
+        BasicPublishArguments publishParse = (BasicPublishArguments) WireCodec.decode(0x9, WireCodec.encode(0x9, publish));
+        Assertions.assertEquals("testExchange", publishParse.getExchangeName());
+        Assertions.assertEquals("testRoutingKey", publishParse.getRoutingKey());
+        Assertions.assertEquals("M-0001", publishParse.getBasicProperties().getMessageId());
+        Assertions.assertEquals(2, publishParse.getBasicProperties().getDurable());
+        Assertions.assertArrayEquals(publish.getBytes(), publishParse.getBytes());
+
+        SubScribeReturns subReturns = new SubScribeReturns();
+        subReturns.setRid("");
+        subReturns.setChannelId("channel-1");
+        subReturns.setOk(true);
+        subReturns.setConsumerTag("channel-1");
+        subReturns.setBody(new byte[0]);
+        SubScribeReturns subParse = (SubScribeReturns) WireCodec.decode(0xc, WireCodec.encode(0xc, subReturns));
+        Assertions.assertEquals("", subParse.getRid());
+        Assertions.assertTrue(subParse.isOk());
+        Assertions.assertNull(subParse.getBasicProperties());
+        Assertions.assertEquals(0, subParse.getBody().length);
+
+        BasicReturns result = new BasicReturns();
+        result.setRid("rid-publish");
+        result.setChannelId("channel-1");
+        result.setOk(false);
+        BasicReturns resultParse = (BasicReturns) WireCodec.decode(0xd, WireCodec.encode(0xd, result));
+        Assertions.assertEquals("rid-publish", resultParse.getRid());
+        Assertions.assertFalse(resultParse.isOk());
+    }
+
+    // 创建 channel 时协商帧压缩, 老版本的报文没有协商字段
+    @Test
+    public void testChannelCreate() throws Exception {
+        ChannelCreateArguments channelCreate = new ChannelCreateArguments();
+        channelCreate.setRid("rid-0");
+        channelCreate.setChannelId("channel-1");
+        channelCreate.setCompression(1);
+        channelCreate.setCompressThreshold(4096);
+        ChannelCreateArguments channelParse = (ChannelCreateArguments) WireCodec.decode(0x1, WireCodec.encode(0x1, channelCreate));
+        Assertions.assertEquals("channel-1", channelParse.getChannelId());
+        Assertions.assertEquals(1, channelParse.getCompression());
+        Assertions.assertEquals(4096, channelParse.getCompressThreshold());
+
+        BasicArguments basic = new BasicArguments();
+        basic.setRid("rid-0");
+        basic.setChannelId("channel-1");
+        ChannelCreateArguments basicParse = (ChannelCreateArguments) WireCodec.decode(0x1, WireCodec.encode(0x1, basic));
+        Assertions.assertEquals(0, basicParse.getCompression());
+
+        ChannelCreateReturns channelReturns = new ChannelCreateReturns();
+        channelReturns.setRid("rid-0");
+        channelReturns.setChannelId("channel-1");
+        channelReturns.setOk(true);
+        channelReturns.setCompression(1);
+        channelReturns.setCompressThreshold(8192);
+        ChannelCreateReturns returnsParse = (ChannelCreateReturns) WireCodec.decode(0xd, WireCodec.encode(0xd, channelReturns));
+        Assertions.assertTrue(returnsParse.isOk());
+        Assertions.assertEquals(8192, returnsParse.getCompressThreshold());
+    }
+
+    // 批量发布请求和逐条的结果
+    @Test
+    public void testBatchPublish() throws Exception {
+        BatchPublishArguments batch = new BatchPublishArguments();
+        batch.setRid("rid-batch");
+        batch.setChannelId("channel-1");
+        batch.setExchangeName("testExchange");
+        List<BatchPublishArguments.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            BatchPublishArguments.Entry entry = new BatchPublishArguments.Entry();
+            entry.setRoutingKey("key" + i);
+            if (i != 1) {
+                BasicProperties properties = new BasicProperties();
+                properties.setDurable(2);
+                entry.setBasicProperties(properties);
+            }
+            entry.setBytes(new byte[]{(byte) i, 2, 3});
+            entries.add(entry);
+        }
+        batch.setEntries(entries);
+        BatchPublishArguments batchParse = (BatchPublishArguments) WireCodec.decode(0x10, WireCodec.encode(0x10, batch));
+        Assertions.assertEquals("rid-batch", batchParse.getRid());
+        Assertions.assertEquals("testExchange", batchParse.getExchangeName());
+        Assertions.assertEquals(3, batchParse.getEntries().size());
+        Assertions.assertEquals("key2", batchParse.getEntries().get(2).getRoutingKey());
+        Assertions.assertNull(batchParse.getEntries().get(1).getBasicProperties());
+        Assertions.assertEquals(2, batchParse.getEntries().get(0).getBasicProperties().getDurable());
+        Assertions.assertArrayEquals(new byte[]{2, 2, 3}, batchParse.getEntries().get(2).getBytes());
+
+        BatchPublishReturns batchReturns = new BatchPublishReturns();
+        batchReturns.setRid("rid-batch");
+        batchReturns.setChannelId("channel-1");
+        batchReturns.setOk(false);
+        batchReturns.setResults(new boolean[]{true, false, true});
+        batchReturns.setMessageIds(new String[]{"M-1", null, "M-3"});
+        BatchPublishReturns returnsParse = (BatchPublishReturns) WireCodec.decode(0xd, WireCodec.encode(0xd, batchReturns));
+        Assertions.assertFalse(returnsParse.isOk());
+        Assertions.assertArrayEquals(new boolean[]{true, false, true}, returnsParse.getResults());
+        Assertions.assertArrayEquals(new String[]{"M-1", null, "M-3"}, returnsParse.getMessageIds());
+    }
+
+    // 从 ByteBuffer 中间开始解码, 老客户端的 Java 序列化数据也能解析
+    @Test
+    public void testBufferAndLegacy() throws Exception {
+        byte[] encoded = WireCodec.encode(0x9, createTestPublish(16));
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 8);
+        buffer.putInt(0x9);
+        buffer.putInt(encoded.length);
+        buffer.put(encoded);
+        buffer.flip();
+        buffer.position(8);
+        BasicPublishArguments publishParse = (BasicPublishArguments) WireCodec.decode(0x9, buffer);
+        Assertions.assertEquals(16, publishParse.getBytes().length);
+        Assertions.assertFalse(buffer.hasRemaining());
+
+        byte[] legacy = BinaryTool.formatByte(createTestPublish(16));
+        BasicPublishArguments legacyParse = (BasicPublishArguments) WireCodec.decode(0x9, legacy);
+        Assertions.assertEquals("testExchange", legacyParse.getExchangeName());
+        Assertions.assertEquals(16, legacyParse.getBytes().length);
+
+        // 截断的报文要报错, 不能解析出一半的对象
+        Assertions.assertThrows(java.io.IOException.class,
+                () -> WireCodec.decode(0x9, Arrays.copyOf(encoded, encoded.length - 4)));
+        Assertions.assertThrows(MqException.class, () -> WireCodec.decode(0x30, encoded));
+    }
+
+    // 零拷贝投递(0xe)解码成和 0xc 一样的 SubScribeReturns; 长度不对的报文要报错
+    @Test
+    public void testZeroCopyDelivery() throws Exception {
+        BasicProperties properties = new BasicProperties();
+        properties.setRoutingKey("testRoutingKey");
+        properties.setDurable(2);
+        byte[] body = new byte[32 * 1024];
+        Arrays.fill(body, (byte) 'z');
+        Message message = Message.createMessageWithID("testRoutingKey", properties, body);
+        byte[] record = BinaryTool.formatByte(message);
+        byte[] tag = "consumer-1".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(4 + tag.length + record.length);
+        payload.putInt(tag.length);
+        payload.put(tag);
+        payload.put(record);
+
+        SubScribeReturns delivery = (SubScribeReturns) WireCodec.decode(0xe, payload.array());
+        Assertions.assertEquals("consumer-1", delivery.getConsumerTag());
+        Assertions.assertEquals("consumer-1", delivery.getChannelId());
+        Assertions.assertTrue(delivery.isOk());
+        Assertions.assertEquals(message.getMessageId(), delivery.getBasicProperties().getMessageId());
+        Assertions.assertEquals("testRoutingKey", delivery.getBasicProperties().getRoutingKey());
+        Assertions.assertArrayEquals(body, delivery.getBody());
+
+        // 从 ByteBuffer 中间开始也能解码
+        ByteBuffer framed = ByteBuffer.allocate(8 + payload.capacity());
+        framed.putInt(0xe);
+        framed.putInt(payload.capacity());
+        framed.put(payload.array());
+        framed.flip();
+        framed.position(8);
+        Assertions.assertArrayEquals(body, WireCodec.decodeDelivery(framed).getBody());
+
+        ByteBuffer badTag = ByteBuffer.allocate(4 + tag.length);
+        badTag.putInt(tag.length + 1);
+        badTag.put(tag);
+        Assertions.assertThrows(java.io.IOException.class, () -> WireCodec.decode(0xe, badTag.array()));
+        Assertions.assertThrows(java.io.IOException.class, () -> WireCodec.decode(0xe, new byte[]{0, 0}));
+    }
+
+    // 老客户端的连接, 响应和推送按 Java 序列化编码, 老客户端用 BinaryTool 就能解析
+    @Test
+    public void testEncoding() throws Exception {
+        Assertions.assertEquals(WireCodec.ENCODING_WIRE, WireCodec.encodingOf(WireCodec.encode(0x9, createTestPublish(16))));
+        Assertions.assertEquals(WireCodec.ENCODING_JAVA, WireCodec.encodingOf(BinaryTool.formatByte(createTestPublish(16))));
+        Assertions.assertEquals(WireCodec.ENCODING_WIRE, WireCodec.encodingOf(new byte[0]));
+
+        BasicReturns returns = new BasicReturns();
+        returns.setRid("rid-returns");
+        returns.setChannelId("channel-1");
+        returns.setOk(true);
+        BasicReturns legacy = (BasicReturns) BinaryTool.parseByte(WireCodec.encode(0xd, returns, WireCodec.ENCODING_JAVA));
+        Assertions.assertEquals("rid-returns", legacy.getRid());
+        Assertions.assertTrue(legacy.isOk());
+        Assertions.assertArrayEquals(WireCodec.encode(0xd, returns), WireCodec.encode(0xd, returns, WireCodec.ENCODING_WIRE));
+
+        SubScribeReturns subReturns = new SubScribeReturns();
+        subReturns.setRid("");
+        subReturns.setChannelId("channel-1");
+        subReturns.setOk(true);
+        subReturns.setConsumerTag("channel-1");
+        subReturns.setBasicProperties(new BasicProperties());
+        subReturns.setBody(new byte[]{1, 2, 3});
+        SubScribeReturns legacyPush = (SubScribeReturns) BinaryTool.parseByte(WireCodec.encode(0xc, subReturns, WireCodec.ENCODING_JAVA));
+        Assertions.assertEquals("channel-1", legacyPush.getConsumerTag());
+        Assertions.assertArrayEquals(new byte[]{1, 2, 3}, legacyPush.getBody());
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target) {
+        for (int i = 0; i + target.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + target.length), target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 和 Java 序列化比较编码后的大小和编解码速度
+    @Test
+    public void testThroughput() throws Exception {
+        BasicPublishArguments publish = createTestPublish(128);
+        int rounds = 20000;
+        // 预热
+        for (int i = 0; i < rounds; i++) {
+            WireCodec.decode(0x9, WireCodec.encode(0x9, publish));
+            BinaryTool.parseByte(BinaryTool.formatByte(publish));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            WireCodec.decode(0x9, WireCodec.encode(0x9, publish));
+        }
+        long wireTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            BinaryTool.parseByte(BinaryTool.formatByte(publish));
+        }
+        long serialTime = System.nanoTime() - start;
+
+        int wireSize = WireCodec.encode(0x9, publish).length;
+        int serialSize = BinaryTool.formatByte(publish).length;
+        System.out.println("[WireCodecTest] WireCodec: " + wireSize + " 字节, " + rounds * 1000000000L / wireTime + " 次/秒");
+        System.out.println("[WireCodecTest] Java 序列化: " + serialSize + " 字节, " + rounds * 1000000000L / serialTime + " 次/秒");
+        Assertions.assertTrue(wireSize < serialSize);
+    }
+}